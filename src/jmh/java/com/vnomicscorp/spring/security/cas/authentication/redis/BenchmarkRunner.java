@@ -0,0 +1,55 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks once per thread count in <code>-Dbenchmark.threads</code> (default 1,4,16), reporting throughput
+ * and sampled latency with the allocation rate from the gc profiler. Results are written as JSON per thread count to
+ * <code>-Dbenchmark.results</code> so runs before and after a change can be compared. Other JMH command line options
+ * given as arguments, such as a benchmark regular expression, <code>-p</code> or <code>-f</code>, are passed through.
+ */
+public final class BenchmarkRunner {
+
+	private BenchmarkRunner() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		File results = new File(System.getProperty("benchmark.results", "target/benchmarks"));
+		results.mkdirs();
+		for (String threads : System.getProperty("benchmark.threads", "1,4,16").split(",")) {
+			OptionsBuilder options = new OptionsBuilder();
+			options.parent(commandLine);
+			if (commandLine.getIncludes().isEmpty()) {
+				options.include(BenchmarkRunner.class.getPackage().getName() + ".*Benchmark");
+			}
+			options.threads(Integer.parseInt(threads.trim())).mode(Mode.Throughput).mode(Mode.SampleTime)
+				.timeUnit(TimeUnit.MICROSECONDS).addProfiler(GCProfiler.class).resultFormat(ResultFormatType.JSON)
+				.result(new File(results, "results-" + threads.trim() + "-threads.json").getPath());
+			new Runner(options.build()).run();
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jasig.cas.client.authentication.AttributePrincipalImpl;
+import org.jasig.cas.client.validation.AssertionImpl;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+
+/**
+ * Realistic tokens for the benchmarks, in the shapes seen in production
+ */
+public final class BenchmarkTokens {
+
+	/**
+	 * A user with one role and a bare assertion
+	 */
+	public static final String SMALL = "small";
+
+	/**
+	 * A user with 50 authorities
+	 */
+	public static final String AUTHORITIES = "authorities";
+
+	/**
+	 * A user with 50 authorities and an assertion carrying a large attribute map
+	 */
+	public static final String ATTRIBUTES = "attributes";
+
+	private static final String KEY = "cas-provider-key";
+
+	private BenchmarkTokens() {
+	}
+
+	/**
+	 * Creates a token of the given shape
+	 *
+	 * @param shape
+	 *            One of {@link #SMALL}, {@link #AUTHORITIES} or {@link #ATTRIBUTES}
+	 * @param serviceTicket
+	 *            The service ticket of the token
+	 * @return The token
+	 */
+	public static CasAuthenticationToken create(String shape, String serviceTicket) {
+		String username = "dave.example";
+		switch (shape) {
+		case SMALL:
+			List<GrantedAuthority> role = Arrays.<GrantedAuthority> asList(new SimpleGrantedAuthority("ROLE_USER"));
+			return new CasAuthenticationToken(KEY, username, serviceTicket, role, new User(username, "", role),
+				new AssertionImpl(username));
+		case AUTHORITIES:
+			return new CasAuthenticationToken(KEY, username, serviceTicket, authorities(), new User(username, "",
+				authorities()), new AssertionImpl(username));
+		case ATTRIBUTES:
+			Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+			for (int i = 0; i < 40; i++) {
+				attributes.put("attribute" + i, "value of attribute number " + i);
+			}
+			List<String> groups = new ArrayList<String>();
+			for (int i = 0; i < 30; i++) {
+				groups.add("cn=group" + i + ",ou=groups,dc=example,dc=com");
+			}
+			attributes.put("memberOf", groups);
+			attributes.put("mail", username + "@example.com");
+			attributes.put("loginCount", 42);
+			attributes.put("lastLogin", 1546300800000L);
+			attributes.put("isFromNewLogin", Boolean.TRUE);
+			Date now = new Date();
+			AssertionImpl assertion = new AssertionImpl(new AttributePrincipalImpl(username, attributes), now,
+				new Date(now.getTime() + 8 * 3600000L), now, attributes);
+			return new CasAuthenticationToken(KEY, username, serviceTicket, authorities(), new User(username, "",
+				authorities()), assertion);
+		default:
+			throw new IllegalArgumentException("Unknown token shape " + shape);
+		}
+	}
+
+	private static List<GrantedAuthority> authorities() {
+		List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>();
+		for (int i = 0; i < 50; i++) {
+			authorities.add(new SimpleGrantedAuthority("ROLE_APPLICATION_PERMISSION_" + i));
+		}
+		return authorities;
+	}
+}
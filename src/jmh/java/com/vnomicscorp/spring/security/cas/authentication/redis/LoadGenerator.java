@@ -0,0 +1,450 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+import org.testcontainers.containers.GenericContainer;
+
+import com.vnomicscorp.spring.security.cas.authentication.redis.TicketCacheMetrics.Operation;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+/**
+ * Drives {@link RedisStatelessTicketCache} with CAS login and validation traffic to size Redis and the pool. Every
+ * thread issues operations on a fixed schedule at its share of <code>-Dload.rate</code> operations per second whether
+ * or not earlier ones have completed, so latency is measured from when an operation was due rather than when it was
+ * sent and stalls are not hidden by coordinated omission.
+ * <p>
+ * Operations are chosen by the <code>-Dload.mix</code> weights: a put is a login caching its ticket, a get a
+ * validation and a remove a logout. Each picks one of <code>-Dload.tickets</code> tickets with Zipfian skew
+ * <code>-Dload.zipf</code>, so a few tickets are validated often and most rarely. Tickets take the
+ * {@link BenchmarkTokens} shapes by the <code>-Dload.shapes</code> weights. Every ticket is cached before the run,
+ * which also measures the Redis memory used per million tickets.
+ * <p>
+ * Starts Redis in docker with testcontainers, unless <code>-Dredis.host</code> (and optionally
+ * <code>-Dredis.port</code>) point at a running server. Tickets are named per run and removed at the end. Prints
+ * throughput, latency percentiles per operation with and without the time spent behind schedule, pool wait
+ * percentiles, hit ratio, errors and the mean serialized size, and writes the latency distributions as
+ * <code>.hgrm</code> files to <code>-Dload.results</code>.
+ */
+public final class LoadGenerator {
+
+	private static final int REDIS_DEFAULT_PORT = 6379;
+	private static final long HIGHEST_LATENCY = TimeUnit.MINUTES.toNanos(1);
+	private static final int SIGNIFICANT_DIGITS = 3;
+
+	private final int threads = Integer.getInteger("load.threads", 16);
+	private final int rate = Integer.getInteger("load.rate", 10000);
+	private final long warmupNanos = TimeUnit.SECONDS.toNanos(Integer.getInteger("load.warmup", 10));
+	private final long durationNanos = TimeUnit.SECONDS.toNanos(Integer.getInteger("load.duration", 60));
+	private final int tickets = Integer.getInteger("load.tickets", 100000);
+	private final ZipfianGenerator popularity = new ZipfianGenerator(tickets, Double.parseDouble(System.getProperty(
+		"load.zipf", "0.99")));
+	private final Weights<Operation> mix = Weights.parse(System.getProperty("load.mix", "get=80,put=15,remove=5"),
+		name -> Operation.valueOf(name.toUpperCase()));
+	private final Weights<String> shapes = Weights.parse(System.getProperty("load.shapes",
+		BenchmarkTokens.SMALL + "=60," + BenchmarkTokens.AUTHORITIES + "=30," + BenchmarkTokens.ATTRIBUTES + "=10"),
+		name -> name);
+	private final String serializerName = System.getProperty("load.serializer", "compact");
+	private final int poolSize = Integer.getInteger("load.pool.maxTotal", threads);
+	private final long poolMaxWaitMillis = Long.getLong("load.pool.maxWaitMillis", 1000);
+	private final File results = new File(System.getProperty("load.results", "target/load-test"));
+	private final String run = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+
+	private final LoadMetrics metrics = new LoadMetrics();
+	private final String[] ticketShapes = new String[tickets];
+	private JedisPool jedisPool;
+	private RedisStatelessTicketCache cache;
+	private long measureFrom;
+	private long end;
+
+	private LoadGenerator() {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("Expected given load.threads to be positive");
+		}
+		if (rate <= 0) {
+			throw new IllegalArgumentException("Expected given load.rate to be positive");
+		}
+		Random random = new Random(tickets);
+		for (int i = 0; i < tickets; i++) {
+			ticketShapes[i] = shapes.next(random);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		new LoadGenerator().run();
+	}
+
+	private void run() throws InterruptedException, FileNotFoundException {
+		String host = System.getProperty("redis.host");
+		int port = Integer.getInteger("redis.port", REDIS_DEFAULT_PORT);
+		GenericContainer redis = null;
+		if (host == null) {
+			redis = new GenericContainer("redis:5").withExposedPorts(REDIS_DEFAULT_PORT);
+			redis.start();
+			host = redis.getContainerIpAddress();
+			port = redis.getMappedPort(REDIS_DEFAULT_PORT);
+		}
+		JedisPoolConfig poolConfig = new JedisPoolConfig();
+		poolConfig.setMaxTotal(poolSize);
+		poolConfig.setMaxIdle(poolSize);
+		poolConfig.setMaxWaitMillis(poolMaxWaitMillis);
+		jedisPool = new JedisPool(poolConfig, host, port);
+		try {
+			cache = new RedisStatelessTicketCache(jedisPool);
+			cache.setBinaryCasAuthenticationTokenSerializer(SerializerBenchmark.createSerializer(serializerName));
+			cache.setExpirationSeconds((int) TimeUnit.NANOSECONDS.toSeconds(warmupNanos + durationNanos) + 600);
+			cache.setMetrics(metrics);
+			populate();
+			List<Worker> workers = drive();
+			report(workers);
+		} finally {
+			IntStream.range(0, tickets).parallel().forEach(i -> cache.removeTicketFromCache(ticket(i)));
+			jedisPool.close();
+			if (redis != null) {
+				redis.stop();
+			}
+		}
+	}
+
+	private void populate() {
+		long memory = usedMemory();
+		long keys = keys();
+		IntStream.range(0, tickets).parallel().forEach(i -> cache.putTicketInCache(token(i)));
+		long added = keys() - keys;
+		if (added > 0) {
+			System.out.printf("Cached %d tickets of %s using %.1f MB per million tickets%n", added, shapes,
+				(usedMemory() - memory) * 1000000.0 / added / (1024 * 1024));
+		}
+	}
+
+	private List<Worker> drive() throws InterruptedException {
+		long start = System.nanoTime();
+		measureFrom = start + warmupNanos;
+		end = measureFrom + durationNanos;
+		long interval = TimeUnit.SECONDS.toNanos(threads) / rate;
+		List<Worker> workers = new ArrayList<Worker>();
+		List<Thread> workerThreads = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			Worker worker = new Worker(start + i * interval / threads, interval);
+			Thread thread = new Thread(worker, "redis-ticket-load-" + i);
+			workers.add(worker);
+			workerThreads.add(thread);
+			thread.start();
+		}
+		LockSupport.parkNanos(measureFrom - System.nanoTime());
+		// Discard the pool waits of the warm-up
+		metrics.poolWait.getIntervalHistogram();
+		for (Thread thread : workerThreads) {
+			thread.join();
+		}
+		return workers;
+	}
+
+	private void report(List<Worker> workers) throws FileNotFoundException {
+		Map<Operation, Histogram> latency = new EnumMap<Operation, Histogram>(Operation.class);
+		Map<Operation, Histogram> service = new EnumMap<Operation, Histogram>(Operation.class);
+		Map<Operation, Long> errors = new EnumMap<Operation, Long>(Operation.class);
+		long hits = 0;
+		long operations = 0;
+		long finished = 0;
+		for (Operation operation : mix.values()) {
+			latency.put(operation, new Histogram(HIGHEST_LATENCY, SIGNIFICANT_DIGITS));
+			service.put(operation, new Histogram(HIGHEST_LATENCY, SIGNIFICANT_DIGITS));
+			errors.put(operation, 0L);
+		}
+		for (Worker worker : workers) {
+			for (Operation operation : mix.values()) {
+				latency.get(operation).add(worker.latency.get(operation));
+				service.get(operation).add(worker.service.get(operation));
+				errors.put(operation, errors.get(operation) + worker.errors.get(operation));
+				operations += worker.latency.get(operation).getTotalCount();
+			}
+			hits += worker.hits;
+			finished = Math.max(finished, worker.finished);
+		}
+		double seconds = (finished - measureFrom) / 1e9;
+		System.out.printf("%nserializer=%s threads=%d pool=%d tickets=%d zipf=%s mix=%s%n", serializerName, threads,
+			poolSize, tickets, System.getProperty("load.zipf", "0.99"), mix);
+		System.out.printf("Throughput %.0f ops/s of %d ops/s scheduled%n", operations / seconds, rate);
+		if (finished - measureFrom > durationNanos * 1.05) {
+			System.out.println("Could not keep up with the schedule; latencies include the time spent behind it");
+		}
+		System.out.println("Latency in microseconds (from due / from sent):");
+		System.out.printf("%-8s %10s %19s %19s %19s %19s %19s %8s%n", "", "count", "p50", "p90", "p99", "p99.9",
+			"max", "errors");
+		results.mkdirs();
+		for (Operation operation : mix.values()) {
+			Histogram due = latency.get(operation);
+			Histogram sent = service.get(operation);
+			System.out.printf("%-8s %10d %19s %19s %19s %19s %19s %8d%n", operation, due.getTotalCount(),
+				percentiles(due, sent, 50), percentiles(due, sent, 90), percentiles(due, sent, 99), percentiles(due,
+					sent, 99.9), micros(due.getMaxValue()) + " / " + micros(sent.getMaxValue()), errors.get(
+						operation));
+			try (PrintStream out = new PrintStream(new File(results, name(operation) + ".hgrm"))) {
+				due.outputPercentileDistribution(out, 1000.0);
+			}
+		}
+		Histogram poolWait = metrics.poolWait.getIntervalHistogram();
+		System.out.printf("Pool wait in microseconds p50 %s p99 %s p99.9 %s max %s%n", micros(poolWait
+			.getValueAtPercentile(50)), micros(poolWait.getValueAtPercentile(99)), micros(poolWait
+				.getValueAtPercentile(99.9)), micros(poolWait.getMaxValue()));
+		if (latency.containsKey(Operation.GET) && latency.get(Operation.GET).getTotalCount() > 0) {
+			System.out.printf("Hit ratio %.1f%%%n", hits * 100.0 / latency.get(Operation.GET).getTotalCount());
+		}
+		if (metrics.serializeCount.sum() > 0) {
+			System.out.printf("Mean serialized size %d bytes%n", metrics.serializedBytes.sum() / metrics.serializeCount
+				.sum());
+		}
+		System.out.println("Latency distributions written to " + results);
+	}
+
+	private String name(Operation operation) {
+		return serializerName + "-" + threads + "-threads-" + operation.name().toLowerCase();
+	}
+
+	private static String percentiles(Histogram due, Histogram sent, double percentile) {
+		return micros(due.getValueAtPercentile(percentile)) + " / " + micros(sent.getValueAtPercentile(percentile));
+	}
+
+	private static String micros(long nanos) {
+		return String.format("%.1f", nanos / 1000.0);
+	}
+
+	private String ticket(int index) {
+		return "ST-" + index + "-" + run + "-load-cas.example.com";
+	}
+
+	private CasAuthenticationToken token(int index) {
+		return BenchmarkTokens.create(ticketShapes[index], ticket(index));
+	}
+
+	private long usedMemory() {
+		try (Jedis jedis = jedisPool.getResource()) {
+			for (String line : jedis.info("memory").split("\r\n")) {
+				if (line.startsWith("used_memory:")) {
+					return Long.parseLong(line.substring("used_memory:".length()));
+				}
+			}
+			throw new IllegalStateException("Expected used_memory in Redis INFO");
+		}
+	}
+
+	private long keys() {
+		try (Jedis jedis = jedisPool.getResource()) {
+			return jedis.dbSize();
+		}
+	}
+
+	/**
+	 * Issues operations on one thread's schedule, recording those due in the measurement period
+	 */
+	private final class Worker implements Runnable {
+		private final long start;
+		private final long interval;
+		final Map<Operation, Histogram> latency = new EnumMap<Operation, Histogram>(Operation.class);
+		final Map<Operation, Histogram> service = new EnumMap<Operation, Histogram>(Operation.class);
+		final Map<Operation, Long> errors = new EnumMap<Operation, Long>(Operation.class);
+		long hits;
+		long finished;
+
+		Worker(long start, long interval) {
+			this.start = start;
+			this.interval = interval;
+			for (Operation operation : Operation.values()) {
+				latency.put(operation, new Histogram(HIGHEST_LATENCY, SIGNIFICANT_DIGITS));
+				service.put(operation, new Histogram(HIGHEST_LATENCY, SIGNIFICANT_DIGITS));
+				errors.put(operation, 0L);
+			}
+		}
+
+		@Override
+		public void run() {
+			Random random = ThreadLocalRandom.current();
+			for (long due = start; due < end; due += interval) {
+				Operation operation = mix.next(random);
+				int index = popularity.next(random);
+				// Create the token before the operation is due so it is not part of the latency
+				CasAuthenticationToken token = operation == Operation.PUT ? token(index) : null;
+				long remaining;
+				while ((remaining = due - System.nanoTime()) > 0) {
+					LockSupport.parkNanos(remaining);
+				}
+				long sent = System.nanoTime();
+				boolean failed = false;
+				boolean hit = false;
+				try {
+					switch (operation) {
+					case GET:
+						hit = cache.getByTicketId(ticket(index)) != null;
+						break;
+					case PUT:
+						cache.putTicketInCache(token);
+						break;
+					default:
+						cache.removeTicketFromCache(ticket(index));
+					}
+				} catch (RuntimeException e) {
+					failed = true;
+				}
+				long completed = System.nanoTime();
+				if (due >= measureFrom) {
+					latency.get(operation).recordValue(Math.min(completed - due, HIGHEST_LATENCY));
+					service.get(operation).recordValue(Math.min(completed - sent, HIGHEST_LATENCY));
+					if (failed) {
+						errors.put(operation, errors.get(operation) + 1);
+					}
+					if (hit) {
+						hits++;
+					}
+				}
+			}
+			finished = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Chooses values by relative weight, parsed from <code>name=weight,...</code>
+	 */
+	private static final class Weights<T> {
+		private final Map<T, Integer> weights;
+		private final List<T> values = new ArrayList<T>();
+		private final int[] cumulative;
+		private final int total;
+
+		private Weights(Map<T, Integer> weights) {
+			this.weights = weights;
+			cumulative = new int[weights.size()];
+			int sum = 0;
+			for (Map.Entry<T, Integer> entry : weights.entrySet()) {
+				sum += entry.getValue();
+				cumulative[values.size()] = sum;
+				values.add(entry.getKey());
+			}
+			if (sum <= 0) {
+				throw new IllegalArgumentException("Expected given weights to be positive");
+			}
+			total = sum;
+		}
+
+		static <T> Weights<T> parse(String text, Function<String, T> names) {
+			Map<T, Integer> weights = new LinkedHashMap<T, Integer>();
+			for (String entry : text.split(",")) {
+				String[] parts = entry.trim().split("=");
+				if (parts.length != 2 || Integer.parseInt(parts[1].trim()) < 0) {
+					throw new IllegalArgumentException("Expected name=weight but was " + entry);
+				}
+				weights.put(names.apply(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+			}
+			return new Weights<T>(weights);
+		}
+
+		T next(Random random) {
+			int pick = random.nextInt(total);
+			for (int i = 0; i < cumulative.length; i++) {
+				if (pick < cumulative[i]) {
+					return values.get(i);
+				}
+			}
+			throw new IllegalStateException();
+		}
+
+		List<T> values() {
+			return values;
+		}
+
+		@Override
+		public String toString() {
+			return weights.toString();
+		}
+	}
+
+	/**
+	 * Keeps pool waits and serialized sizes, ignoring everything the generator measures itself
+	 */
+	private static final class LoadMetrics implements TicketCacheMetrics {
+		final Recorder poolWait = new Recorder(HIGHEST_LATENCY, SIGNIFICANT_DIGITS);
+		final LongAdder serializedBytes = new LongAdder();
+		final LongAdder serializeCount = new LongAdder();
+
+		@Override
+		public void recordPoolWait(long nanos) {
+			poolWait.recordValue(Math.min(nanos, HIGHEST_LATENCY));
+		}
+
+		@Override
+		public void recordSerialize(long nanos, int bytes) {
+			serializedBytes.add(bytes);
+			serializeCount.increment();
+		}
+
+		@Override
+		public void recordCommand(Operation operation, long nanos) {
+		}
+
+		@Override
+		public void recordError(Operation operation) {
+		}
+
+		@Override
+		public void recordLookup(boolean hit) {
+		}
+
+		@Override
+		public void recordDeserialize(long nanos, int bytes) {
+		}
+
+		@Override
+		public void recordRejection() {
+		}
+
+		@Override
+		public void recordFilterLookup(boolean skipped) {
+		}
+
+		@Override
+		public void recordFilterFalsePositive() {
+		}
+
+		@Override
+		public void recordShortCircuit(Operation operation) {
+		}
+
+		@Override
+		public void recordCircuitTransition(CircuitBreakerStatelessTicketCache.State state) {
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+import org.testcontainers.containers.GenericContainer;
+
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+/**
+ * Runs {@link RedisStatelessTicketCache} operations against a real Redis. Starts Redis in docker with testcontainers,
+ * unless <code>-Dredis.host</code> (and optionally <code>-Dredis.port</code>) point at a running server.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RedisStatelessTicketCacheBenchmark {
+
+	private static final int REDIS_DEFAULT_PORT = 6379;
+	private static final int CACHED_TICKETS = 1000;
+
+	@Param({ BenchmarkTokens.SMALL, BenchmarkTokens.AUTHORITIES, BenchmarkTokens.ATTRIBUTES })
+	public String shape;
+
+	@Param({ "default", "compact" })
+	public String serializerName;
+
+	private GenericContainer redis;
+	private JedisPool jedisPool;
+	private RedisStatelessTicketCache cache;
+	private CasAuthenticationToken[] tokens;
+	private final AtomicInteger threads = new AtomicInteger();
+
+	@Setup
+	public void setup() {
+		String host = System.getProperty("redis.host");
+		int port = Integer.getInteger("redis.port", REDIS_DEFAULT_PORT);
+		if (host == null) {
+			redis = new GenericContainer("redis:5").withExposedPorts(REDIS_DEFAULT_PORT);
+			redis.start();
+			host = redis.getContainerIpAddress();
+			port = redis.getMappedPort(REDIS_DEFAULT_PORT);
+		}
+		JedisPoolConfig poolConfig = new JedisPoolConfig();
+		poolConfig.setMaxTotal(64);
+		poolConfig.setMaxIdle(64);
+		jedisPool = new JedisPool(poolConfig, host, port);
+		cache = new RedisStatelessTicketCache(jedisPool);
+		cache.setBinaryCasAuthenticationTokenSerializer(SerializerBenchmark.createSerializer(serializerName));
+		cache.setExpirationSeconds(600);
+		tokens = new CasAuthenticationToken[CACHED_TICKETS];
+		for (int i = 0; i < CACHED_TICKETS; i++) {
+			tokens[i] = BenchmarkTokens.create(shape, "ST-" + i + "-benchmark-cas.example.com");
+			cache.putTicketInCache(tokens[i]);
+		}
+	}
+
+	@TearDown
+	public void teardown() {
+		jedisPool.close();
+		if (redis != null) {
+			redis.stop();
+		}
+	}
+
+	/**
+	 * Gives every benchmark thread its own tickets so puts and removes do not contend on keys
+	 */
+	@State(Scope.Thread)
+	public static class ThreadTickets {
+		private int thread;
+		private int next;
+
+		@Setup
+		public void setup(RedisStatelessTicketCacheBenchmark benchmark) {
+			thread = benchmark.threads.getAndIncrement();
+		}
+
+		int nextIndex() {
+			next = (next + 1) % CACHED_TICKETS;
+			return next;
+		}
+
+		String nextTicket() {
+			return "ST-" + thread + "-" + nextIndex() + "-put-cas.example.com";
+		}
+	}
+
+	@Benchmark
+	public CasAuthenticationToken getHit(ThreadTickets tickets) {
+		return cache.getByTicketId(tokens[tickets.nextIndex()].getCredentials().toString());
+	}
+
+	@Benchmark
+	public CasAuthenticationToken getMiss(ThreadTickets tickets) {
+		return cache.getByTicketId(tickets.nextTicket());
+	}
+
+	@Benchmark
+	public void put(ThreadTickets tickets) {
+		cache.putTicketInCache(tokens[tickets.nextIndex()]);
+	}
+
+	@Benchmark
+	public void remove(ThreadTickets tickets) {
+		cache.removeTicketFromCache(tickets.nextTicket());
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+import org.springframework.security.crypto.codec.Base64;
+
+/**
+ * Compares the allocations of the Java serialization codecs, which reuse streams and buffers per thread, with fresh
+ * streams and Spring's Base64 as they were used before. Compare <code>gc.alloc.rate.norm</code>, the bytes allocated
+ * per operation, between the <code>fresh</code> and <code>reused</code> codecs:
+ *
+ * <pre>
+ * mvn -Pbenchmark -DskipTests integration-test -Dbenchmark.threads=1 "-Dbenchmark.args=SerializerAllocationBenchmark"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SerializerAllocationBenchmark {
+
+	@Param({ BenchmarkTokens.SMALL, BenchmarkTokens.ATTRIBUTES })
+	public String shape;
+
+	@Param({ "fresh", "reused" })
+	public String codec;
+
+	private final JavaBinaryCasAuthenticationTokenSerializer binarySerializer = new JavaBinaryCasAuthenticationTokenSerializer();
+	private final DefaultCasAuthenticationTokenSerializer stringSerializer = new DefaultCasAuthenticationTokenSerializer();
+	private CasAuthenticationToken token;
+	private byte[] serialized;
+	private String encoded;
+
+	@Setup
+	public void setup() throws CasAuthenticationTokenSerializerException {
+		token = BenchmarkTokens.create(shape, "ST-1-benchmark-cas.example.com");
+		serialized = binarySerializer.serialize(token);
+		encoded = stringSerializer.serialize(token);
+	}
+
+	@Benchmark
+	public byte[] serializeBinary() throws Exception {
+		return "fresh".equals(codec) ? serializeFresh(token) : binarySerializer.serialize(token);
+	}
+
+	@Benchmark
+	public CasAuthenticationToken deserializeBinary() throws Exception {
+		return "fresh".equals(codec) ? deserializeFresh(serialized) : binarySerializer.deserialize(serialized);
+	}
+
+	@Benchmark
+	public String serializeBase64() throws Exception {
+		return "fresh".equals(codec) ? new String(Base64.encode(serializeFresh(token)), StandardCharsets.UTF_8)
+			: stringSerializer.serialize(token);
+	}
+
+	@Benchmark
+	public CasAuthenticationToken deserializeBase64() throws Exception {
+		return "fresh".equals(codec) ? deserializeFresh(Base64.decode(encoded.getBytes(StandardCharsets.UTF_8)))
+			: stringSerializer.deserialize(encoded);
+	}
+
+	private static byte[] serializeFresh(CasAuthenticationToken token) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(baos);
+		oos.writeObject(token);
+		oos.flush();
+		return baos.toByteArray();
+	}
+
+	private static CasAuthenticationToken deserializeFresh(byte[] serialized) throws Exception {
+		return (CasAuthenticationToken) new ObjectInputStream(new ByteArrayInputStream(serialized)).readObject();
+	}
+}
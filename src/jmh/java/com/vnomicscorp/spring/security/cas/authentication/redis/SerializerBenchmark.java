@@ -0,0 +1,84 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+
+/**
+ * Serializes and deserializes tokens of every shape in {@link BenchmarkTokens} with every serializer
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SerializerBenchmark {
+
+	@Param({ BenchmarkTokens.SMALL, BenchmarkTokens.AUTHORITIES, BenchmarkTokens.ATTRIBUTES })
+	public String shape;
+
+	@Param({ "default", "compact", "lazy", "compressed" })
+	public String serializerName;
+
+	private BinaryCasAuthenticationTokenSerializer serializer;
+	private CasAuthenticationToken token;
+	private byte[] serialized;
+
+	@Setup
+	public void setup() throws CasAuthenticationTokenSerializerException {
+		serializer = createSerializer(serializerName);
+		token = BenchmarkTokens.create(shape, "ST-1-benchmark-cas.example.com");
+		serialized = serializer.serialize(token);
+	}
+
+	@Benchmark
+	public byte[] serialize() throws CasAuthenticationTokenSerializerException {
+		return serializer.serialize(token);
+	}
+
+	@Benchmark
+	public CasAuthenticationToken deserialize() throws CasAuthenticationTokenSerializerException {
+		return serializer.deserialize(serialized);
+	}
+
+	static BinaryCasAuthenticationTokenSerializer createSerializer(String name) {
+		switch (name) {
+		case "default":
+			return new StringCasAuthenticationTokenSerializerAdapter(new DefaultCasAuthenticationTokenSerializer());
+		case "compact":
+			return new CompactCasAuthenticationTokenSerializer();
+		case "lazy":
+			CompactCasAuthenticationTokenSerializer lazy = new CompactCasAuthenticationTokenSerializer();
+			lazy.setLazy(true);
+			return lazy;
+		case "compressed":
+			return new CompressingCasAuthenticationTokenSerializer(new CompactCasAuthenticationTokenSerializer());
+		default:
+			throw new IllegalArgumentException("Unknown serializer " + name);
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.util.Random;
+
+/**
+ * Draws ranks in <code>[0, n)</code> from a Zipfian distribution with rank 0 the most popular, using the rejection-free
+ * method of Gray et al. as in YCSB. An exponent of 0 is uniform; values close to 1 concentrate the draws on few ranks.
+ */
+public final class ZipfianGenerator {
+
+	private final int n;
+	private final double theta;
+	private final double alpha;
+	private final double zetan;
+	private final double eta;
+
+	/**
+	 * Creates a new instance
+	 *
+	 * @param n
+	 *            The number of ranks
+	 * @param theta
+	 *            The exponent, at least 0 and below 1
+	 */
+	public ZipfianGenerator(int n, double theta) {
+		if (n <= 0) {
+			throw new IllegalArgumentException("Expected given n to be positive");
+		}
+		if (theta < 0 || theta >= 1) {
+			throw new IllegalArgumentException("Expected given theta to be at least 0 and below 1");
+		}
+		this.n = n;
+		this.theta = theta;
+		alpha = 1 / (1 - theta);
+		zetan = zeta(n, theta);
+		eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta(Math.min(n, 2), theta) / zetan);
+	}
+
+	/**
+	 * Draws the next rank
+	 *
+	 * @param random
+	 *            The source of randomness, usually per thread
+	 * @return A rank in <code>[0, n)</code>
+	 */
+	public int next(Random random) {
+		double u = random.nextDouble();
+		double uz = u * zetan;
+		if (uz < 1) {
+			return 0;
+		}
+		if (n > 1 && uz < 1 + Math.pow(0.5, theta)) {
+			return 1;
+		}
+		return (int) Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alpha)));
+	}
+
+	private static double zeta(int n, double theta) {
+		double sum = 0;
+		for (int i = 1; i <= n; i++) {
+			sum += 1 / Math.pow(i, theta);
+		}
+		return sum;
+	}
+}
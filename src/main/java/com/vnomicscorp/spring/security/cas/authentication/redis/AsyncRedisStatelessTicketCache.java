@@ -0,0 +1,546 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+import org.springframework.security.cas.authentication.StatelessTicketCache;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisMovedDataException;
+import redis.clients.jedis.params.SetParams;
+
+/**
+ * A non-blocking front end for a {@link RedisStatelessTicketCache}. Operations are queued and executed by a small
+ * number of worker threads, each of which sends whatever has queued up as one pipeline per Redis node over a pooled
+ * connection. Callers get a {@link java.util.concurrent.CompletableFuture} instead of waiting for a connection and a
+ * round trip.
+ * <p>
+ * The queue is bounded. When it is full new operations are rejected immediately, their future completing with a
+ * {@link java.util.concurrent.RejectedExecutionException}, and counted in {@link #getRejectedCount()}. With
+ * {@link #setFireAndForget(boolean)} the {@link org.springframework.security.cas.authentication.StatelessTicketCache}
+ * put and remove methods return as soon as the operation is queued, so cache writes never sit on the request's
+ * critical path; a rejected or failed write is then only counted and logged.
+ * <p>
+ * Serializer, expiration and put options are taken from the wrapped cache. Call {@link #start()} before use and
+ * {@link #stop()} at shutdown; stopping completes every queued operation first.
+ */
+public class AsyncRedisStatelessTicketCache implements StatelessTicketCache {
+
+	private Logger logger = LoggerFactory.getLogger(AsyncRedisStatelessTicketCache.class);
+
+	private final RedisStatelessTicketCache cache;
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private int queueCapacity = 10000;
+	private int maxBatchSize = 100;
+	private int workerCount = 1;
+	private boolean fireAndForget;
+
+	private volatile BlockingQueue<Operation<?>> queue;
+	private volatile boolean running;
+	private List<Thread> workers;
+
+	/**
+	 * Creates a new instance
+	 *
+	 * @param cache
+	 *            The cache providing the connection pool, serializer and expiration settings
+	 */
+	public AsyncRedisStatelessTicketCache(RedisStatelessTicketCache cache) {
+		if (cache == null) {
+			throw new NullPointerException("Expected given cache to be not null");
+		}
+		this.cache = cache;
+	}
+
+	/**
+	 * Starts the worker threads. Does nothing if they are already running.
+	 */
+	public synchronized void start() {
+		if (workers != null) {
+			return;
+		}
+		queue = new ArrayBlockingQueue<Operation<?>>(queueCapacity);
+		running = true;
+		workers = new ArrayList<Thread>(workerCount);
+		for (int i = 0; i < workerCount; i++) {
+			Thread worker = new Thread(this::work, "redis-ticket-cache-" + i);
+			worker.setDaemon(true);
+			worker.start();
+			workers.add(worker);
+		}
+	}
+
+	/**
+	 * Stops accepting operations, waits for every queued operation to complete and stops the worker threads. Operations
+	 * that were queued while the workers were stopping are rejected.
+	 *
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for the queue to drain
+	 */
+	public synchronized void stop() throws InterruptedException {
+		if (workers == null) {
+			return;
+		}
+		running = false;
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		workers = null;
+		rejectQueued();
+	}
+
+	/**
+	 * @return Whether operations are accepted; false once stopped or a worker thread was interrupted
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Looks up a ticket without blocking
+	 *
+	 * @param serviceTicket
+	 *            The service ticket to look up
+	 * @return A future completed with the cached token, or null if the ticket is not cached
+	 */
+	public CompletableFuture<CasAuthenticationToken> getByTicketIdAsync(String serviceTicket) {
+		if (serviceTicket == null) {
+			throw new NullPointerException("Expected given serviceTicket to be not null");
+		}
+		return submit(new Get(serviceTicket, cache.toKey(serviceTicket)));
+	}
+
+	/**
+	 * Puts a ticket in the cache without blocking. The token is serialized on the calling thread.
+	 *
+	 * @param token
+	 *            The token to cache
+	 * @return A future completed once the ticket is stored
+	 */
+	public CompletableFuture<Void> putTicketInCacheAsync(CasAuthenticationToken token) {
+		if (token == null) {
+			throw new NullPointerException("Expected given token to be not null");
+		}
+		SetParams params = cache.createSetParams(token);
+		if (params == null) {
+			return CompletableFuture.completedFuture(null);
+		}
+		byte[] serialized;
+		try {
+			serialized = cache.getBinaryCasAuthenticationTokenSerializer().serialize(token);
+		} catch (CasAuthenticationTokenSerializerException e) {
+			CompletableFuture<Void> failed = new CompletableFuture<Void>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		String serviceTicket = token.getCredentials().toString();
+		return submit(new Put(serviceTicket, cache.toKey(serviceTicket), serialized, params));
+	}
+
+	/**
+	 * Removes a ticket from the cache without blocking
+	 *
+	 * @param serviceTicket
+	 *            The service ticket to remove
+	 * @return A future completed once the ticket is removed
+	 */
+	public CompletableFuture<Void> removeTicketFromCacheAsync(String serviceTicket) {
+		if (serviceTicket == null) {
+			throw new NullPointerException("Expected given serviceTicket to be not null");
+		}
+		return submit(new Remove(serviceTicket, cache.toKey(serviceTicket)));
+	}
+
+	@Override
+	public CasAuthenticationToken getByTicketId(String serviceTicket) {
+		return join(getByTicketIdAsync(serviceTicket));
+	}
+
+	@Override
+	public void putTicketInCache(CasAuthenticationToken token) {
+		CompletableFuture<Void> future = putTicketInCacheAsync(token);
+		if (fireAndForget) {
+			future.whenComplete(this::logFireAndForgetFailure);
+		} else {
+			join(future);
+		}
+	}
+
+	@Override
+	public void removeTicketFromCache(CasAuthenticationToken token) {
+		removeTicketFromCache(token.getCredentials().toString());
+	}
+
+	@Override
+	public void removeTicketFromCache(String serviceTicket) {
+		CompletableFuture<Void> future = removeTicketFromCacheAsync(serviceTicket);
+		if (fireAndForget) {
+			future.whenComplete(this::logFireAndForgetFailure);
+		} else {
+			join(future);
+		}
+	}
+
+	/**
+	 * @return The number of operations waiting to be sent to Redis
+	 */
+	public int getQueueSize() {
+		BlockingQueue<Operation<?>> current = queue;
+		return current == null ? 0 : current.size();
+	}
+
+	/**
+	 * @return The number of operations rejected because the queue was full or the cache was not running
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * @return The number of operations that failed in Redis or while deserializing
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	private <T> CompletableFuture<T> submit(Operation<T> operation) {
+		if (!running) {
+			reject(operation, "Ticket cache is not running");
+		} else if (!queue.offer(operation)) {
+			reject(operation, "Ticket cache queue is full");
+		} else if (!running && queue.remove(operation)) {
+			// Stopped while offering, the workers and stop() may both have missed it
+			reject(operation, "Ticket cache is not running");
+		}
+		return operation.future;
+	}
+
+	private void reject(Operation<?> operation, String message) {
+		rejectedCount.incrementAndGet();
+		operation.future.completeExceptionally(new RejectedExecutionException(message));
+	}
+
+	private void rejectQueued() {
+		List<Operation<?>> queued = new ArrayList<Operation<?>>();
+		queue.drainTo(queued);
+		for (Operation<?> operation : queued) {
+			reject(operation, "Ticket cache is not running");
+		}
+	}
+
+	private void work() {
+		List<Operation<?>> batch = new ArrayList<Operation<?>>(maxBatchSize);
+		while (running || !queue.isEmpty()) {
+			Operation<?> first;
+			try {
+				first = queue.poll(100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				// Nothing would complete what is still queued, so stop accepting and reject it
+				running = false;
+				rejectQueued();
+				break;
+			}
+			if (first == null) {
+				continue;
+			}
+			batch.add(first);
+			queue.drainTo(batch, maxBatchSize - 1);
+			execute(batch);
+			batch.clear();
+		}
+	}
+
+	private void execute(List<Operation<?>> batch) {
+		// Keys of different nodes can not share a pipeline
+		Map<JedisPool, List<Operation<?>>> batchByPool = new LinkedHashMap<JedisPool, List<Operation<?>>>();
+		for (Operation<?> operation : batch) {
+			try {
+				batchByPool.computeIfAbsent(cache.getConnectionSource().getPool(operation.key),
+					pool -> new ArrayList<Operation<?>>()).add(operation);
+			} catch (RuntimeException e) {
+				fail(operation, e);
+			}
+		}
+		for (Map.Entry<JedisPool, List<Operation<?>>> entry : batchByPool.entrySet()) {
+			execute(entry.getKey(), entry.getValue());
+		}
+	}
+
+	private void execute(JedisPool pool, List<Operation<?>> batch) {
+		Jedis jedis = null;
+		try {
+			jedis = pool.getResource();
+			Pipeline pipeline = jedis.pipelined();
+			for (Operation<?> operation : batch) {
+				operation.send(pipeline);
+			}
+			pipeline.sync();
+			logger.debug("Executed pipeline of {} operations", batch.size());
+		} catch (RuntimeException e) {
+			for (Operation<?> operation : batch) {
+				fail(operation, e);
+			}
+			return;
+		} finally {
+			if (jedis != null) {
+				jedis.close();
+			}
+		}
+		// Completed only once the connection is back in the pool so callbacks never hold it
+		boolean moved = false;
+		for (int i = 0; i < batch.size(); i++) {
+			try {
+				batch.get(i).complete();
+			} catch (JedisDataException e) {
+				moved |= e instanceof JedisMovedDataException;
+				fail(batch.get(i), e);
+			}
+		}
+		if (moved) {
+			cache.getConnectionSource().refresh();
+		}
+	}
+
+	private void fail(Operation<?> operation, RuntimeException e) {
+		// Counted first so the count is current once the caller sees the failure
+		if (!operation.future.isDone()) {
+			failedCount.incrementAndGet();
+			operation.future.completeExceptionally(e);
+		}
+	}
+
+	private void logFireAndForgetFailure(Void result, Throwable failure) {
+		if (failure != null) {
+			logger.warn("Dropped ticket cache write", failure);
+		}
+	}
+
+	private static <T> T join(CompletableFuture<T> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException("Exception encountered while accessing the ticket cache", e.getCause());
+		}
+	}
+
+	/**
+	 * A queued operation and the future of its result
+	 */
+	private abstract class Operation<T> {
+		final String serviceTicket;
+		final byte[] key;
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+
+		Operation(String serviceTicket, byte[] key) {
+			this.serviceTicket = serviceTicket;
+			this.key = key;
+		}
+
+		abstract void send(Pipeline pipeline);
+
+		abstract void complete();
+	}
+
+	private final class Get extends Operation<CasAuthenticationToken> {
+		private final boolean refresh;
+		private Supplier<byte[]> response;
+
+		Get(String serviceTicket, byte[] key) {
+			super(serviceTicket, key);
+			this.refresh = cache.shouldRefresh(serviceTicket);
+		}
+
+		@Override
+		void send(Pipeline pipeline) {
+			response = cache.read(pipeline, serviceTicket, key, refresh);
+		}
+
+		@Override
+		void complete() {
+			byte[] serialized = response.get();
+			CasAuthenticationToken token;
+			try {
+				token = serialized == null ? null : cache.getBinaryCasAuthenticationTokenSerializer().deserialize(
+					serialized);
+			} catch (CasAuthenticationTokenRejectedException e) {
+				cache.recordRejection(serviceTicket, e);
+				token = null;
+			} catch (CasAuthenticationTokenSerializerException e) {
+				failedCount.incrementAndGet();
+				future.completeExceptionally(new RuntimeException(
+					"Exception encountered while deserializing CasAuthenticationToken", e));
+				return;
+			}
+			try {
+				// Only talks to Redis again if the refresh outlived the assertion
+				future.complete(cache.slide(token, key, refresh));
+			} catch (RuntimeException e) {
+				fail(this, e);
+			}
+		}
+	}
+
+	private final class Put extends Operation<Void> {
+		private final byte[] value;
+		private final SetParams params;
+		private Response<?> response;
+
+		Put(String serviceTicket, byte[] key, byte[] value, SetParams params) {
+			super(serviceTicket, key);
+			this.value = value;
+			this.params = params;
+		}
+
+		@Override
+		void send(Pipeline pipeline) {
+			response = cache.write(pipeline, serviceTicket, key, value, params);
+		}
+
+		@Override
+		void complete() {
+			response.get();
+			future.complete(null);
+		}
+	}
+
+	private final class Remove extends Operation<Void> {
+		private Response<?> response;
+
+		Remove(String serviceTicket, byte[] key) {
+			super(serviceTicket, key);
+		}
+
+		@Override
+		void send(Pipeline pipeline) {
+			response = cache.delete(pipeline, serviceTicket, key);
+		}
+
+		@Override
+		void complete() {
+			response.get();
+			future.complete(null);
+		}
+	}
+
+	public Logger getLogger() {
+		return logger;
+	}
+
+	public void setLogger(Logger logger) {
+		this.logger = logger;
+	}
+
+	/**
+	 * Gets the maximum number of operations waiting to be sent to Redis
+	 *
+	 * @return The maximum number of operations waiting to be sent to Redis
+	 */
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * Sets the maximum number of operations waiting to be sent to Redis. Must be set before {@link #start()}.
+	 *
+	 * @param queueCapacity
+	 *            The maximum number of operations waiting to be sent to Redis
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * Gets the maximum number of operations sent in one pipeline
+	 *
+	 * @return The maximum number of operations sent in one pipeline
+	 */
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	/**
+	 * Sets the maximum number of operations sent in one pipeline
+	 *
+	 * @param maxBatchSize
+	 *            The maximum number of operations sent in one pipeline
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * Gets the number of worker threads, each using one pooled connection while sending a pipeline
+	 *
+	 * @return The number of worker threads
+	 */
+	public int getWorkerCount() {
+		return workerCount;
+	}
+
+	/**
+	 * Sets the number of worker threads, each using one pooled connection while sending a pipeline. Must be set before
+	 * {@link #start()}.
+	 *
+	 * @param workerCount
+	 *            The number of worker threads
+	 */
+	public void setWorkerCount(int workerCount) {
+		this.workerCount = workerCount;
+	}
+
+	/**
+	 * Gets whether put and remove return as soon as the operation is queued
+	 *
+	 * @return Whether put and remove return as soon as the operation is queued
+	 */
+	public boolean isFireAndForget() {
+		return fireAndForget;
+	}
+
+	/**
+	 * Sets whether put and remove return as soon as the operation is queued. Failures are then only logged and counted.
+	 *
+	 * @param fireAndForget
+	 *            Whether put and remove return as soon as the operation is queued
+	 */
+	public void setFireAndForget(boolean fireAndForget) {
+		this.fireAndForget = fireAndForget;
+	}
+}
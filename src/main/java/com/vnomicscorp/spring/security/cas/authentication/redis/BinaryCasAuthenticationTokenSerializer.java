@@ -0,0 +1,49 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+
+/**
+ * An interface which defines implementations that serialize and deserialize
+ * {@link org.springframework.security.cas.authentication.CasAuthenticationToken} to and from bytes. Redis stores bytes,
+ * so implementations avoid the text encoding that {@link CasAuthenticationTokenSerializer} requires.
+ * {@link CasAuthenticationTokenSerializer} implementations can be used through
+ * {@link StringCasAuthenticationTokenSerializerAdapter}.
+ */
+public interface BinaryCasAuthenticationTokenSerializer {
+	/**
+	 * Serializes the given authentication token as bytes
+	 *
+	 * @param token
+	 *            The token to serialize
+	 * @return The serialized token
+	 * @throws CasAuthenticationTokenSerializerException
+	 */
+	byte[] serialize(CasAuthenticationToken token) throws CasAuthenticationTokenSerializerException;
+
+	/**
+	 * Deserializes the given bytes into an instance of
+	 * {@link org.springframework.security.cas.authentication.CasAuthenticationToken}
+	 *
+	 * @param serialized
+	 *            The result of serializing a
+	 *            {@link org.springframework.security.cas.authentication.CasAuthenticationToken}
+	 * @return The deserialized token
+	 * @throws CasAuthenticationTokenSerializerException
+	 */
+	CasAuthenticationToken deserialize(byte[] serialized) throws CasAuthenticationTokenSerializerException;
+}
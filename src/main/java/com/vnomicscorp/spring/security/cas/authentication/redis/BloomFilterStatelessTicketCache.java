@@ -0,0 +1,476 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+import org.springframework.security.cas.authentication.StatelessTicketCache;
+
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.util.MurmurHash;
+
+/**
+ * A {@link org.springframework.security.cas.authentication.StatelessTicketCache} that answers lookups of tickets known
+ * to be absent without consulting its delegate. Most misses are for service tickets that were just issued and never
+ * cached; this saves them the Redis round trip before Spring validates the ticket with CAS.
+ * <p>
+ * Every cached ticket is added to an in-memory Bloom filter. Tickets put on this node are added directly, tickets put
+ * on other nodes are added when their {@link RedisPubSubTicketInvalidator} message arrives, so every node must publish
+ * its puts on a shared invalidator. A lookup of a ticket the filter has never seen returns null; a lookup of a ticket
+ * the filter may have seen, including the configured fraction of false positives, goes to the delegate.
+ * <p>
+ * A Bloom filter can not forget, so two generations are kept, each spanning {@link #getTicketLifetimeMillis()}. Tickets
+ * are added to the current generation and looked up in both; when the current generation is a lifetime old it becomes
+ * the previous one and the oldest is dropped. A ticket is therefore remembered for at least one lifetime, which must not
+ * be shorter than the longest time a ticket stays in the cache.
+ * <p>
+ * The filter only answers for tickets it could have seen being put. Until one lifetime after it was created, and again
+ * after the invalidator reports that messages may have been lost, every lookup goes to the delegate. With an
+ * invalidator, lookups also go to the delegate while it is not running and until a message of another node has arrived
+ * since the filter was last trusted, as a quiet channel can not be told from a broken subscription. A ticket put on
+ * another node and looked up here before its message arrives is still reported absent, so keep the pub/sub latency
+ * well below the time between issuing a ticket and reusing it on another node. If the delegate has no expiration or
+ * several nodes do not share an invalidator, do not use this cache.
+ * <p>
+ * Puts are written to the delegate before they are published. Every put is published, including the put back of
+ * {@link org.springframework.security.cas.authentication.CasAuthenticationProvider} after each cache hit: it resets
+ * the ticket's expiration time in the delegate, so the other nodes must remember it for another lifetime too. A failed
+ * publish is logged and does not fail the put.
+ * <p>
+ * {@link #getFalsePositiveRate()} and {@link #getMaxMemoryBytes()} size the filter: the memory is split between the two
+ * generations and each holds {@link #getCapacity()} tickets at the configured false positive rate. Beyond that the rate
+ * rises, see {@link #getEstimatedFalsePositiveRate()}.
+ */
+public class BloomFilterStatelessTicketCache implements StatelessTicketCache, TicketInvalidationListener {
+
+	private static final MurmurHash MURMUR_HASH = new MurmurHash();
+	private static final double LN2 = Math.log(2);
+
+	private Logger logger = LoggerFactory.getLogger(BloomFilterStatelessTicketCache.class);
+
+	private final StatelessTicketCache delegate;
+	private final long ticketLifetimeMillis;
+	private final AtomicLong skippedCount = new AtomicLong();
+	private final AtomicLong passedCount = new AtomicLong();
+	private final AtomicLong falsePositiveCount = new AtomicLong();
+	private double falsePositiveRate = 0.01;
+	private long maxMemoryBytes = 1024 * 1024;
+	private TicketCacheMetrics metrics = TicketCacheMetrics.NONE;
+	private RedisPubSubTicketInvalidator invalidator;
+
+	private int hashCount;
+	private long bitCount;
+	private volatile Generation current;
+	private volatile Generation previous;
+	private volatile long trustedAfter;
+	private volatile long lastMessageAt = Long.MIN_VALUE;
+
+	/**
+	 * Creates a new instance
+	 *
+	 * @param delegate
+	 *            The cache that holds the tickets
+	 * @param ticketLifetimeMillis
+	 *            The longest time in milliseconds a ticket stays in the delegate
+	 */
+	public BloomFilterStatelessTicketCache(StatelessTicketCache delegate, long ticketLifetimeMillis) {
+		if (delegate == null) {
+			throw new NullPointerException("Expected given delegate to be not null");
+		}
+		if (ticketLifetimeMillis <= 0) {
+			throw new IllegalArgumentException("Expected given ticketLifetimeMillis to be positive");
+		}
+		this.delegate = delegate;
+		this.ticketLifetimeMillis = ticketLifetimeMillis;
+		resize();
+	}
+
+	@Override
+	public CasAuthenticationToken getByTicketId(String serviceTicket) {
+		if (serviceTicket == null) {
+			throw new NullPointerException("Expected given serviceTicket to be not null");
+		}
+		long now = currentTimeMillis();
+		boolean filtered = isTrusted(now);
+		if (filtered) {
+			if (!mightContain(serviceTicket, now)) {
+				skippedCount.incrementAndGet();
+				metrics.recordFilterLookup(true);
+				logger.debug("Ticket not in filter: {}", serviceTicket);
+				return null;
+			}
+			passedCount.incrementAndGet();
+			metrics.recordFilterLookup(false);
+		}
+		CasAuthenticationToken token = delegate.getByTicketId(serviceTicket);
+		if (token == null && filtered) {
+			falsePositiveCount.incrementAndGet();
+			metrics.recordFilterFalsePositive();
+		}
+		return token;
+	}
+
+	@Override
+	public void putTicketInCache(CasAuthenticationToken token) {
+		if (token == null) {
+			throw new NullPointerException("Expected given token to be not null");
+		}
+		String serviceTicket = token.getCredentials().toString();
+		delegate.putTicketInCache(token);
+		add(serviceTicket);
+		RedisPubSubTicketInvalidator current = invalidator;
+		if (current != null) {
+			try {
+				current.publish(serviceTicket);
+			} catch (JedisException e) {
+				logger.warn("Failed to publish ticket {}", serviceTicket, e);
+			}
+		}
+	}
+
+	@Override
+	public void removeTicketFromCache(CasAuthenticationToken token) {
+		removeTicketFromCache(token.getCredentials().toString());
+	}
+
+	@Override
+	public void removeTicketFromCache(String serviceTicket) {
+		if (serviceTicket == null) {
+			throw new NullPointerException("Expected given serviceTicket to be not null");
+		}
+		// A Bloom filter can not remove; the ticket is forgotten once its generation is dropped
+		delegate.removeTicketFromCache(serviceTicket);
+	}
+
+	@Override
+	public void ticketInvalidated(String serviceTicket) {
+		// Puts and removes are not told apart, adding a removed ticket only costs a lookup
+		add(serviceTicket);
+		lastMessageAt = currentTimeMillis();
+	}
+
+	@Override
+	public void allTicketsInvalidated() {
+		trustedAfter = currentTimeMillis() + ticketLifetimeMillis;
+		logger.debug("Ticket filter bypassed until {}", trustedAfter);
+	}
+
+	/**
+	 * Adds a ticket to the filter
+	 *
+	 * @param serviceTicket
+	 *            The ticket to add
+	 */
+	public void add(String serviceTicket) {
+		Generation generation = currentGeneration(currentTimeMillis());
+		long hash = MURMUR_HASH.hash(serviceTicket);
+		int hash1 = (int) hash;
+		int hash2 = (int) (hash >>> 32);
+		for (int i = 0; i < hashCount; i++) {
+			generation.set(index(hash1, hash2, i));
+		}
+		generation.insertions.incrementAndGet();
+	}
+
+	/**
+	 * @return Whether lookups are currently answered by the filter, false while it may not have seen every cached ticket
+	 *         or the invalidator has not delivered a message since it was last trusted
+	 */
+	public boolean isTrusted() {
+		return isTrusted(currentTimeMillis());
+	}
+
+	/**
+	 * @return The number of lookups answered by the filter without consulting the delegate
+	 */
+	public long getSkippedCount() {
+		return skippedCount.get();
+	}
+
+	/**
+	 * @return The number of lookups the filter passed to the delegate
+	 */
+	public long getPassedCount() {
+		return passedCount.get();
+	}
+
+	/**
+	 * @return The number of lookups the filter passed to the delegate that missed; false positives of the filter or
+	 *         tickets that expired or were removed
+	 */
+	public long getFalsePositiveCount() {
+		return falsePositiveCount.get();
+	}
+
+	/**
+	 * @return The number of tickets added to the current generation
+	 */
+	public long getInsertionCount() {
+		Generation generation = current;
+		return generation.insertions.get();
+	}
+
+	/**
+	 * @return The number of tickets each generation holds at the configured false positive rate
+	 */
+	public long getCapacity() {
+		return (long) (bitCount * LN2 * LN2 / -Math.log(falsePositiveRate));
+	}
+
+	/**
+	 * @return The number of bytes taken by the bits of both generations
+	 */
+	public long getMemoryBytes() {
+		return 2 * bitCount / 8;
+	}
+
+	/**
+	 * @return The false positive rate estimated from how full the generations are
+	 */
+	public double getEstimatedFalsePositiveRate() {
+		// A lookup is a false positive if all its bits are set in either generation
+		double currentRate = Math.pow(current.fill(bitCount), hashCount);
+		double previousRate = Math.pow(previous.fill(bitCount), hashCount);
+		return currentRate + previousRate - currentRate * previousRate;
+	}
+
+	/**
+	 * Gets the current time. Exists so tests can control time.
+	 *
+	 * @return The current time in milliseconds
+	 */
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	private boolean isTrusted(long now) {
+		if (now < trustedAfter) {
+			return false;
+		}
+		RedisPubSubTicketInvalidator current = invalidator;
+		return current == null || current.isRunning() && lastMessageAt >= trustedAfter;
+	}
+
+	private boolean mightContain(String serviceTicket, long now) {
+		Generation newest = currentGeneration(now);
+		Generation oldest = previous;
+		long hash = MURMUR_HASH.hash(serviceTicket);
+		int hash1 = (int) hash;
+		int hash2 = (int) (hash >>> 32);
+		boolean inNewest = true;
+		boolean inOldest = true;
+		for (int i = 0; i < hashCount && (inNewest || inOldest); i++) {
+			long index = index(hash1, hash2, i);
+			inNewest = inNewest && newest.get(index);
+			inOldest = inOldest && oldest.get(index);
+		}
+		return inNewest || inOldest;
+	}
+
+	private long index(int hash1, int hash2, int i) {
+		// Kirsch and Mitzenmacher: two hashes are as good as k independent ones
+		long combined = hash1 + (long) i * hash2;
+		return (combined & Long.MAX_VALUE) % bitCount;
+	}
+
+	private Generation currentGeneration(long now) {
+		Generation generation = current;
+		if (now - generation.createdAt < ticketLifetimeMillis) {
+			return generation;
+		}
+		synchronized (this) {
+			generation = current;
+			if (now - generation.createdAt >= ticketLifetimeMillis) {
+				previous = generation;
+				generation = new Generation(bitCount, now);
+				current = generation;
+				logger.debug("Rotated ticket filter generation");
+			}
+			return generation;
+		}
+	}
+
+	private synchronized void resize() {
+		hashCount = Math.max(1, (int) Math.round(-Math.log(falsePositiveRate) / LN2));
+		bitCount = Math.max(64, maxMemoryBytes * 8 / 2 / 64 * 64);
+		long now = currentTimeMillis();
+		current = new Generation(bitCount, now);
+		previous = new Generation(bitCount, now);
+		// The filter has forgotten every ticket
+		trustedAfter = now + ticketLifetimeMillis;
+	}
+
+	/**
+	 * The bits of one generation
+	 */
+	private static final class Generation {
+		final AtomicLongArray words;
+		final AtomicLong insertions = new AtomicLong();
+		final long createdAt;
+
+		Generation(long bitCount, long createdAt) {
+			this.words = new AtomicLongArray((int) (bitCount / 64));
+			this.createdAt = createdAt;
+		}
+
+		boolean get(long index) {
+			return (words.get((int) (index >>> 6)) & (1L << index)) != 0;
+		}
+
+		void set(long index) {
+			int word = (int) (index >>> 6);
+			long mask = 1L << index;
+			long value = words.get(word);
+			while ((value & mask) == 0 && !words.compareAndSet(word, value, value | mask)) {
+				value = words.get(word);
+			}
+		}
+
+		double fill(long bitCount) {
+			long set = 0;
+			for (int i = 0; i < words.length(); i++) {
+				set += Long.bitCount(words.get(i));
+			}
+			return (double) set / bitCount;
+		}
+	}
+
+	public Logger getLogger() {
+		return logger;
+	}
+
+	public void setLogger(Logger logger) {
+		this.logger = logger;
+	}
+
+	/**
+	 * Gets the cache that holds the tickets
+	 *
+	 * @return The cache that holds the tickets
+	 */
+	public StatelessTicketCache getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * Gets the longest time in milliseconds a ticket stays in the delegate, and so the time a generation spans
+	 *
+	 * @return The longest time in milliseconds a ticket stays in the delegate
+	 */
+	public long getTicketLifetimeMillis() {
+		return ticketLifetimeMillis;
+	}
+
+	/**
+	 * Gets the false positive rate of a generation filled to capacity
+	 *
+	 * @return The false positive rate of a generation filled to capacity
+	 */
+	public double getFalsePositiveRate() {
+		return falsePositiveRate;
+	}
+
+	/**
+	 * Sets the false positive rate of a generation filled to capacity. Clears the filter, which then passes every lookup
+	 * to the delegate for one ticket lifetime.
+	 *
+	 * @param falsePositiveRate
+	 *            The false positive rate of a generation filled to capacity, between 0 and 1 exclusive
+	 */
+	public void setFalsePositiveRate(double falsePositiveRate) {
+		if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+			throw new IllegalArgumentException("Expected given falsePositiveRate to be between 0 and 1");
+		}
+		this.falsePositiveRate = falsePositiveRate;
+		resize();
+	}
+
+	/**
+	 * Gets the number of bytes the bits of both generations may take
+	 *
+	 * @return The number of bytes the bits of both generations may take
+	 */
+	public long getMaxMemoryBytes() {
+		return maxMemoryBytes;
+	}
+
+	/**
+	 * Sets the number of bytes the bits of both generations may take. Clears the filter, which then passes every lookup
+	 * to the delegate for one ticket lifetime.
+	 *
+	 * @param maxMemoryBytes
+	 *            The number of bytes the bits of both generations may take
+	 */
+	public void setMaxMemoryBytes(long maxMemoryBytes) {
+		if (maxMemoryBytes <= 0 || maxMemoryBytes / 2 / 8 > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Expected given maxMemoryBytes to be positive and at most 32GB");
+		}
+		this.maxMemoryBytes = maxMemoryBytes;
+		resize();
+	}
+
+	/**
+	 * Gets the metrics filter lookups are recorded in
+	 *
+	 * @return The metrics filter lookups are recorded in
+	 */
+	public TicketCacheMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets the metrics filter lookups are recorded in
+	 *
+	 * @param metrics
+	 *            The metrics filter lookups are recorded in
+	 */
+	public void setMetrics(TicketCacheMetrics metrics) {
+		if (metrics == null) {
+			throw new NullPointerException("Expected given metrics to be not null");
+		}
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Gets the invalidator tickets are published on and learned from
+	 *
+	 * @return The invalidator tickets are published on and learned from, or null if there is none
+	 */
+	public RedisPubSubTicketInvalidator getInvalidator() {
+		return invalidator;
+	}
+
+	/**
+	 * Sets the invalidator tickets are published on and learned from and registers this cache as one of its listeners.
+	 * The invalidator still has to be started.
+	 *
+	 * @param invalidator
+	 *            The invalidator tickets are published on and learned from
+	 */
+	public void setInvalidator(RedisPubSubTicketInvalidator invalidator) {
+		if (this.invalidator != null) {
+			this.invalidator.removeListener(this);
+		}
+		this.invalidator = invalidator;
+		if (invalidator != null) {
+			invalidator.addListener(this);
+		}
+	}
+}
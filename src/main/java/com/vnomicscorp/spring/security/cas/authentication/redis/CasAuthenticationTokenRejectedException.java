@@ -0,0 +1,34 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+/**
+ * Thrown when a serialized token is rejected by a {@link TokenDeserializationFilter}. Caches treat the entry as a miss.
+ */
+public class CasAuthenticationTokenRejectedException extends CasAuthenticationTokenSerializerException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @param message
+	 *            The message to include on the exception
+	 * @param cause
+	 *            The exception that caused this exception to be thrown
+	 */
+	public CasAuthenticationTokenRejectedException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
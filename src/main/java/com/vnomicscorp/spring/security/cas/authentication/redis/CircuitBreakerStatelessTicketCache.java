@@ -0,0 +1,753 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+import org.springframework.security.cas.authentication.StatelessTicketCache;
+
+import com.vnomicscorp.spring.security.cas.authentication.redis.TicketCacheMetrics.Operation;
+
+/**
+ * A {@link org.springframework.security.cas.authentication.StatelessTicketCache} that stops calling a failing or slow
+ * delegate, typically a {@link RedisStatelessTicketCache}, so a Redis outage does not stall authentication. Failures
+ * never reach the caller: a failed lookup is a miss, which makes Spring Security validate the ticket with the CAS
+ * server, and a failed write is dropped.
+ * <p>
+ * The circuit opens once at least {@link #setFailureRateThreshold(double) failureRateThreshold} of the last
+ * {@link #setWindowSize(int) windowSize} calls failed, or {@link #setSlowCallRateThreshold(double)
+ * slowCallRateThreshold} of them took longer than {@link #setSlowCallMillis(long) slowCallMillis}. While open, every
+ * call is answered without the delegate. After {@link #setOpenMillis(long) openMillis} the circuit is half open and
+ * lets {@link #setHalfOpenProbes(int) halfOpenProbes} calls through; if all of them succeed in time it closes,
+ * otherwise it opens again. Every transition is logged and passed to the {@link #setMetrics(TicketCacheMetrics) metrics}.
+ * <p>
+ * With a {@link #setTimeoutMillis(long) timeout} each call runs on a pooled thread and the caller waits at most that
+ * long. The call itself is not interrupted, Jedis can not abandon a command, so the pool's {@code maxWaitMillis} and
+ * the socket timeout should still be set.
+ * <p>
+ * Removes that fail or arrive while the circuit is open are queued and replayed once it closes, so logouts are not
+ * lost. Puts are dropped instead: replaying one could bring back a ticket removed in the meantime.
+ */
+public class CircuitBreakerStatelessTicketCache implements StatelessTicketCache {
+
+	/**
+	 * The state of the circuit
+	 */
+	public enum State {
+		/**
+		 * Calls go to the delegate
+		 */
+		CLOSED,
+		/**
+		 * A few probe calls go to the delegate to find out whether it recovered
+		 */
+		HALF_OPEN,
+		/**
+		 * Calls are answered without the delegate
+		 */
+		OPEN
+	}
+
+	private static final byte SUCCEEDED = 0;
+	private static final byte FAILED = 1;
+	private static final byte SLOW = 2;
+
+	private Logger logger = LoggerFactory.getLogger(CircuitBreakerStatelessTicketCache.class);
+
+	private final StatelessTicketCache delegate;
+	private final Object lock = new Object();
+	private final AtomicLong shortCircuitedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong slowCount = new AtomicLong();
+	private final AtomicLong timedOutCount = new AtomicLong();
+	private final AtomicLong droppedWriteCount = new AtomicLong();
+	private final AtomicLong replayedRemoveCount = new AtomicLong();
+	private final AtomicLong openedCount = new AtomicLong();
+	private double failureRateThreshold = 0.5;
+	private double slowCallRateThreshold = 0.5;
+	private long slowCallMillis = 100;
+	private int minimumCalls = 10;
+	private long openMillis = 5000;
+	private int halfOpenProbes = 3;
+	private long timeoutMillis;
+	private int maxConcurrentCalls = 64;
+	private boolean queueRemoves = true;
+	private int maxQueuedRemoves = 10000;
+	private TicketCacheMetrics metrics = TicketCacheMetrics.NONE;
+
+	// Guarded by lock, state and epoch are also read without it on the fast path
+	private volatile State state = State.CLOSED;
+	private volatile long epoch;
+	private long openedAt;
+	private byte[] outcomes = new byte[20];
+	private int outcomeCount;
+	private int nextOutcome;
+	private int failuresInWindow;
+	private int slowInWindow;
+	private int probesStarted;
+	private int probesSucceeded;
+	private final Set<String> queuedRemoves = new LinkedHashSet<String>();
+	private boolean replaying;
+	private ThreadPoolExecutor executor;
+
+	/**
+	 * Creates a new instance
+	 *
+	 * @param delegate
+	 *            The cache calls go to while the circuit is closed
+	 */
+	public CircuitBreakerStatelessTicketCache(StatelessTicketCache delegate) {
+		if (delegate == null) {
+			throw new NullPointerException("Expected given delegate to be not null");
+		}
+		this.delegate = delegate;
+	}
+
+	/**
+	 * Stops the threads running calls with a timeout. Calls made afterwards start them again.
+	 */
+	public void stop() {
+		synchronized (lock) {
+			if (executor != null) {
+				executor.shutdown();
+				executor = null;
+			}
+		}
+	}
+
+	@Override
+	public CasAuthenticationToken getByTicketId(String serviceTicket) {
+		if (serviceTicket == null) {
+			throw new NullPointerException("Expected given serviceTicket to be not null");
+		}
+		long permit = acquirePermit();
+		if (permit < 0) {
+			shortCircuit(Operation.GET);
+			return null;
+		}
+		return call(Operation.GET, permit, () -> delegate.getByTicketId(serviceTicket), null);
+	}
+
+	@Override
+	public void putTicketInCache(CasAuthenticationToken token) {
+		if (token == null) {
+			throw new NullPointerException("Expected given token to be not null");
+		}
+		long permit = acquirePermit();
+		if (permit < 0) {
+			shortCircuit(Operation.PUT);
+			droppedWriteCount.incrementAndGet();
+			return;
+		}
+		if (call(Operation.PUT, permit, () -> {
+			delegate.putTicketInCache(token);
+			return Boolean.TRUE;
+		}, Boolean.FALSE) == Boolean.FALSE) {
+			droppedWriteCount.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void removeTicketFromCache(CasAuthenticationToken token) {
+		removeTicketFromCache(token.getCredentials().toString());
+	}
+
+	@Override
+	public void removeTicketFromCache(String serviceTicket) {
+		if (serviceTicket == null) {
+			throw new NullPointerException("Expected given serviceTicket to be not null");
+		}
+		long permit = acquirePermit();
+		if (permit < 0) {
+			shortCircuit(Operation.REMOVE);
+			queueRemove(serviceTicket);
+			return;
+		}
+		if (call(Operation.REMOVE, permit, () -> {
+			delegate.removeTicketFromCache(serviceTicket);
+			return Boolean.TRUE;
+		}, Boolean.FALSE) == Boolean.FALSE) {
+			queueRemove(serviceTicket);
+		}
+	}
+
+	/**
+	 * @return The current state of the circuit
+	 */
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * @return The number of calls answered without the delegate because the circuit was open
+	 */
+	public long getShortCircuitedCount() {
+		return shortCircuitedCount.get();
+	}
+
+	/**
+	 * @return The number of calls to the delegate that failed, including the ones that timed out
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**
+	 * @return The number of calls to the delegate that succeeded but took longer than the slow call time
+	 */
+	public long getSlowCount() {
+		return slowCount.get();
+	}
+
+	/**
+	 * @return The number of calls to the delegate the caller stopped waiting for
+	 */
+	public long getTimedOutCount() {
+		return timedOutCount.get();
+	}
+
+	/**
+	 * @return The number of writes that never reached the delegate, either failed or dropped while the circuit was
+	 *         open
+	 */
+	public long getDroppedWriteCount() {
+		return droppedWriteCount.get();
+	}
+
+	/**
+	 * @return The number of queued removes replayed after the circuit closed
+	 */
+	public long getReplayedRemoveCount() {
+		return replayedRemoveCount.get();
+	}
+
+	/**
+	 * @return The number of removes waiting for the circuit to close
+	 */
+	public int getQueuedRemoveCount() {
+		synchronized (lock) {
+			return queuedRemoves.size();
+		}
+	}
+
+	/**
+	 * @return The number of times the circuit opened
+	 */
+	public long getOpenedCount() {
+		return openedCount.get();
+	}
+
+	/**
+	 * Gets the current time. Exists so tests can control time.
+	 *
+	 * @return The current time in milliseconds
+	 */
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * Decides whether a call may go to the delegate
+	 *
+	 * @return The epoch of the circuit the call belongs to, or -1 if it must not go to the delegate
+	 */
+	private long acquirePermit() {
+		long current = epoch;
+		if (state == State.CLOSED) {
+			return current;
+		}
+		synchronized (lock) {
+			if (state == State.OPEN) {
+				if (currentTimeMillis() - openedAt < openMillis) {
+					return -1;
+				}
+				transitionTo(State.HALF_OPEN);
+			}
+			if (state == State.HALF_OPEN) {
+				if (probesStarted >= halfOpenProbes) {
+					return -1;
+				}
+				probesStarted++;
+			}
+			return epoch;
+		}
+	}
+
+	private <T> T call(Operation operation, long permit, Supplier<T> call, T fallback) {
+		long start = System.nanoTime();
+		byte outcome = FAILED;
+		try {
+			T result = timeoutMillis > 0 ? callWithTimeout(call) : call.get();
+			outcome = System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(slowCallMillis) ? SLOW : SUCCEEDED;
+			return result;
+		} catch (RuntimeException e) {
+			failedCount.incrementAndGet();
+			logger.debug("Ticket cache {} failed", operation, e);
+			return fallback;
+		} finally {
+			if (outcome == SLOW) {
+				slowCount.incrementAndGet();
+			}
+			record(permit, outcome);
+		}
+	}
+
+	private <T> T callWithTimeout(Supplier<T> call) {
+		Future<T> future = executor().submit(call::get);
+		try {
+			return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			timedOutCount.incrementAndGet();
+			future.cancel(false);
+			throw new IllegalStateException("Ticket cache call did not complete within " + timeoutMillis + " ms", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new IllegalStateException("Ticket cache call failed", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for ticket cache call", e);
+		}
+	}
+
+	private ThreadPoolExecutor executor() {
+		synchronized (lock) {
+			if (executor == null) {
+				// No queue, a call that finds every thread busy is rejected and counts as failed
+				executor = new ThreadPoolExecutor(0, maxConcurrentCalls, 60, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>(), runnable -> {
+						Thread thread = new Thread(runnable, "redis-ticket-cache-call");
+						thread.setDaemon(true);
+						return thread;
+					});
+			}
+			return executor;
+		}
+	}
+
+	private void record(long permit, byte outcome) {
+		boolean closed = false;
+		synchronized (lock) {
+			if (permit != epoch) {
+				// Started before the last transition, says nothing about the current state
+				return;
+			}
+			if (state == State.HALF_OPEN) {
+				if (outcome != SUCCEEDED) {
+					transitionTo(State.OPEN);
+				} else if (++probesSucceeded >= halfOpenProbes) {
+					transitionTo(State.CLOSED);
+					closed = true;
+				}
+			} else if (state == State.CLOSED) {
+				recordInWindow(outcome);
+			}
+		}
+		if (closed) {
+			replayQueuedRemoves();
+		}
+	}
+
+	private void recordInWindow(byte outcome) {
+		if (outcomeCount == outcomes.length) {
+			byte evicted = outcomes[nextOutcome];
+			failuresInWindow -= evicted == FAILED ? 1 : 0;
+			slowInWindow -= evicted == SLOW ? 1 : 0;
+		} else {
+			outcomeCount++;
+		}
+		outcomes[nextOutcome] = outcome;
+		nextOutcome = (nextOutcome + 1) % outcomes.length;
+		failuresInWindow += outcome == FAILED ? 1 : 0;
+		slowInWindow += outcome == SLOW ? 1 : 0;
+		if (outcomeCount >= minimumCalls
+			&& (failuresInWindow >= failureRateThreshold * outcomeCount || slowInWindow >= slowCallRateThreshold
+				* outcomeCount)) {
+			logger.warn("{} of the last {} ticket cache calls failed and {} were slow", failuresInWindow,
+				outcomeCount, slowInWindow);
+			transitionTo(State.OPEN);
+		}
+	}
+
+	private void transitionTo(State next) {
+		state = next;
+		epoch++;
+		switch (next) {
+		case OPEN:
+			openedAt = currentTimeMillis();
+			openedCount.incrementAndGet();
+			logger.warn("Ticket cache circuit opened, calls skip the cache for {} ms", openMillis);
+			break;
+		case HALF_OPEN:
+			probesStarted = 0;
+			probesSucceeded = 0;
+			logger.info("Ticket cache circuit half open, probing with {} calls", halfOpenProbes);
+			break;
+		default:
+			resetWindow();
+			logger.info("Ticket cache circuit closed");
+			break;
+		}
+		metrics.recordCircuitTransition(next);
+	}
+
+	private void resetWindow() {
+		outcomeCount = 0;
+		nextOutcome = 0;
+		failuresInWindow = 0;
+		slowInWindow = 0;
+	}
+
+	private void shortCircuit(Operation operation) {
+		shortCircuitedCount.incrementAndGet();
+		metrics.recordShortCircuit(operation);
+	}
+
+	private void queueRemove(String serviceTicket) {
+		synchronized (lock) {
+			if (queueRemoves && (queuedRemoves.size() < maxQueuedRemoves || queuedRemoves.contains(serviceTicket))) {
+				queuedRemoves.add(serviceTicket);
+				return;
+			}
+		}
+		droppedWriteCount.incrementAndGet();
+		logger.debug("Dropped ticket cache remove: {}", serviceTicket);
+	}
+
+	private void replayQueuedRemoves() {
+		synchronized (lock) {
+			if (queuedRemoves.isEmpty() || replaying) {
+				return;
+			}
+			replaying = true;
+		}
+		Thread replay = new Thread(() -> {
+			try {
+				String serviceTicket;
+				while ((serviceTicket = nextQueuedRemove()) != null) {
+					// Queued again if the circuit opened meanwhile
+					removeTicketFromCache(serviceTicket);
+					replayedRemoveCount.incrementAndGet();
+				}
+			} finally {
+				synchronized (lock) {
+					replaying = false;
+				}
+			}
+		}, "redis-ticket-cache-replay");
+		replay.setDaemon(true);
+		replay.start();
+	}
+
+	private String nextQueuedRemove() {
+		synchronized (lock) {
+			if (state != State.CLOSED || queuedRemoves.isEmpty()) {
+				return null;
+			}
+			Iterator<String> iterator = queuedRemoves.iterator();
+			String serviceTicket = iterator.next();
+			iterator.remove();
+			return serviceTicket;
+		}
+	}
+
+	public Logger getLogger() {
+		return logger;
+	}
+
+	public void setLogger(Logger logger) {
+		this.logger = logger;
+	}
+
+	/**
+	 * Gets the cache calls go to while the circuit is closed
+	 *
+	 * @return The cache calls go to while the circuit is closed
+	 */
+	public StatelessTicketCache getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * Gets the share of failed calls among the recent calls that opens the circuit
+	 *
+	 * @return The share of failed calls among the recent calls that opens the circuit
+	 */
+	public double getFailureRateThreshold() {
+		return failureRateThreshold;
+	}
+
+	/**
+	 * Sets the share of failed calls among the recent calls that opens the circuit. Defaults to 0.5.
+	 *
+	 * @param failureRateThreshold
+	 *            The share of failed calls among the recent calls that opens the circuit
+	 */
+	public void setFailureRateThreshold(double failureRateThreshold) {
+		if (failureRateThreshold <= 0 || failureRateThreshold > 1) {
+			throw new IllegalArgumentException("Expected given failureRateThreshold to be between 0 and 1");
+		}
+		this.failureRateThreshold = failureRateThreshold;
+	}
+
+	/**
+	 * Gets the share of slow calls among the recent calls that opens the circuit
+	 *
+	 * @return The share of slow calls among the recent calls that opens the circuit
+	 */
+	public double getSlowCallRateThreshold() {
+		return slowCallRateThreshold;
+	}
+
+	/**
+	 * Sets the share of slow calls among the recent calls that opens the circuit. Defaults to 0.5.
+	 *
+	 * @param slowCallRateThreshold
+	 *            The share of slow calls among the recent calls that opens the circuit
+	 */
+	public void setSlowCallRateThreshold(double slowCallRateThreshold) {
+		if (slowCallRateThreshold <= 0 || slowCallRateThreshold > 1) {
+			throw new IllegalArgumentException("Expected given slowCallRateThreshold to be between 0 and 1");
+		}
+		this.slowCallRateThreshold = slowCallRateThreshold;
+	}
+
+	/**
+	 * Gets the number of milliseconds after which a call counts as slow
+	 *
+	 * @return The number of milliseconds after which a call counts as slow
+	 */
+	public long getSlowCallMillis() {
+		return slowCallMillis;
+	}
+
+	/**
+	 * Sets the number of milliseconds after which a call counts as slow. Defaults to 100.
+	 *
+	 * @param slowCallMillis
+	 *            The number of milliseconds after which a call counts as slow
+	 */
+	public void setSlowCallMillis(long slowCallMillis) {
+		this.slowCallMillis = slowCallMillis;
+	}
+
+	/**
+	 * Gets the number of recent calls the failure and slow call rates are taken over
+	 *
+	 * @return The number of recent calls the rates are taken over
+	 */
+	public int getWindowSize() {
+		synchronized (lock) {
+			return outcomes.length;
+		}
+	}
+
+	/**
+	 * Sets the number of recent calls the failure and slow call rates are taken over. Defaults to 20. Forgets the
+	 * calls recorded so far.
+	 *
+	 * @param windowSize
+	 *            The number of recent calls the rates are taken over
+	 */
+	public void setWindowSize(int windowSize) {
+		if (windowSize < 1) {
+			throw new IllegalArgumentException("Expected given windowSize to be positive");
+		}
+		synchronized (lock) {
+			outcomes = new byte[windowSize];
+			resetWindow();
+		}
+	}
+
+	/**
+	 * Gets the number of calls that must be recorded before the circuit can open
+	 *
+	 * @return The number of calls that must be recorded before the circuit can open
+	 */
+	public int getMinimumCalls() {
+		return minimumCalls;
+	}
+
+	/**
+	 * Sets the number of calls that must be recorded before the circuit can open. Defaults to 10, keeping a single
+	 * early failure from opening the circuit.
+	 *
+	 * @param minimumCalls
+	 *            The number of calls that must be recorded before the circuit can open
+	 */
+	public void setMinimumCalls(int minimumCalls) {
+		this.minimumCalls = minimumCalls;
+	}
+
+	/**
+	 * Gets the number of milliseconds the circuit stays open before probing the delegate
+	 *
+	 * @return The number of milliseconds the circuit stays open before probing the delegate
+	 */
+	public long getOpenMillis() {
+		return openMillis;
+	}
+
+	/**
+	 * Sets the number of milliseconds the circuit stays open before probing the delegate. Defaults to 5000.
+	 *
+	 * @param openMillis
+	 *            The number of milliseconds the circuit stays open before probing the delegate
+	 */
+	public void setOpenMillis(long openMillis) {
+		this.openMillis = openMillis;
+	}
+
+	/**
+	 * Gets the number of calls let through while half open
+	 *
+	 * @return The number of calls let through while half open
+	 */
+	public int getHalfOpenProbes() {
+		return halfOpenProbes;
+	}
+
+	/**
+	 * Sets the number of calls let through while half open. All of them must succeed in time for the circuit to close.
+	 * Defaults to 3.
+	 *
+	 * @param halfOpenProbes
+	 *            The number of calls let through while half open
+	 */
+	public void setHalfOpenProbes(int halfOpenProbes) {
+		if (halfOpenProbes < 1) {
+			throw new IllegalArgumentException("Expected given halfOpenProbes to be positive");
+		}
+		this.halfOpenProbes = halfOpenProbes;
+	}
+
+	/**
+	 * Gets the number of milliseconds a caller waits for a call to the delegate
+	 *
+	 * @return The number of milliseconds a caller waits for a call to the delegate
+	 */
+	public long getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	/**
+	 * Sets the number of milliseconds a caller waits for a call to the delegate. A call that takes longer counts as
+	 * failed and is answered like one. Defaults to 0, which runs calls on the calling thread without a timeout.
+	 *
+	 * @param timeoutMillis
+	 *            The number of milliseconds a caller waits for a call to the delegate
+	 */
+	public void setTimeoutMillis(long timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Gets the number of calls with a timeout that may run at the same time
+	 *
+	 * @return The number of calls with a timeout that may run at the same time
+	 */
+	public int getMaxConcurrentCalls() {
+		return maxConcurrentCalls;
+	}
+
+	/**
+	 * Sets the number of calls with a timeout that may run at the same time. A call beyond it counts as failed. Must be
+	 * set before the first call. Defaults to 64.
+	 *
+	 * @param maxConcurrentCalls
+	 *            The number of calls with a timeout that may run at the same time
+	 */
+	public void setMaxConcurrentCalls(int maxConcurrentCalls) {
+		this.maxConcurrentCalls = maxConcurrentCalls;
+	}
+
+	/**
+	 * Gets whether removes that fail or arrive while the circuit is open are replayed once it closes
+	 *
+	 * @return Whether removes that fail or arrive while the circuit is open are replayed once it closes
+	 */
+	public boolean isQueueRemoves() {
+		return queueRemoves;
+	}
+
+	/**
+	 * Sets whether removes that fail or arrive while the circuit is open are replayed once it closes. Defaults to true.
+	 *
+	 * @param queueRemoves
+	 *            Whether removes that fail or arrive while the circuit is open are replayed once it closes
+	 */
+	public void setQueueRemoves(boolean queueRemoves) {
+		this.queueRemoves = queueRemoves;
+	}
+
+	/**
+	 * Gets the number of removes kept for replay
+	 *
+	 * @return The number of removes kept for replay
+	 */
+	public int getMaxQueuedRemoves() {
+		return maxQueuedRemoves;
+	}
+
+	/**
+	 * Sets the number of removes kept for replay. Further removes are dropped. Defaults to 10000.
+	 *
+	 * @param maxQueuedRemoves
+	 *            The number of removes kept for replay
+	 */
+	public void setMaxQueuedRemoves(int maxQueuedRemoves) {
+		this.maxQueuedRemoves = maxQueuedRemoves;
+	}
+
+	/**
+	 * Gets the metrics that receive circuit transitions and short circuited calls
+	 *
+	 * @return The metrics that receive circuit transitions and short circuited calls
+	 */
+	public TicketCacheMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets the metrics that receive circuit transitions and short circuited calls
+	 *
+	 * @param metrics
+	 *            The metrics that receive circuit transitions and short circuited calls
+	 */
+	public void setMetrics(TicketCacheMetrics metrics) {
+		if (metrics == null) {
+			throw new NullPointerException("Expected given metrics to be not null");
+		}
+		this.metrics = metrics;
+	}
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Set;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisSlotBasedConnectionHandler;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisNoReachableClusterNodeException;
+import redis.clients.jedis.util.JedisClusterCRC16;
+
+/**
+ * A {@link RedisConnectionSource} for a Redis Cluster. Discovers the cluster from the given nodes, keeps one pool per
+ * primary and routes every key to the primary serving its hash slot. The slot map is reloaded when a node answers with
+ * a MOVED redirection, which the ticket caches report through {@link #refresh()}.
+ * <p>
+ * Unlike {@link redis.clients.jedis.JedisCluster} this hands out plain {@link redis.clients.jedis.Jedis} connections,
+ * so commands for keys of the same node can be pipelined. Call {@link #close()} at shutdown to close the pools.
+ */
+public class ClusterRedisConnectionSource implements RedisConnectionSource, Closeable {
+
+	private final SlotConnectionHandler connectionHandler;
+
+	/**
+	 * Creates a new instance with default timeouts and pool settings
+	 *
+	 * @param nodes
+	 *            Some of the nodes of the cluster, used to discover the rest
+	 */
+	public ClusterRedisConnectionSource(Set<HostAndPort> nodes) {
+		this(nodes, Protocol.DEFAULT_TIMEOUT, new GenericObjectPoolConfig(), null);
+	}
+
+	/**
+	 * Creates a new instance
+	 *
+	 * @param nodes
+	 *            Some of the nodes of the cluster, used to discover the rest
+	 * @param timeoutMillis
+	 *            The connection and socket timeout in milliseconds
+	 * @param poolConfig
+	 *            The configuration of the pool of every node
+	 * @param password
+	 *            The cluster password, or null if none
+	 */
+	public ClusterRedisConnectionSource(Set<HostAndPort> nodes, int timeoutMillis, GenericObjectPoolConfig poolConfig,
+		String password) {
+		if (nodes == null) {
+			throw new NullPointerException("Expected given nodes to be not null");
+		}
+		connectionHandler = new SlotConnectionHandler(nodes, poolConfig, timeoutMillis, password);
+	}
+
+	@Override
+	public JedisPool getPool(byte[] key) {
+		int slot = JedisClusterCRC16.getSlot(key);
+		JedisPool pool = connectionHandler.getSlotPool(slot);
+		if (pool == null) {
+			connectionHandler.renewSlotCache();
+			pool = connectionHandler.getSlotPool(slot);
+			if (pool == null) {
+				throw new JedisNoReachableClusterNodeException("No node serves hash slot " + slot);
+			}
+		}
+		return pool;
+	}
+
+	@Override
+	public Collection<JedisPool> getPools() {
+		return new ArrayList<JedisPool>(connectionHandler.getNodes().values());
+	}
+
+	@Override
+	public void refresh() {
+		connectionHandler.renewSlotCache();
+	}
+
+	@Override
+	public void close() {
+		connectionHandler.close();
+	}
+
+	/**
+	 * Exposes the slot to pool mapping Jedis keeps for {@link redis.clients.jedis.JedisCluster}
+	 */
+	private static class SlotConnectionHandler extends JedisSlotBasedConnectionHandler {
+		SlotConnectionHandler(Set<HostAndPort> nodes, GenericObjectPoolConfig poolConfig, int timeoutMillis,
+			String password) {
+			super(nodes, poolConfig, timeoutMillis, timeoutMillis, password);
+		}
+
+		JedisPool getSlotPool(int slot) {
+			return cache.getSlotPool(slot);
+		}
+	}
+}
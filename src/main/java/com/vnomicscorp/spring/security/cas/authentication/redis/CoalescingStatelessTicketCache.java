@@ -0,0 +1,162 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+import org.springframework.security.cas.authentication.StatelessTicketCache;
+
+/**
+ * A {@link org.springframework.security.cas.authentication.StatelessTicketCache} that coalesces concurrent lookups of
+ * the same ticket. The first thread to look up a ticket reads it from the delegate, typically a
+ * {@link RedisStatelessTicketCache}; threads that look up the same ticket while that read is in flight wait for it and
+ * are handed its result instead of taking their own connection and deserializing the same value again.
+ * <p>
+ * The result is published to the waiting threads through a {@link java.util.concurrent.CompletableFuture}, so they see
+ * the token fully constructed. They share the same token instance, which
+ * {@link org.springframework.security.cas.authentication.CasAuthenticationProvider} returns as the authentication
+ * result. {@link org.springframework.security.authentication.ProviderManager} erases the credentials of that result by
+ * default, which clears the password of its user details for every thread sharing it; the service ticket stays. Turn
+ * that off with
+ * {@link org.springframework.security.authentication.ProviderManager#setEraseCredentialsAfterAuthentication} if the
+ * password is needed after authentication. If the read fails every waiting thread throws the same exception. A put or
+ * remove of a ticket detaches the read in flight for it so later lookups see the write; threads already waiting still
+ * get the result of the earlier read.
+ */
+public class CoalescingStatelessTicketCache implements StatelessTicketCache {
+
+	private Logger logger = LoggerFactory.getLogger(CoalescingStatelessTicketCache.class);
+
+	private final StatelessTicketCache delegate;
+	private final ConcurrentMap<String, CompletableFuture<CasAuthenticationToken>> inFlight = new ConcurrentHashMap<String, CompletableFuture<CasAuthenticationToken>>();
+	private final AtomicLong coalescedCount = new AtomicLong();
+
+	/**
+	 * Creates a new instance
+	 *
+	 * @param delegate
+	 *            The cache lookups are read from
+	 */
+	public CoalescingStatelessTicketCache(StatelessTicketCache delegate) {
+		if (delegate == null) {
+			throw new NullPointerException("Expected given delegate to be not null");
+		}
+		this.delegate = delegate;
+	}
+
+	@Override
+	public CasAuthenticationToken getByTicketId(String serviceTicket) {
+		if (serviceTicket == null) {
+			throw new NullPointerException("Expected given serviceTicket to be not null");
+		}
+		CompletableFuture<CasAuthenticationToken> lookup = new CompletableFuture<CasAuthenticationToken>();
+		CompletableFuture<CasAuthenticationToken> existing = inFlight.putIfAbsent(serviceTicket, lookup);
+		if (existing != null) {
+			coalescedCount.incrementAndGet();
+			logger.debug("Waiting for lookup in flight: {}", serviceTicket);
+			return await(existing);
+		}
+		try {
+			CasAuthenticationToken token = delegate.getByTicketId(serviceTicket);
+			lookup.complete(token);
+			return token;
+		} catch (RuntimeException e) {
+			lookup.completeExceptionally(e);
+			throw e;
+		} catch (Error e) {
+			lookup.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(serviceTicket, lookup);
+		}
+	}
+
+	@Override
+	public void putTicketInCache(CasAuthenticationToken token) {
+		if (token == null) {
+			throw new NullPointerException("Expected given token to be not null");
+		}
+		inFlight.remove(token.getCredentials().toString());
+		delegate.putTicketInCache(token);
+	}
+
+	@Override
+	public void removeTicketFromCache(CasAuthenticationToken token) {
+		removeTicketFromCache(token.getCredentials().toString());
+	}
+
+	@Override
+	public void removeTicketFromCache(String serviceTicket) {
+		if (serviceTicket == null) {
+			throw new NullPointerException("Expected given serviceTicket to be not null");
+		}
+		inFlight.remove(serviceTicket);
+		delegate.removeTicketFromCache(serviceTicket);
+	}
+
+	/**
+	 * @return The number of lookups that were handed the result of a lookup already in flight
+	 */
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	/**
+	 * @return The number of tickets currently being read from the delegate
+	 */
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+
+	private CasAuthenticationToken await(CompletableFuture<CasAuthenticationToken> lookup) {
+		try {
+			return lookup.join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw e;
+		}
+	}
+
+	public Logger getLogger() {
+		return logger;
+	}
+
+	public void setLogger(Logger logger) {
+		this.logger = logger;
+	}
+
+	/**
+	 * Gets the cache lookups are read from
+	 *
+	 * @return The cache lookups are read from
+	 */
+	public StatelessTicketCache getDelegate() {
+		return delegate;
+	}
+}
@@ -0,0 +1,892 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jasig.cas.client.authentication.AttributePrincipal;
+import org.jasig.cas.client.authentication.AttributePrincipalImpl;
+import org.jasig.cas.client.validation.Assertion;
+import org.jasig.cas.client.validation.AssertionImpl;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.core.userdetails.UserDetails;
+
+/**
+ * Implementation of {@link BinaryCasAuthenticationTokenSerializer} with a hand written format for the known shape of a
+ * {@link org.springframework.security.cas.authentication.CasAuthenticationToken}. Unlike Java serialization no class
+ * descriptors are written and repeated strings, such as authority names shared by the token and its user details, are
+ * written once and referenced afterwards. The output is typically a fraction of the size of Java serialization and
+ * faster to read back.
+ * <p>
+ * The token, {@link org.springframework.security.core.userdetails.User},
+ * {@link org.springframework.security.core.authority.SimpleGrantedAuthority}, {@link org.jasig.cas.client.validation.AssertionImpl},
+ * {@link org.jasig.cas.client.authentication.AttributePrincipalImpl} and common attribute values (strings, numbers,
+ * booleans, dates, lists, sets and maps) are written field by field. Any other type, including subclasses of the
+ * above, is written with Java serialization and must therefore be {@link java.io.Serializable}. Lists, sets and maps
+ * are read back as {@link java.util.ArrayList}, {@link java.util.LinkedHashSet} and {@link java.util.LinkedHashMap}.
+ * Values written with Java serialization are read back restricted by a {@link TokenDeserializationFilter}.
+ * <p>
+ * Every payload starts with a version byte so the format can evolve.
+ * <p>
+ * With {@link #setLazy(boolean) lazy} set, tokens are written in a sectioned layout ({@link #LAZY_VERSION}) whose header
+ * holds the offsets of the user details and the assertion. Reading such a payload decodes only the key hash,
+ * credentials, authorities and details; the user details (usually also the principal) and the assertion are decoded
+ * from the retained bytes when first accessed. Sections holding values written with Java serialization are decoded up
+ * front, so tokens rejected by the {@link TokenDeserializationFilter} are rejected when read. A lazily read token that
+ * was not changed or decoded further is written back as its original bytes. Both layouts are always readable, whatever
+ * the setting.
+ */
+public class CompactCasAuthenticationTokenSerializer implements BinaryCasAuthenticationTokenSerializer {
+
+	/**
+	 * The version byte written at the start of every payload
+	 */
+	public static final byte VERSION = 1;
+
+	/**
+	 * The version byte written at the start of every payload in the sectioned layout read lazily
+	 */
+	public static final byte LAZY_VERSION = 2;
+
+	private static final int TAG_NULL = 0;
+	private static final int TAG_STRING = 1;
+	private static final int TAG_INTEGER = 2;
+	private static final int TAG_LONG = 3;
+	private static final int TAG_TRUE = 4;
+	private static final int TAG_FALSE = 5;
+	private static final int TAG_DATE = 6;
+	private static final int TAG_LIST = 7;
+	private static final int TAG_SET = 8;
+	private static final int TAG_MAP = 9;
+	private static final int TAG_AUTHORITY = 10;
+	private static final int TAG_USER = 11;
+	private static final int TAG_ASSERTION = 12;
+	private static final int TAG_ATTRIBUTE_PRINCIPAL = 13;
+	private static final int TAG_TOKEN = 14;
+	private static final int TAG_SERIALIZED = 15;
+
+	private static final int USER_ENABLED = 1;
+	private static final int USER_ACCOUNT_NON_EXPIRED = 1 << 1;
+	private static final int USER_CREDENTIALS_NON_EXPIRED = 1 << 2;
+	private static final int USER_ACCOUNT_NON_LOCKED = 1 << 3;
+	private static final int USER_PASSWORD_ERASED = 1 << 4;
+
+	private static final int MAX_INTERNED_AUTHORITIES = 10000;
+	private static final ConcurrentMap<String, String> INTERNED_AUTHORITIES = new ConcurrentHashMap<String, String>();
+
+	private static final Constructor<CasAuthenticationToken> TOKEN_CONSTRUCTOR;
+	private static final Field PROXY_GRANTING_TICKET_FIELD;
+	private static final Field PROXY_RETRIEVER_FIELD;
+
+	private boolean lazy;
+	private TokenDeserializationFilter deserializationFilter = new TokenDeserializationFilter();
+
+	static {
+		// The public constructor only accepts the key, not the key hash that is all a token retains
+		try {
+			TOKEN_CONSTRUCTOR = CasAuthenticationToken.class.getDeclaredConstructor(Integer.class, Object.class,
+				Object.class, Collection.class, UserDetails.class, Assertion.class);
+			TOKEN_CONSTRUCTOR.setAccessible(true);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException("Unsupported version of spring-security-cas", e);
+		}
+		Field proxyGrantingTicketField = null;
+		Field proxyRetrieverField = null;
+		try {
+			proxyGrantingTicketField = AttributePrincipalImpl.class.getDeclaredField("proxyGrantingTicket");
+			proxyGrantingTicketField.setAccessible(true);
+			proxyRetrieverField = AttributePrincipalImpl.class.getDeclaredField("proxyRetriever");
+			proxyRetrieverField.setAccessible(true);
+		} catch (NoSuchFieldException e) {
+			// Principals fall back to Java serialization
+			proxyGrantingTicketField = null;
+			proxyRetrieverField = null;
+		}
+		PROXY_GRANTING_TICKET_FIELD = proxyGrantingTicketField;
+		PROXY_RETRIEVER_FIELD = proxyRetrieverField;
+	}
+
+	@Override
+	public byte[] serialize(CasAuthenticationToken token) throws CasAuthenticationTokenSerializerException {
+		if (token == null) {
+			throw new NullPointerException("Expected given token to be non-null");
+		}
+		if (lazy && token instanceof LazyCasAuthenticationToken) {
+			byte[] unchanged = ((LazyCasAuthenticationToken) token).getSerialized();
+			if (unchanged != null) {
+				return unchanged.clone();
+			}
+		}
+		try {
+			Output out = new Output();
+			if (lazy) {
+				writeLazyToken(out, token);
+			} else {
+				out.writeByte(VERSION);
+				writeValue(out, token);
+			}
+			return out.toByteArray();
+		} catch (IOException e) {
+			throw new CasAuthenticationTokenSerializerException(e);
+		}
+	}
+
+	@Override
+	public CasAuthenticationToken deserialize(byte[] serialized) throws CasAuthenticationTokenSerializerException {
+		if (serialized == null) {
+			throw new NullPointerException("Expected given serialized to be non-null");
+		}
+		try {
+			Input in = new Input(serialized);
+			int version = in.readByte();
+			if (version == LAZY_VERSION) {
+				LazyCasAuthenticationToken token = readLazyToken(in);
+				return lazy ? token : token.materialize();
+			}
+			if (version != VERSION) {
+				throw new CasAuthenticationTokenSerializerException("Unsupported version: " + version);
+			}
+			Object value = readValue(in);
+			if (!(value instanceof CasAuthenticationToken)) {
+				throw new CasAuthenticationTokenSerializerException("Payload is not a CasAuthenticationToken");
+			}
+			return (CasAuthenticationToken) value;
+		} catch (JavaSerializationStreams.RejectedException e) {
+			throw new CasAuthenticationTokenRejectedException("Token rejected: " + e.getMessage(), e);
+		} catch (IOException e) {
+			throw new CasAuthenticationTokenSerializerException(e);
+		} catch (ClassNotFoundException e) {
+			throw new CasAuthenticationTokenSerializerException(e);
+		} catch (RuntimeException e) {
+			// Malformed input surfaces as index, cast or argument errors
+			throw new CasAuthenticationTokenSerializerException(e);
+		}
+	}
+
+	private void writeValue(Output out, Object value) throws IOException {
+		if (value == null) {
+			out.writeVarInt(TAG_NULL);
+		} else if (value instanceof String) {
+			out.writeVarInt(TAG_STRING);
+			out.writeString((String) value);
+		} else if (value instanceof Integer) {
+			out.writeVarInt(TAG_INTEGER);
+			out.writeVarLong((Integer) value);
+		} else if (value instanceof Long) {
+			out.writeVarInt(TAG_LONG);
+			out.writeVarLong((Long) value);
+		} else if (value instanceof Boolean) {
+			out.writeVarInt((Boolean) value ? TAG_TRUE : TAG_FALSE);
+		} else if (value.getClass() == Date.class) {
+			out.writeVarInt(TAG_DATE);
+			out.writeVarLong(((Date) value).getTime());
+		} else if (value.getClass() == SimpleGrantedAuthority.class) {
+			out.writeVarInt(TAG_AUTHORITY);
+			out.writeString(((SimpleGrantedAuthority) value).getAuthority());
+		} else if (value.getClass() == CasAuthenticationToken.class || value instanceof LazyCasAuthenticationToken) {
+			writeToken(out, (CasAuthenticationToken) value);
+		} else if (value.getClass() == User.class) {
+			writeUser(out, (User) value);
+		} else if (value.getClass() == AssertionImpl.class) {
+			writeAssertion(out, (AssertionImpl) value);
+		} else if (value.getClass() == AttributePrincipalImpl.class && isCompactPrincipal((AttributePrincipalImpl) value)) {
+			writePrincipal(out, (AttributePrincipalImpl) value);
+		} else if (value instanceof List) {
+			out.writeVarInt(TAG_LIST);
+			writeElements(out, (List<?>) value);
+		} else if (value instanceof Set) {
+			out.writeVarInt(TAG_SET);
+			writeElements(out, (Set<?>) value);
+		} else if (value instanceof Map) {
+			out.writeVarInt(TAG_MAP);
+			writeEntries(out, (Map<?, ?>) value);
+		} else {
+			out.writeVarInt(TAG_SERIALIZED);
+			out.writeBytes(javaSerialize(value));
+		}
+	}
+
+	private void writeToken(Output out, CasAuthenticationToken token) throws IOException {
+		out.writeVarInt(TAG_TOKEN);
+		out.writeInt(token.getKeyHash());
+		out.writeBoolean(token.isAuthenticated());
+		writeValue(out, token.getPrincipal());
+		writeValue(out, token.getCredentials());
+		writeElements(out, token.getAuthorities());
+		writeValue(out, token.getUserDetails());
+		writeValue(out, token.getAssertion());
+		writeValue(out, token.getDetails());
+	}
+
+	private void writeLazyToken(Output out, CasAuthenticationToken token) throws IOException {
+		out.writeByte(LAZY_VERSION);
+		int offsets = out.position();
+		out.writeInt(0);
+		out.writeInt(0);
+		out.writeInt(token.getKeyHash());
+		out.writeBoolean(token.isAuthenticated());
+		UserDetails userDetails = token.getUserDetails();
+		boolean principalIsUserDetails = token.getPrincipal() == userDetails;
+		out.writeBoolean(principalIsUserDetails);
+		if (!principalIsUserDetails) {
+			writeValue(out, token.getPrincipal());
+		}
+		writeValue(out, token.getCredentials());
+		writeElements(out, token.getAuthorities());
+		writeValue(out, token.getDetails());
+		// Each section may reference the strings written so far but not those of the other section, so either can be
+		// read on its own
+		int coreStrings = out.stringCount();
+		out.writeInt(offsets, out.position());
+		writeValue(out, userDetails);
+		out.truncateStrings(coreStrings);
+		out.writeInt(offsets + 4, out.position());
+		writeValue(out, token.getAssertion());
+	}
+
+	private void writeUser(Output out, User user) throws IOException {
+		out.writeVarInt(TAG_USER);
+		out.writeString(user.getUsername());
+		int flags = 0;
+		flags |= user.isEnabled() ? USER_ENABLED : 0;
+		flags |= user.isAccountNonExpired() ? USER_ACCOUNT_NON_EXPIRED : 0;
+		flags |= user.isCredentialsNonExpired() ? USER_CREDENTIALS_NON_EXPIRED : 0;
+		flags |= user.isAccountNonLocked() ? USER_ACCOUNT_NON_LOCKED : 0;
+		flags |= user.getPassword() == null ? USER_PASSWORD_ERASED : 0;
+		out.writeVarInt(flags);
+		if (user.getPassword() != null) {
+			out.writeString(user.getPassword());
+		}
+		writeElements(out, user.getAuthorities());
+	}
+
+	private void writeAssertion(Output out, AssertionImpl assertion) throws IOException {
+		out.writeVarInt(TAG_ASSERTION);
+		writeValue(out, assertion.getPrincipal());
+		writeValue(out, assertion.getValidFromDate());
+		writeValue(out, assertion.getValidUntilDate());
+		writeValue(out, assertion.getAuthenticationDate());
+		writeEntries(out, assertion.getAttributes());
+	}
+
+	private boolean isCompactPrincipal(AttributePrincipalImpl principal) {
+		try {
+			return PROXY_RETRIEVER_FIELD != null && PROXY_RETRIEVER_FIELD.get(principal) == null;
+		} catch (IllegalAccessException e) {
+			return false;
+		}
+	}
+
+	private void writePrincipal(Output out, AttributePrincipalImpl principal) throws IOException {
+		out.writeVarInt(TAG_ATTRIBUTE_PRINCIPAL);
+		out.writeString(principal.getName());
+		try {
+			writeValue(out, PROXY_GRANTING_TICKET_FIELD.get(principal));
+		} catch (IllegalAccessException e) {
+			throw new IOException(e);
+		}
+		writeEntries(out, principal.getAttributes());
+	}
+
+	private void writeElements(Output out, Collection<?> elements) throws IOException {
+		out.writeVarInt(elements.size());
+		for (Object element : elements) {
+			writeValue(out, element);
+		}
+	}
+
+	private void writeEntries(Output out, Map<?, ?> entries) throws IOException {
+		out.writeVarInt(entries.size());
+		for (Map.Entry<?, ?> entry : entries.entrySet()) {
+			writeValue(out, entry.getKey());
+			writeValue(out, entry.getValue());
+		}
+	}
+
+	private Object readValue(Input in) throws IOException, ClassNotFoundException {
+		int tag = in.readVarInt();
+		switch (tag) {
+			case TAG_NULL:
+				return null;
+			case TAG_STRING:
+				return in.readString();
+			case TAG_INTEGER:
+				return (int) in.readVarLong();
+			case TAG_LONG:
+				return in.readVarLong();
+			case TAG_TRUE:
+				return Boolean.TRUE;
+			case TAG_FALSE:
+				return Boolean.FALSE;
+			case TAG_DATE:
+				return new Date(in.readVarLong());
+			case TAG_LIST:
+				return readElements(in, new ArrayList<Object>());
+			case TAG_SET:
+				return readElements(in, new LinkedHashSet<Object>());
+			case TAG_MAP:
+				return readEntries(in);
+			case TAG_AUTHORITY:
+				return new SimpleGrantedAuthority(intern(in.readString()));
+			case TAG_USER:
+				return readUser(in);
+			case TAG_ASSERTION:
+				return readAssertion(in);
+			case TAG_ATTRIBUTE_PRINCIPAL:
+				return readPrincipal(in);
+			case TAG_TOKEN:
+				return readToken(in);
+			case TAG_SERIALIZED:
+				return javaDeserialize(in.readBytes());
+			default:
+				throw new IOException("Unknown tag: " + tag);
+		}
+	}
+
+	private CasAuthenticationToken readToken(Input in) throws IOException, ClassNotFoundException {
+		int keyHash = in.readInt();
+		boolean authenticated = in.readBoolean();
+		Object principal = readValue(in);
+		Object credentials = readValue(in);
+		List<GrantedAuthority> authorities = readAuthorities(in);
+		UserDetails userDetails = (UserDetails) readValue(in);
+		Assertion assertion = (Assertion) readValue(in);
+		Object details = readValue(in);
+		return newToken(keyHash, authenticated, principal, credentials, authorities, userDetails, assertion, details);
+	}
+
+	private LazyCasAuthenticationToken readLazyToken(Input in) throws IOException, ClassNotFoundException {
+		int userDetailsOffset = in.readInt();
+		int assertionOffset = in.readInt();
+		if (userDetailsOffset < in.position || assertionOffset <= userDetailsOffset
+			|| assertionOffset >= in.buffer.length) {
+			throw new IOException("Malformed section offsets");
+		}
+		int keyHash = in.readInt();
+		boolean authenticated = in.readBoolean();
+		boolean principalIsUserDetails = in.readBoolean();
+		Object principal = principalIsUserDetails ? null : readValue(in);
+		Object credentials = readValue(in);
+		List<GrantedAuthority> authorities = readAuthorities(in);
+		Object details = readValue(in);
+		if (in.position != userDetailsOffset) {
+			throw new IOException("Malformed section offsets");
+		}
+		// The deserialization filter decides now, so a rejected token is a miss instead of failing a later getter
+		UserDetails userDetails = null;
+		if (!isCompact(section(in, userDetailsOffset), assertionOffset)) {
+			userDetails = (UserDetails) readValue(section(in, userDetailsOffset));
+		}
+		Assertion assertion = null;
+		if (!isCompact(section(in, assertionOffset), in.buffer.length)) {
+			assertion = (Assertion) readValue(section(in, assertionOffset));
+		}
+		return new LazyCasAuthenticationToken(this, in.buffer, userDetailsOffset, assertionOffset, in.strings, keyHash,
+			authenticated, principal, credentials, authorities, details, userDetails, assertion);
+	}
+
+	private static Input section(Input in, int offset) {
+		Input section = new Input(in.buffer);
+		section.position = offset;
+		section.strings.addAll(in.strings);
+		return section;
+	}
+
+	/**
+	 * Walks a section without decoding it
+	 *
+	 * @param in
+	 *            The input positioned at the start of the section
+	 * @param end
+	 *            The position the section ends at
+	 * @return Whether the section holds no values written with Java serialization, and so decodes without consulting
+	 *         the deserialization filter
+	 * @throws IOException
+	 *             If the section is malformed
+	 */
+	private static boolean isCompact(Input in, int end) throws IOException {
+		if (!skipValue(in)) {
+			return false;
+		}
+		if (in.position != end) {
+			throw new IOException("Malformed section offsets");
+		}
+		return true;
+	}
+
+	private static boolean skipValue(Input in) throws IOException {
+		int tag = in.readVarInt();
+		switch (tag) {
+			case TAG_NULL:
+			case TAG_TRUE:
+			case TAG_FALSE:
+				return true;
+			case TAG_STRING:
+			case TAG_AUTHORITY:
+				in.skipString();
+				return true;
+			case TAG_INTEGER:
+			case TAG_LONG:
+			case TAG_DATE:
+				in.readVarLong();
+				return true;
+			case TAG_LIST:
+			case TAG_SET:
+				return skipValues(in, in.readSize());
+			case TAG_MAP:
+				return skipValues(in, 2L * in.readSize());
+			case TAG_USER:
+				in.skipString();
+				if ((in.readVarInt() & USER_PASSWORD_ERASED) == 0) {
+					in.skipString();
+				}
+				return skipValues(in, in.readSize());
+			case TAG_ASSERTION:
+				return skipValues(in, 4) && skipValues(in, 2L * in.readSize());
+			case TAG_ATTRIBUTE_PRINCIPAL:
+				in.skipString();
+				return skipValues(in, 1) && skipValues(in, 2L * in.readSize());
+			case TAG_TOKEN:
+				in.readInt();
+				in.readBoolean();
+				return skipValues(in, 2) && skipValues(in, in.readSize()) && skipValues(in, 3);
+			case TAG_SERIALIZED:
+				return false;
+			default:
+				throw new IOException("Unknown tag: " + tag);
+		}
+	}
+
+	private static boolean skipValues(Input in, long count) throws IOException {
+		for (long i = 0; i < count; i++) {
+			if (!skipValue(in)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads a section of the lazy layout
+	 *
+	 * @param serialized
+	 *            The payload
+	 * @param offset
+	 *            The offset of the section
+	 * @param strings
+	 *            The strings read before the sections
+	 * @return The value of the section
+	 * @throws CasAuthenticationTokenSerializerException
+	 *             If the section is malformed
+	 */
+	Object readSection(byte[] serialized, int offset, List<String> strings)
+		throws CasAuthenticationTokenSerializerException {
+		Input in = new Input(serialized);
+		in.position = offset;
+		in.strings.addAll(strings);
+		try {
+			return readValue(in);
+		} catch (JavaSerializationStreams.RejectedException e) {
+			throw new CasAuthenticationTokenRejectedException("Token rejected: " + e.getMessage(), e);
+		} catch (IOException e) {
+			throw new CasAuthenticationTokenSerializerException(e);
+		} catch (ClassNotFoundException e) {
+			throw new CasAuthenticationTokenSerializerException(e);
+		} catch (RuntimeException e) {
+			throw new CasAuthenticationTokenSerializerException(e);
+		}
+	}
+
+	/**
+	 * Creates a token with the given key hash, which the public constructor does not accept
+	 */
+	static CasAuthenticationToken newToken(int keyHash, boolean authenticated, Object principal, Object credentials,
+		Collection<? extends GrantedAuthority> authorities, UserDetails userDetails, Assertion assertion,
+		Object details) throws IOException {
+		CasAuthenticationToken token;
+		try {
+			token = TOKEN_CONSTRUCTOR.newInstance(keyHash, principal, credentials, authorities, userDetails, assertion);
+		} catch (InstantiationException e) {
+			throw new IOException(e);
+		} catch (IllegalAccessException e) {
+			throw new IOException(e);
+		} catch (InvocationTargetException e) {
+			throw new IOException(e.getCause());
+		}
+		if (!authenticated) {
+			token.setAuthenticated(false);
+		}
+		token.setDetails(details);
+		return token;
+	}
+
+	private User readUser(Input in) throws IOException, ClassNotFoundException {
+		String username = in.readString();
+		int flags = in.readVarInt();
+		boolean passwordErased = (flags & USER_PASSWORD_ERASED) != 0;
+		String password = passwordErased ? "" : in.readString();
+		User user = new User(username, password, (flags & USER_ENABLED) != 0, (flags & USER_ACCOUNT_NON_EXPIRED) != 0,
+			(flags & USER_CREDENTIALS_NON_EXPIRED) != 0, (flags & USER_ACCOUNT_NON_LOCKED) != 0, readAuthorities(in));
+		if (passwordErased) {
+			user.eraseCredentials();
+		}
+		return user;
+	}
+
+	private AssertionImpl readAssertion(Input in) throws IOException, ClassNotFoundException {
+		AttributePrincipal principal = (AttributePrincipal) readValue(in);
+		Date validFromDate = (Date) readValue(in);
+		Date validUntilDate = (Date) readValue(in);
+		Date authenticationDate = (Date) readValue(in);
+		return new AssertionImpl(principal, validFromDate, validUntilDate, authenticationDate, readAttributes(in));
+	}
+
+	private AttributePrincipalImpl readPrincipal(Input in) throws IOException, ClassNotFoundException {
+		String name = in.readString();
+		String proxyGrantingTicket = (String) readValue(in);
+		return new AttributePrincipalImpl(name, readAttributes(in), proxyGrantingTicket, null);
+	}
+
+	private List<GrantedAuthority> readAuthorities(Input in) throws IOException, ClassNotFoundException {
+		int size = in.readSize();
+		List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>(size);
+		for (int i = 0; i < size; i++) {
+			authorities.add((GrantedAuthority) readValue(in));
+		}
+		return authorities;
+	}
+
+	private <T extends Collection<Object>> T readElements(Input in, T elements) throws IOException,
+		ClassNotFoundException {
+		int size = in.readSize();
+		for (int i = 0; i < size; i++) {
+			elements.add(readValue(in));
+		}
+		return elements;
+	}
+
+	private Map<Object, Object> readEntries(Input in) throws IOException, ClassNotFoundException {
+		int size = in.readSize();
+		Map<Object, Object> entries = new LinkedHashMap<Object, Object>();
+		for (int i = 0; i < size; i++) {
+			entries.put(readValue(in), readValue(in));
+		}
+		return entries;
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private Map<String, Object> readAttributes(Input in) throws IOException, ClassNotFoundException {
+		return (Map) readEntries(in);
+	}
+
+	private static String intern(String authority) {
+		String interned = INTERNED_AUTHORITIES.get(authority);
+		if (interned != null) {
+			return interned;
+		}
+		if (INTERNED_AUTHORITIES.size() >= MAX_INTERNED_AUTHORITIES) {
+			return authority;
+		}
+		interned = INTERNED_AUTHORITIES.putIfAbsent(authority, authority);
+		return interned == null ? authority : interned;
+	}
+
+	/**
+	 * Gets whether tokens are written in the sectioned layout and read back lazily
+	 *
+	 * @return Whether tokens are written in the sectioned layout and read back lazily
+	 */
+	public boolean isLazy() {
+		return lazy;
+	}
+
+	/**
+	 * Sets whether tokens are written in the sectioned layout and read back lazily. Nodes that predate the sectioned
+	 * layout can not read it, so enable this only once every node can.
+	 *
+	 * @param lazy
+	 *            Whether tokens are written in the sectioned layout and read back lazily
+	 */
+	public void setLazy(boolean lazy) {
+		this.lazy = lazy;
+	}
+
+	/**
+	 * Gets the filter restricting what is deserialized
+	 *
+	 * @return The filter restricting what is deserialized, or null if anything is deserialized
+	 */
+	public TokenDeserializationFilter getDeserializationFilter() {
+		return deserializationFilter;
+	}
+
+	/**
+	 * Sets the filter restricting what is deserialized for values without a compact encoding. Defaults to a
+	 * {@link TokenDeserializationFilter} allowing the object graph of a token.
+	 *
+	 * @param deserializationFilter
+	 *            The filter restricting what is deserialized, or null to deserialize anything
+	 */
+	public void setDeserializationFilter(TokenDeserializationFilter deserializationFilter) {
+		this.deserializationFilter = deserializationFilter;
+	}
+
+	private static byte[] javaSerialize(Object value) throws IOException {
+		if (!(value instanceof Serializable)) {
+			throw new IOException("Can not serialize " + value.getClass().getName());
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(baos);
+		oos.writeObject(value);
+		oos.flush();
+		return baos.toByteArray();
+	}
+
+	private Object javaDeserialize(byte[] serialized) throws IOException, ClassNotFoundException {
+		JavaSerializationStreams streams = JavaSerializationStreams.acquire();
+		try {
+			return streams.read(serialized, 0, serialized.length, deserializationFilter);
+		} finally {
+			streams.release();
+		}
+	}
+
+	/**
+	 * Growable output buffer. Strings are written once and referenced by index afterwards.
+	 */
+	private static final class Output {
+		private byte[] buffer = new byte[256];
+		private int position;
+		private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+		void writeByte(int value) {
+			ensureCapacity(1);
+			buffer[position++] = (byte) value;
+		}
+
+		void writeBoolean(boolean value) {
+			writeByte(value ? 1 : 0);
+		}
+
+		void writeInt(int value) {
+			ensureCapacity(4);
+			buffer[position++] = (byte) (value >>> 24);
+			buffer[position++] = (byte) (value >>> 16);
+			buffer[position++] = (byte) (value >>> 8);
+			buffer[position++] = (byte) value;
+		}
+
+		void writeVarInt(int value) {
+			ensureCapacity(5);
+			while ((value & ~0x7F) != 0) {
+				buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			buffer[position++] = (byte) value;
+		}
+
+		void writeVarLong(long value) {
+			// Zig-zag so small negative numbers stay small
+			long zigZag = (value << 1) ^ (value >> 63);
+			ensureCapacity(10);
+			while ((zigZag & ~0x7FL) != 0) {
+				buffer[position++] = (byte) ((zigZag & 0x7F) | 0x80);
+				zigZag >>>= 7;
+			}
+			buffer[position++] = (byte) zigZag;
+		}
+
+		void writeBytes(byte[] value) {
+			writeVarInt(value.length);
+			ensureCapacity(value.length);
+			System.arraycopy(value, 0, buffer, position, value.length);
+			position += value.length;
+		}
+
+		void writeString(String value) {
+			Integer index = strings.get(value);
+			if (index != null) {
+				writeVarInt(index + 1);
+				return;
+			}
+			strings.put(value, strings.size());
+			writeVarInt(0);
+			writeBytes(value.getBytes(StandardCharsets.UTF_8));
+		}
+
+		int position() {
+			return position;
+		}
+
+		void writeInt(int at, int value) {
+			buffer[at] = (byte) (value >>> 24);
+			buffer[at + 1] = (byte) (value >>> 16);
+			buffer[at + 2] = (byte) (value >>> 8);
+			buffer[at + 3] = (byte) value;
+		}
+
+		int stringCount() {
+			return strings.size();
+		}
+
+		void truncateStrings(int count) {
+			strings.values().removeIf(index -> index >= count);
+		}
+
+		byte[] toByteArray() {
+			byte[] result = new byte[position];
+			System.arraycopy(buffer, 0, result, 0, position);
+			return result;
+		}
+
+		private void ensureCapacity(int needed) {
+			if (position + needed > buffer.length) {
+				byte[] grown = new byte[Math.max(buffer.length * 2, position + needed)];
+				System.arraycopy(buffer, 0, grown, 0, position);
+				buffer = grown;
+			}
+		}
+	}
+
+	/**
+	 * Reads what {@link Output} wrote
+	 */
+	private static final class Input {
+		private final byte[] buffer;
+		private int position;
+		private final List<String> strings = new ArrayList<String>();
+
+		Input(byte[] buffer) {
+			this.buffer = buffer;
+		}
+
+		int readByte() throws IOException {
+			if (position >= buffer.length) {
+				throw new IOException("Unexpected end of input");
+			}
+			return buffer[position++];
+		}
+
+		boolean readBoolean() throws IOException {
+			return readByte() != 0;
+		}
+
+		int readInt() throws IOException {
+			return (readByte() & 0xFF) << 24 | (readByte() & 0xFF) << 16 | (readByte() & 0xFF) << 8
+				| (readByte() & 0xFF);
+		}
+
+		int readVarInt() throws IOException {
+			int value = 0;
+			for (int shift = 0; shift < 32; shift += 7) {
+				int b = readByte();
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IOException("Malformed varint");
+		}
+
+		/**
+		 * Reads the number of values that follow. Every value takes at least one byte, so a size beyond the remaining
+		 * input is malformed and must not be used to size a collection.
+		 */
+		int readSize() throws IOException {
+			int size = readVarInt();
+			if (size < 0 || size > buffer.length - position) {
+				throw new IOException("Malformed size: " + size);
+			}
+			return size;
+		}
+
+		long readVarLong() throws IOException {
+			long zigZag = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				zigZag |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return (zigZag >>> 1) ^ -(zigZag & 1);
+				}
+			}
+			throw new IOException("Malformed varlong");
+		}
+
+		byte[] readBytes() throws IOException {
+			int length = readVarInt();
+			if (length < 0 || length > buffer.length - position) {
+				throw new IOException("Unexpected end of input");
+			}
+			byte[] value = new byte[length];
+			System.arraycopy(buffer, position, value, 0, length);
+			position += length;
+			return value;
+		}
+
+		String readString() throws IOException {
+			int reference = readVarInt();
+			if (reference > 0) {
+				return strings.get(reference - 1);
+			}
+			int length = readVarInt();
+			if (length < 0 || length > buffer.length - position) {
+				throw new IOException("Unexpected end of input");
+			}
+			String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+			position += length;
+			strings.add(value);
+			return value;
+		}
+
+		void skipString() throws IOException {
+			int reference = readVarInt();
+			if (reference > strings.size()) {
+				throw new IOException("Unknown string reference: " + reference);
+			}
+			if (reference > 0) {
+				return;
+			}
+			int length = readVarInt();
+			if (length < 0 || length > buffer.length - position) {
+				throw new IOException("Unexpected end of input");
+			}
+			position += length;
+			// Only counted, so later references stay valid
+			strings.add(null);
+		}
+	}
+}
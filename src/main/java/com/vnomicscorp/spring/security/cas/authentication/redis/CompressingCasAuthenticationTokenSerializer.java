@@ -0,0 +1,201 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+
+/**
+ * A {@link BinaryCasAuthenticationTokenSerializer} that compresses the output of another serializer once it is larger
+ * than {@link #getCompressionThreshold()} bytes. Compressed entries start with the {@link #HEADER} byte followed by the
+ * id of the {@link TokenCompressor} used. Smaller entries, and entries written before compression was enabled, are
+ * stored as the delegate wrote them, so both kinds are readable side by side during a rollout.
+ * <p>
+ * The header byte never starts the output of the serializers in this project. A custom delegate must not produce it
+ * as its first byte either.
+ */
+public class CompressingCasAuthenticationTokenSerializer implements BinaryCasAuthenticationTokenSerializer {
+
+	/**
+	 * The first byte of every compressed entry
+	 */
+	public static final byte HEADER = (byte) 0xFE;
+
+	private final BinaryCasAuthenticationTokenSerializer delegate;
+	private final Map<Byte, TokenCompressor> compressors = new HashMap<Byte, TokenCompressor>();
+	private TokenCompressor compressor;
+	private int compressionThreshold = 512;
+	private int maxDecompressedLength = 1024 * 1024;
+
+	/**
+	 * Creates a new instance compressing with a {@link DeflateTokenCompressor}
+	 *
+	 * @param delegate
+	 *            The serializer whose output is compressed
+	 */
+	public CompressingCasAuthenticationTokenSerializer(BinaryCasAuthenticationTokenSerializer delegate) {
+		this(delegate, new DeflateTokenCompressor());
+	}
+
+	/**
+	 * Creates a new instance
+	 *
+	 * @param delegate
+	 *            The serializer whose output is compressed
+	 * @param compressor
+	 *            The compressor used to compress and decompress entries
+	 */
+	public CompressingCasAuthenticationTokenSerializer(BinaryCasAuthenticationTokenSerializer delegate,
+		TokenCompressor compressor) {
+		if (delegate == null) {
+			throw new NullPointerException("Expected given delegate to be non-null");
+		}
+		this.delegate = delegate;
+		setCompressor(compressor);
+	}
+
+	@Override
+	public byte[] serialize(CasAuthenticationToken token) throws CasAuthenticationTokenSerializerException {
+		byte[] serialized = delegate.serialize(token);
+		if (serialized.length < compressionThreshold) {
+			return serialized;
+		}
+		byte[] compressed;
+		try {
+			compressed = compressor.compress(serialized);
+		} catch (IOException e) {
+			throw new CasAuthenticationTokenSerializerException(e);
+		}
+		if (compressed.length + 2 >= serialized.length) {
+			return serialized;
+		}
+		byte[] result = new byte[compressed.length + 2];
+		result[0] = HEADER;
+		result[1] = compressor.getId();
+		System.arraycopy(compressed, 0, result, 2, compressed.length);
+		return result;
+	}
+
+	@Override
+	public CasAuthenticationToken deserialize(byte[] serialized) throws CasAuthenticationTokenSerializerException {
+		if (serialized.length == 0 || serialized[0] != HEADER) {
+			return delegate.deserialize(serialized);
+		}
+		if (serialized.length < 2) {
+			throw new CasAuthenticationTokenSerializerException("Truncated compressed entry");
+		}
+		TokenCompressor entryCompressor = compressors.get(serialized[1]);
+		if (entryCompressor == null) {
+			throw new CasAuthenticationTokenSerializerException("Unknown compressor: " + serialized[1]);
+		}
+		try {
+			return delegate.deserialize(entryCompressor.decompress(Arrays.copyOfRange(serialized, 2, serialized.length),
+				maxDecompressedLength));
+		} catch (IOException e) {
+			throw new CasAuthenticationTokenSerializerException(e);
+		}
+	}
+
+	/**
+	 * Registers a compressor that is only used to read entries, for example one that is being phased out
+	 *
+	 * @param compressor
+	 *            The compressor to register
+	 */
+	public void addCompressor(TokenCompressor compressor) {
+		TokenCompressor existing = compressors.get(compressor.getId());
+		if (existing != null && existing != compressor) {
+			throw new IllegalArgumentException("A compressor with id " + compressor.getId() + " is already registered");
+		}
+		compressors.put(compressor.getId(), compressor);
+	}
+
+	/**
+	 * Gets the serializer whose output is compressed
+	 *
+	 * @return The serializer whose output is compressed
+	 */
+	public BinaryCasAuthenticationTokenSerializer getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * Gets the compressor used to compress new entries
+	 *
+	 * @return The compressor used to compress new entries
+	 */
+	public TokenCompressor getCompressor() {
+		return compressor;
+	}
+
+	/**
+	 * Sets the compressor used to compress new entries. It is also registered to read entries.
+	 *
+	 * @param compressor
+	 *            The compressor used to compress new entries
+	 */
+	public void setCompressor(TokenCompressor compressor) {
+		if (compressor == null) {
+			throw new NullPointerException("Expected given compressor to be non-null");
+		}
+		compressors.remove(compressor.getId());
+		addCompressor(compressor);
+		this.compressor = compressor;
+	}
+
+	/**
+	 * Gets the size in bytes from which serialized tokens are compressed
+	 *
+	 * @return The size in bytes from which serialized tokens are compressed
+	 */
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * Sets the size in bytes from which serialized tokens are compressed. Compressing small tokens costs CPU for
+	 * little gain.
+	 *
+	 * @param compressionThreshold
+	 *            The size in bytes from which serialized tokens are compressed
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * Gets the maximum size in bytes an entry may decompress to
+	 *
+	 * @return The maximum size in bytes an entry may decompress to
+	 */
+	public int getMaxDecompressedLength() {
+		return maxDecompressedLength;
+	}
+
+	/**
+	 * Sets the maximum size in bytes an entry may decompress to. Protects against corrupt or malicious entries.
+	 *
+	 * @param maxDecompressedLength
+	 *            The maximum size in bytes an entry may decompress to
+	 */
+	public void setMaxDecompressedLength(int maxDecompressedLength) {
+		this.maxDecompressedLength = maxDecompressedLength;
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.util.Hashing;
+
+/**
+ * A {@link RedisConnectionSource} that spreads keys over several independent Redis servers with a consistent hash ring.
+ * Every server is placed on the ring a number of times, as virtual nodes, under hashes derived from its name, and a key
+ * belongs to the first virtual node at or after the key's hash. Adding or removing a server only moves the keys of its
+ * own ring segments, about 1/n of all keys.
+ * <p>
+ * Server names, not their order, decide placement, so they must be the same on every node of the CAS tier. Keys with a
+ * hash tag are placed by the tag as described in {@link RedisConnectionSource}.
+ */
+public class ConsistentHashRedisConnectionSource implements RedisConnectionSource {
+
+	/**
+	 * The number of virtual nodes per server used when none is given
+	 */
+	public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+	private final TreeMap<Long, JedisPool> ring = new TreeMap<Long, JedisPool>();
+	private final Collection<JedisPool> pools;
+
+	/**
+	 * Creates a new instance with {@link #DEFAULT_VIRTUAL_NODES} virtual nodes per server
+	 *
+	 * @param pools
+	 *            The pool of every server by server name
+	 */
+	public ConsistentHashRedisConnectionSource(Map<String, JedisPool> pools) {
+		this(pools, DEFAULT_VIRTUAL_NODES);
+	}
+
+	/**
+	 * Creates a new instance
+	 *
+	 * @param pools
+	 *            The pool of every server by server name
+	 * @param virtualNodes
+	 *            The number of times every server is placed on the ring. More give a more even spread.
+	 */
+	public ConsistentHashRedisConnectionSource(Map<String, JedisPool> pools, int virtualNodes) {
+		if (pools == null) {
+			throw new NullPointerException("Expected given pools to be not null");
+		}
+		if (pools.isEmpty()) {
+			throw new IllegalArgumentException("Expected at least one pool");
+		}
+		if (virtualNodes < 1) {
+			throw new IllegalArgumentException("Expected at least one virtual node, got " + virtualNodes);
+		}
+		for (Map.Entry<String, JedisPool> entry : pools.entrySet()) {
+			for (int i = 0; i < virtualNodes; i++) {
+				ring.put(Hashing.MURMUR_HASH.hash(entry.getKey() + "#" + i), entry.getValue());
+			}
+		}
+		this.pools = Collections.unmodifiableList(new ArrayList<JedisPool>(pools.values()));
+	}
+
+	@Override
+	public JedisPool getPool(byte[] key) {
+		SortedMap<Long, JedisPool> tail = ring.tailMap(Hashing.MURMUR_HASH.hash(hashTag(key)));
+		return tail.isEmpty() ? ring.firstEntry().getValue() : tail.get(tail.firstKey());
+	}
+
+	@Override
+	public Collection<JedisPool> getPools() {
+		return pools;
+	}
+
+	@Override
+	public void refresh() {
+		// The ring is static
+	}
+
+	/**
+	 * Gets the part of a key that decides its placement, following the Redis Cluster hash tag rules
+	 *
+	 * @param key
+	 *            The key
+	 * @return The hash tag of the key, or the whole key if it has none
+	 */
+	static byte[] hashTag(byte[] key) {
+		for (int start = 0; start < key.length; start++) {
+			if (key[start] == '{') {
+				for (int end = start + 1; end < key.length; end++) {
+					if (key[end] == '}') {
+						if (end == start + 1) {
+							return key;
+						}
+						byte[] tag = new byte[end - start - 1];
+						System.arraycopy(key, start + 1, tag, 0, tag.length);
+						return tag;
+					}
+				}
+				return key;
+			}
+		}
+		return key;
+	}
+}
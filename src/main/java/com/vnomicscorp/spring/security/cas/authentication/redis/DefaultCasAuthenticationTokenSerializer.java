@@ -15,19 +15,23 @@
  */
 package com.vnomicscorp.spring.security.cas.authentication.redis;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
 import org.springframework.security.cas.authentication.CasAuthenticationToken;
-import org.springframework.security.crypto.codec.Base64;
 
 /**
  * Default implementation of {@link CasAuthenticationTokenSerializer} that uses
- * Java serialization
+ * Java serialization. The serialized bytes are Base64 encoded; use
+ * {@link JavaBinaryCasAuthenticationTokenSerializer} to store them as is.
+ * <p>
+ * The Base64 text is encoded straight from, and decoded straight into, buffers
+ * reused by each thread, so serializing allocates little beyond the resulting
+ * string and deserializing little beyond the resulting token.
+ * <p>
+ * Deserialization is restricted by a {@link TokenDeserializationFilter}, so
+ * only the object graph of a token is read back from Redis.
  * 
  * @author Samuel Nelson
  *
@@ -35,36 +39,58 @@ import org.springframework.security.crypto.codec.Base64;
 public class DefaultCasAuthenticationTokenSerializer implements CasAuthenticationTokenSerializer {
 
 	private Charset charset = Charset.forName("UTF-8");
+	private TokenDeserializationFilter deserializationFilter = new TokenDeserializationFilter();
 
 	@Override
 	public String serialize(CasAuthenticationToken token) throws CasAuthenticationTokenSerializerException {
 		if (token == null) {
 			throw new NullPointerException("Expected given token to be non-null");
 		}
+		JavaSerializationStreams streams = JavaSerializationStreams.acquire();
 		try {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			ObjectOutputStream oos = new ObjectOutputStream(baos);
-			oos.writeObject(token);
-			oos.flush();
-			return new String(Base64.encode(baos.toByteArray()), charset);
+			streams.write(token);
+			byte[] encoded = streams.scratch(StreamingBase64.encodedLength(streams.length()));
+			int length = StreamingBase64.encode(streams.buffer(), 0, streams.length(), encoded);
+			return new String(encoded, 0, length, charset);
 		} catch (IOException e) {
 			throw new CasAuthenticationTokenSerializerException(e);
+		} finally {
+			streams.release();
 		}
 	}
 
 	@Override
 	public CasAuthenticationToken deserialize(String serialized) throws CasAuthenticationTokenSerializerException {
+		CharSequence encoded = serialized;
+		if (!isAsciiCompatible(charset)) {
+			encoded = new String(serialized.getBytes(charset), StandardCharsets.ISO_8859_1);
+		}
+		JavaSerializationStreams streams = JavaSerializationStreams.acquire();
 		try {
-			ByteArrayInputStream bais = new ByteArrayInputStream(Base64.decode(serialized.getBytes(charset)));
-			ObjectInputStream oos = new ObjectInputStream(bais);
-			return (CasAuthenticationToken) oos.readObject();
+			byte[] decoded = streams.scratch(StreamingBase64.maxDecodedLength(encoded));
+			int length = StreamingBase64.decode(encoded, decoded);
+			return (CasAuthenticationToken) streams.read(decoded, 0, length, deserializationFilter);
+		} catch (JavaSerializationStreams.RejectedException e) {
+			throw new CasAuthenticationTokenRejectedException("Token rejected: " + e.getMessage(), e);
 		} catch (IOException e) {
 			throw new CasAuthenticationTokenSerializerException(e);
 		} catch (ClassNotFoundException e) {
 			throw new CasAuthenticationTokenSerializerException(e);
+		} catch (ClassCastException e) {
+			throw new CasAuthenticationTokenSerializerException(e);
+		} catch (IllegalArgumentException e) {
+			throw new CasAuthenticationTokenSerializerException(e);
+		} finally {
+			streams.release();
 		}
 	}
 
+	private static boolean isAsciiCompatible(Charset charset) {
+		// Base64 text is ASCII, so these charsets read the characters as is
+		return StandardCharsets.UTF_8.equals(charset) || StandardCharsets.US_ASCII.equals(charset)
+			|| StandardCharsets.ISO_8859_1.equals(charset);
+	}
+
 	/**
 	 * Gets the charset that will be used to encode and decode strings to bytes
 	 * and vice versa
@@ -87,4 +113,24 @@ public class DefaultCasAuthenticationTokenSerializer implements CasAuthenticatio
 	public void setCharset(Charset charset) {
 		this.charset = charset;
 	}
+
+	/**
+	 * Gets the filter restricting what is deserialized
+	 *
+	 * @return The filter restricting what is deserialized, or null if anything is deserialized
+	 */
+	public TokenDeserializationFilter getDeserializationFilter() {
+		return deserializationFilter;
+	}
+
+	/**
+	 * Sets the filter restricting what is deserialized. Defaults to a {@link TokenDeserializationFilter} allowing the
+	 * object graph of a token.
+	 *
+	 * @param deserializationFilter
+	 *            The filter restricting what is deserialized, or null to deserialize anything
+	 */
+	public void setDeserializationFilter(TokenDeserializationFilter deserializationFilter) {
+		this.deserializationFilter = deserializationFilter;
+	}
 }
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A {@link TokenCompressor} using the Deflate algorithm of {@link java.util.zip}. Serialized tokens are small and
+ * highly repetitive, so compression improves considerably with a preset dictionary built from representative tokens,
+ * see {@link #setDictionary(byte[])}.
+ */
+public class DeflateTokenCompressor implements TokenCompressor {
+
+	/**
+	 * The identifier of this compressor
+	 */
+	public static final byte ID = 1;
+
+	private int level = Deflater.DEFAULT_COMPRESSION;
+	private byte[] dictionary;
+
+	@Override
+	public byte getId() {
+		return ID;
+	}
+
+	@Override
+	public byte[] compress(byte[] data) throws IOException {
+		Deflater deflater = new Deflater(level);
+		try {
+			if (dictionary != null) {
+				deflater.setDictionary(dictionary);
+			}
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 2 + 16);
+			byte[] buffer = new byte[1024];
+			while (!deflater.finished()) {
+				baos.write(buffer, 0, deflater.deflate(buffer));
+			}
+			return baos.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	@Override
+	public byte[] decompress(byte[] compressed, int maxLength) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressed);
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(compressed.length * 3);
+			byte[] buffer = new byte[1024];
+			while (!inflater.finished()) {
+				int inflated = inflater.inflate(buffer);
+				if (inflated == 0) {
+					if (inflater.needsDictionary()) {
+						if (dictionary == null) {
+							throw new IOException("Data was compressed with a dictionary but none is configured");
+						}
+						// Throws if the dictionary is not the one the data was compressed with
+						inflater.setDictionary(dictionary);
+						continue;
+					}
+					if (inflater.needsInput()) {
+						throw new IOException("Unexpected end of compressed data");
+					}
+				}
+				if (baos.size() + inflated > maxLength) {
+					throw new IOException("Data decompresses to more than " + maxLength + " bytes");
+				}
+				baos.write(buffer, 0, inflated);
+			}
+			return baos.toByteArray();
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Data was compressed with a different dictionary", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Builds a preset dictionary from sample payloads, such as serialized tokens typical for the application. Deflate
+	 * finds matches closest to the end of the dictionary most cheaply, so later samples are favored.
+	 *
+	 * @param samples
+	 *            Representative serialized tokens
+	 * @param maxSize
+	 *            The maximum size of the dictionary. Deflate only uses the last 32KiB.
+	 * @return The dictionary
+	 */
+	public static byte[] createDictionary(Iterable<byte[]> samples, int maxSize) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		for (byte[] sample : samples) {
+			baos.write(sample, 0, sample.length);
+		}
+		byte[] all = baos.toByteArray();
+		if (all.length <= maxSize) {
+			return all;
+		}
+		byte[] dictionary = new byte[maxSize];
+		System.arraycopy(all, all.length - maxSize, dictionary, 0, maxSize);
+		return dictionary;
+	}
+
+	/**
+	 * Gets the compression level
+	 *
+	 * @return The compression level
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Sets the compression level, see {@link java.util.zip.Deflater}
+	 *
+	 * @param level
+	 *            The compression level
+	 */
+	public void setLevel(int level) {
+		this.level = level;
+	}
+
+	/**
+	 * Gets the preset dictionary
+	 *
+	 * @return The preset dictionary, or null if there is none
+	 */
+	public byte[] getDictionary() {
+		return dictionary;
+	}
+
+	/**
+	 * Sets the preset dictionary. Every node must use the same dictionary; data compressed with another dictionary
+	 * can not be decompressed and is treated as corrupt.
+	 *
+	 * @param dictionary
+	 *            The preset dictionary, or null for none
+	 */
+	public void setDictionary(byte[] dictionary) {
+		this.dictionary = dictionary;
+	}
+}
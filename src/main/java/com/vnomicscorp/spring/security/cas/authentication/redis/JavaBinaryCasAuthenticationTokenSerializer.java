@@ -0,0 +1,90 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+
+/**
+ * Implementation of {@link BinaryCasAuthenticationTokenSerializer} that uses Java serialization. Produces the same
+ * bytes as {@link DefaultCasAuthenticationTokenSerializer} without the Base64 encoding.
+ * <p>
+ * Each thread reuses its object streams and buffers, so serializing allocates little beyond the resulting array and
+ * deserializing little beyond the resulting token.
+ * <p>
+ * Deserialization is restricted by a {@link TokenDeserializationFilter}, so only the object graph of a token is read
+ * back from Redis.
+ */
+public class JavaBinaryCasAuthenticationTokenSerializer implements BinaryCasAuthenticationTokenSerializer {
+
+	private TokenDeserializationFilter deserializationFilter = new TokenDeserializationFilter();
+
+	@Override
+	public byte[] serialize(CasAuthenticationToken token) throws CasAuthenticationTokenSerializerException {
+		if (token == null) {
+			throw new NullPointerException("Expected given token to be non-null");
+		}
+		JavaSerializationStreams streams = JavaSerializationStreams.acquire();
+		try {
+			streams.write(token);
+			return Arrays.copyOf(streams.buffer(), streams.length());
+		} catch (IOException e) {
+			throw new CasAuthenticationTokenSerializerException(e);
+		} finally {
+			streams.release();
+		}
+	}
+
+	@Override
+	public CasAuthenticationToken deserialize(byte[] serialized) throws CasAuthenticationTokenSerializerException {
+		JavaSerializationStreams streams = JavaSerializationStreams.acquire();
+		try {
+			return (CasAuthenticationToken) streams.read(serialized, 0, serialized.length, deserializationFilter);
+		} catch (JavaSerializationStreams.RejectedException e) {
+			throw new CasAuthenticationTokenRejectedException("Token rejected: " + e.getMessage(), e);
+		} catch (IOException e) {
+			throw new CasAuthenticationTokenSerializerException(e);
+		} catch (ClassNotFoundException e) {
+			throw new CasAuthenticationTokenSerializerException(e);
+		} catch (ClassCastException e) {
+			throw new CasAuthenticationTokenSerializerException(e);
+		} finally {
+			streams.release();
+		}
+	}
+
+	/**
+	 * Gets the filter restricting what is deserialized
+	 *
+	 * @return The filter restricting what is deserialized, or null if anything is deserialized
+	 */
+	public TokenDeserializationFilter getDeserializationFilter() {
+		return deserializationFilter;
+	}
+
+	/**
+	 * Sets the filter restricting what is deserialized. Defaults to a {@link TokenDeserializationFilter} allowing the
+	 * object graph of a token.
+	 *
+	 * @param deserializationFilter
+	 *            The filter restricting what is deserialized, or null to deserialize anything
+	 */
+	public void setDeserializationFilter(TokenDeserializationFilter deserializationFilter) {
+		this.deserializationFilter = deserializationFilter;
+	}
+}
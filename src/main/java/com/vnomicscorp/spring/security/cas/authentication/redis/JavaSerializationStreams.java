@@ -0,0 +1,497 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamConstants;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+
+/**
+ * Per thread Java serialization streams and buffers that are reused from call to call. Creating an
+ * {@link java.io.ObjectOutputStream} or {@link java.io.ObjectInputStream} is expensive, so each thread keeps one of
+ * each and resets it between objects:
+ * <ul>
+ * <li>The output stream is reset, which forgets every written object and class, and the buffer is rewound to the
+ * stream header, so each object is written exactly as by a fresh stream.</li>
+ * <li>The input stream is fed a reset marker followed by the object's bytes after the stream header, so each object
+ * is read with an empty handle table exactly as by a fresh stream.</li>
+ * </ul>
+ * A stream that fails is discarded, and buffers that grew past {@link #MAX_RETAINED_BUFFER} bytes are dropped after use
+ * so one huge token does not pin memory. Nested use on the same thread, such as a token that serializes another token
+ * from its own <code>writeObject</code>, falls back to fresh streams.
+ * <p>
+ * Reads can be restricted by a {@link TokenDeserializationFilter}. The input stream checks classes against its
+ * allow-list when resolving them and, where the JVM has a serialization filter, registers one that checks the limits.
+ * The JVM counts references over the life of the stream, so they are counted from the first check of each read.
+ */
+final class JavaSerializationStreams {
+
+	/**
+	 * The largest buffer kept between calls
+	 */
+	static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
+	private static final int INITIAL_BUFFER = 4 * 1024;
+	private static final int HEADER_LENGTH = 4;
+	private static final byte[] HEADER = new byte[] { (byte) (ObjectStreamConstants.STREAM_MAGIC >>> 8),
+		(byte) ObjectStreamConstants.STREAM_MAGIC, (byte) (ObjectStreamConstants.STREAM_VERSION >>> 8),
+		(byte) ObjectStreamConstants.STREAM_VERSION };
+
+	private static final ThreadLocal<JavaSerializationStreams> CURRENT = ThreadLocal
+		.withInitial(JavaSerializationStreams::new);
+
+	private final Output output = new Output();
+	private final Input input = new Input();
+	private ObjectOutputStream objectOutput;
+	private ObjectInputStream objectInput;
+	private byte[] scratch = new byte[INITIAL_BUFFER];
+	private boolean inUse;
+	private TokenDeserializationFilter filter;
+	private Object globalFilter;
+	private long referenceBase;
+	private String rejection;
+
+	private JavaSerializationStreams() {
+	}
+
+	/**
+	 * Gets the streams of the current thread, or fresh ones if the current thread's are in use
+	 *
+	 * @return The streams, to be given back with {@link #release()}
+	 */
+	static JavaSerializationStreams acquire() {
+		JavaSerializationStreams streams = CURRENT.get();
+		if (streams.inUse) {
+			streams = new JavaSerializationStreams();
+		}
+		streams.inUse = true;
+		return streams;
+	}
+
+	/**
+	 * Gives the streams back, dropping oversized buffers
+	 */
+	void release() {
+		inUse = false;
+		if (output.capacity() > MAX_RETAINED_BUFFER) {
+			output.shrink();
+		}
+		if (scratch.length > MAX_RETAINED_BUFFER) {
+			scratch = new byte[INITIAL_BUFFER];
+		}
+		input.clear();
+	}
+
+	/**
+	 * Serializes an object. The result is in {@link #buffer()} up to {@link #length()} until the next call.
+	 *
+	 * @param object
+	 *            The object to serialize
+	 * @throws IOException
+	 *             If the object can not be serialized
+	 */
+	void write(Object object) throws IOException {
+		try {
+			if (objectOutput == null) {
+				output.reset();
+				objectOutput = new ObjectOutputStream(output);
+			} else {
+				objectOutput.reset();
+				objectOutput.flush();
+				output.reset();
+				output.write(HEADER, 0, HEADER_LENGTH);
+			}
+			objectOutput.writeObject(object);
+			objectOutput.flush();
+		} catch (IOException | RuntimeException e) {
+			objectOutput = null;
+			throw e;
+		}
+	}
+
+	/**
+	 * @return The buffer holding the last serialized object
+	 */
+	byte[] buffer() {
+		return output.buffer();
+	}
+
+	/**
+	 * @return The length of the last serialized object
+	 */
+	int length() {
+		return output.size();
+	}
+
+	/**
+	 * Deserializes an object
+	 *
+	 * @param serialized
+	 *            The buffer holding the serialized object
+	 * @param offset
+	 *            The start of the serialized object in the buffer
+	 * @param length
+	 *            The length of the serialized object
+	 * @return The object
+	 * @throws IOException
+	 *             If the bytes are not a serialized object
+	 * @throws ClassNotFoundException
+	 *             If the class of a serialized object is not found
+	 */
+	Object read(byte[] serialized, int offset, int length) throws IOException, ClassNotFoundException {
+		return read(serialized, offset, length, null);
+	}
+
+	/**
+	 * Deserializes an object restricted by a filter
+	 *
+	 * @param serialized
+	 *            The buffer holding the serialized object
+	 * @param offset
+	 *            The start of the serialized object in the buffer
+	 * @param length
+	 *            The length of the serialized object
+	 * @param filter
+	 *            The filter restricting what is read, or null to read anything
+	 * @return The object
+	 * @throws RejectedException
+	 *             If the filter rejected the object
+	 * @throws IOException
+	 *             If the bytes are not a serialized object
+	 * @throws ClassNotFoundException
+	 *             If the class of a serialized object is not found
+	 */
+	Object read(byte[] serialized, int offset, int length, TokenDeserializationFilter filter) throws IOException,
+		ClassNotFoundException {
+		this.filter = filter;
+		globalFilter = filter == null ? null : JdkFilter.global();
+		referenceBase = -1;
+		rejection = null;
+		try {
+			if (objectInput == null) {
+				input.set(serialized, offset, length, false);
+				objectInput = new FilteringInput(input);
+				JdkFilter.install(objectInput, this);
+			} else {
+				for (int i = 0; i < HEADER_LENGTH; i++) {
+					if (i >= length || serialized[offset + i] != HEADER[i]) {
+						throw new StreamCorruptedException("Invalid stream header");
+					}
+				}
+				input.set(serialized, offset + HEADER_LENGTH, length - HEADER_LENGTH, true);
+			}
+			return objectInput.readObject();
+		} catch (IOException | ClassNotFoundException | RuntimeException e) {
+			objectInput = null;
+			if (rejection != null && !(e instanceof RejectedException)) {
+				// The serialization filter of the JVM fails with its own exception
+				RejectedException rejected = new RejectedException(rejection);
+				rejected.initCause(e);
+				throw rejected;
+			}
+			throw e;
+		} finally {
+			this.filter = null;
+			globalFilter = null;
+		}
+	}
+
+	/**
+	 * Checks a read against the limits of the current filter, then against the process wide filter
+	 *
+	 * @param info
+	 *            The filter info of the JVM
+	 * @return The filter status of the JVM
+	 */
+	private Object check(Object info) throws ReflectiveOperationException {
+		TokenDeserializationFilter current = filter;
+		if (current == null) {
+			Object global = JdkFilter.global();
+			return global == null ? JdkFilter.UNDECIDED : JdkFilter.CHECK_INPUT.invoke(global, info);
+		}
+		long references = (Long) JdkFilter.REFERENCES.invoke(info);
+		if (referenceBase < 0) {
+			referenceBase = references;
+		}
+		String rejected = current.checkLimits((Long) JdkFilter.ARRAY_LENGTH.invoke(info), (Long) JdkFilter.DEPTH
+			.invoke(info), references - referenceBase);
+		if (rejected != null) {
+			rejection = rejected;
+			return JdkFilter.REJECTED;
+		}
+		return globalFilter == null ? JdkFilter.UNDECIDED : JdkFilter.CHECK_INPUT.invoke(globalFilter, info);
+	}
+
+	/**
+	 * Gets a scratch buffer of at least the given length, reused from call to call
+	 *
+	 * @param minLength
+	 *            The minimum length
+	 * @return The scratch buffer
+	 */
+	byte[] scratch(int minLength) {
+		if (scratch.length < minLength) {
+			scratch = new byte[Math.max(minLength, scratch.length * 2)];
+		}
+		return scratch;
+	}
+
+	/**
+	 * Thrown when a {@link TokenDeserializationFilter} rejects what is read
+	 */
+	static final class RejectedException extends InvalidClassException {
+
+		private static final long serialVersionUID = 1L;
+
+		RejectedException(String reason) {
+			super(reason);
+		}
+	}
+
+	/**
+	 * An object input stream that resolves only the classes the current filter allows, caching them
+	 */
+	private final class FilteringInput extends ObjectInputStream {
+		FilteringInput(InputStream in) throws IOException {
+			super(in);
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+			TokenDeserializationFilter current = filter;
+			if (current == null) {
+				return super.resolveClass(desc);
+			}
+			String name = desc.getName();
+			Class<?> type = current.getResolvedClass(name);
+			if (type != null) {
+				return type;
+			}
+			if (!current.isAllowed(name)) {
+				rejection = "Class " + name + " is not allowed";
+				throw new RejectedException(rejection);
+			}
+			type = super.resolveClass(desc);
+			current.addResolvedClass(type);
+			return type;
+		}
+
+		@Override
+		protected Class<?> resolveProxyClass(String[] interfaces) throws IOException, ClassNotFoundException {
+			if (filter != null) {
+				rejection = "Proxy classes are not allowed";
+				throw new RejectedException(rejection);
+			}
+			return super.resolveProxyClass(interfaces);
+		}
+	}
+
+	/**
+	 * The serialization filter API of the JVM, <code>java.io.ObjectInputFilter</code> from Java 9 and
+	 * <code>sun.misc.ObjectInputFilter</code> in Java 8u121 and later, reached by reflection as this library targets
+	 * Java 8
+	 */
+	private static final class JdkFilter {
+		static final Class<?> TYPE;
+		static final Method SET_FILTER;
+		static final Method GET_SERIAL_FILTER;
+		static final Method CHECK_INPUT;
+		static final Method ARRAY_LENGTH;
+		static final Method DEPTH;
+		static final Method REFERENCES;
+		static final Object UNDECIDED;
+		static final Object REJECTED;
+
+		static {
+			Class<?> type = null;
+			Method setFilter = null;
+			Method getSerialFilter = null;
+			Method checkInput = null;
+			Method arrayLength = null;
+			Method depth = null;
+			Method references = null;
+			Object undecided = null;
+			Object rejected = null;
+			for (String name : new String[] { "java.io.ObjectInputFilter", "sun.misc.ObjectInputFilter" }) {
+				try {
+					type = Class.forName(name);
+					Class<?> config = Class.forName(name + "$Config");
+					Class<?> info = Class.forName(name + "$FilterInfo");
+					Class<?> status = Class.forName(name + "$Status");
+					try {
+						// Java 9 and later
+						setFilter = ObjectInputStream.class.getMethod("setObjectInputFilter", type);
+					} catch (NoSuchMethodException e) {
+						setFilter = config.getMethod("setObjectInputFilter", ObjectInputStream.class, type);
+					}
+					getSerialFilter = config.getMethod("getSerialFilter");
+					checkInput = type.getMethod("checkInput", info);
+					arrayLength = info.getMethod("arrayLength");
+					depth = info.getMethod("depth");
+					references = info.getMethod("references");
+					undecided = status.getField("UNDECIDED").get(null);
+					rejected = status.getField("REJECTED").get(null);
+					break;
+				} catch (ReflectiveOperationException | RuntimeException e) {
+					// Not available, only the allow-list applies
+					type = null;
+				}
+			}
+			TYPE = type;
+			SET_FILTER = type == null ? null : setFilter;
+			GET_SERIAL_FILTER = getSerialFilter;
+			CHECK_INPUT = checkInput;
+			ARRAY_LENGTH = arrayLength;
+			DEPTH = depth;
+			REFERENCES = references;
+			UNDECIDED = undecided;
+			REJECTED = rejected;
+		}
+
+		/**
+		 * Registers a filter on a new stream that delegates to {@link JavaSerializationStreams#check(Object)}
+		 */
+		static void install(ObjectInputStream stream, JavaSerializationStreams streams) throws IOException {
+			if (SET_FILTER == null) {
+				return;
+			}
+			Object proxy = Proxy.newProxyInstance(TYPE.getClassLoader(), new Class<?>[] { TYPE }, (self, method,
+				args) -> {
+				switch (method.getName()) {
+					case "checkInput":
+						return streams.check(args[0]);
+					case "equals":
+						return self == args[0];
+					case "hashCode":
+						return System.identityHashCode(self);
+					default:
+						return JavaSerializationStreams.class.getName() + " filter";
+				}
+			});
+			try {
+				if (Modifier.isStatic(SET_FILTER.getModifiers())) {
+					SET_FILTER.invoke(null, stream, proxy);
+				} else {
+					SET_FILTER.invoke(stream, proxy);
+				}
+			} catch (ReflectiveOperationException e) {
+				throw new IOException("Failed to set the serialization filter", e);
+			}
+		}
+
+		/**
+		 * @return The process wide filter, or null if none is set
+		 */
+		static Object global() {
+			if (GET_SERIAL_FILTER == null) {
+				return null;
+			}
+			try {
+				return GET_SERIAL_FILTER.invoke(null);
+			} catch (ReflectiveOperationException e) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * A byte array output stream whose buffer can be read in place and dropped
+	 */
+	private static final class Output extends ByteArrayOutputStream {
+		Output() {
+			super(INITIAL_BUFFER);
+		}
+
+		byte[] buffer() {
+			return buf;
+		}
+
+		int capacity() {
+			return buf.length;
+		}
+
+		void shrink() {
+			buf = new byte[INITIAL_BUFFER];
+			count = 0;
+		}
+	}
+
+	/**
+	 * An input stream over a byte array that can be switched to another array, optionally preceded by a reset marker
+	 */
+	private static final class Input extends InputStream {
+		private byte[] bytes;
+		private int position;
+		private int end;
+		private boolean reset;
+
+		void set(byte[] bytes, int offset, int length, boolean reset) {
+			this.bytes = bytes;
+			this.position = offset;
+			this.end = offset + length;
+			this.reset = reset;
+		}
+
+		void clear() {
+			bytes = null;
+			position = 0;
+			end = 0;
+			reset = false;
+		}
+
+		@Override
+		public int read() {
+			if (reset) {
+				reset = false;
+				return ObjectStreamConstants.TC_RESET;
+			}
+			return position < end ? bytes[position++] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (reset) {
+				reset = false;
+				b[off] = ObjectStreamConstants.TC_RESET;
+				return 1;
+			}
+			if (position >= end) {
+				return -1;
+			}
+			int n = Math.min(len, end - position);
+			System.arraycopy(bytes, position, b, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return (reset ? 1 : 0) + end - position;
+		}
+	}
+}
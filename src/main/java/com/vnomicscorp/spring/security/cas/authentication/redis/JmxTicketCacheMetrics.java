@@ -0,0 +1,352 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * {@link TicketCacheMetrics} exposed as a plain JMX MBean, for deployments without Micrometer. Keeps counts, means and
+ * maxima only; use {@link MicrometerTicketCacheMetrics} for percentiles.
+ */
+public class JmxTicketCacheMetrics implements TicketCacheMetrics, JmxTicketCacheMetricsMBean {
+
+	/**
+	 * The name registered under by {@link #register()}
+	 */
+	public static final String DEFAULT_OBJECT_NAME = "com.vnomicscorp.spring.security.cas:type=RedisStatelessTicketCache";
+
+	private final Stat get = new Stat();
+	private final Stat put = new Stat();
+	private final Stat remove = new Stat();
+	private final Stat poolWait = new Stat();
+	private final Stat serialize = new Stat();
+	private final Stat deserialize = new Stat();
+	private final Stat payload = new Stat();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder rejections = new LongAdder();
+	private final LongAdder filterSkipped = new LongAdder();
+	private final LongAdder filterPassed = new LongAdder();
+	private final LongAdder filterFalsePositives = new LongAdder();
+	private final LongAdder shortCircuited = new LongAdder();
+	private final LongAdder circuitOpened = new LongAdder();
+	private volatile CircuitBreakerStatelessTicketCache.State circuitState = CircuitBreakerStatelessTicketCache.State.CLOSED;
+
+	private ObjectName objectName;
+
+	/**
+	 * Registers this with the platform MBean server under {@link #DEFAULT_OBJECT_NAME}
+	 *
+	 * @throws JMException
+	 *             If the registration failed, for example because the name is taken
+	 */
+	public void register() throws JMException {
+		register(new ObjectName(DEFAULT_OBJECT_NAME));
+	}
+
+	/**
+	 * Registers this with the platform MBean server
+	 *
+	 * @param objectName
+	 *            The name to register under
+	 * @throws JMException
+	 *             If the registration failed, for example because the name is taken
+	 */
+	public synchronized void register(ObjectName objectName) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		this.objectName = objectName;
+	}
+
+	/**
+	 * Unregisters this from the platform MBean server. Does nothing if it is not registered.
+	 *
+	 * @throws JMException
+	 *             If the unregistration failed
+	 */
+	public synchronized void unregister() throws JMException {
+		if (objectName == null) {
+			return;
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if (server.isRegistered(objectName)) {
+			server.unregisterMBean(objectName);
+		}
+		objectName = null;
+	}
+
+	@Override
+	public void recordPoolWait(long nanos) {
+		poolWait.record(nanos);
+	}
+
+	@Override
+	public void recordCommand(Operation operation, long nanos) {
+		switch (operation) {
+		case GET:
+			get.record(nanos);
+			break;
+		case PUT:
+			put.record(nanos);
+			break;
+		default:
+			remove.record(nanos);
+			break;
+		}
+	}
+
+	@Override
+	public void recordError(Operation operation) {
+		errors.increment();
+	}
+
+	@Override
+	public void recordLookup(boolean hit) {
+		(hit ? hits : misses).increment();
+	}
+
+	@Override
+	public void recordSerialize(long nanos, int bytes) {
+		serialize.record(nanos);
+		payload.record(bytes);
+	}
+
+	@Override
+	public void recordDeserialize(long nanos, int bytes) {
+		deserialize.record(nanos);
+		payload.record(bytes);
+	}
+
+	@Override
+	public void recordFilterLookup(boolean skipped) {
+		(skipped ? filterSkipped : filterPassed).increment();
+	}
+
+	@Override
+	public void recordRejection() {
+		rejections.increment();
+	}
+
+	@Override
+	public void recordFilterFalsePositive() {
+		filterFalsePositives.increment();
+	}
+
+	@Override
+	public void recordShortCircuit(Operation operation) {
+		shortCircuited.increment();
+	}
+
+	@Override
+	public void recordCircuitTransition(CircuitBreakerStatelessTicketCache.State state) {
+		if (state == CircuitBreakerStatelessTicketCache.State.OPEN) {
+			circuitOpened.increment();
+		}
+		circuitState = state;
+	}
+
+	@Override
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	@Override
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	@Override
+	public long getErrorCount() {
+		return errors.sum();
+	}
+
+	@Override
+	public long getGetCount() {
+		return get.count.sum();
+	}
+
+	@Override
+	public double getGetMeanMicros() {
+		return get.meanMicros();
+	}
+
+	@Override
+	public long getGetMaxMicros() {
+		return get.maxMicros();
+	}
+
+	@Override
+	public long getPutCount() {
+		return put.count.sum();
+	}
+
+	@Override
+	public double getPutMeanMicros() {
+		return put.meanMicros();
+	}
+
+	@Override
+	public long getPutMaxMicros() {
+		return put.maxMicros();
+	}
+
+	@Override
+	public long getRemoveCount() {
+		return remove.count.sum();
+	}
+
+	@Override
+	public double getRemoveMeanMicros() {
+		return remove.meanMicros();
+	}
+
+	@Override
+	public long getRemoveMaxMicros() {
+		return remove.maxMicros();
+	}
+
+	@Override
+	public double getPoolWaitMeanMicros() {
+		return poolWait.meanMicros();
+	}
+
+	@Override
+	public long getPoolWaitMaxMicros() {
+		return poolWait.maxMicros();
+	}
+
+	@Override
+	public double getSerializeMeanMicros() {
+		return serialize.meanMicros();
+	}
+
+	@Override
+	public long getSerializeMaxMicros() {
+		return serialize.maxMicros();
+	}
+
+	@Override
+	public double getDeserializeMeanMicros() {
+		return deserialize.meanMicros();
+	}
+
+	@Override
+	public long getDeserializeMaxMicros() {
+		return deserialize.maxMicros();
+	}
+
+	@Override
+	public double getPayloadMeanBytes() {
+		return payload.mean();
+	}
+
+	@Override
+	public long getPayloadMaxBytes() {
+		return payload.max.get();
+	}
+
+	@Override
+	public long getRejectionCount() {
+		return rejections.sum();
+	}
+
+	@Override
+	public long getFilterSkippedCount() {
+		return filterSkipped.sum();
+	}
+
+	@Override
+	public long getFilterPassedCount() {
+		return filterPassed.sum();
+	}
+
+	@Override
+	public long getFilterFalsePositiveCount() {
+		return filterFalsePositives.sum();
+	}
+
+	@Override
+	public long getShortCircuitedCount() {
+		return shortCircuited.sum();
+	}
+
+	@Override
+	public long getCircuitOpenedCount() {
+		return circuitOpened.sum();
+	}
+
+	@Override
+	public String getCircuitState() {
+		return circuitState.name();
+	}
+
+	@Override
+	public void reset() {
+		for (Stat stat : new Stat[] { get, put, remove, poolWait, serialize, deserialize, payload }) {
+			stat.reset();
+		}
+		hits.reset();
+		misses.reset();
+		errors.reset();
+		rejections.reset();
+		filterSkipped.reset();
+		filterPassed.reset();
+		filterFalsePositives.reset();
+		shortCircuited.reset();
+		circuitOpened.reset();
+	}
+
+	/**
+	 * Count, total and maximum of a measurement
+	 */
+	private static final class Stat {
+		final LongAdder count = new LongAdder();
+		final LongAdder total = new LongAdder();
+		final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+		void record(long value) {
+			count.increment();
+			total.add(value);
+			max.accumulate(value);
+		}
+
+		double mean() {
+			long n = count.sum();
+			return n == 0 ? 0 : (double) total.sum() / n;
+		}
+
+		double meanMicros() {
+			return mean() / TimeUnit.MICROSECONDS.toNanos(1);
+		}
+
+		long maxMicros() {
+			return TimeUnit.NANOSECONDS.toMicros(max.get());
+		}
+
+		void reset() {
+			count.reset();
+			total.reset();
+			max.reset();
+		}
+	}
+}
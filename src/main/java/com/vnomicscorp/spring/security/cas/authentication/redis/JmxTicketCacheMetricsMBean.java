@@ -0,0 +1,82 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+/**
+ * The management interface of {@link JmxTicketCacheMetrics}. Times are in microseconds and cover everything recorded
+ * since startup or the last {@link #reset()}.
+ */
+public interface JmxTicketCacheMetricsMBean {
+
+	long getHitCount();
+
+	long getMissCount();
+
+	long getErrorCount();
+
+	long getGetCount();
+
+	double getGetMeanMicros();
+
+	long getGetMaxMicros();
+
+	long getPutCount();
+
+	double getPutMeanMicros();
+
+	long getPutMaxMicros();
+
+	long getRemoveCount();
+
+	double getRemoveMeanMicros();
+
+	long getRemoveMaxMicros();
+
+	double getPoolWaitMeanMicros();
+
+	long getPoolWaitMaxMicros();
+
+	double getSerializeMeanMicros();
+
+	long getSerializeMaxMicros();
+
+	double getDeserializeMeanMicros();
+
+	long getDeserializeMaxMicros();
+
+	double getPayloadMeanBytes();
+
+	long getPayloadMaxBytes();
+
+	long getRejectionCount();
+
+	long getFilterSkippedCount();
+
+	long getFilterPassedCount();
+
+	long getFilterFalsePositiveCount();
+
+	long getShortCircuitedCount();
+
+	long getCircuitOpenedCount();
+
+	String getCircuitState();
+
+	/**
+	 * Starts all measurements over
+	 */
+	void reset();
+}
@@ -0,0 +1,260 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import org.jasig.cas.client.validation.Assertion;
+import org.jasig.cas.client.validation.AssertionImpl;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.core.userdetails.UserDetails;
+
+/**
+ * A {@link CasAuthenticationToken} read by {@link CompactCasAuthenticationTokenSerializer} in its sectioned layout. The
+ * key hash, credentials, authorities and details are decoded up front; the user details and the assertion are decoded
+ * from the retained bytes when first accessed. The principal is decoded with the user details when it is the same
+ * object, as it is for tokens created by {@link org.springframework.security.cas.authentication.CasAuthenticationProvider}.
+ * <p>
+ * As long as neither section was decoded and the token was not changed, {@link #getSerialized()} returns the
+ * original bytes so putting the token back in the cache does not encode it again. The token is Java serialized as a
+ * plain {@link CasAuthenticationToken}. It equals and hashes as one without materializing: {@link #equals(Object)}
+ * decodes nothing while the assertion is not decoded, as assertions are compared by identity, {@link #hashCode()}
+ * decodes both sections once and {@link #toString()} none. A section holding values written with Java serialization
+ * is given decoded, so its filter decisions are made before the token is returned. A section that still fails to
+ * decode, which takes a corrupted entry, throws {@link IllegalStateException} from its getter.
+ */
+final class LazyCasAuthenticationToken extends CasAuthenticationToken {
+
+	private static final long serialVersionUID = 1L;
+
+	// The superclass rejects null values, so it is given these and every getter of a lazy value is overridden
+	private static final String PLACEHOLDER_KEY = "lazy";
+	private static final String PLACEHOLDER_PRINCIPAL = "lazy";
+	private static final UserDetails PLACEHOLDER_USER_DETAILS = new User("lazy", "",
+		Collections.<GrantedAuthority> emptyList());
+	private static final Assertion PLACEHOLDER_ASSERTION = new AssertionImpl("lazy");
+	private static final String NOT_DECODED = "(not decoded)";
+
+	private final transient CompactCasAuthenticationTokenSerializer serializer;
+	private final transient List<String> strings;
+	private final int userDetailsOffset;
+	private final int assertionOffset;
+	private final int keyHash;
+	private final boolean principalIsUserDetails;
+	private transient byte[] serialized;
+	private volatile transient UserDetails userDetails;
+	private volatile transient Assertion assertion;
+	private volatile boolean modified;
+
+	LazyCasAuthenticationToken(CompactCasAuthenticationTokenSerializer serializer, byte[] serialized,
+		int userDetailsOffset, int assertionOffset, List<String> strings, int keyHash, boolean authenticated,
+		Object principal, Object credentials, Collection<? extends GrantedAuthority> authorities, Object details,
+		UserDetails userDetails, Assertion assertion) {
+		super(PLACEHOLDER_KEY, principal == null ? PLACEHOLDER_PRINCIPAL : principal, credentials, authorities,
+			PLACEHOLDER_USER_DETAILS, PLACEHOLDER_ASSERTION);
+		this.serializer = serializer;
+		this.serialized = serialized;
+		this.userDetailsOffset = userDetailsOffset;
+		this.assertionOffset = assertionOffset;
+		this.strings = strings;
+		this.keyHash = keyHash;
+		this.principalIsUserDetails = principal == null;
+		this.userDetails = userDetails;
+		this.assertion = assertion;
+		releaseIfDecoded();
+		if (!authenticated) {
+			super.setAuthenticated(false);
+		}
+		super.setDetails(details);
+		// The superclass constructor marks the token authenticated through the overridden setter
+		modified = false;
+	}
+
+	/**
+	 * @return The bytes the token was read from, or null if the token was changed or partly decoded since
+	 */
+	byte[] getSerialized() {
+		if (modified || userDetails != null || assertion != null) {
+			return null;
+		}
+		return serialized;
+	}
+
+	/**
+	 * @return Whether the user details have been decoded
+	 */
+	boolean isUserDetailsDecoded() {
+		return userDetails != null;
+	}
+
+	/**
+	 * @return Whether the assertion has been decoded
+	 */
+	boolean isAssertionDecoded() {
+		return assertion != null;
+	}
+
+	/**
+	 * Decodes every section
+	 *
+	 * @return A plain token equal to this one
+	 */
+	CasAuthenticationToken materialize() {
+		try {
+			return CompactCasAuthenticationTokenSerializer.newToken(keyHash, isAuthenticated(), getPrincipal(),
+				getCredentials(), getAuthorities(), getUserDetails(), getAssertion(), getDetails());
+		} catch (IOException e) {
+			throw new IllegalStateException("Exception encountered while materializing CasAuthenticationToken", e);
+		}
+	}
+
+	@Override
+	public int getKeyHash() {
+		return keyHash;
+	}
+
+	@Override
+	public Object getPrincipal() {
+		return principalIsUserDetails ? getUserDetails() : super.getPrincipal();
+	}
+
+	@Override
+	public UserDetails getUserDetails() {
+		UserDetails result = userDetails;
+		if (result == null) {
+			synchronized (this) {
+				result = userDetails;
+				if (result == null) {
+					result = decode(userDetailsOffset, UserDetails.class);
+					userDetails = result;
+					releaseIfDecoded();
+				}
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public Assertion getAssertion() {
+		Assertion result = assertion;
+		if (result == null) {
+			synchronized (this) {
+				result = assertion;
+				if (result == null) {
+					result = decode(assertionOffset, Assertion.class);
+					assertion = result;
+					releaseIfDecoded();
+				}
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public void setAuthenticated(boolean isAuthenticated) {
+		modified = true;
+		super.setAuthenticated(isAuthenticated);
+	}
+
+	@Override
+	public void setDetails(Object details) {
+		modified = true;
+		super.setDetails(details);
+	}
+
+	@Override
+	public void eraseCredentials() {
+		modified = true;
+		super.eraseCredentials();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof CasAuthenticationToken)) {
+			return false;
+		}
+		// Compares as CasAuthenticationToken does, the values that are decoded up front first
+		CasAuthenticationToken other = (CasAuthenticationToken) obj;
+		if (keyHash != other.getKeyHash() || isAuthenticated() != other.isAuthenticated()
+			|| !Objects.equals(getCredentials(), other.getCredentials())
+			|| !getAuthorities().equals(other.getAuthorities()) || !Objects.equals(getDetails(), other.getDetails())) {
+			return false;
+		}
+		// Assertions are compared by identity, so no other token holds one that was not decoded yet
+		Assertion decoded = assertion;
+		return decoded != null && decoded.equals(other.getAssertion())
+			&& Objects.equals(getPrincipal(), other.getPrincipal());
+	}
+
+	@Override
+	public int hashCode() {
+		// As CasAuthenticationToken computes it, from the decoded values instead of the placeholders
+		int code = 31;
+		for (GrantedAuthority authority : getAuthorities()) {
+			code ^= authority.hashCode();
+		}
+		Object principal = getPrincipal();
+		code ^= Objects.hashCode(principal) ^ Objects.hashCode(getCredentials()) ^ Objects.hashCode(getDetails());
+		if (isAuthenticated()) {
+			code ^= -37;
+		}
+		int result = 31 * code + getCredentials().hashCode();
+		result = 31 * result + principal.hashCode();
+		result = 31 * result + getUserDetails().hashCode();
+		result = 31 * result + keyHash;
+		return 31 * result + getAssertion().hashCode();
+	}
+
+	@Override
+	public String toString() {
+		// Sections are not decoded only to be logged
+		UserDetails decodedUserDetails = userDetails;
+		Object principal = !principalIsUserDetails ? super.getPrincipal() : decodedUserDetails != null
+			? decodedUserDetails : NOT_DECODED;
+		Assertion decodedAssertion = assertion;
+		return getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this)) + ": Principal: "
+			+ principal + "; Credentials: [PROTECTED]; Authenticated: " + isAuthenticated() + "; Details: "
+			+ getDetails() + "; Granted Authorities: " + getAuthorities() + " Assertion: "
+			+ (decodedAssertion != null ? decodedAssertion : NOT_DECODED);
+	}
+
+	private Object writeReplace() {
+		return materialize();
+	}
+
+	private <T> T decode(int offset, Class<T> type) {
+		try {
+			return type.cast(serializer.readSection(serialized, offset, strings));
+		} catch (CasAuthenticationTokenSerializerException | ClassCastException e) {
+			throw new IllegalStateException("Exception encountered while deserializing CasAuthenticationToken", e);
+		}
+	}
+
+	private void releaseIfDecoded() {
+		if (userDetails != null && assertion != null) {
+			serialized = null;
+		}
+	}
+}
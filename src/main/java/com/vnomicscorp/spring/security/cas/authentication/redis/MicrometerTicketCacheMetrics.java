@@ -0,0 +1,327 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import redis.clients.jedis.JedisPool;
+
+/**
+ * {@link TicketCacheMetrics} backed by Micrometer. Requires <code>io.micrometer:micrometer-core</code>, which is an
+ * optional dependency of this library.
+ * <p>
+ * Registers, all prefixed with <code>cas.ticket.cache</code>:
+ * <ul>
+ * <li><code>.command</code> timer of the Redis round trip, tagged by <code>operation</code></li>
+ * <li><code>.errors</code> counter, tagged by <code>operation</code></li>
+ * <li><code>.lookups</code> counter, tagged by <code>result</code> hit or miss</li>
+ * <li><code>.pool.wait</code> timer of waiting for a pooled connection</li>
+ * <li><code>.serialize</code> and <code>.deserialize</code> timers</li>
+ * <li><code>.payload</code> summary of serialized token sizes in bytes</li>
+ * <li><code>.rejections</code> counter of cached tokens rejected by a {@link TokenDeserializationFilter}</li>
+ * <li><code>.pool.active</code>, <code>.pool.idle</code> and <code>.pool.waiters</code> gauges over every pool of the
+ * connection source, if one was given</li>
+ * <li><code>.filter.lookups</code> counter of lookups checked by a {@link BloomFilterStatelessTicketCache}, tagged by
+ * <code>result</code> skipped or passed, and <code>.filter.false.positives</code> counter of passed lookups that
+ * missed</li>
+ * <li><code>.filter.fpp.target</code>, <code>.filter.fpp.estimated</code>, <code>.filter.memory</code> and
+ * <code>.filter.insertions</code> gauges, if a filter was given with
+ * {@link #setFilter(BloomFilterStatelessTicketCache)}</li>
+ * <li><code>.circuit.short.circuited</code> counter of operations a {@link CircuitBreakerStatelessTicketCache} answered
+ * without Redis, tagged by <code>operation</code>, and <code>.circuit.transitions</code> counter tagged by the new
+ * <code>state</code></li>
+ * <li><code>.circuit.state</code> gauge, 0 closed, 1 half open and 2 open, and <code>.circuit.queued.removes</code>
+ * gauge, if a circuit breaker was given with {@link #setCircuitBreaker(CircuitBreakerStatelessTicketCache)}</li>
+ * </ul>
+ * Timers publish percentile histograms. Measurements taken before {@link #bindTo(MeterRegistry)} are discarded.
+ */
+public class MicrometerTicketCacheMetrics implements TicketCacheMetrics, MeterBinder {
+
+	/**
+	 * The prefix of every meter name
+	 */
+	public static final String PREFIX = "cas.ticket.cache";
+
+	private final Iterable<Tag> tags;
+	private final RedisConnectionSource connectionSource;
+	private BloomFilterStatelessTicketCache filter;
+	private CircuitBreakerStatelessTicketCache circuitBreaker;
+
+	private volatile Meters meters;
+
+	/**
+	 * Creates a new instance without pool gauges or extra tags
+	 */
+	public MicrometerTicketCacheMetrics() {
+		this(null, Collections.<Tag> emptyList());
+	}
+
+	/**
+	 * Creates a new instance
+	 *
+	 * @param connectionSource
+	 *            The source whose pools are reported by gauges, or null for no pool gauges
+	 * @param tags
+	 *            Tags added to every meter
+	 */
+	public MicrometerTicketCacheMetrics(RedisConnectionSource connectionSource, Iterable<Tag> tags) {
+		if (tags == null) {
+			throw new NullPointerException("Expected given tags to be not null");
+		}
+		this.connectionSource = connectionSource;
+		this.tags = tags;
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		if (connectionSource != null) {
+			poolGauge(registry, "active", JedisPool::getNumActive);
+			poolGauge(registry, "idle", JedisPool::getNumIdle);
+			poolGauge(registry, "waiters", JedisPool::getNumWaiters);
+		}
+		if (filter != null) {
+			Gauge.builder(PREFIX + ".filter.fpp.target", filter, BloomFilterStatelessTicketCache::getFalsePositiveRate)
+				.description("Configured false positive rate of the ticket filter").tags(tags).register(registry);
+			Gauge.builder(PREFIX + ".filter.fpp.estimated", filter,
+				BloomFilterStatelessTicketCache::getEstimatedFalsePositiveRate)
+				.description("False positive rate of the ticket filter estimated from its fill").tags(tags)
+				.register(registry);
+			Gauge.builder(PREFIX + ".filter.memory", filter, BloomFilterStatelessTicketCache::getMemoryBytes)
+				.description("Memory taken by the ticket filter").baseUnit("bytes").tags(tags).register(registry);
+			Gauge.builder(PREFIX + ".filter.insertions", filter, BloomFilterStatelessTicketCache::getInsertionCount)
+				.description("Tickets in the current generation of the ticket filter").tags(tags).register(registry);
+		}
+		if (circuitBreaker != null) {
+			Gauge.builder(PREFIX + ".circuit.state", circuitBreaker, breaker -> breaker.getState().ordinal())
+				.description("State of the circuit, 0 closed, 1 half open and 2 open").tags(tags).register(registry);
+			Gauge.builder(PREFIX + ".circuit.queued.removes", circuitBreaker,
+				CircuitBreakerStatelessTicketCache::getQueuedRemoveCount)
+				.description("Removes waiting for the circuit to close").tags(tags).register(registry);
+		}
+		meters = new Meters(registry);
+	}
+
+	/**
+	 * Gets the filter whose size and false positive rate are reported by gauges
+	 *
+	 * @return The filter whose size and false positive rate are reported by gauges, or null for none
+	 */
+	public BloomFilterStatelessTicketCache getFilter() {
+		return filter;
+	}
+
+	/**
+	 * Sets the filter whose size and false positive rate are reported by gauges. Must be set before
+	 * {@link #bindTo(MeterRegistry)}.
+	 *
+	 * @param filter
+	 *            The filter whose size and false positive rate are reported by gauges, or null for none
+	 */
+	public void setFilter(BloomFilterStatelessTicketCache filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * Gets the circuit breaker whose state is reported by gauges
+	 *
+	 * @return The circuit breaker whose state is reported by gauges, or null for none
+	 */
+	public CircuitBreakerStatelessTicketCache getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	/**
+	 * Sets the circuit breaker whose state is reported by gauges. Must be set before {@link #bindTo(MeterRegistry)}.
+	 *
+	 * @param circuitBreaker
+	 *            The circuit breaker whose state is reported by gauges, or null for none
+	 */
+	public void setCircuitBreaker(CircuitBreakerStatelessTicketCache circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+	}
+
+	private void poolGauge(MeterRegistry registry, String name, ToDoubleFunction<JedisPool> value) {
+		Gauge.builder(PREFIX + ".pool." + name, connectionSource, source -> {
+			double sum = 0;
+			for (JedisPool pool : source.getPools()) {
+				sum += value.applyAsDouble(pool);
+			}
+			return sum;
+		}).tags(tags).register(registry);
+	}
+
+	@Override
+	public void recordPoolWait(long nanos) {
+		Meters current = meters;
+		if (current != null) {
+			current.poolWait.record(nanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	@Override
+	public void recordCommand(Operation operation, long nanos) {
+		Meters current = meters;
+		if (current != null) {
+			current.commands.get(operation).record(nanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	@Override
+	public void recordError(Operation operation) {
+		Meters current = meters;
+		if (current != null) {
+			current.errors.get(operation).increment();
+		}
+	}
+
+	@Override
+	public void recordLookup(boolean hit) {
+		Meters current = meters;
+		if (current != null) {
+			(hit ? current.hits : current.misses).increment();
+		}
+	}
+
+	@Override
+	public void recordSerialize(long nanos, int bytes) {
+		Meters current = meters;
+		if (current != null) {
+			current.serialize.record(nanos, TimeUnit.NANOSECONDS);
+			current.payload.record(bytes);
+		}
+	}
+
+	@Override
+	public void recordDeserialize(long nanos, int bytes) {
+		Meters current = meters;
+		if (current != null) {
+			current.deserialize.record(nanos, TimeUnit.NANOSECONDS);
+			current.payload.record(bytes);
+		}
+	}
+
+	@Override
+	public void recordRejection() {
+		Meters current = meters;
+		if (current != null) {
+			current.rejections.increment();
+		}
+	}
+
+	@Override
+	public void recordFilterLookup(boolean skipped) {
+		Meters current = meters;
+		if (current != null) {
+			(skipped ? current.filterSkipped : current.filterPassed).increment();
+		}
+	}
+
+	@Override
+	public void recordFilterFalsePositive() {
+		Meters current = meters;
+		if (current != null) {
+			current.filterFalsePositives.increment();
+		}
+	}
+
+	@Override
+	public void recordShortCircuit(Operation operation) {
+		Meters current = meters;
+		if (current != null) {
+			current.shortCircuited.get(operation).increment();
+		}
+	}
+
+	@Override
+	public void recordCircuitTransition(CircuitBreakerStatelessTicketCache.State state) {
+		Meters current = meters;
+		if (current != null) {
+			current.transitions.get(state).increment();
+		}
+	}
+
+	/**
+	 * The meters of one registry, looked up once so recording does not go through the registry
+	 */
+	private final class Meters {
+		final Map<Operation, Timer> commands = new EnumMap<Operation, Timer>(Operation.class);
+		final Map<Operation, Counter> errors = new EnumMap<Operation, Counter>(Operation.class);
+		final Map<Operation, Counter> shortCircuited = new EnumMap<Operation, Counter>(Operation.class);
+		final Map<CircuitBreakerStatelessTicketCache.State, Counter> transitions = new EnumMap<CircuitBreakerStatelessTicketCache.State, Counter>(
+			CircuitBreakerStatelessTicketCache.State.class);
+		final Counter hits;
+		final Counter misses;
+		final Timer poolWait;
+		final Timer serialize;
+		final Timer deserialize;
+		final DistributionSummary payload;
+		final Counter rejections;
+		final Counter filterSkipped;
+		final Counter filterPassed;
+		final Counter filterFalsePositives;
+
+		Meters(MeterRegistry registry) {
+			for (Operation operation : Operation.values()) {
+				String name = operation.name().toLowerCase();
+				commands.put(operation, timer(".command", "Redis round trip time").tag("operation", name)
+					.register(registry));
+				errors.put(operation, Counter.builder(PREFIX + ".errors").description("Failed cache operations")
+					.tags(tags).tag("operation", name).register(registry));
+				shortCircuited.put(operation, Counter.builder(PREFIX + ".circuit.short.circuited")
+					.description("Cache operations answered without Redis while the circuit was open").tags(tags)
+					.tag("operation", name).register(registry));
+			}
+			for (CircuitBreakerStatelessTicketCache.State state : CircuitBreakerStatelessTicketCache.State.values()) {
+				transitions.put(state, Counter.builder(PREFIX + ".circuit.transitions")
+					.description("State changes of the circuit").tags(tags).tag("state", state.name().toLowerCase())
+					.register(registry));
+			}
+			hits = Counter.builder(PREFIX + ".lookups").description("Ticket lookups").tags(tags).tag("result", "hit")
+				.register(registry);
+			misses = Counter.builder(PREFIX + ".lookups").description("Ticket lookups").tags(tags)
+				.tag("result", "miss").register(registry);
+			poolWait = timer(".pool.wait", "Time waiting for a pooled connection").register(registry);
+			serialize = timer(".serialize", "Token serialization time").register(registry);
+			deserialize = timer(".deserialize", "Token deserialization time").register(registry);
+			payload = DistributionSummary.builder(PREFIX + ".payload").description("Serialized token size")
+				.baseUnit("bytes").tags(tags).publishPercentileHistogram().register(registry);
+			rejections = Counter.builder(PREFIX + ".rejections").description(
+				"Cached tokens rejected by the deserialization filter").tags(tags).register(registry);
+			filterSkipped = Counter.builder(PREFIX + ".filter.lookups").description("Lookups checked by the filter")
+				.tags(tags).tag("result", "skipped").register(registry);
+			filterPassed = Counter.builder(PREFIX + ".filter.lookups").description("Lookups checked by the filter")
+				.tags(tags).tag("result", "passed").register(registry);
+			filterFalsePositives = Counter.builder(PREFIX + ".filter.false.positives")
+				.description("Lookups passed by the ticket filter that missed").tags(tags).register(registry);
+		}
+
+		private Timer.Builder timer(String name, String description) {
+			return Timer.builder(PREFIX + name).description(description).tags(tags).publishPercentileHistogram();
+		}
+	}
+}
@@ -0,0 +1,278 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+import org.springframework.security.cas.authentication.StatelessTicketCache;
+
+/**
+ * A {@link org.springframework.security.cas.authentication.StatelessTicketCache} that keeps a bounded, time limited
+ * in-memory copy of tickets in front of another cache, typically a {@link RedisStatelessTicketCache}. Repeat lookups of
+ * the same ticket on a node are served from memory without a Redis round trip or deserialization.
+ * <p>
+ * The least recently used entries are evicted once {@link #getMaxSize()} is reached and entries are discarded
+ * {@link #getTimeToLiveMillis()} after they were cached. To stay correct when tickets are changed or removed on another
+ * node set a {@link RedisPubSubTicketInvalidator}; this cache publishes its own changes on it and registers itself for
+ * the changes of other nodes. Putting back a token that is already held unchanged, as
+ * {@link org.springframework.security.cas.authentication.CasAuthenticationProvider} does after every cache hit, is
+ * still written to the delegate, so the ticket expires after its last use there, but not published. On Redis 6 it can instead be added as a listener of a
+ * {@link RedisTrackingTicketInvalidator}, which is told of every change to a ticket by Redis itself.
+ */
+public class NearCacheStatelessTicketCache implements StatelessTicketCache, TicketInvalidationListener {
+
+	private Logger logger = LoggerFactory.getLogger(NearCacheStatelessTicketCache.class);
+
+	private final StatelessTicketCache delegate;
+	private final Map<String, CachedToken> entries = new LinkedHashMap<String, CachedToken>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedToken> eldest) {
+			return size() > maxSize;
+		}
+	};
+	private int maxSize = 10000;
+	private long timeToLiveMillis = 30000;
+	private long invalidations;
+	private RedisPubSubTicketInvalidator invalidator;
+
+	/**
+	 * Creates a new instance
+	 *
+	 * @param delegate
+	 *            The cache that holds the authoritative copy of every ticket
+	 */
+	public NearCacheStatelessTicketCache(StatelessTicketCache delegate) {
+		if (delegate == null) {
+			throw new NullPointerException("Expected given delegate to be not null");
+		}
+		this.delegate = delegate;
+	}
+
+	@Override
+	public CasAuthenticationToken getByTicketId(String serviceTicket) {
+		if (serviceTicket == null) {
+			throw new NullPointerException("Expected given serviceTicket to be not null");
+		}
+		long generation;
+		synchronized (entries) {
+			CachedToken cached = entries.get(serviceTicket);
+			if (cached != null) {
+				if (cached.expiresAt > currentTimeMillis()) {
+					logger.debug("Near cache hit: {}", serviceTicket);
+					return cached.token;
+				}
+				entries.remove(serviceTicket);
+			}
+			generation = invalidations;
+		}
+		CasAuthenticationToken token = delegate.getByTicketId(serviceTicket);
+		if (token != null) {
+			synchronized (entries) {
+				// An invalidation that arrived while we were reading may refer to what we just read
+				if (generation == invalidations) {
+					store(serviceTicket, token);
+				}
+			}
+		}
+		return token;
+	}
+
+	@Override
+	public void putTicketInCache(CasAuthenticationToken token) {
+		if (token == null) {
+			throw new NullPointerException("Expected given token to be not null");
+		}
+		String serviceTicket = token.getCredentials().toString();
+		boolean unchanged;
+		synchronized (entries) {
+			CachedToken cached = entries.get(serviceTicket);
+			unchanged = cached != null && cached.expiresAt > currentTimeMillis() && isUnchanged(cached.token, token);
+		}
+		// Written even when unchanged, the put back after every hit restarts the expiration time in the delegate
+		delegate.putTicketInCache(token);
+		if (unchanged) {
+			// CasAuthenticationProvider puts every token it got from the cache back, other nodes have nothing to evict
+			logger.debug("Not publishing unchanged ticket {}", serviceTicket);
+			return;
+		}
+		synchronized (entries) {
+			store(serviceTicket, token);
+		}
+		if (invalidator != null) {
+			invalidator.publish(serviceTicket);
+		}
+	}
+
+	@Override
+	public void removeTicketFromCache(CasAuthenticationToken token) {
+		removeTicketFromCache(token.getCredentials().toString());
+	}
+
+	@Override
+	public void removeTicketFromCache(String serviceTicket) {
+		if (serviceTicket == null) {
+			throw new NullPointerException("Expected given serviceTicket to be not null");
+		}
+		delegate.removeTicketFromCache(serviceTicket);
+		ticketInvalidated(serviceTicket);
+		if (invalidator != null) {
+			invalidator.publish(serviceTicket);
+		}
+	}
+
+	@Override
+	public void ticketInvalidated(String serviceTicket) {
+		synchronized (entries) {
+			invalidations++;
+			entries.remove(serviceTicket);
+		}
+	}
+
+	@Override
+	public void allTicketsInvalidated() {
+		synchronized (entries) {
+			invalidations++;
+			entries.clear();
+		}
+	}
+
+	/**
+	 * @return The number of tickets currently held in memory, including expired ones not yet discarded
+	 */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * Gets the current time. Exists so tests can control time.
+	 *
+	 * @return The current time in milliseconds
+	 */
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	private void store(String serviceTicket, CasAuthenticationToken token) {
+		if (maxSize > 0 && timeToLiveMillis > 0) {
+			entries.put(serviceTicket, new CachedToken(token, currentTimeMillis() + timeToLiveMillis));
+		}
+	}
+
+	private static boolean isUnchanged(CasAuthenticationToken cached, CasAuthenticationToken token) {
+		// CasAuthenticationToken compares the assertion by identity, so equal tokens are valid for as long
+		return cached == token || cached.equals(token);
+	}
+
+	private static final class CachedToken {
+		private final CasAuthenticationToken token;
+		private final long expiresAt;
+
+		private CachedToken(CasAuthenticationToken token, long expiresAt) {
+			this.token = token;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	public Logger getLogger() {
+		return logger;
+	}
+
+	public void setLogger(Logger logger) {
+		this.logger = logger;
+	}
+
+	/**
+	 * Gets the cache that holds the authoritative copy of every ticket
+	 *
+	 * @return The cache that holds the authoritative copy of every ticket
+	 */
+	public StatelessTicketCache getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * Gets the maximum number of tickets held in memory
+	 *
+	 * @return The maximum number of tickets held in memory
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Sets the maximum number of tickets held in memory. The least recently used tickets are evicted first.
+	 *
+	 * @param maxSize
+	 *            The maximum number of tickets held in memory
+	 */
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Gets the number of milliseconds a ticket is held in memory before it is read from the delegate again
+	 *
+	 * @return The number of milliseconds a ticket is held in memory before it is read from the delegate again
+	 */
+	public long getTimeToLiveMillis() {
+		return timeToLiveMillis;
+	}
+
+	/**
+	 * Sets the number of milliseconds a ticket is held in memory before it is read from the delegate again. This bounds
+	 * how long a stale ticket can be served if an invalidation is lost.
+	 *
+	 * @param timeToLiveMillis
+	 *            The number of milliseconds a ticket is held in memory before it is read from the delegate again
+	 */
+	public void setTimeToLiveMillis(long timeToLiveMillis) {
+		this.timeToLiveMillis = timeToLiveMillis;
+	}
+
+	/**
+	 * Gets the invalidator used to propagate ticket changes between nodes
+	 *
+	 * @return The invalidator used to propagate ticket changes between nodes, or null if there is none
+	 */
+	public RedisPubSubTicketInvalidator getInvalidator() {
+		return invalidator;
+	}
+
+	/**
+	 * Sets the invalidator used to propagate ticket changes between nodes and registers this cache as one of its
+	 * listeners. The invalidator still has to be started.
+	 *
+	 * @param invalidator
+	 *            The invalidator used to propagate ticket changes between nodes
+	 */
+	public void setInvalidator(RedisPubSubTicketInvalidator invalidator) {
+		if (this.invalidator != null) {
+			this.invalidator.removeListener(this);
+		}
+		this.invalidator = invalidator;
+		if (invalidator != null) {
+			invalidator.addListener(this);
+		}
+	}
+}
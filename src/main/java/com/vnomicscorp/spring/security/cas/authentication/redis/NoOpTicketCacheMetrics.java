@@ -0,0 +1,66 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+/**
+ * {@link TicketCacheMetrics} that discard every measurement, see {@link TicketCacheMetrics#NONE}
+ */
+final class NoOpTicketCacheMetrics implements TicketCacheMetrics {
+
+	@Override
+	public void recordPoolWait(long nanos) {
+	}
+
+	@Override
+	public void recordCommand(Operation operation, long nanos) {
+	}
+
+	@Override
+	public void recordError(Operation operation) {
+	}
+
+	@Override
+	public void recordLookup(boolean hit) {
+	}
+
+	@Override
+	public void recordSerialize(long nanos, int bytes) {
+	}
+
+	@Override
+	public void recordDeserialize(long nanos, int bytes) {
+	}
+
+	@Override
+	public void recordFilterLookup(boolean skipped) {
+	}
+
+	@Override
+	public void recordRejection() {
+	}
+
+	@Override
+	public void recordFilterFalsePositive() {
+	}
+
+	@Override
+	public void recordShortCircuit(Operation operation) {
+	}
+
+	@Override
+	public void recordCircuitTransition(CircuitBreakerStatelessTicketCache.State state) {
+	}
+}
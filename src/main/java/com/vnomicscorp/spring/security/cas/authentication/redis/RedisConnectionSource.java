@@ -0,0 +1,53 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.util.Collection;
+
+import redis.clients.jedis.JedisPool;
+
+/**
+ * Provides the connection pool of the Redis node that owns a key. Lets the ticket caches run against a single Redis
+ * server, a Redis Cluster or a client side sharded set of servers alike.
+ * <p>
+ * Keys containing a hash tag, a non-empty part between the first <code>{</code> and the next <code>}</code>, are placed
+ * by the tag alone, so keys sharing a tag are always served by the same node as in Redis Cluster. A ticket's own key
+ * and <code>{ticket}suffix</code> keys derived from it therefore land on the same node and may be used together in one
+ * pipeline or transaction.
+ */
+public interface RedisConnectionSource {
+
+	/**
+	 * Gets the pool of the node that owns the given key
+	 *
+	 * @param key
+	 *            The key
+	 * @return The pool of the node that owns the key
+	 */
+	JedisPool getPool(byte[] key);
+
+	/**
+	 * Gets the pools of every node
+	 *
+	 * @return The pools of every node
+	 */
+	Collection<JedisPool> getPools();
+
+	/**
+	 * Called when a node answered that a key has moved to another node, so the key to node mapping can be reloaded
+	 */
+	void refresh();
+}
@@ -0,0 +1,305 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Propagates service ticket invalidations between nodes using Redis pub/sub. Every node publishes the tickets it
+ * changes or removes on a shared channel and a background subscriber notifies the registered
+ * {@link TicketInvalidationListener}s of tickets changed by other nodes.
+ * <p>
+ * The subscriber holds one connection for as long as it is running. It takes it from the pool used to publish unless a
+ * separate subscriber pool is given, in which case the publishing pool needs no room for it. Call {@link #start()}
+ * once at startup and {@link #stop()} at shutdown.
+ */
+public class RedisPubSubTicketInvalidator {
+
+	/**
+	 * The channel used when none is configured
+	 */
+	public static final String DEFAULT_CHANNEL = "cas:ticket-invalidation";
+
+	private static final char SEPARATOR = ' ';
+
+	private Logger logger = LoggerFactory.getLogger(RedisPubSubTicketInvalidator.class);
+
+	private final JedisPool jedisPool;
+	private final JedisPool subscriberJedisPool;
+	private final String instanceId = UUID.randomUUID().toString();
+	private final List<TicketInvalidationListener> listeners = new CopyOnWriteArrayList<TicketInvalidationListener>();
+	private String channel = DEFAULT_CHANNEL;
+	private long reconnectDelayMillis = 1000;
+
+	private volatile boolean running;
+	private volatile JedisPubSub subscriber;
+	private Thread subscriberThread;
+
+	/**
+	 * Creates a new instance
+	 *
+	 * @param jedisPool
+	 *            The pool to get instances of {@link redis.clients.jedis.Jedis} from
+	 */
+	public RedisPubSubTicketInvalidator(JedisPool jedisPool) {
+		this(jedisPool, jedisPool);
+	}
+
+	/**
+	 * Creates a new instance subscribing with a connection of its own
+	 *
+	 * @param jedisPool
+	 *            The pool to get instances of {@link redis.clients.jedis.Jedis} to publish with from
+	 * @param subscriberJedisPool
+	 *            The pool to get the instance of {@link redis.clients.jedis.Jedis} the subscriber holds from, which
+	 *            must connect to the same server
+	 */
+	public RedisPubSubTicketInvalidator(JedisPool jedisPool, JedisPool subscriberJedisPool) {
+		if (jedisPool == null) {
+			throw new NullPointerException("Expected given jedisPool to be not null");
+		}
+		if (subscriberJedisPool == null) {
+			throw new NullPointerException("Expected given subscriberJedisPool to be not null");
+		}
+		this.jedisPool = jedisPool;
+		this.subscriberJedisPool = subscriberJedisPool;
+	}
+
+	/**
+	 * Registers a listener that is notified of tickets invalidated by other nodes
+	 *
+	 * @param listener
+	 *            The listener to notify
+	 */
+	public void addListener(TicketInvalidationListener listener) {
+		if (listener == null) {
+			throw new NullPointerException("Expected given listener to be not null");
+		}
+		listeners.add(listener);
+	}
+
+	/**
+	 * Unregisters a listener previously registered with {@link #addListener(TicketInvalidationListener)}
+	 *
+	 * @param listener
+	 *            The listener to remove
+	 */
+	public void removeListener(TicketInvalidationListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Tells every other node that the given service ticket was changed or removed
+	 *
+	 * @param serviceTicket
+	 *            The service ticket that was changed or removed
+	 */
+	public void publish(String serviceTicket) {
+		if (serviceTicket == null) {
+			throw new NullPointerException("Expected given serviceTicket to be not null");
+		}
+		Jedis jedis = null;
+		try {
+			jedis = jedisPool.getResource();
+			logger.debug("Publishing invalidation: {}", serviceTicket);
+			jedis.publish(channel, instanceId + SEPARATOR + serviceTicket);
+		} finally {
+			if (jedis != null) {
+				jedis.close();
+			}
+		}
+	}
+
+	/**
+	 * Starts the background subscriber. Does nothing if it is already running.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		subscriberThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				subscribeUntilStopped();
+			}
+		}, "redis-ticket-invalidation");
+		subscriberThread.setDaemon(true);
+		subscriberThread.start();
+	}
+
+	/**
+	 * Stops the background subscriber and waits for it to release its connection
+	 *
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for the subscriber to stop
+	 */
+	public synchronized void stop() throws InterruptedException {
+		if (!running) {
+			return;
+		}
+		running = false;
+		JedisPubSub current = subscriber;
+		if (current != null && current.isSubscribed()) {
+			current.unsubscribe();
+		}
+		subscriberThread.interrupt();
+		subscriberThread.join(reconnectDelayMillis * 2);
+		subscriberThread = null;
+	}
+
+	/**
+	 * @return Whether the background subscriber is running
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	private void subscribeUntilStopped() {
+		while (running) {
+			Jedis jedis = null;
+			try {
+				jedis = subscriberJedisPool.getResource();
+				subscriber = new InvalidationSubscriber();
+				jedis.subscribe(subscriber, channel);
+			} catch (JedisException e) {
+				if (running) {
+					logger.warn("Lost ticket invalidation subscription, retrying in {}ms", reconnectDelayMillis, e);
+				}
+			} finally {
+				subscriber = null;
+				if (jedis != null) {
+					jedis.close();
+				}
+			}
+			if (running) {
+				try {
+					Thread.sleep(reconnectDelayMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	void dispatch(String message) {
+		int separator = message.indexOf(SEPARATOR);
+		if (separator < 0) {
+			logger.warn("Ignoring malformed ticket invalidation message: {}", message);
+			return;
+		}
+		if (separator == instanceId.length() && message.startsWith(instanceId)) {
+			// Our own invalidation, already applied locally
+			return;
+		}
+		String serviceTicket = message.substring(separator + 1);
+		logger.debug("Received invalidation: {}", serviceTicket);
+		for (TicketInvalidationListener listener : listeners) {
+			listener.ticketInvalidated(serviceTicket);
+		}
+	}
+
+	private void dispatchAll() {
+		for (TicketInvalidationListener listener : listeners) {
+			listener.allTicketsInvalidated();
+		}
+	}
+
+	private class InvalidationSubscriber extends JedisPubSub {
+		@Override
+		public void onSubscribe(String channel, int subscribedChannels) {
+			if (!running) {
+				// stop() raced with the subscription being established
+				unsubscribe();
+				return;
+			}
+			// Anything published while we were not subscribed was missed
+			dispatchAll();
+		}
+
+		@Override
+		public void onMessage(String channel, String message) {
+			dispatch(message);
+		}
+	}
+
+	public Logger getLogger() {
+		return logger;
+	}
+
+	public void setLogger(Logger logger) {
+		this.logger = logger;
+	}
+
+	/**
+	 * Gets the pool the subscriber takes its connection from
+	 *
+	 * @return The pool the subscriber takes its connection from
+	 */
+	public JedisPool getSubscriberJedisPool() {
+		return subscriberJedisPool;
+	}
+
+	/**
+	 * Gets the pub/sub channel that invalidations are published on
+	 *
+	 * @return The pub/sub channel that invalidations are published on
+	 */
+	public String getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Sets the pub/sub channel that invalidations are published on. Every node sharing a cache must use the same
+	 * channel. Must be set before {@link #start()}.
+	 *
+	 * @param channel
+	 *            The pub/sub channel that invalidations are published on
+	 */
+	public void setChannel(String channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Gets the number of milliseconds to wait before resubscribing after the subscription is lost
+	 *
+	 * @return The number of milliseconds to wait before resubscribing after the subscription is lost
+	 */
+	public long getReconnectDelayMillis() {
+		return reconnectDelayMillis;
+	}
+
+	/**
+	 * Sets the number of milliseconds to wait before resubscribing after the subscription is lost
+	 *
+	 * @param reconnectDelayMillis
+	 *            The number of milliseconds to wait before resubscribing after the subscription is lost
+	 */
+	public void setReconnectDelayMillis(long reconnectDelayMillis) {
+		this.reconnectDelayMillis = reconnectDelayMillis;
+	}
+}
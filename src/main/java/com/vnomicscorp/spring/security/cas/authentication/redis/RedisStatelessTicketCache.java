@@ -15,6 +15,20 @@
  */
 package com.vnomicscorp.spring.security.cas.authentication.redis;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.jasig.cas.client.validation.Assertion;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.security.cas.authentication.CasAuthenticationToken;
@@ -22,22 +36,72 @@ import org.springframework.security.cas.authentication.StatelessTicketCache;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.Transaction;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.exceptions.JedisMovedDataException;
+import redis.clients.jedis.params.SetParams;
+import redis.clients.jedis.util.SafeEncoder;
+
+import com.vnomicscorp.spring.security.cas.authentication.redis.TicketCacheMetrics.Operation;
 
 /**
  * An implementation of {@link org.springframework.security.cas.authentication.StatelessTicketCache} that uses Redis for
  * a cache. Uses the Jedis Java Redis client.
+ * <p>
+ * Runs against a single Redis server, a Redis Cluster or a client side sharded set of servers depending on the given
+ * {@link RedisConnectionSource}.
+ * <p>
+ * The keys tickets are stored under are decided by the {@link TicketKeyStrategy}. Tickets packed into buckets are
+ * stored in one Redis hash per bucket and generation, a generation spanning {@link #setExpirationSeconds(Integer)
+ * expirationSeconds}. A ticket is written to the current generation and looked up in the current and the previous
+ * one with a single pipeline. Every generation expires once the tickets written to it can no longer be valid, and each
+ * ticket is stored with its own expiration time so expired tickets are misses even while their generation lives.
+ * <p>
+ * With {@link #setSlidingExpiration(boolean) sliding expiration} a lookup restarts the expiration time of the ticket
+ * it finds, sending the EXPIRE in the same pipeline as the GET. Each node refreshes a ticket at most once per
+ * {@link #setRefreshIntervalSeconds(int) refreshIntervalSeconds}, so hot tickets do not cost an EXPIRE per lookup.
+ * Tickets are never kept beyond the valid until date of their assertion.
+ * <p>
+ * {@link #getByTicketIds(Collection)} and {@link #removeTicketsFromCache(Collection)} handle many tickets with one
+ * pipeline per batch of {@link #setBulkBatchSize(int) bulkBatchSize} commands and node. With
+ * {@link #setIndexedByPrincipal(boolean) indexedByPrincipal} every put also records the ticket in a sorted set per
+ * principal, scored by its expiration time, so {@link #removeTicketsByPrincipal(String)} can invalidate every ticket
+ * of a user at once.
+ * <p>
+ * With a {@link VersionedCasAuthenticationTokenSerializer} and {@link #setRewritingOutdatedEntries(boolean)
+ * rewritingOutdatedEntries} set, entries found in a format other than the preferred one are rewritten in it. Tokens
+ * rejected by the {@link TokenDeserializationFilter} of the serializer are misses.
  * 
  * @author Samuel Nelson
  *
  */
 public class RedisStatelessTicketCache implements StatelessTicketCache {
 
+	private static final int REFRESH_SLOTS = 8192;
+	// Replaces an entry only if it is unchanged, keeping its remaining time to live
+	private static final byte[] REWRITE_SCRIPT = SafeEncoder.encode("if redis.call('GET', KEYS[1]) ~= ARGV[1] then "
+		+ "return 0 end local ttl = redis.call('PTTL', KEYS[1]) if ttl > 0 then "
+		+ "redis.call('SET', KEYS[1], ARGV[2], 'PX', ttl) else redis.call('SET', KEYS[1], ARGV[2]) end return 1");
+
 	private Logger logger = LoggerFactory.getLogger(RedisStatelessTicketCache.class);
 
-	private final JedisPool jedisPool;
-	private CasAuthenticationTokenSerializer casAuthenticationTokenSerializer = new DefaultCasAuthenticationTokenSerializer();
+	private final RedisConnectionSource connectionSource;
+	private BinaryCasAuthenticationTokenSerializer binaryCasAuthenticationTokenSerializer = new StringCasAuthenticationTokenSerializerAdapter(
+		new DefaultCasAuthenticationTokenSerializer());
 	private Integer expirationSeconds = -1;
+	private boolean onlyPutIfAbsent;
+	private boolean expireAtAssertionValidUntil;
+	private int maxRedirections = 5;
+	private TicketCacheMetrics metrics = TicketCacheMetrics.NONE;
+	private TicketKeyStrategy keyStrategy = new TicketKeyStrategy();
+	private boolean slidingExpiration;
+	private int refreshIntervalSeconds = 60;
+	private boolean indexedByPrincipal;
+	private int bulkBatchSize = 100;
+	private boolean rewritingOutdatedEntries;
+	// The hash of a ticket in the high half, the second it was last refreshed in the low half
+	private final AtomicLongArray refreshedAt = new AtomicLongArray(REFRESH_SLOTS);
 
 	/**
 	 * Creates a new instance
@@ -46,7 +110,20 @@ public class RedisStatelessTicketCache implements StatelessTicketCache {
 	 *            The pool to get instances of {@link redis.clients.jedis.Jedis} from
 	 */
 	public RedisStatelessTicketCache(JedisPool jedisPool) {
-		this.jedisPool = jedisPool;
+		this(new SingleRedisConnectionSource(jedisPool));
+	}
+
+	/**
+	 * Creates a new instance
+	 * 
+	 * @param connectionSource
+	 *            The source of the pool serving each key
+	 */
+	public RedisStatelessTicketCache(RedisConnectionSource connectionSource) {
+		if (connectionSource == null) {
+			throw new NullPointerException("Expected given connectionSource to be not null");
+		}
+		this.connectionSource = connectionSource;
 	}
 
 	@Override
@@ -54,18 +131,47 @@ public class RedisStatelessTicketCache implements StatelessTicketCache {
 		if (serviceTicket == null) {
 			throw new NullPointerException("Expected given serviceTicket to be not null");
 		}
-		Jedis jedis = null;
+		final byte[] key = toKey(serviceTicket);
+		final boolean refresh = shouldRefresh(serviceTicket);
+		byte[] serialized = execute(Operation.GET, key, jedis -> read(jedis, serviceTicket, key, refresh));
+		logger.debug("Cache hit: {}; service ticket: {}", serialized != null, serviceTicket);
+		if (serialized == null) {
+			metrics.recordLookup(false);
+			return null;
+		}
+		return found(serviceTicket, key, serialized, refresh);
+	}
+
+	/**
+	 * Handles the stored bytes of a ticket read elsewhere, such as on a replica, as a hit of
+	 * {@link #getByTicketId(String)}: the hit is recorded, the expiration time restarted on this cache's nodes and
+	 * an outdated entry rewritten, as configured
+	 * 
+	 * @param serviceTicket
+	 *            The service ticket
+	 * @param serialized
+	 *            The stored bytes, read without restarting the expiration time of the ticket
+	 * @return The cached token, or null if it was rejected or its assertion is no longer valid
+	 */
+	CasAuthenticationToken handleHit(String serviceTicket, byte[] serialized) {
+		final byte[] key = toKey(serviceTicket);
+		final boolean refresh = shouldRefresh(serviceTicket);
+		if (refresh) {
+			execute(Operation.GET, key, jedis -> jedis.expire(key, expirationSeconds));
+		}
+		return found(serviceTicket, key, serialized, refresh);
+	}
+
+	private CasAuthenticationToken found(String serviceTicket, byte[] key, byte[] serialized, boolean refresh) {
+		metrics.recordLookup(true);
 		try {
-			jedis = jedisPool.getResource();
-			String serialized = jedis.get(serviceTicket);
-			logger.debug("Cache hit: {}; service ticket: {}", serialized != null, serviceTicket);
-			return serialized == null ? null : casAuthenticationTokenSerializer.deserialize(serialized);
+			return rewriteIfOutdated(slide(deserialize(serialized), key, refresh), key, serialized);
+		} catch (CasAuthenticationTokenRejectedException e) {
+			recordRejection(serviceTicket, e);
+			return null;
 		} catch (CasAuthenticationTokenSerializerException e) {
-			throw new RuntimeException("Exception encountered while serializing CasAuthenticationToken", e);
-		} finally {
-			if (jedis != null) {
-				jedis.close();
-			}
+			metrics.recordError(Operation.GET);
+			throw new RuntimeException("Exception encountered while deserializing CasAuthenticationToken", e);
 		}
 	}
 
@@ -74,25 +180,509 @@ public class RedisStatelessTicketCache implements StatelessTicketCache {
 		if (token == null) {
 			throw new NullPointerException("Expected given token to be not null");
 		}
-		Jedis jedis = null;
+		String serviceTicket = token.getCredentials().toString();
+		if (indexedByPrincipal) {
+			principalIndexMillis();
+		}
+		SetParams params = createSetParams(token);
+		if (params == null) {
+			logger.debug("Cache put skipped, assertion no longer valid: {}", serviceTicket);
+			return;
+		}
+		final byte[] serialized;
 		try {
-			jedis = jedisPool.getResource();
-			String serialized = casAuthenticationTokenSerializer.serialize(token);
-			String key = token.getCredentials().toString();
-			logger.debug("Cache put: {}", key);
-			Transaction transaction = jedis.multi();
-			transaction.set(key, serialized);
-			if (expirationSeconds != -1) {
-				transaction.expire(key, expirationSeconds);
-			}
-			transaction.exec();
+			serialized = serialize(token);
 		} catch (CasAuthenticationTokenSerializerException e) {
-			throw new RuntimeException("Exception encountered while deserializing CasAuthenticationToken", e);
-		} finally {
-			if (jedis != null) {
-				jedis.close();
+			metrics.recordError(Operation.PUT);
+			throw new RuntimeException("Exception encountered while serializing CasAuthenticationToken", e);
+		}
+		final byte[] key = toKey(serviceTicket);
+		logger.debug("Cache put: {}", serviceTicket);
+		// A single SET with options is atomic, no MULTI/EXPIRE/EXEC needed
+		if (!execute(Operation.PUT, key, jedis -> write(jedis, serviceTicket, key, serialized, params))) {
+			logger.debug("Cache put skipped, already cached: {}", serviceTicket);
+			return;
+		}
+		if (slidingExpiration) {
+			// Just got its full expiration time
+			markRefreshed(serviceTicket);
+		}
+		if (indexedByPrincipal) {
+			index(token, currentTimeMillis() + expirationMillis(params));
+		}
+	}
+
+	/**
+	 * Looks up many tickets at once, with one pipeline per batch of {@link #setBulkBatchSize(int) bulkBatchSize}
+	 * lookups and node instead of a round trip per ticket
+	 * 
+	 * @param serviceTickets
+	 *            The service tickets
+	 * @return The cached tokens by service ticket, in the order given, leaving out the tickets that are not cached
+	 */
+	public Map<String, CasAuthenticationToken> getByTicketIds(Collection<String> serviceTickets) {
+		if (serviceTickets == null) {
+			throw new NullPointerException("Expected given serviceTickets to be not null");
+		}
+		List<Lookup> lookups = new ArrayList<Lookup>(serviceTickets.size());
+		for (String serviceTicket : new LinkedHashSet<String>(serviceTickets)) {
+			if (serviceTicket == null) {
+				throw new NullPointerException("Expected given serviceTickets to not contain null");
+			}
+			lookups.add(new Lookup(serviceTicket, toKey(serviceTicket), shouldRefresh(serviceTicket)));
+		}
+		executeBulk(Operation.GET, lookups, lookup -> lookup.key, (pipeline, lookup) -> {
+			Supplier<byte[]> result = read(pipeline, lookup.serviceTicket, lookup.key, lookup.refresh);
+			return () -> lookup.serialized = result.get();
+		});
+		Map<String, CasAuthenticationToken> tokens = new LinkedHashMap<String, CasAuthenticationToken>();
+		for (Lookup lookup : lookups) {
+			metrics.recordLookup(lookup.serialized != null);
+			if (lookup.serialized == null) {
+				continue;
+			}
+			CasAuthenticationToken token;
+			try {
+				token = rewriteIfOutdated(slide(deserialize(lookup.serialized), lookup.key, lookup.refresh),
+					lookup.key, lookup.serialized);
+			} catch (CasAuthenticationTokenRejectedException e) {
+				recordRejection(lookup.serviceTicket, e);
+				continue;
+			} catch (CasAuthenticationTokenSerializerException e) {
+				metrics.recordError(Operation.GET);
+				throw new RuntimeException("Exception encountered while deserializing CasAuthenticationToken", e);
+			}
+			if (token != null) {
+				tokens.put(lookup.serviceTicket, token);
+			}
+		}
+		logger.debug("Cache bulk lookup of {} tickets, {} hits", lookups.size(), tokens.size());
+		return tokens;
+	}
+
+	/**
+	 * Removes many tickets at once, with one pipeline per batch of {@link #setBulkBatchSize(int) bulkBatchSize}
+	 * removes and node. Tickets with their own key are removed with UNLINK, which requires Redis 4, so Redis frees
+	 * their memory off its main thread.
+	 * 
+	 * @param serviceTickets
+	 *            The service tickets
+	 */
+	public void removeTicketsFromCache(Collection<String> serviceTickets) {
+		if (serviceTickets == null) {
+			throw new NullPointerException("Expected given serviceTickets to be not null");
+		}
+		List<byte[]> fields = new ArrayList<byte[]>(serviceTickets.size());
+		for (String serviceTicket : new LinkedHashSet<String>(serviceTickets)) {
+			if (serviceTicket == null) {
+				throw new NullPointerException("Expected given serviceTickets to not contain null");
 			}
+			fields.add(keyStrategy.toField(serviceTicket));
 		}
+		logger.debug("Cache bulk remove of {} tickets", fields.size());
+		unlink(fields);
+	}
+
+	/**
+	 * Removes every cached ticket of a principal, as recorded in the index kept with
+	 * {@link #setIndexedByPrincipal(boolean) indexedByPrincipal}. The index is read and emptied in batches of
+	 * {@link #setBulkBatchSize(int) bulkBatchSize} tickets, each removed as by
+	 * {@link #removeTicketsFromCache(Collection)}. Tickets put while this runs are removed as well.
+	 * 
+	 * @param principal
+	 *            The name of the principal
+	 * @return The number of index entries removed, including those of tickets that had already expired
+	 */
+	public long removeTicketsByPrincipal(String principal) {
+		if (principal == null) {
+			throw new NullPointerException("Expected given principal to be not null");
+		}
+		if (!indexedByPrincipal) {
+			throw new IllegalStateException("Expected tickets to be indexed by principal");
+		}
+		final byte[] indexKey = keyStrategy.toPrincipalKey(principal);
+		long removed = 0;
+		for (;;) {
+			Set<byte[]> indexed = execute(Operation.REMOVE, indexKey, jedis -> jedis.zrange(indexKey, 0,
+				bulkBatchSize - 1));
+			if (indexed == null || indexed.isEmpty()) {
+				break;
+			}
+			List<byte[]> fields = new ArrayList<byte[]>(indexed);
+			unlink(fields);
+			// Only drops the entries just removed, Redis deletes the index once it is empty
+			execute(Operation.REMOVE, indexKey, jedis -> jedis.zrem(indexKey, fields.toArray(new byte[0][])));
+			removed += fields.size();
+		}
+		logger.debug("Cache remove of {} tickets of principal {}", removed, principal);
+		return removed;
+	}
+
+	/**
+	 * Records a ticket in the index of its principal
+	 * 
+	 * @param token
+	 *            The token of the ticket
+	 * @param expiresAt
+	 *            The time the ticket expires at
+	 */
+	private void index(CasAuthenticationToken token, long expiresAt) {
+		final byte[] indexKey = keyStrategy.toPrincipalKey(token.getName());
+		final byte[] field = keyStrategy.toField(token.getCredentials().toString());
+		final long now = currentTimeMillis();
+		final long indexMillis = principalIndexMillis();
+		execute(Operation.PUT, indexKey, jedis -> {
+			Pipeline pipeline = jedis.pipelined();
+			// Drops the tickets that expired meanwhile so the index of a busy principal stays small
+			pipeline.zremrangeByScore(indexKey, 0, now);
+			pipeline.zadd(indexKey, expiresAt, field);
+			// No ticket of the principal lives longer than expirationSeconds from now
+			pipeline.pexpire(indexKey, indexMillis);
+			pipeline.sync();
+			return null;
+		});
+	}
+
+	private void unlink(List<byte[]> fields) {
+		executeBulk(Operation.REMOVE, fields, this::toKeyOfField, (pipeline, field) -> unlink(pipeline, field)::get);
+	}
+
+	/**
+	 * Decides whether a lookup of a ticket restarts its expiration time, and if so counts it as refreshed now
+	 * 
+	 * @param serviceTicket
+	 *            The service ticket being looked up
+	 * @return Whether to refresh the expiration time of the ticket
+	 */
+	boolean shouldRefresh(String serviceTicket) {
+		if (!slidingExpiration) {
+			return false;
+		}
+		if (keyStrategy.isBucketed()) {
+			throw new IllegalStateException("Sliding expiration is not supported for tickets packed into buckets");
+		}
+		if (expirationSeconds == null || expirationSeconds == -1) {
+			throw new IllegalStateException("Expected expirationSeconds to be set for sliding expiration");
+		}
+		int hash = serviceTicket.hashCode();
+		long previous = refreshedAt.get(hash & REFRESH_SLOTS - 1);
+		// Another ticket sharing the slot never suppresses a refresh, it only causes an extra one
+		if ((int) (previous >>> 32) == hash
+			&& currentTimeMillis() / 1000 - (previous & 0xFFFFFFFFL) < refreshIntervalSeconds) {
+			return false;
+		}
+		markRefreshed(serviceTicket);
+		return true;
+	}
+
+	private void markRefreshed(String serviceTicket) {
+		int hash = serviceTicket.hashCode();
+		refreshedAt.set(hash & REFRESH_SLOTS - 1, (long) hash << 32 | currentTimeMillis() / 1000 & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Applies sliding expiration to a found token. Treats a token whose assertion is no longer valid as a miss and
+	 * lowers an expiration time a refresh moved beyond the valid until date of the assertion.
+	 * 
+	 * @param token
+	 *            The found token
+	 * @param key
+	 *            The key of the ticket from {@link #toKey(String)}
+	 * @param refreshed
+	 *            Whether the lookup refreshed the expiration time of the ticket
+	 * @return The token, or null if its assertion is no longer valid
+	 */
+	CasAuthenticationToken slide(CasAuthenticationToken token, byte[] key, boolean refreshed) {
+		if (!slidingExpiration || token == null) {
+			return token;
+		}
+		Assertion assertion = token.getAssertion();
+		Date validUntil = assertion == null ? null : assertion.getValidUntilDate();
+		long expiresAt = currentTimeMillis() + expirationSeconds * 1000L;
+		if (validUntil != null) {
+			long remainingMillis = validUntil.getTime() - currentTimeMillis();
+			if (remainingMillis <= 0) {
+				logger.debug("Cache hit ignored, assertion no longer valid: {}", token.getCredentials());
+				execute(Operation.REMOVE, key, jedis -> jedis.del(key));
+				return null;
+			}
+			if (refreshed && remainingMillis < expirationSeconds * 1000L) {
+				execute(Operation.GET, key, jedis -> jedis.pexpireAt(key, validUntil.getTime()));
+				expiresAt = validUntil.getTime();
+			}
+		}
+		if (refreshed && indexedByPrincipal) {
+			// Keeps the index entry from being dropped before the ticket expires
+			index(token, expiresAt);
+		}
+		return token;
+	}
+
+	/**
+	 * Records a cached token rejected by a {@link TokenDeserializationFilter}, which is then treated as a miss
+	 * 
+	 * @param serviceTicket
+	 *            The service ticket
+	 * @param e
+	 *            The rejection
+	 */
+	void recordRejection(String serviceTicket, CasAuthenticationTokenRejectedException e) {
+		metrics.recordRejection();
+		// Without the stack trace, a planted payload is rejected on every lookup
+		logger.warn("Cached token rejected, treated as a miss: {}; {}", serviceTicket, e.getMessage());
+	}
+
+	/**
+	 * Rewrites a found entry in the preferred format of a {@link VersionedCasAuthenticationTokenSerializer} if
+	 * {@link #setRewritingOutdatedEntries(boolean) rewritingOutdatedEntries} is set and the entry is in another
+	 * format. The entry keeps its remaining time to live and is left alone if it changed since it was read. Failures
+	 * are logged, the entry is then rewritten by a later lookup.
+	 * 
+	 * @param token
+	 *            The found token
+	 * @param key
+	 *            The key of the ticket from {@link #toKey(String)}
+	 * @param serialized
+	 *            The entry the token was read from
+	 * @return The token
+	 */
+	CasAuthenticationToken rewriteIfOutdated(CasAuthenticationToken token, byte[] key, byte[] serialized) {
+		// Tickets in buckets move to the preferred format as their generation expires
+		if (!rewritingOutdatedEntries || token == null || keyStrategy.isBucketed()
+			|| !(binaryCasAuthenticationTokenSerializer instanceof VersionedCasAuthenticationTokenSerializer)
+			|| !((VersionedCasAuthenticationTokenSerializer) binaryCasAuthenticationTokenSerializer)
+				.isOutdated(serialized)) {
+			return token;
+		}
+		try {
+			byte[] rewritten = serialize(token);
+			Object replaced = execute(Operation.PUT, key, jedis -> jedis.eval(REWRITE_SCRIPT, 1, key, serialized,
+				rewritten));
+			logger.debug("Cache entry rewritten in preferred format: {}; service ticket: {}",
+				Long.valueOf(1).equals(replaced), token.getCredentials());
+		} catch (CasAuthenticationTokenSerializerException | JedisException e) {
+			logger.warn("Failed to rewrite cache entry in preferred format: {}", token.getCredentials(), e);
+		}
+		return token;
+	}
+
+	/**
+	 * Creates the Redis key a service ticket is stored under. For tickets packed into buckets this is the key of the
+	 * current generation of its bucket, which lives on the same node as every other generation.
+	 * 
+	 * @param serviceTicket
+	 *            The service ticket
+	 * @return The Redis key
+	 */
+	byte[] toKey(String serviceTicket) {
+		if (keyStrategy.isBucketed()) {
+			return keyStrategy.toBucketKey(keyStrategy.toBucket(serviceTicket), currentTimeMillis()
+				/ generationMillis());
+		}
+		return keyStrategy.toKey(serviceTicket);
+	}
+
+	/**
+	 * Creates the Redis key of a ticket from its field, as {@link #toKey(String)} does from the ticket
+	 * 
+	 * @param field
+	 *            The field of the ticket from {@link TicketKeyStrategy#toField(String)}
+	 * @return The Redis key
+	 */
+	private byte[] toKeyOfField(byte[] field) {
+		if (keyStrategy.isBucketed()) {
+			return keyStrategy.toBucketKey(keyStrategy.toBucketOfField(field), currentTimeMillis()
+				/ generationMillis());
+		}
+		return keyStrategy.toKeyOfField(field);
+	}
+
+	/**
+	 * Reads the stored bytes of a ticket
+	 * 
+	 * @param jedis
+	 *            A connection to the node owning the key
+	 * @param serviceTicket
+	 *            The service ticket
+	 * @param key
+	 *            The key of the ticket from {@link #toKey(String)}
+	 * @param refresh
+	 *            Whether to restart the expiration time of the ticket, from {@link #shouldRefresh(String)}
+	 * @return The stored bytes, or null if the ticket is not cached
+	 */
+	byte[] read(Jedis jedis, String serviceTicket, byte[] key, boolean refresh) {
+		if (!keyStrategy.isBucketed() && !refresh) {
+			return jedis.get(key);
+		}
+		Pipeline pipeline = jedis.pipelined();
+		Supplier<byte[]> result = read(pipeline, serviceTicket, key, refresh);
+		pipeline.sync();
+		return result.get();
+	}
+
+	/**
+	 * Queues the commands reading the stored bytes of a ticket
+	 * 
+	 * @param pipeline
+	 *            A pipeline to the node owning the key
+	 * @param serviceTicket
+	 *            The service ticket
+	 * @param key
+	 *            The key of the ticket from {@link #toKey(String)}
+	 * @param refresh
+	 *            Whether to restart the expiration time of the ticket, from {@link #shouldRefresh(String)}
+	 * @return The stored bytes, or null if the ticket is not cached, once the pipeline is synced
+	 */
+	Supplier<byte[]> read(Pipeline pipeline, String serviceTicket, byte[] key, boolean refresh) {
+		if (!keyStrategy.isBucketed()) {
+			Response<byte[]> response = pipeline.get(key);
+			if (refresh) {
+				// Does nothing if the key does not exist
+				pipeline.expire(key, expirationSeconds);
+			}
+			return response::get;
+		}
+		int bucket = keyStrategy.toBucket(serviceTicket);
+		byte[] field = keyStrategy.toField(serviceTicket);
+		long generation = currentTimeMillis() / generationMillis();
+		Response<byte[]> current = pipeline.hget(keyStrategy.toBucketKey(bucket, generation), field);
+		Response<byte[]> previous = pipeline.hget(keyStrategy.toBucketKey(bucket, generation - 1), field);
+		return () -> {
+			byte[] serialized = unstamp(current.get());
+			return serialized != null ? serialized : unstamp(previous.get());
+		};
+	}
+
+	/**
+	 * Stores the serialized bytes of a ticket
+	 * 
+	 * @param jedis
+	 *            A connection to the node owning the key
+	 * @param serviceTicket
+	 *            The service ticket
+	 * @param key
+	 *            The key of the ticket from {@link #toKey(String)}
+	 * @param serialized
+	 *            The serialized token
+	 * @param params
+	 *            The options from {@link #createSetParams(CasAuthenticationToken)}
+	 * @return Whether the ticket was stored, false if it was already cached and only absent tickets are put
+	 */
+	boolean write(Jedis jedis, String serviceTicket, byte[] key, byte[] serialized, SetParams params) {
+		if (!keyStrategy.isBucketed()) {
+			return jedis.set(key, serialized, params) != null;
+		}
+		Pipeline pipeline = jedis.pipelined();
+		Response<?> response = write(pipeline, serviceTicket, key, serialized, params);
+		pipeline.sync();
+		Object reply = response.get();
+		return !onlyPutIfAbsent || Long.valueOf(1).equals(reply);
+	}
+
+	/**
+	 * Queues the commands storing the serialized bytes of a ticket
+	 * 
+	 * @param pipeline
+	 *            A pipeline to the node owning the key
+	 * @param serviceTicket
+	 *            The service ticket
+	 * @param key
+	 *            The key of the ticket from {@link #toKey(String)}
+	 * @param serialized
+	 *            The serialized token
+	 * @param params
+	 *            The options from {@link #createSetParams(CasAuthenticationToken)}
+	 * @return The response of the command storing the ticket
+	 */
+	Response<?> write(Pipeline pipeline, String serviceTicket, byte[] key, byte[] serialized, SetParams params) {
+		if (!keyStrategy.isBucketed()) {
+			return pipeline.set(key, serialized, params);
+		}
+		long now = currentTimeMillis();
+		long generationMillis = generationMillis();
+		long generation = now / generationMillis;
+		byte[] bucketKey = keyStrategy.toBucketKey(keyStrategy.toBucket(serviceTicket), generation);
+		byte[] field = keyStrategy.toField(serviceTicket);
+		byte[] value = stamp(now + expirationMillis(params), serialized);
+		// Only checks the current generation, a ticket cached in the previous one is replaced
+		Response<Long> response = onlyPutIfAbsent ? pipeline.hsetnx(bucketKey, field, value) : pipeline.hset(
+			bucketKey, field, value);
+		// Every ticket written to this generation expires before the end of the next one
+		pipeline.pexpireAt(bucketKey, (generation + 2) * generationMillis);
+		return response;
+	}
+
+	/**
+	 * Queues the commands removing a ticket
+	 * 
+	 * @param pipeline
+	 *            A pipeline to the node owning the key
+	 * @param serviceTicket
+	 *            The service ticket
+	 * @param key
+	 *            The key of the ticket from {@link #toKey(String)}
+	 * @return The response of the command removing the ticket from the current generation
+	 */
+	Response<?> delete(Pipeline pipeline, String serviceTicket, byte[] key) {
+		if (!keyStrategy.isBucketed()) {
+			return pipeline.del(key);
+		}
+		return deleteFromBucket(pipeline, keyStrategy.toBucket(serviceTicket), keyStrategy.toField(serviceTicket));
+	}
+
+	/**
+	 * Queues the commands removing a ticket, with UNLINK instead of DEL for tickets with their own key
+	 * 
+	 * @param pipeline
+	 *            A pipeline to the node owning the key
+	 * @param field
+	 *            The field of the ticket from {@link TicketKeyStrategy#toField(String)}
+	 * @return The response of the command removing the ticket, from the current generation for buckets
+	 */
+	Response<?> unlink(Pipeline pipeline, byte[] field) {
+		if (!keyStrategy.isBucketed()) {
+			return pipeline.unlink(keyStrategy.toKeyOfField(field));
+		}
+		return deleteFromBucket(pipeline, keyStrategy.toBucketOfField(field), field);
+	}
+
+	private Response<?> deleteFromBucket(Pipeline pipeline, int bucket, byte[] field) {
+		long generation = currentTimeMillis() / generationMillis();
+		Response<Long> response = pipeline.hdel(keyStrategy.toBucketKey(bucket, generation), field);
+		pipeline.hdel(keyStrategy.toBucketKey(bucket, generation - 1), field);
+		return response;
+	}
+
+	/**
+	 * Creates the options of the SET command that stores the given token
+	 * 
+	 * @param token
+	 *            The token being stored
+	 * @return The options, or null if the token must not be stored because its assertion is no longer valid
+	 */
+	SetParams createSetParams(CasAuthenticationToken token) {
+		SetParams params = SetParams.setParams();
+		if (onlyPutIfAbsent) {
+			params.nx();
+		}
+		long expirationMillis = expirationSeconds == -1 ? -1 : expirationSeconds * 1000L;
+		if (expireAtAssertionValidUntil) {
+			Assertion assertion = token.getAssertion();
+			Date validUntil = assertion == null ? null : assertion.getValidUntilDate();
+			if (validUntil != null) {
+				long remainingMillis = validUntil.getTime() - currentTimeMillis();
+				if (remainingMillis <= 0) {
+					return null;
+				}
+				if (expirationMillis == -1 || remainingMillis < expirationMillis) {
+					return params.px(remainingMillis);
+				}
+			}
+		}
+		if (expirationSeconds != -1) {
+			params.ex(expirationSeconds);
+		}
+		return params;
 	}
 
 	@Override
@@ -105,11 +695,135 @@ public class RedisStatelessTicketCache implements StatelessTicketCache {
 		if (serviceTicket == null) {
 			throw new NullPointerException("Expected given serviceTicket to be not null");
 		}
+		final byte[] key = toKey(serviceTicket);
+		logger.debug("Cache remove: {}", serviceTicket);
+		execute(Operation.REMOVE, key, jedis -> {
+			if (!keyStrategy.isBucketed()) {
+				return jedis.del(key);
+			}
+			Pipeline pipeline = jedis.pipelined();
+			delete(pipeline, serviceTicket, key);
+			pipeline.sync();
+			return null;
+		});
+	}
+
+	/**
+	 * Gets the current time. Exists so tests can control time.
+	 * 
+	 * @return The current time in milliseconds
+	 */
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	private long generationMillis() {
+		if (expirationSeconds == null || expirationSeconds == -1) {
+			throw new IllegalStateException("Expected expirationSeconds to be set when tickets are packed into buckets");
+		}
+		return expirationSeconds * 1000L;
+	}
+
+	private long principalIndexMillis() {
+		if (expirationSeconds == null || expirationSeconds == -1) {
+			throw new IllegalStateException("Expected expirationSeconds to be set when tickets are indexed by principal");
+		}
+		return expirationSeconds * 1000L;
+	}
+
+	private static long expirationMillis(SetParams params) {
+		Long px = params.getParam("px");
+		if (px != null) {
+			return px;
+		}
+		Integer ex = params.getParam("ex");
+		return ex * 1000L;
+	}
+
+	private static byte[] stamp(long expiresAt, byte[] serialized) {
+		return ByteBuffer.allocate(8 + serialized.length).putLong(expiresAt).put(serialized).array();
+	}
+
+	private byte[] unstamp(byte[] stamped) {
+		if (stamped == null || stamped.length < 8) {
+			return null;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(stamped);
+		if (buffer.getLong() <= currentTimeMillis()) {
+			return null;
+		}
+		byte[] serialized = new byte[buffer.remaining()];
+		buffer.get(serialized);
+		return serialized;
+	}
+
+	private byte[] serialize(CasAuthenticationToken token) throws CasAuthenticationTokenSerializerException {
+		if (metrics == TicketCacheMetrics.NONE) {
+			return binaryCasAuthenticationTokenSerializer.serialize(token);
+		}
+		long start = System.nanoTime();
+		byte[] serialized = binaryCasAuthenticationTokenSerializer.serialize(token);
+		metrics.recordSerialize(System.nanoTime() - start, serialized.length);
+		return serialized;
+	}
+
+	private CasAuthenticationToken deserialize(byte[] serialized) throws CasAuthenticationTokenSerializerException {
+		if (metrics == TicketCacheMetrics.NONE) {
+			return binaryCasAuthenticationTokenSerializer.deserialize(serialized);
+		}
+		long start = System.nanoTime();
+		CasAuthenticationToken token = binaryCasAuthenticationTokenSerializer.deserialize(serialized);
+		metrics.recordDeserialize(System.nanoTime() - start, serialized.length);
+		return token;
+	}
+
+	/**
+	 * Runs a command on a connection to the node owning the given key. Follows MOVED redirections after reloading the
+	 * key to node mapping, up to {@link #getMaxRedirections()} times.
+	 * 
+	 * @param operation
+	 *            The operation the command belongs to, for metrics
+	 * @param key
+	 *            The key the command works on
+	 * @param command
+	 *            The command
+	 * @return The result of the command
+	 */
+	<T> T execute(Operation operation, byte[] key, RedisCommand<T> command) {
+		for (int redirections = 0;; redirections++) {
+			try {
+				return execute(operation, () -> connectionSource.getPool(key), command);
+			} catch (JedisMovedDataException e) {
+				if (redirections >= maxRedirections) {
+					metrics.recordError(operation);
+					throw e;
+				}
+				logger.debug("Key moved to {}, reloading the key to node mapping", e.getTargetNode());
+				connectionSource.refresh();
+			}
+		}
+	}
+
+	private <T> T execute(Operation operation, Supplier<JedisPool> pool, RedisCommand<T> command) {
 		Jedis jedis = null;
 		try {
-			jedis = jedisPool.getResource();
-			logger.debug("Cache remove: {}", serviceTicket);
-			jedis.del(serviceTicket);
+			if (metrics == TicketCacheMetrics.NONE) {
+				jedis = pool.get().getResource();
+				return command.execute(jedis);
+			}
+			long start = System.nanoTime();
+			jedis = pool.get().getResource();
+			long acquired = System.nanoTime();
+			metrics.recordPoolWait(acquired - start);
+			T result = command.execute(jedis);
+			metrics.recordCommand(operation, System.nanoTime() - acquired);
+			return result;
+		} catch (JedisMovedDataException e) {
+			// Counted by the caller once it gives up following redirections
+			throw e;
+		} catch (RuntimeException e) {
+			metrics.recordError(operation);
+			throw e;
 		} finally {
 			if (jedis != null) {
 				jedis.close();
@@ -117,6 +831,116 @@ public class RedisStatelessTicketCache implements StatelessTicketCache {
 		}
 	}
 
+	/**
+	 * Runs a command for each of many items, with one pipeline per batch of {@link #getBulkBatchSize()} items and
+	 * node. Items whose key moved are retried after reloading the key to node mapping, up to
+	 * {@link #getMaxRedirections()} times.
+	 * 
+	 * @param operation
+	 *            The operation the commands belong to, for metrics
+	 * @param items
+	 *            The items
+	 * @param toKey
+	 *            Gives the key of an item, which decides the node it is sent to
+	 * @param command
+	 *            Queues the commands of one item
+	 */
+	private <T> void executeBulk(Operation operation, List<T> items, Function<T, byte[]> toKey,
+		BulkCommand<T> command) {
+		for (int redirections = 0; !items.isEmpty(); redirections++) {
+			Map<JedisPool, List<T>> itemsByPool = new LinkedHashMap<JedisPool, List<T>>();
+			try {
+				for (T item : items) {
+					itemsByPool.computeIfAbsent(connectionSource.getPool(toKey.apply(item)),
+						pool -> new ArrayList<T>()).add(item);
+				}
+			} catch (RuntimeException e) {
+				metrics.recordError(operation);
+				throw e;
+			}
+			Map<T, JedisMovedDataException> moved = new LinkedHashMap<T, JedisMovedDataException>();
+			for (Map.Entry<JedisPool, List<T>> entry : itemsByPool.entrySet()) {
+				execute(operation, entry::getKey, jedis -> executeBulk(jedis, entry.getValue(), command, moved));
+			}
+			if (moved.isEmpty()) {
+				return;
+			}
+			JedisMovedDataException e = moved.values().iterator().next();
+			if (redirections >= maxRedirections) {
+				metrics.recordError(operation);
+				throw e;
+			}
+			logger.debug("{} keys moved to {} and others, reloading the key to node mapping", moved.size(),
+				e.getTargetNode());
+			connectionSource.refresh();
+			items = new ArrayList<T>(moved.keySet());
+		}
+	}
+
+	private <T> Void executeBulk(Jedis jedis, List<T> items, BulkCommand<T> command,
+		Map<T, JedisMovedDataException> moved) {
+		for (int from = 0; from < items.size(); from += bulkBatchSize) {
+			List<T> batch = items.subList(from, Math.min(items.size(), from + bulkBatchSize));
+			List<Runnable> completions = new ArrayList<Runnable>(batch.size());
+			Pipeline pipeline = jedis.pipelined();
+			for (T item : batch) {
+				completions.add(command.queue(pipeline, item));
+			}
+			pipeline.sync();
+			for (int i = 0; i < batch.size(); i++) {
+				try {
+					completions.get(i).run();
+				} catch (JedisMovedDataException e) {
+					moved.put(batch.get(i), e);
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * A command run by {@link RedisStatelessTicketCache#execute(Operation, byte[], RedisCommand)}
+	 */
+	interface RedisCommand<T> {
+		T execute(Jedis jedis);
+	}
+
+	/**
+	 * Queues the commands of one item for
+	 * {@link RedisStatelessTicketCache#executeBulk(Operation, List, Function, BulkCommand)}
+	 */
+	private interface BulkCommand<T> {
+		/**
+		 * @return Reads the replies once the pipeline is synced, throwing the error of a failed command
+		 */
+		Runnable queue(Pipeline pipeline, T item);
+	}
+
+	/**
+	 * One ticket of {@link RedisStatelessTicketCache#getByTicketIds(Collection)}
+	 */
+	private static final class Lookup {
+		final String serviceTicket;
+		final byte[] key;
+		final boolean refresh;
+		byte[] serialized;
+
+		Lookup(String serviceTicket, byte[] key, boolean refresh) {
+			this.serviceTicket = serviceTicket;
+			this.key = key;
+			this.refresh = refresh;
+		}
+	}
+
+	/**
+	 * Gets the source of the pool serving each key
+	 * 
+	 * @return The source of the pool serving each key
+	 */
+	public RedisConnectionSource getConnectionSource() {
+		return connectionSource;
+	}
+
 	public Logger getLogger() {
 		return logger;
 	}
@@ -130,10 +954,15 @@ public class RedisStatelessTicketCache implements StatelessTicketCache {
 	 * {@link org.springframework.security.cas.authentication.CasAuthenticationToken} objects
 	 * 
 	 * @return The serializer that will be used to serialize and deserialize
-	 *         {@link org.springframework.security.cas.authentication.CasAuthenticationToken} objects
+	 *         {@link org.springframework.security.cas.authentication.CasAuthenticationToken} objects, or null if a
+	 *         {@link BinaryCasAuthenticationTokenSerializer} was set instead
 	 */
 	public CasAuthenticationTokenSerializer getCasAuthenticationTokenSerializer() {
-		return casAuthenticationTokenSerializer;
+		if (binaryCasAuthenticationTokenSerializer instanceof StringCasAuthenticationTokenSerializerAdapter) {
+			return ((StringCasAuthenticationTokenSerializerAdapter) binaryCasAuthenticationTokenSerializer)
+				.getSerializer();
+		}
+		return null;
 	}
 
 	/**
@@ -145,7 +974,35 @@ public class RedisStatelessTicketCache implements StatelessTicketCache {
 	 *            {@link org.springframework.security.cas.authentication.CasAuthenticationToken} objects
 	 */
 	public void setCasAuthenticationTokenSerializer(CasAuthenticationTokenSerializer casAuthenticationTokenSerializer) {
-		this.casAuthenticationTokenSerializer = casAuthenticationTokenSerializer;
+		this.binaryCasAuthenticationTokenSerializer = new StringCasAuthenticationTokenSerializerAdapter(
+			casAuthenticationTokenSerializer);
+	}
+
+	/**
+	 * Gets the serializer that will be used to serialize and deserialize
+	 * {@link org.springframework.security.cas.authentication.CasAuthenticationToken} objects to and from the bytes
+	 * stored in Redis
+	 * 
+	 * @return The serializer that will be used to serialize and deserialize
+	 *         {@link org.springframework.security.cas.authentication.CasAuthenticationToken} objects
+	 */
+	public BinaryCasAuthenticationTokenSerializer getBinaryCasAuthenticationTokenSerializer() {
+		return binaryCasAuthenticationTokenSerializer;
+	}
+
+	/**
+	 * Sets the serializer that will be used to serialize and deserialize
+	 * {@link org.springframework.security.cas.authentication.CasAuthenticationToken} objects to and from the bytes
+	 * stored in Redis. Replaces any serializer set with
+	 * {@link #setCasAuthenticationTokenSerializer(CasAuthenticationTokenSerializer)}.
+	 * 
+	 * @param binaryCasAuthenticationTokenSerializer
+	 *            The serializer that will be used to serialize and deserialize
+	 *            {@link org.springframework.security.cas.authentication.CasAuthenticationToken} objects
+	 */
+	public void setBinaryCasAuthenticationTokenSerializer(
+		BinaryCasAuthenticationTokenSerializer binaryCasAuthenticationTokenSerializer) {
+		this.binaryCasAuthenticationTokenSerializer = binaryCasAuthenticationTokenSerializer;
 	}
 
 	/**
@@ -166,4 +1023,220 @@ public class RedisStatelessTicketCache implements StatelessTicketCache {
 	public void setExpirationSeconds(Integer expirationSeconds) {
 		this.expirationSeconds = expirationSeconds;
 	}
+
+	/**
+	 * Gets whether tickets are only put in the cache if they are not cached yet
+	 * 
+	 * @return Whether tickets are only put in the cache if they are not cached yet
+	 */
+	public boolean isOnlyPutIfAbsent() {
+		return onlyPutIfAbsent;
+	}
+
+	/**
+	 * Sets whether tickets are only put in the cache if they are not cached yet (SET NX). Prevents a concurrent put of
+	 * the same ticket from being overwritten, but also prevents updates of a cached ticket.
+	 * 
+	 * @param onlyPutIfAbsent
+	 *            Whether tickets are only put in the cache if they are not cached yet
+	 */
+	public void setOnlyPutIfAbsent(boolean onlyPutIfAbsent) {
+		this.onlyPutIfAbsent = onlyPutIfAbsent;
+	}
+
+	/**
+	 * Gets whether tickets expire no later than the valid until date of their CAS assertion
+	 * 
+	 * @return Whether tickets expire no later than the valid until date of their CAS assertion
+	 */
+	public boolean isExpireAtAssertionValidUntil() {
+		return expireAtAssertionValidUntil;
+	}
+
+	/**
+	 * Sets whether tickets expire no later than the valid until date of their CAS assertion. The expiration seconds,
+	 * if set, still apply when they end earlier. Tickets whose assertion is no longer valid are not cached.
+	 * 
+	 * @param expireAtAssertionValidUntil
+	 *            Whether tickets expire no later than the valid until date of their CAS assertion
+	 */
+	public void setExpireAtAssertionValidUntil(boolean expireAtAssertionValidUntil) {
+		this.expireAtAssertionValidUntil = expireAtAssertionValidUntil;
+	}
+
+	/**
+	 * Gets how many times a command is retried after a node answered that its key moved
+	 * 
+	 * @return How many times a command is retried after a node answered that its key moved
+	 */
+	public int getMaxRedirections() {
+		return maxRedirections;
+	}
+
+	/**
+	 * Sets how many times a command is retried after a node answered that its key moved. Only relevant for a Redis
+	 * Cluster.
+	 * 
+	 * @param maxRedirections
+	 *            How many times a command is retried after a node answered that its key moved
+	 */
+	public void setMaxRedirections(int maxRedirections) {
+		this.maxRedirections = maxRedirections;
+	}
+
+	/**
+	 * Gets the metrics that receive measurements of every cache access
+	 * 
+	 * @return The metrics that receive measurements of every cache access
+	 */
+	public TicketCacheMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets the metrics that receive measurements of every cache access. Defaults to {@link TicketCacheMetrics#NONE},
+	 * which skips taking measurements altogether.
+	 * 
+	 * @param metrics
+	 *            The metrics that receive measurements of every cache access
+	 */
+	public void setMetrics(TicketCacheMetrics metrics) {
+		if (metrics == null) {
+			throw new NullPointerException("Expected given metrics to be not null");
+		}
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Gets the strategy deciding the keys tickets are stored under
+	 * 
+	 * @return The strategy deciding the keys tickets are stored under
+	 */
+	public TicketKeyStrategy getKeyStrategy() {
+		return keyStrategy;
+	}
+
+	/**
+	 * Sets the strategy deciding the keys tickets are stored under. Defaults to storing every ticket under its own
+	 * text. A strategy packing tickets into buckets requires {@link #setExpirationSeconds(Integer) expirationSeconds}
+	 * to be set.
+	 * 
+	 * @param keyStrategy
+	 *            The strategy deciding the keys tickets are stored under
+	 */
+	public void setKeyStrategy(TicketKeyStrategy keyStrategy) {
+		if (keyStrategy == null) {
+			throw new NullPointerException("Expected given keyStrategy to be not null");
+		}
+		this.keyStrategy = keyStrategy;
+	}
+
+	/**
+	 * Gets whether lookups restart the expiration time of the ticket they find
+	 * 
+	 * @return Whether lookups restart the expiration time of the ticket they find
+	 */
+	public boolean isSlidingExpiration() {
+		return slidingExpiration;
+	}
+
+	/**
+	 * Sets whether lookups restart the expiration time of the ticket they find, so tickets in use do not expire.
+	 * Requires {@link #setExpirationSeconds(Integer) expirationSeconds} to be set and is not supported for tickets
+	 * packed into buckets. Lookups served by replicas do not refresh.
+	 * 
+	 * @param slidingExpiration
+	 *            Whether lookups restart the expiration time of the ticket they find
+	 */
+	public void setSlidingExpiration(boolean slidingExpiration) {
+		this.slidingExpiration = slidingExpiration;
+	}
+
+	/**
+	 * Gets the least number of seconds between two refreshes of the expiration time of a ticket by this node
+	 * 
+	 * @return The least number of seconds between two refreshes of the expiration time of a ticket
+	 */
+	public int getRefreshIntervalSeconds() {
+		return refreshIntervalSeconds;
+	}
+
+	/**
+	 * Sets the least number of seconds between two refreshes of the expiration time of a ticket by this node. A ticket
+	 * is only kept for the expiration seconds minus this interval after its last lookup for certain. Defaults to 60.
+	 * 
+	 * @param refreshIntervalSeconds
+	 *            The least number of seconds between two refreshes of the expiration time of a ticket
+	 */
+	public void setRefreshIntervalSeconds(int refreshIntervalSeconds) {
+		this.refreshIntervalSeconds = refreshIntervalSeconds;
+	}
+
+	/**
+	 * Gets whether every put records the ticket in an index of the tickets of its principal
+	 * 
+	 * @return Whether every put records the ticket in an index of the tickets of its principal
+	 */
+	public boolean isIndexedByPrincipal() {
+		return indexedByPrincipal;
+	}
+
+	/**
+	 * Sets whether every put records the ticket in an index of the tickets of its principal, used by
+	 * {@link #removeTicketsByPrincipal(String)}. Costs a second round trip per put, to the node owning the index.
+	 * Requires {@link #setExpirationSeconds(Integer) expirationSeconds} to be set. Only puts through this cache are
+	 * indexed, not those of {@link AsyncRedisStatelessTicketCache} or {@link WriteBehindStatelessTicketCache}.
+	 * Defaults to false.
+	 * 
+	 * @param indexedByPrincipal
+	 *            Whether every put records the ticket in an index of the tickets of its principal
+	 */
+	public void setIndexedByPrincipal(boolean indexedByPrincipal) {
+		this.indexedByPrincipal = indexedByPrincipal;
+	}
+
+	/**
+	 * Gets the number of commands sent in one pipeline by the bulk operations
+	 * 
+	 * @return The number of commands sent in one pipeline by the bulk operations
+	 */
+	public int getBulkBatchSize() {
+		return bulkBatchSize;
+	}
+
+	/**
+	 * Sets the number of tickets handled by one pipeline of the bulk operations. Larger batches save round trips but
+	 * hold up other clients of Redis longer. Defaults to 100.
+	 * 
+	 * @param bulkBatchSize
+	 *            The number of tickets handled by one pipeline of the bulk operations
+	 */
+	public void setBulkBatchSize(int bulkBatchSize) {
+		if (bulkBatchSize <= 0) {
+			throw new IllegalArgumentException("Expected given bulkBatchSize to be positive");
+		}
+		this.bulkBatchSize = bulkBatchSize;
+	}
+
+	/**
+	 * Gets whether entries found in a format other than the preferred one are rewritten in it
+	 * 
+	 * @return Whether entries found in a format other than the preferred one are rewritten in it
+	 */
+	public boolean isRewritingOutdatedEntries() {
+		return rewritingOutdatedEntries;
+	}
+
+	/**
+	 * Sets whether entries found in a format other than the preferred one of a
+	 * {@link VersionedCasAuthenticationTokenSerializer} are rewritten in it, migrating the cache to a new format as
+	 * tickets are used. Costs a round trip for each entry rewritten and requires Redis 2.6 for scripting. Tickets
+	 * packed into buckets are not rewritten. Defaults to false.
+	 * 
+	 * @param rewritingOutdatedEntries
+	 *            Whether entries found in a format other than the preferred one are rewritten in it
+	 */
+	public void setRewritingOutdatedEntries(boolean rewritingOutdatedEntries) {
+		this.rewritingOutdatedEntries = rewritingOutdatedEntries;
+	}
 }
@@ -0,0 +1,237 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jasig.cas.client.authentication.AttributePrincipalImpl;
+import org.jasig.cas.client.validation.AssertionImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Brings a {@link RedisStatelessTicketCache} to steady state latency before it takes traffic. Call {@link #warmUp()}
+ * once at startup, before the node is put into service.
+ * <p>
+ * Warming up borrows {@link #setConnectionsPerPool(int) connectionsPerPool} connections from every pool at the same
+ * time, so the pool has to open that many, and checks each with a PING before returning it as an idle connection. The
+ * pool's own connection setup such as AUTH and SELECT is paid here rather than by the first logins. Keep the pool's
+ * maxIdle at least as large, or the surplus connections are closed again on return. Then a sample token is serialized
+ * and deserialized {@link #setSerializationIterations(int) serializationIterations} times so the serializer path is
+ * compiled by the JIT.
+ * <p>
+ * Warming up never fails: connections that can not be opened or do not answer are logged and counted in
+ * {@link #getFailedConnectionCount()}, so a node still starts while Redis is unreachable.
+ */
+public class RedisStatelessTicketCacheWarmer {
+
+	private static final String SAMPLE_USERNAME = "warm-up";
+
+	private Logger logger = LoggerFactory.getLogger(RedisStatelessTicketCacheWarmer.class);
+
+	private final RedisStatelessTicketCache cache;
+	private final AtomicLong validatedConnectionCount = new AtomicLong();
+	private final AtomicLong failedConnectionCount = new AtomicLong();
+	private int connectionsPerPool = 8;
+	private int serializationIterations = 10000;
+	private CasAuthenticationToken sampleToken = createSampleToken();
+
+	/**
+	 * Creates a new instance
+	 *
+	 * @param cache
+	 *            The cache whose pools and serializer are warmed up
+	 */
+	public RedisStatelessTicketCacheWarmer(RedisStatelessTicketCache cache) {
+		if (cache == null) {
+			throw new NullPointerException("Expected given cache to be not null");
+		}
+		this.cache = cache;
+	}
+
+	/**
+	 * Opens and validates the pool connections and then exercises the serializer
+	 */
+	public void warmUp() {
+		long start = System.nanoTime();
+		for (JedisPool pool : cache.getConnectionSource().getPools()) {
+			warmUp(pool);
+		}
+		long connected = System.nanoTime();
+		warmUpSerializer();
+		logger.info("Warmed up ticket cache in {} ms, {} connections validated, {} failed, serializer took {} ms",
+			(System.nanoTime() - start) / 1000000, validatedConnectionCount.get(), failedConnectionCount.get(),
+			(System.nanoTime() - connected) / 1000000);
+	}
+
+	/**
+	 * @return The number of connections that answered a PING during warm-up
+	 */
+	public long getValidatedConnectionCount() {
+		return validatedConnectionCount.get();
+	}
+
+	/**
+	 * @return The number of connections that could not be opened or did not answer during warm-up
+	 */
+	public long getFailedConnectionCount() {
+		return failedConnectionCount.get();
+	}
+
+	private void warmUp(JedisPool pool) {
+		List<Jedis> borrowed = new ArrayList<Jedis>(connectionsPerPool);
+		try {
+			for (int i = 0; i < connectionsPerPool; i++) {
+				Jedis jedis;
+				try {
+					jedis = pool.getResource();
+				} catch (JedisException e) {
+					// Exhausted or unreachable, borrowing more would only wait again
+					failedConnectionCount.addAndGet(connectionsPerPool - i);
+					logger.warn("Failed to open ticket cache connection {} of {}", i + 1, connectionsPerPool, e);
+					return;
+				}
+				borrowed.add(jedis);
+				try {
+					jedis.ping();
+					validatedConnectionCount.incrementAndGet();
+				} catch (JedisException e) {
+					// Closing a connection that failed returns it to the pool as broken
+					failedConnectionCount.incrementAndGet();
+					logger.warn("Ticket cache connection failed validation", e);
+				}
+			}
+		} finally {
+			for (Jedis jedis : borrowed) {
+				jedis.close();
+			}
+		}
+	}
+
+	private void warmUpSerializer() {
+		BinaryCasAuthenticationTokenSerializer serializer = cache.getBinaryCasAuthenticationTokenSerializer();
+		try {
+			for (int i = 0; i < serializationIterations; i++) {
+				CasAuthenticationToken token = serializer.deserialize(serializer.serialize(sampleToken));
+				// Lazily deserialized tokens only decode the assertion once it is used
+				token.getAssertion();
+			}
+		} catch (CasAuthenticationTokenSerializerException e) {
+			logger.warn("Failed to warm up ticket serializer", e);
+		}
+	}
+
+	private static CasAuthenticationToken createSampleToken() {
+		Map<String, Object> attributes = new HashMap<String, Object>();
+		attributes.put("mail", SAMPLE_USERNAME + "@example.com");
+		attributes.put("memberOf", Arrays.asList("users", "staff"));
+		List<GrantedAuthority> authorities = Arrays.<GrantedAuthority> asList(new SimpleGrantedAuthority("ROLE_USER"));
+		Date now = new Date();
+		return new CasAuthenticationToken("key", SAMPLE_USERNAME, "ST-0-warm-up", authorities, new User(
+			SAMPLE_USERNAME, "ST-0-warm-up", authorities), new AssertionImpl(new AttributePrincipalImpl(
+			SAMPLE_USERNAME, attributes), now, new Date(now.getTime() + 3600000), now,
+			new HashMap<String, Object>()));
+	}
+
+	public Logger getLogger() {
+		return logger;
+	}
+
+	public void setLogger(Logger logger) {
+		this.logger = logger;
+	}
+
+	/**
+	 * Gets the number of connections opened and validated in every pool. Defaults to 8.
+	 *
+	 * @return The number of connections opened and validated in every pool
+	 */
+	public int getConnectionsPerPool() {
+		return connectionsPerPool;
+	}
+
+	/**
+	 * Sets the number of connections opened and validated in every pool. Defaults to 8.
+	 *
+	 * @param connectionsPerPool
+	 *            The number of connections opened and validated in every pool
+	 */
+	public void setConnectionsPerPool(int connectionsPerPool) {
+		if (connectionsPerPool < 0) {
+			throw new IllegalArgumentException("Expected given connectionsPerPool to be not negative");
+		}
+		this.connectionsPerPool = connectionsPerPool;
+	}
+
+	/**
+	 * Gets the number of times the sample token is serialized and deserialized. Defaults to 10000.
+	 *
+	 * @return The number of times the sample token is serialized and deserialized
+	 */
+	public int getSerializationIterations() {
+		return serializationIterations;
+	}
+
+	/**
+	 * Sets the number of times the sample token is serialized and deserialized. Defaults to 10000.
+	 *
+	 * @param serializationIterations
+	 *            The number of times the sample token is serialized and deserialized
+	 */
+	public void setSerializationIterations(int serializationIterations) {
+		if (serializationIterations < 0) {
+			throw new IllegalArgumentException("Expected given serializationIterations to be not negative");
+		}
+		this.serializationIterations = serializationIterations;
+	}
+
+	/**
+	 * Gets the token used to warm up the serializer. Defaults to a token with a few attributes and one authority.
+	 *
+	 * @return The token used to warm up the serializer
+	 */
+	public CasAuthenticationToken getSampleToken() {
+		return sampleToken;
+	}
+
+	/**
+	 * Sets the token used to warm up the serializer. A token shaped like the real ones warms up the same code paths.
+	 * Defaults to a token with a few attributes and one authority.
+	 *
+	 * @param sampleToken
+	 *            The token used to warm up the serializer
+	 */
+	public void setSampleToken(CasAuthenticationToken sampleToken) {
+		if (sampleToken == null) {
+			throw new NullPointerException("Expected given sampleToken to be not null");
+		}
+		this.sampleToken = sampleToken;
+	}
+}
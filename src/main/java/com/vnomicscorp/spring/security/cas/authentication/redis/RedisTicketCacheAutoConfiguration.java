@@ -0,0 +1,256 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.annotation.Primary;
+import org.springframework.security.cas.authentication.StatelessTicketCache;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+/**
+ * Spring Boot auto-configuration of a Redis ticket cache from {@link RedisTicketCacheProperties}. Creates a
+ * {@link JedisPool} sized for the expected concurrency, a {@link RedisStatelessTicketCache} with the compact binary
+ * codec and compression, and a primary {@link StatelessTicketCache} bean named <code>statelessTicketCache</code> that
+ * optionally puts a pub/sub invalidated near cache in front of it and pipelines operations through an
+ * {@link AsyncRedisStatelessTicketCache}. Each of these is switched by property.
+ * <p>
+ * With Micrometer on the class path the cache records {@link MicrometerTicketCacheMetrics}, which Spring Boot binds to
+ * its meter registry, and with the actuator a {@link RedisTicketCacheHealthIndicator} reports as
+ * <code>redisTicketCache</code>. A {@link RedisConnectionSource} bean of the application, for example for a cluster, is
+ * used instead of the pool.
+ */
+@Configuration
+@ConditionalOnClass({ JedisPool.class, StatelessTicketCache.class })
+@ConditionalOnProperty(prefix = "cas.ticket-cache.redis", name = "enabled", matchIfMissing = true)
+@EnableConfigurationProperties(RedisTicketCacheProperties.class)
+public class RedisTicketCacheAutoConfiguration {
+
+	private static final int QUEUED_OPERATIONS_PER_REQUEST = 50;
+	private static final byte JAVA_FORMAT = 1;
+	private static final byte COMPACT_FORMAT = 2;
+	private static final byte COMPRESSED_FORMAT = 3;
+
+	@Bean
+	@ConditionalOnMissingBean
+	public RedisStatelessTicketCache redisStatelessTicketCache(RedisConnectionSource connectionSource,
+		RedisTicketCacheProperties properties, ObjectProvider<TicketCacheMetrics> metrics) {
+		RedisStatelessTicketCache cache = new RedisStatelessTicketCache(connectionSource);
+		cache.setExpirationSeconds(properties.getExpirationSeconds());
+		cache.setExpireAtAssertionValidUntil(properties.isExpireAtAssertionValidUntil());
+		if (properties.getKeyPrefix() != null) {
+			TicketKeyStrategy keyStrategy = new TicketKeyStrategy();
+			keyStrategy.setPrefix(properties.getKeyPrefix());
+			cache.setKeyStrategy(keyStrategy);
+		}
+		cache.setBinaryCasAuthenticationTokenSerializer(createSerializer(properties));
+		cache.setMetrics(metrics.getIfAvailable(() -> TicketCacheMetrics.NONE));
+		return cache;
+	}
+
+	@Bean(initMethod = "start", destroyMethod = "stop")
+	@ConditionalOnProperty(prefix = "cas.ticket-cache.redis.pipelining", name = "enabled")
+	public AsyncRedisStatelessTicketCache asyncRedisStatelessTicketCache(RedisStatelessTicketCache cache,
+		RedisTicketCacheProperties properties) {
+		RedisTicketCacheProperties.Pipelining pipelining = properties.getPipelining();
+		AsyncRedisStatelessTicketCache asyncCache = new AsyncRedisStatelessTicketCache(cache);
+		asyncCache.setFireAndForget(pipelining.isFireAndForget());
+		asyncCache.setWorkerCount(pipelining.getWorkerCount());
+		asyncCache.setQueueCapacity(pipelining.getQueueCapacity() != null ? pipelining.getQueueCapacity()
+			: properties.getConcurrency() * QUEUED_OPERATIONS_PER_REQUEST);
+		return asyncCache;
+	}
+
+	@Bean
+	@Primary
+	@ConditionalOnMissingBean(name = "statelessTicketCache")
+	public StatelessTicketCache statelessTicketCache(RedisStatelessTicketCache cache,
+		ObjectProvider<AsyncRedisStatelessTicketCache> asyncCache,
+		ObjectProvider<RedisPubSubTicketInvalidator> invalidator, RedisTicketCacheProperties properties) {
+		StatelessTicketCache statelessTicketCache = asyncCache.getIfAvailable();
+		if (statelessTicketCache == null) {
+			statelessTicketCache = cache;
+		}
+		RedisTicketCacheProperties.NearCache nearCache = properties.getNearCache();
+		if (nearCache.isEnabled()) {
+			NearCacheStatelessTicketCache nearCacheStatelessTicketCache = new NearCacheStatelessTicketCache(
+				statelessTicketCache);
+			nearCacheStatelessTicketCache.setMaxSize(nearCache.getMaxSize());
+			nearCacheStatelessTicketCache.setTimeToLiveMillis(nearCache.getTimeToLiveMillis());
+			nearCacheStatelessTicketCache.setInvalidator(invalidator.getIfAvailable());
+			statelessTicketCache = nearCacheStatelessTicketCache;
+		}
+		return statelessTicketCache;
+	}
+
+	/**
+	 * Creates the serializer selected by the codec and compression properties. Entries are written in a
+	 * {@link VersionedCasAuthenticationTokenSerializer} envelope and every format, including the Base64 encoded Java
+	 * serialization of entries written before the envelope, stays readable, so changing these properties needs no
+	 * cache flush.
+	 *
+	 * @param properties
+	 *            The properties
+	 * @return The serializer
+	 */
+	static VersionedCasAuthenticationTokenSerializer createSerializer(RedisTicketCacheProperties properties) {
+		boolean binary = properties.getCodec().isBinary();
+		boolean compression = properties.getCompression().isEnabled();
+		if (!binary && compression) {
+			throw new IllegalStateException("Compression requires the binary codec, set "
+				+ "cas.ticket-cache.redis.compression.enabled to false or enable the binary codec");
+		}
+		BinaryCasAuthenticationTokenSerializer legacySerializer = new StringCasAuthenticationTokenSerializerAdapter(
+			new DefaultCasAuthenticationTokenSerializer());
+		CompactCasAuthenticationTokenSerializer compactSerializer = new CompactCasAuthenticationTokenSerializer();
+		compactSerializer.setLazy(properties.getCodec().isLazy());
+		CompressingCasAuthenticationTokenSerializer compressingSerializer =
+			new CompressingCasAuthenticationTokenSerializer(compactSerializer);
+		compressingSerializer.setCompressionThreshold(properties.getCompression().getThreshold());
+		VersionedCasAuthenticationTokenSerializer serializer = new VersionedCasAuthenticationTokenSerializer(
+			JAVA_FORMAT, legacySerializer);
+		serializer.addFormat(COMPACT_FORMAT, compactSerializer);
+		serializer.addFormat(COMPRESSED_FORMAT, compressingSerializer);
+		serializer.setPreferredFormat(!binary ? JAVA_FORMAT : compression ? COMPRESSED_FORMAT : COMPACT_FORMAT);
+		serializer.setLegacySerializer(legacySerializer);
+		return serializer;
+	}
+
+	/**
+	 * Creates the pool configuration, deriving the sizes that are not set from the concurrency
+	 *
+	 * @param properties
+	 *            The properties
+	 * @return The pool configuration
+	 */
+	static JedisPoolConfig createPoolConfig(RedisTicketCacheProperties properties) {
+		RedisTicketCacheProperties.Pool pool = properties.getPool();
+		int concurrency = properties.getConcurrency();
+		JedisPoolConfig poolConfig = new JedisPoolConfig();
+		poolConfig.setMaxTotal(pool.getMaxTotal() != null ? pool.getMaxTotal() : concurrency);
+		poolConfig.setMaxIdle(pool.getMaxIdle() != null ? pool.getMaxIdle() : poolConfig.getMaxTotal());
+		poolConfig.setMinIdle(pool.getMinIdle() != null ? pool.getMinIdle() : Math.max(1, concurrency / 4));
+		poolConfig.setMaxWaitMillis(pool.getMaxWaitMillis());
+		return poolConfig;
+	}
+
+	/**
+	 * Creates the connection pool unless the application provides a {@link RedisConnectionSource}
+	 */
+	@Configuration
+	@ConditionalOnMissingBean(RedisConnectionSource.class)
+	static class PoolConfiguration {
+
+		@Bean
+		@Primary
+		public JedisPool redisTicketCacheJedisPool(RedisTicketCacheProperties properties) {
+			return new JedisPool(createPoolConfig(properties), properties.getHost(), properties.getPort(),
+				properties.getTimeoutMillis(), properties.getPassword(), properties.getDatabase(), properties.isSsl());
+		}
+
+		/**
+		 * Creates the pool of the near cache invalidation subscriber, only once it is needed
+		 */
+		@Bean
+		@Lazy
+		public JedisPool redisTicketCacheSubscriberJedisPool(RedisTicketCacheProperties properties) {
+			JedisPoolConfig poolConfig = new JedisPoolConfig();
+			poolConfig.setMaxTotal(1);
+			poolConfig.setMaxIdle(1);
+			poolConfig.setMinIdle(0);
+			return new JedisPool(poolConfig, properties.getHost(), properties.getPort(), properties.getTimeoutMillis(),
+				properties.getPassword(), properties.getDatabase(), properties.isSsl());
+		}
+
+		@Bean
+		public RedisConnectionSource redisTicketCacheConnectionSource(JedisPool redisTicketCacheJedisPool) {
+			return new SingleRedisConnectionSource(redisTicketCacheJedisPool);
+		}
+	}
+
+	/**
+	 * Invalidates the near cache of every node over Redis pub/sub. The subscriber holds a connection of a pool of its
+	 * own when the pool is configured here. Every node must publish and subscribe on the same server, which can't be
+	 * chosen from a {@link RedisConnectionSource} with several pools, so those need a
+	 * {@link RedisPubSubTicketInvalidator} bean of the application.
+	 */
+	@Configuration
+	@ConditionalOnProperty(prefix = "cas.ticket-cache.redis.near-cache", name = "enabled")
+	static class NearCacheConfiguration {
+
+		@Bean(initMethod = "start", destroyMethod = "stop")
+		@ConditionalOnMissingBean
+		@ConditionalOnProperty(prefix = "cas.ticket-cache.redis.near-cache", name = "invalidation",
+			matchIfMissing = true)
+		public RedisPubSubTicketInvalidator redisPubSubTicketInvalidator(RedisConnectionSource connectionSource,
+			@Qualifier("redisTicketCacheSubscriberJedisPool") ObjectProvider<JedisPool> subscriberJedisPool) {
+			Collection<JedisPool> pools = connectionSource.getPools();
+			if (pools.size() != 1) {
+				throw new IllegalStateException("Expected a RedisPubSubTicketInvalidator bean for a "
+					+ "RedisConnectionSource with " + pools.size() + " pools, or "
+					+ "cas.ticket-cache.redis.near-cache.invalidation set to false");
+			}
+			JedisPool jedisPool = pools.iterator().next();
+			return new RedisPubSubTicketInvalidator(jedisPool, subscriberJedisPool.getIfAvailable(() -> jedisPool));
+		}
+	}
+
+	/**
+	 * Records Micrometer metrics, bound to the meter registry by Spring Boot
+	 */
+	@Configuration
+	@ConditionalOnClass(MeterRegistry.class)
+	@ConditionalOnProperty(prefix = "cas.ticket-cache.redis.metrics", name = "enabled", matchIfMissing = true)
+	static class MetricsConfiguration {
+
+		@Bean
+		@ConditionalOnMissingBean(TicketCacheMetrics.class)
+		public MicrometerTicketCacheMetrics redisTicketCacheMetrics(RedisConnectionSource connectionSource) {
+			return new MicrometerTicketCacheMetrics(connectionSource, Collections.<Tag> emptyList());
+		}
+	}
+
+	/**
+	 * Reports the health of the Redis connections
+	 */
+	@Configuration
+	@ConditionalOnClass(HealthIndicator.class)
+	@ConditionalOnProperty(prefix = "management.health.redis-ticket-cache", name = "enabled", matchIfMissing = true)
+	static class HealthConfiguration {
+
+		@Bean
+		@ConditionalOnMissingBean(name = "redisTicketCacheHealthIndicator")
+		public RedisTicketCacheHealthIndicator redisTicketCacheHealthIndicator(
+			RedisConnectionSource connectionSource) {
+			return new RedisTicketCacheHealthIndicator(connectionSource);
+		}
+	}
+}
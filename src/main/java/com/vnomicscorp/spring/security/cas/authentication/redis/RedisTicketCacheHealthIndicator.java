@@ -0,0 +1,65 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import org.springframework.boot.actuate.health.AbstractHealthIndicator;
+import org.springframework.boot.actuate.health.Health;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+/**
+ * Spring Boot health indicator of the Redis connections of a ticket cache. Up when a PING over every pool of the
+ * {@link RedisConnectionSource} succeeds, down with the error otherwise. Reports the number of pools and the active,
+ * idle and waiting connections summed over them, so an exhausted pool shows before requests time out.
+ */
+public class RedisTicketCacheHealthIndicator extends AbstractHealthIndicator {
+
+	private final RedisConnectionSource connectionSource;
+
+	/**
+	 * Creates a new instance
+	 *
+	 * @param connectionSource
+	 *            The source of the pools to check
+	 */
+	public RedisTicketCacheHealthIndicator(RedisConnectionSource connectionSource) {
+		super("Redis ticket cache health check failed");
+		if (connectionSource == null) {
+			throw new NullPointerException("Expected given connectionSource to be not null");
+		}
+		this.connectionSource = connectionSource;
+	}
+
+	@Override
+	protected void doHealthCheck(Health.Builder builder) {
+		int pools = 0;
+		int active = 0;
+		int idle = 0;
+		int waiters = 0;
+		for (JedisPool pool : connectionSource.getPools()) {
+			try (Jedis jedis = pool.getResource()) {
+				jedis.ping();
+			}
+			pools++;
+			active += pool.getNumActive();
+			idle += pool.getNumIdle();
+			waiters += pool.getNumWaiters();
+		}
+		builder.up().withDetail("pools", pools).withDetail("active", active).withDetail("idle", idle).withDetail(
+			"waiters", waiters);
+	}
+}
@@ -0,0 +1,469 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Settings of {@link RedisTicketCacheAutoConfiguration} under <code>cas.ticket-cache.redis</code>. Pool sizes that
+ * are not set are derived from {@link #setConcurrency(int) concurrency}.
+ */
+@ConfigurationProperties(prefix = "cas.ticket-cache.redis")
+public class RedisTicketCacheProperties {
+
+	/**
+	 * Whether to configure the ticket cache.
+	 */
+	private boolean enabled = true;
+
+	/**
+	 * Redis server host.
+	 */
+	private String host = "localhost";
+
+	/**
+	 * Redis server port.
+	 */
+	private int port = 6379;
+
+	/**
+	 * Redis server password.
+	 */
+	private String password;
+
+	/**
+	 * Redis database index.
+	 */
+	private int database;
+
+	/**
+	 * Whether to connect to Redis over TLS.
+	 */
+	private boolean ssl;
+
+	/**
+	 * Connect and read timeout of Redis connections in milliseconds.
+	 */
+	private int timeoutMillis = 1000;
+
+	/**
+	 * Expected number of requests using the cache at the same time, usually the number of request threads. Sizes the
+	 * connection pool unless it is set explicitly.
+	 */
+	private int concurrency = 200;
+
+	/**
+	 * Seconds tickets are kept in the cache.
+	 */
+	private Integer expirationSeconds = 3600;
+
+	/**
+	 * Whether tickets expire no later than the valid until date of their CAS assertion.
+	 */
+	private boolean expireAtAssertionValidUntil = true;
+
+	/**
+	 * Prefix of the Redis keys of tickets.
+	 */
+	private String keyPrefix;
+
+	private final Pool pool = new Pool();
+
+	private final Codec codec = new Codec();
+
+	private final Compression compression = new Compression();
+
+	private final NearCache nearCache = new NearCache();
+
+	private final Pipelining pipelining = new Pipelining();
+
+	private final Metrics metrics = new Metrics();
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public void setHost(String host) {
+		this.host = host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+
+	public void setPassword(String password) {
+		this.password = password;
+	}
+
+	public int getDatabase() {
+		return database;
+	}
+
+	public void setDatabase(int database) {
+		this.database = database;
+	}
+
+	public boolean isSsl() {
+		return ssl;
+	}
+
+	public void setSsl(boolean ssl) {
+		this.ssl = ssl;
+	}
+
+	public int getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	public void setTimeoutMillis(int timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	public void setConcurrency(int concurrency) {
+		if (concurrency <= 0) {
+			throw new IllegalArgumentException("Expected given concurrency to be positive");
+		}
+		this.concurrency = concurrency;
+	}
+
+	public Integer getExpirationSeconds() {
+		return expirationSeconds;
+	}
+
+	public void setExpirationSeconds(Integer expirationSeconds) {
+		this.expirationSeconds = expirationSeconds;
+	}
+
+	public boolean isExpireAtAssertionValidUntil() {
+		return expireAtAssertionValidUntil;
+	}
+
+	public void setExpireAtAssertionValidUntil(boolean expireAtAssertionValidUntil) {
+		this.expireAtAssertionValidUntil = expireAtAssertionValidUntil;
+	}
+
+	public String getKeyPrefix() {
+		return keyPrefix;
+	}
+
+	public void setKeyPrefix(String keyPrefix) {
+		this.keyPrefix = keyPrefix;
+	}
+
+	public Pool getPool() {
+		return pool;
+	}
+
+	public Codec getCodec() {
+		return codec;
+	}
+
+	public Compression getCompression() {
+		return compression;
+	}
+
+	public NearCache getNearCache() {
+		return nearCache;
+	}
+
+	public Pipelining getPipelining() {
+		return pipelining;
+	}
+
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Connection pool settings
+	 */
+	public static class Pool {
+
+		/**
+		 * Maximum number of connections. Defaults to the concurrency.
+		 */
+		private Integer maxTotal;
+
+		/**
+		 * Maximum number of idle connections. Defaults to the maximum number of connections, so connections are not
+		 * closed and reopened as load varies.
+		 */
+		private Integer maxIdle;
+
+		/**
+		 * Number of idle connections kept open. Defaults to a quarter of the concurrency.
+		 */
+		private Integer minIdle;
+
+		/**
+		 * Longest time in milliseconds to wait for a connection when the pool is exhausted.
+		 */
+		private long maxWaitMillis = 1000;
+
+		public Integer getMaxTotal() {
+			return maxTotal;
+		}
+
+		public void setMaxTotal(Integer maxTotal) {
+			this.maxTotal = maxTotal;
+		}
+
+		public Integer getMaxIdle() {
+			return maxIdle;
+		}
+
+		public void setMaxIdle(Integer maxIdle) {
+			this.maxIdle = maxIdle;
+		}
+
+		public Integer getMinIdle() {
+			return minIdle;
+		}
+
+		public void setMinIdle(Integer minIdle) {
+			this.minIdle = minIdle;
+		}
+
+		public long getMaxWaitMillis() {
+			return maxWaitMillis;
+		}
+
+		public void setMaxWaitMillis(long maxWaitMillis) {
+			this.maxWaitMillis = maxWaitMillis;
+		}
+	}
+
+	/**
+	 * Serialization settings
+	 */
+	public static class Codec {
+
+		/**
+		 * Whether to store tokens with the compact binary serializer instead of Base64 encoded Java serialization.
+		 */
+		private boolean binary = true;
+
+		/**
+		 * Whether the binary serializer decodes the user details and assertion on first access.
+		 */
+		private boolean lazy;
+
+		public boolean isBinary() {
+			return binary;
+		}
+
+		public void setBinary(boolean binary) {
+			this.binary = binary;
+		}
+
+		public boolean isLazy() {
+			return lazy;
+		}
+
+		public void setLazy(boolean lazy) {
+			this.lazy = lazy;
+		}
+	}
+
+	/**
+	 * Compression settings
+	 */
+	public static class Compression {
+
+		/**
+		 * Whether to deflate serialized tokens above the threshold. Requires the binary codec.
+		 */
+		private boolean enabled = true;
+
+		/**
+		 * Size in bytes above which serialized tokens are compressed.
+		 */
+		private int threshold = 512;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public int getThreshold() {
+			return threshold;
+		}
+
+		public void setThreshold(int threshold) {
+			this.threshold = threshold;
+		}
+	}
+
+	/**
+	 * Near cache settings
+	 */
+	public static class NearCache {
+
+		/**
+		 * Whether to keep recently used tickets in memory in front of Redis. A ticket removed on another node may
+		 * still be served from memory until its invalidation arrives or it expires from memory.
+		 */
+		private boolean enabled;
+
+		/**
+		 * Maximum number of tickets kept in memory.
+		 */
+		private int maxSize = 10000;
+
+		/**
+		 * Milliseconds a ticket is kept in memory.
+		 */
+		private long timeToLiveMillis = 30000;
+
+		/**
+		 * Whether puts and removes are published over Redis pub/sub to evict the ticket from the near cache of every
+		 * other node.
+		 */
+		private boolean invalidation = true;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public int getMaxSize() {
+			return maxSize;
+		}
+
+		public void setMaxSize(int maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		public long getTimeToLiveMillis() {
+			return timeToLiveMillis;
+		}
+
+		public void setTimeToLiveMillis(long timeToLiveMillis) {
+			this.timeToLiveMillis = timeToLiveMillis;
+		}
+
+		public boolean isInvalidation() {
+			return invalidation;
+		}
+
+		public void setInvalidation(boolean invalidation) {
+			this.invalidation = invalidation;
+		}
+	}
+
+	/**
+	 * Pipelining settings
+	 */
+	public static class Pipelining {
+
+		/**
+		 * Whether to queue operations and send them to Redis in pipelines from worker threads.
+		 */
+		private boolean enabled;
+
+		/**
+		 * Whether puts and removes return as soon as they are queued.
+		 */
+		private boolean fireAndForget;
+
+		/**
+		 * Number of worker threads sending pipelines.
+		 */
+		private int workerCount = 1;
+
+		/**
+		 * Maximum number of queued operations. Defaults to 50 per concurrent request.
+		 */
+		private Integer queueCapacity;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public boolean isFireAndForget() {
+			return fireAndForget;
+		}
+
+		public void setFireAndForget(boolean fireAndForget) {
+			this.fireAndForget = fireAndForget;
+		}
+
+		public int getWorkerCount() {
+			return workerCount;
+		}
+
+		public void setWorkerCount(int workerCount) {
+			this.workerCount = workerCount;
+		}
+
+		public Integer getQueueCapacity() {
+			return queueCapacity;
+		}
+
+		public void setQueueCapacity(Integer queueCapacity) {
+			this.queueCapacity = queueCapacity;
+		}
+	}
+
+	/**
+	 * Metrics settings
+	 */
+	public static class Metrics {
+
+		/**
+		 * Whether to record Micrometer metrics of the cache when Micrometer is available.
+		 */
+		private boolean enabled = true;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+	}
+}
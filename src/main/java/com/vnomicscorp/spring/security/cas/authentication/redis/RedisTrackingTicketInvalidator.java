@@ -0,0 +1,339 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.util.SafeEncoder;
+
+/**
+ * Tells {@link TicketInvalidationListener}s, such as a {@link NearCacheStatelessTicketCache}, about every ticket
+ * changed, removed or expired in Redis, using the server assisted client side caching of Redis 6. Unlike
+ * {@link RedisPubSubTicketInvalidator} it needs no cooperation from the nodes writing the tickets: Redis itself reports
+ * every change to a ticket key, whoever made it, so a near cache stays coherent without relying on its time to live.
+ * <p>
+ * For every Redis node a background thread subscribes one connection to {@code __redis__:invalidate} and enables
+ * tracking in broadcasting mode, redirected to that connection, on a second one. Every key starting with the prefix of
+ * the {@link TicketKeyStrategy} is then reported once it changes. Both connections are held from the pool for as long
+ * as this is running, so the pool must be sized accordingly. Whenever the subscription is (re)established the
+ * listeners are told that every ticket is invalidated, since changes may have been missed meanwhile.
+ * <p>
+ * Requires Redis 6 and tickets stored under their own keys, neither hashed nor packed into buckets, so each reported
+ * key can be turned back into a ticket. Call {@link #start()} once at startup and {@link #stop()} at shutdown.
+ */
+public class RedisTrackingTicketInvalidator {
+
+	/**
+	 * The channel Redis publishes invalidated keys on
+	 */
+	public static final String INVALIDATE_CHANNEL = "__redis__:invalidate";
+
+	private static final byte[] MESSAGE = SafeEncoder.encode("message");
+
+	private Logger logger = LoggerFactory.getLogger(RedisTrackingTicketInvalidator.class);
+
+	private final RedisStatelessTicketCache cache;
+	private final List<TicketInvalidationListener> listeners = new CopyOnWriteArrayList<TicketInvalidationListener>();
+	private final Set<Jedis> subscribers = Collections.newSetFromMap(new IdentityHashMap<Jedis, Boolean>());
+	private final AtomicLong invalidationCount = new AtomicLong();
+	private long reconnectDelayMillis = 1000;
+
+	private volatile boolean running;
+	private List<Thread> trackerThreads = Collections.emptyList();
+
+	/**
+	 * Creates a new instance
+	 *
+	 * @param cache
+	 *            The cache providing the connection pools and the key strategy
+	 */
+	public RedisTrackingTicketInvalidator(RedisStatelessTicketCache cache) {
+		if (cache == null) {
+			throw new NullPointerException("Expected given cache to be not null");
+		}
+		this.cache = cache;
+	}
+
+	/**
+	 * Registers a listener that is notified of invalidated tickets
+	 *
+	 * @param listener
+	 *            The listener to notify
+	 */
+	public void addListener(TicketInvalidationListener listener) {
+		if (listener == null) {
+			throw new NullPointerException("Expected given listener to be not null");
+		}
+		listeners.add(listener);
+	}
+
+	/**
+	 * Unregisters a listener previously registered with {@link #addListener(TicketInvalidationListener)}
+	 *
+	 * @param listener
+	 *            The listener to remove
+	 */
+	public void removeListener(TicketInvalidationListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Starts tracking every Redis node. Does nothing if it is already running.
+	 *
+	 * @throws IllegalStateException
+	 *             If tickets are hashed or packed into buckets
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		TicketKeyStrategy keyStrategy = cache.getKeyStrategy();
+		if (keyStrategy.isHashed() || keyStrategy.isBucketed()) {
+			throw new IllegalStateException("Expected tickets to be stored under their own keys for tracking");
+		}
+		running = true;
+		trackerThreads = new ArrayList<Thread>();
+		for (JedisPool pool : cache.getConnectionSource().getPools()) {
+			Thread thread = new Thread(() -> trackUntilStopped(pool), "redis-ticket-tracking");
+			thread.setDaemon(true);
+			thread.start();
+			trackerThreads.add(thread);
+		}
+	}
+
+	/**
+	 * Stops tracking and waits for the connections to be released
+	 *
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for tracking to stop
+	 */
+	public synchronized void stop() throws InterruptedException {
+		if (!running) {
+			return;
+		}
+		running = false;
+		synchronized (subscribers) {
+			// Unblocks the subscribers waiting for invalidations, the broken connections are dropped by the pool
+			for (Jedis subscriber : subscribers) {
+				subscriber.getClient().disconnect();
+			}
+		}
+		for (Thread thread : trackerThreads) {
+			thread.interrupt();
+			thread.join(reconnectDelayMillis * 2);
+		}
+		trackerThreads = Collections.emptyList();
+	}
+
+	/**
+	 * @return Whether tracking is running
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * @return The number of ticket keys Redis reported as invalidated
+	 */
+	public long getInvalidationCount() {
+		return invalidationCount.get();
+	}
+
+	private void trackUntilStopped(JedisPool pool) {
+		while (running) {
+			try {
+				track(pool);
+			} catch (JedisException e) {
+				if (running) {
+					logger.warn("Lost ticket tracking, retrying in {}ms", reconnectDelayMillis, e);
+				}
+			}
+			if (running) {
+				try {
+					Thread.sleep(reconnectDelayMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tracks one Redis node until the connection is lost
+	 *
+	 * @param pool
+	 *            The pool of the node
+	 */
+	void track(JedisPool pool) {
+		Jedis subscriber = pool.getResource();
+		Jedis tracker = null;
+		try {
+			Client client = subscriber.getClient();
+			synchronized (subscribers) {
+				if (!running) {
+					subscriber.close();
+					subscriber = null;
+					return;
+				}
+				subscribers.add(subscriber);
+				// Sent together so nothing is sent once stop() may have disconnected the subscriber, which would
+				// silently reconnect it
+				client.sendCommand(Protocol.Command.CLIENT, "ID");
+				client.sendCommand(Protocol.Command.SUBSCRIBE, INVALIDATE_CHANNEL);
+			}
+			long id = client.getIntegerReply();
+			client.setTimeoutInfinite();
+			client.getRawObjectMultiBulkReply();
+			tracker = pool.getResource();
+			tracker.getClient().sendCommand(Protocol.Command.CLIENT, trackingArguments(id));
+			tracker.getClient().getStatusCodeReply();
+			logger.debug("Tracking ticket keys, redirected to client {}", id);
+			// Anything changed while we were not tracking was missed
+			dispatchAll();
+			for (;;) {
+				dispatch(client.getRawObjectMultiBulkReply());
+			}
+		} finally {
+			if (tracker != null) {
+				try {
+					tracker.getClient().sendCommand(Protocol.Command.CLIENT, "TRACKING", "off");
+					tracker.getClient().getStatusCodeReply();
+				} catch (JedisException e) {
+					logger.debug("Failed to turn off ticket tracking", e);
+				}
+				tracker.close();
+			}
+			if (subscriber != null) {
+				synchronized (subscribers) {
+					subscribers.remove(subscriber);
+					discard(subscriber);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes a subscribed connection so the pool drops it instead of handing it out again
+	 *
+	 * @param jedis
+	 *            The connection
+	 */
+	private static void discard(Jedis jedis) {
+		Client client = jedis.getClient();
+		if (!client.isBroken()) {
+			client.disconnect();
+			try {
+				// Reading from the closed connection marks it broken
+				client.getOne();
+			} catch (JedisException e) {
+				// Expected
+			}
+		}
+		jedis.close();
+	}
+
+	private byte[][] trackingArguments(long id) {
+		List<byte[]> arguments = new ArrayList<byte[]>(Arrays.asList(SafeEncoder.encode("TRACKING"), SafeEncoder
+			.encode("on"), SafeEncoder.encode("REDIRECT"), SafeEncoder.encode(Long.toString(id)), SafeEncoder
+			.encode("BCAST")));
+		byte[] prefix = SafeEncoder.encode(cache.getKeyStrategy().getPrefix());
+		if (prefix.length > 0) {
+			arguments.add(SafeEncoder.encode("PREFIX"));
+			arguments.add(prefix);
+		}
+		return arguments.toArray(new byte[0][]);
+	}
+
+	/**
+	 * Handles a message received by a subscriber
+	 *
+	 * @param reply
+	 *            The message, the kind of message followed by the channel and the invalidated keys
+	 */
+	void dispatch(List<Object> reply) {
+		if (reply.size() < 3 || !Arrays.equals(MESSAGE, (byte[]) reply.get(0))) {
+			return;
+		}
+		Object keys = reply.get(2);
+		if (!(keys instanceof List)) {
+			// Sent when the database was flushed
+			dispatchAll();
+			return;
+		}
+		String prefix = cache.getKeyStrategy().getPrefix();
+		for (Object key : (List<?>) keys) {
+			String name = SafeEncoder.encode((byte[]) key);
+			if (!name.startsWith(prefix)) {
+				continue;
+			}
+			String serviceTicket = name.substring(prefix.length());
+			invalidationCount.incrementAndGet();
+			logger.debug("Ticket key invalidated: {}", serviceTicket);
+			for (TicketInvalidationListener listener : listeners) {
+				listener.ticketInvalidated(serviceTicket);
+			}
+		}
+	}
+
+	private void dispatchAll() {
+		for (TicketInvalidationListener listener : listeners) {
+			listener.allTicketsInvalidated();
+		}
+	}
+
+	public Logger getLogger() {
+		return logger;
+	}
+
+	public void setLogger(Logger logger) {
+		this.logger = logger;
+	}
+
+	/**
+	 * Gets the number of milliseconds to wait before tracking again after the connection is lost
+	 *
+	 * @return The number of milliseconds to wait before tracking again after the connection is lost
+	 */
+	public long getReconnectDelayMillis() {
+		return reconnectDelayMillis;
+	}
+
+	/**
+	 * Sets the number of milliseconds to wait before tracking again after the connection is lost. Defaults to 1000.
+	 *
+	 * @param reconnectDelayMillis
+	 *            The number of milliseconds to wait before tracking again after the connection is lost
+	 */
+	public void setReconnectDelayMillis(long reconnectDelayMillis) {
+		this.reconnectDelayMillis = reconnectDelayMillis;
+	}
+}
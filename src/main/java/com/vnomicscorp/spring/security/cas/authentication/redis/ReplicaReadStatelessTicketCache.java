@@ -0,0 +1,314 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+import org.springframework.security.cas.authentication.StatelessTicketCache;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Serves ticket lookups from Redis replicas while puts and removes go to the primary through the wrapped
+ * {@link RedisStatelessTicketCache}. A lookup that misses on the replica or fails there is repeated on the primary, so
+ * tickets that were put moments ago and have not been replicated yet are still found.
+ * <p>
+ * With {@link ReadRouting#ROUND_ROBIN} replicas take turns. With {@link ReadRouting#LEAST_LATENCY} the replica with the
+ * lowest moving average lookup time is used, failures counting as {@link #setErrorPenaltyMillis(long) errorPenaltyMillis};
+ * every {@link #setProbeInterval(int) probeInterval}th lookup still goes round robin so the averages of the other
+ * replicas stay current.
+ */
+public class ReplicaReadStatelessTicketCache implements StatelessTicketCache {
+
+	/**
+	 * How lookups choose a replica
+	 */
+	public enum ReadRouting {
+		/**
+		 * Replicas take turns
+		 */
+		ROUND_ROBIN,
+		/**
+		 * The replica with the lowest moving average lookup time is used
+		 */
+		LEAST_LATENCY
+	}
+
+	private Logger logger = LoggerFactory.getLogger(ReplicaReadStatelessTicketCache.class);
+
+	private final RedisStatelessTicketCache primary;
+	private final List<Replica> replicas;
+	private final AtomicInteger next = new AtomicInteger();
+	private final AtomicLong replicaHitCount = new AtomicLong();
+	private final AtomicLong replicaErrorCount = new AtomicLong();
+	private final AtomicLong primaryFallbackCount = new AtomicLong();
+	private ReadRouting readRouting = ReadRouting.ROUND_ROBIN;
+	private boolean fallbackOnMiss = true;
+	private long errorPenaltyMillis = 1000;
+	private int probeInterval = 100;
+
+	/**
+	 * Creates a new instance
+	 *
+	 * @param primary
+	 *            The cache writing to the primary, also providing the serializer
+	 * @param replicaPools
+	 *            The pools of the replicas to read from
+	 */
+	public ReplicaReadStatelessTicketCache(RedisStatelessTicketCache primary, List<JedisPool> replicaPools) {
+		if (primary == null) {
+			throw new NullPointerException("Expected given primary to be not null");
+		}
+		if (replicaPools == null) {
+			throw new NullPointerException("Expected given replicaPools to be not null");
+		}
+		if (replicaPools.isEmpty()) {
+			throw new IllegalArgumentException("Expected at least one replica pool");
+		}
+		this.primary = primary;
+		List<Replica> replicas = new ArrayList<Replica>(replicaPools.size());
+		for (JedisPool pool : replicaPools) {
+			replicas.add(new Replica(pool));
+		}
+		this.replicas = Collections.unmodifiableList(replicas);
+	}
+
+	@Override
+	public CasAuthenticationToken getByTicketId(String serviceTicket) {
+		if (serviceTicket == null) {
+			throw new NullPointerException("Expected given serviceTicket to be not null");
+		}
+		Replica replica = chooseReplica();
+		byte[] serialized;
+		try {
+			serialized = getFromReplica(replica, serviceTicket);
+		} catch (JedisException e) {
+			replica.record(errorPenaltyMillis * 1000000L);
+			replicaErrorCount.incrementAndGet();
+			logger.warn("Ticket lookup on replica failed, using primary: {}", serviceTicket, e);
+			return getFromPrimary(serviceTicket);
+		}
+		logger.debug("Replica hit: {}; service ticket: {}", serialized != null, serviceTicket);
+		if (serialized == null) {
+			// Possibly put moments ago and not replicated yet
+			return fallbackOnMiss ? getFromPrimary(serviceTicket) : null;
+		}
+		replicaHitCount.incrementAndGet();
+		// Recorded, refreshed and rewritten on the primary as its own hits are
+		return primary.handleHit(serviceTicket, serialized);
+	}
+
+	@Override
+	public void putTicketInCache(CasAuthenticationToken token) {
+		primary.putTicketInCache(token);
+	}
+
+	@Override
+	public void removeTicketFromCache(CasAuthenticationToken token) {
+		primary.removeTicketFromCache(token);
+	}
+
+	@Override
+	public void removeTicketFromCache(String serviceTicket) {
+		primary.removeTicketFromCache(serviceTicket);
+	}
+
+	/**
+	 * @return The number of lookups answered by a replica
+	 */
+	public long getReplicaHitCount() {
+		return replicaHitCount.get();
+	}
+
+	/**
+	 * @return The number of lookups that failed on a replica
+	 */
+	public long getReplicaErrorCount() {
+		return replicaErrorCount.get();
+	}
+
+	/**
+	 * @return The number of lookups repeated on the primary after a replica miss or failure
+	 */
+	public long getPrimaryFallbackCount() {
+		return primaryFallbackCount.get();
+	}
+
+	/**
+	 * Gets the moving average lookup time of every replica in nanoseconds, in the order the replicas were given
+	 *
+	 * @return The moving average lookup time of every replica in nanoseconds
+	 */
+	public List<Long> getReplicaLatencyNanos() {
+		List<Long> latencies = new ArrayList<Long>(replicas.size());
+		for (Replica replica : replicas) {
+			latencies.add(replica.averageNanos);
+		}
+		return latencies;
+	}
+
+	private CasAuthenticationToken getFromPrimary(String serviceTicket) {
+		primaryFallbackCount.incrementAndGet();
+		return primary.getByTicketId(serviceTicket);
+	}
+
+	private byte[] getFromReplica(Replica replica, String serviceTicket) {
+		long start = System.nanoTime();
+		Jedis jedis = null;
+		try {
+			jedis = replica.pool.getResource();
+			byte[] serialized = primary.read(jedis, serviceTicket, primary.toKey(serviceTicket), false);
+			replica.record(System.nanoTime() - start);
+			return serialized;
+		} finally {
+			if (jedis != null) {
+				jedis.close();
+			}
+		}
+	}
+
+	private Replica chooseReplica() {
+		int turn = next.getAndIncrement() & Integer.MAX_VALUE;
+		if (readRouting == ReadRouting.ROUND_ROBIN || replicas.size() == 1 || turn % probeInterval == 0) {
+			return replicas.get(turn % replicas.size());
+		}
+		Replica fastest = replicas.get(0);
+		for (int i = 1; i < replicas.size(); i++) {
+			if (replicas.get(i).averageNanos < fastest.averageNanos) {
+				fastest = replicas.get(i);
+			}
+		}
+		return fastest;
+	}
+
+	/**
+	 * A replica and its moving average lookup time
+	 */
+	private static final class Replica {
+		final JedisPool pool;
+		volatile long averageNanos;
+
+		Replica(JedisPool pool) {
+			this.pool = pool;
+		}
+
+		void record(long nanos) {
+			// Exponentially weighted with alpha 1/8, lost updates under contention do not matter
+			long average = averageNanos;
+			averageNanos = average == 0 ? nanos : average + (nanos - average) / 8;
+		}
+	}
+
+	public Logger getLogger() {
+		return logger;
+	}
+
+	public void setLogger(Logger logger) {
+		this.logger = logger;
+	}
+
+	/**
+	 * Gets how lookups choose a replica
+	 *
+	 * @return How lookups choose a replica
+	 */
+	public ReadRouting getReadRouting() {
+		return readRouting;
+	}
+
+	/**
+	 * Sets how lookups choose a replica
+	 *
+	 * @param readRouting
+	 *            How lookups choose a replica
+	 */
+	public void setReadRouting(ReadRouting readRouting) {
+		if (readRouting == null) {
+			throw new NullPointerException("Expected given readRouting to be not null");
+		}
+		this.readRouting = readRouting;
+	}
+
+	/**
+	 * Gets whether a lookup that misses on a replica is repeated on the primary
+	 *
+	 * @return Whether a lookup that misses on a replica is repeated on the primary
+	 */
+	public boolean isFallbackOnMiss() {
+		return fallbackOnMiss;
+	}
+
+	/**
+	 * Sets whether a lookup that misses on a replica is repeated on the primary. Without it tickets may not be found
+	 * until they have been replicated. Failed lookups are always repeated on the primary.
+	 *
+	 * @param fallbackOnMiss
+	 *            Whether a lookup that misses on a replica is repeated on the primary
+	 */
+	public void setFallbackOnMiss(boolean fallbackOnMiss) {
+		this.fallbackOnMiss = fallbackOnMiss;
+	}
+
+	/**
+	 * Gets the lookup time in milliseconds a failure counts as for {@link ReadRouting#LEAST_LATENCY}
+	 *
+	 * @return The lookup time in milliseconds a failure counts as
+	 */
+	public long getErrorPenaltyMillis() {
+		return errorPenaltyMillis;
+	}
+
+	/**
+	 * Sets the lookup time in milliseconds a failure counts as for {@link ReadRouting#LEAST_LATENCY}
+	 *
+	 * @param errorPenaltyMillis
+	 *            The lookup time in milliseconds a failure counts as
+	 */
+	public void setErrorPenaltyMillis(long errorPenaltyMillis) {
+		this.errorPenaltyMillis = errorPenaltyMillis;
+	}
+
+	/**
+	 * Gets how often {@link ReadRouting#LEAST_LATENCY} sends a lookup round robin to measure the other replicas
+	 *
+	 * @return The number of lookups per round robin lookup
+	 */
+	public int getProbeInterval() {
+		return probeInterval;
+	}
+
+	/**
+	 * Sets how often {@link ReadRouting#LEAST_LATENCY} sends a lookup round robin to measure the other replicas
+	 *
+	 * @param probeInterval
+	 *            The number of lookups per round robin lookup
+	 */
+	public void setProbeInterval(int probeInterval) {
+		if (probeInterval < 1) {
+			throw new IllegalArgumentException("Expected a positive probe interval, got " + probeInterval);
+		}
+		this.probeInterval = probeInterval;
+	}
+}
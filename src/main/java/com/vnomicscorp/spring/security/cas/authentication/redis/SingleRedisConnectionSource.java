@@ -0,0 +1,57 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import redis.clients.jedis.JedisPool;
+
+/**
+ * A {@link RedisConnectionSource} for a single Redis server, or a primary and its replicas behind one address
+ */
+public class SingleRedisConnectionSource implements RedisConnectionSource {
+
+	private final JedisPool jedisPool;
+
+	/**
+	 * Creates a new instance
+	 *
+	 * @param jedisPool
+	 *            The pool to get instances of {@link redis.clients.jedis.Jedis} from
+	 */
+	public SingleRedisConnectionSource(JedisPool jedisPool) {
+		if (jedisPool == null) {
+			throw new NullPointerException("Expected given jedisPool to be not null");
+		}
+		this.jedisPool = jedisPool;
+	}
+
+	@Override
+	public JedisPool getPool(byte[] key) {
+		return jedisPool;
+	}
+
+	@Override
+	public Collection<JedisPool> getPools() {
+		return Collections.singletonList(jedisPool);
+	}
+
+	@Override
+	public void refresh() {
+		// Nothing to reload
+	}
+}
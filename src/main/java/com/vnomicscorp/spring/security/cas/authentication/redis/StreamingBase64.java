@@ -0,0 +1,149 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Base64 encoding between byte arrays and strings without intermediate copies. Uses the standard alphabet with padding
+ * and no line breaks, the same as Spring Security's <code>Base64</code>. Whitespace is skipped when decoding.
+ */
+final class StreamingBase64 {
+
+	private static final byte[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+		.getBytes(StandardCharsets.US_ASCII);
+	private static final byte PAD = '=';
+	private static final int[] DECODE = new int[128];
+
+	static {
+		Arrays.fill(DECODE, -1);
+		for (int i = 0; i < ALPHABET.length; i++) {
+			DECODE[ALPHABET[i]] = i;
+		}
+	}
+
+	private StreamingBase64() {
+	}
+
+	/**
+	 * @param length
+	 *            The number of bytes to encode
+	 * @return The number of characters they encode to
+	 */
+	static int encodedLength(int length) {
+		return (length + 2) / 3 * 4;
+	}
+
+	/**
+	 * @param encoded
+	 *            The encoded characters
+	 * @return The largest number of bytes they can decode to
+	 */
+	static int maxDecodedLength(CharSequence encoded) {
+		return encoded.length() / 4 * 3 + 3;
+	}
+
+	/**
+	 * Encodes bytes into an ASCII buffer
+	 *
+	 * @param source
+	 *            The bytes to encode
+	 * @param offset
+	 *            The start of the bytes to encode
+	 * @param length
+	 *            The number of bytes to encode
+	 * @param destination
+	 *            The buffer to encode into, of at least {@link #encodedLength(int)} bytes
+	 * @return The number of bytes written to the destination
+	 */
+	static int encode(byte[] source, int offset, int length, byte[] destination) {
+		int end = offset + length;
+		int out = 0;
+		int i = offset;
+		for (; i + 2 < end; i += 3) {
+			int bits = (source[i] & 0xff) << 16 | (source[i + 1] & 0xff) << 8 | source[i + 2] & 0xff;
+			destination[out++] = ALPHABET[bits >>> 18];
+			destination[out++] = ALPHABET[bits >>> 12 & 0x3f];
+			destination[out++] = ALPHABET[bits >>> 6 & 0x3f];
+			destination[out++] = ALPHABET[bits & 0x3f];
+		}
+		int remaining = end - i;
+		if (remaining > 0) {
+			int bits = (source[i] & 0xff) << 16 | (remaining == 2 ? (source[i + 1] & 0xff) << 8 : 0);
+			destination[out++] = ALPHABET[bits >>> 18];
+			destination[out++] = ALPHABET[bits >>> 12 & 0x3f];
+			destination[out++] = remaining == 2 ? ALPHABET[bits >>> 6 & 0x3f] : PAD;
+			destination[out++] = PAD;
+		}
+		return out;
+	}
+
+	/**
+	 * Decodes characters into a byte buffer
+	 *
+	 * @param encoded
+	 *            The characters to decode
+	 * @param destination
+	 *            The buffer to decode into, of at least {@link #maxDecodedLength(CharSequence)} bytes
+	 * @return The number of bytes written to the destination
+	 * @throws IllegalArgumentException
+	 *             If the characters are not valid Base64
+	 */
+	static int decode(CharSequence encoded, byte[] destination) {
+		int bits = 0;
+		int count = 0;
+		int padding = 0;
+		int out = 0;
+		for (int i = 0; i < encoded.length(); i++) {
+			char c = encoded.charAt(i);
+			if (Character.isWhitespace(c)) {
+				continue;
+			}
+			int value;
+			if (c == PAD) {
+				if (count < 2) {
+					throw new IllegalArgumentException("Unexpected padding at index " + i);
+				}
+				padding++;
+				value = 0;
+			} else if (c >= DECODE.length || (value = DECODE[c]) < 0 || padding > 0) {
+				throw new IllegalArgumentException("Invalid Base64 character at index " + i);
+			}
+			bits = bits << 6 | value;
+			if (++count == 4) {
+				destination[out++] = (byte) (bits >>> 16);
+				if (padding < 2) {
+					destination[out++] = (byte) (bits >>> 8);
+				}
+				if (padding < 1) {
+					destination[out++] = (byte) bits;
+				}
+				bits = 0;
+				count = 0;
+				if (padding > 0) {
+					padding = -1;
+				}
+			} else if (padding < 0) {
+				throw new IllegalArgumentException("Unexpected data after padding at index " + i);
+			}
+		}
+		if (count != 0) {
+			throw new IllegalArgumentException("Truncated Base64 input");
+		}
+		return out;
+	}
+}
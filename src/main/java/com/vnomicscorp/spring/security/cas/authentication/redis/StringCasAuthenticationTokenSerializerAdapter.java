@@ -0,0 +1,86 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.nio.charset.Charset;
+
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+
+/**
+ * Adapts a {@link CasAuthenticationTokenSerializer} to the {@link BinaryCasAuthenticationTokenSerializer} contract by
+ * encoding the serialized string with a charset. With the default UTF-8 charset the bytes stored in Redis are the same
+ * as the ones Jedis stores for the string, so entries written before are still readable.
+ */
+public class StringCasAuthenticationTokenSerializerAdapter implements BinaryCasAuthenticationTokenSerializer {
+
+	private final CasAuthenticationTokenSerializer serializer;
+	private Charset charset = Charset.forName("UTF-8");
+
+	/**
+	 * Creates a new instance
+	 *
+	 * @param serializer
+	 *            The serializer to adapt
+	 */
+	public StringCasAuthenticationTokenSerializerAdapter(CasAuthenticationTokenSerializer serializer) {
+		if (serializer == null) {
+			throw new NullPointerException("Expected given serializer to be non-null");
+		}
+		this.serializer = serializer;
+	}
+
+	@Override
+	public byte[] serialize(CasAuthenticationToken token) throws CasAuthenticationTokenSerializerException {
+		return serializer.serialize(token).getBytes(charset);
+	}
+
+	@Override
+	public CasAuthenticationToken deserialize(byte[] serialized) throws CasAuthenticationTokenSerializerException {
+		return serializer.deserialize(new String(serialized, charset));
+	}
+
+	/**
+	 * Gets the serializer being adapted
+	 *
+	 * @return The serializer being adapted
+	 */
+	public CasAuthenticationTokenSerializer getSerializer() {
+		return serializer;
+	}
+
+	/**
+	 * Gets the charset that will be used to encode and decode strings to bytes
+	 * and vice versa
+	 *
+	 * @return The charset that will be used to encode and decode strings to
+	 *         bytes and vice versa
+	 */
+	public Charset getCharset() {
+		return charset;
+	}
+
+	/**
+	 * Sets the charset that will be used to encode and decode strings to bytes
+	 * and vice versa
+	 *
+	 * @param charset
+	 *            The charset that will be used to encode and decode strings to
+	 *            bytes and vice versa
+	 */
+	public void setCharset(Charset charset) {
+		this.charset = charset;
+	}
+}
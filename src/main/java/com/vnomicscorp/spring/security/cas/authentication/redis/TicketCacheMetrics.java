@@ -0,0 +1,128 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+/**
+ * Receives measurements from {@link RedisStatelessTicketCache}, {@link BloomFilterStatelessTicketCache} and
+ * {@link CircuitBreakerStatelessTicketCache}. Times are split into waiting for a pooled connection, the Redis command
+ * itself and (de)serialization so the bottleneck can be told apart.
+ * <p>
+ * Implementations must be thread safe and cheap, they are called on every cache access. When the cache is left with
+ * {@link #NONE} it does not take any time measurements at all.
+ */
+public interface TicketCacheMetrics {
+
+	/**
+	 * Metrics that discard every measurement
+	 */
+	TicketCacheMetrics NONE = new NoOpTicketCacheMetrics();
+
+	/**
+	 * A cache operation
+	 */
+	enum Operation {
+		GET, PUT, REMOVE
+	}
+
+	/**
+	 * Records the time spent waiting for a pooled connection
+	 *
+	 * @param nanos
+	 *            The wait in nanoseconds
+	 */
+	void recordPoolWait(long nanos);
+
+	/**
+	 * Records the round trip time of a Redis command
+	 *
+	 * @param operation
+	 *            The operation the command belongs to
+	 * @param nanos
+	 *            The round trip time in nanoseconds
+	 */
+	void recordCommand(Operation operation, long nanos);
+
+	/**
+	 * Records a failed operation
+	 *
+	 * @param operation
+	 *            The operation that failed
+	 */
+	void recordError(Operation operation);
+
+	/**
+	 * Records the outcome of a lookup
+	 *
+	 * @param hit
+	 *            Whether the ticket was cached
+	 */
+	void recordLookup(boolean hit);
+
+	/**
+	 * Records the serialization of a token
+	 *
+	 * @param nanos
+	 *            The serialization time in nanoseconds
+	 * @param bytes
+	 *            The size of the serialized token
+	 */
+	void recordSerialize(long nanos, int bytes);
+
+	/**
+	 * Records the deserialization of a token
+	 *
+	 * @param nanos
+	 *            The deserialization time in nanoseconds
+	 * @param bytes
+	 *            The size of the serialized token
+	 */
+	void recordDeserialize(long nanos, int bytes);
+
+	/**
+	 * Records a cached token rejected by a {@link TokenDeserializationFilter}, which was treated as a miss
+	 */
+	void recordRejection();
+
+	/**
+	 * Records a lookup checked against the filter of a {@link BloomFilterStatelessTicketCache}
+	 *
+	 * @param skipped
+	 *            Whether the filter knew the ticket to be absent, so Redis was not consulted
+	 */
+	void recordFilterLookup(boolean skipped);
+
+	/**
+	 * Records a lookup the filter of a {@link BloomFilterStatelessTicketCache} passed on that then missed
+	 */
+	void recordFilterFalsePositive();
+
+	/**
+	 * Records an operation a {@link CircuitBreakerStatelessTicketCache} answered without Redis because its circuit was
+	 * open
+	 *
+	 * @param operation
+	 *            The operation
+	 */
+	void recordShortCircuit(Operation operation);
+
+	/**
+	 * Records a state change of the circuit of a {@link CircuitBreakerStatelessTicketCache}
+	 *
+	 * @param state
+	 *            The new state
+	 */
+	void recordCircuitTransition(CircuitBreakerStatelessTicketCache.State state);
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+/**
+ * Receives notifications that cached service tickets were changed or removed by another node and any locally held copy
+ * must be discarded
+ */
+public interface TicketInvalidationListener {
+	/**
+	 * Called when the given service ticket was changed or removed
+	 *
+	 * @param serviceTicket
+	 *            The service ticket that is no longer valid locally
+	 */
+	void ticketInvalidated(String serviceTicket);
+
+	/**
+	 * Called when invalidations may have been missed, for example after the invalidation channel was (re)connected.
+	 * Every locally held ticket must be discarded.
+	 */
+	void allTicketsInvalidated();
+}
@@ -0,0 +1,250 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Decides the Redis keys service tickets are stored under. By default a ticket is stored under its own text, which is
+ * how this cache always stored tickets.
+ * <p>
+ * A {@link #setPrefix(String) prefix} moves the tickets into their own namespace of a shared database.
+ * {@link #setHashed(boolean) Hashing} stores each ticket under the first {@link #setHashLength(int) hashLength} bytes
+ * of its SHA-256 hash instead. CAS tickets are often longer than 60 characters, so this saves memory on every key and
+ * keeps the tickets themselves out of Redis.
+ * <p>
+ * {@link #setBucketCount(int) Buckets} pack the tickets into that many Redis hashes instead of one key per ticket,
+ * saving the per key overhead. Hashes small enough for the compact encoding, as set by {@code hash-max-ziplist-entries}
+ * and {@code hash-max-ziplist-value}, save far more. Pick the bucket count so a bucket holds fewer tickets than
+ * {@code hash-max-ziplist-entries}. Redis can not expire single fields of a hash, so each bucket is split into
+ * generations spanning the expiration time and a ticket is looked up in the current and the previous generation. See
+ * {@link RedisStatelessTicketCache#setKeyStrategy(TicketKeyStrategy)}.
+ * <p>
+ * Changing the key strategy of a running cache makes every cached ticket a miss.
+ */
+public class TicketKeyStrategy {
+
+	private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	});
+
+	private byte[] prefix = new byte[0];
+	private boolean hashed;
+	private int hashLength = 16;
+	private int bucketCount;
+
+	/**
+	 * Gets the key a ticket is stored under when tickets are not packed into buckets
+	 *
+	 * @param serviceTicket
+	 *            The service ticket
+	 * @return The Redis key
+	 */
+	public byte[] toKey(String serviceTicket) {
+		return concat(prefix, hashed ? hash(serviceTicket) : serviceTicket.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Gets the bucket a ticket is stored in
+	 *
+	 * @param serviceTicket
+	 *            The service ticket
+	 * @return The bucket, between 0 and {@link #getBucketCount()}
+	 */
+	public int toBucket(String serviceTicket) {
+		return toBucket(sha256(serviceTicket));
+	}
+
+	/**
+	 * Gets the key of one generation of a bucket. Every generation of a bucket shares a hash tag so they live on the
+	 * same Redis Cluster node, unless the prefix has a hash tag of its own.
+	 *
+	 * @param bucket
+	 *            The bucket
+	 * @param generation
+	 *            The generation
+	 * @return The Redis key
+	 */
+	public byte[] toBucketKey(int bucket, long generation) {
+		return concat(prefix, ("{" + bucket + "}:" + generation).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Gets the field a ticket is stored under within its bucket
+	 *
+	 * @param serviceTicket
+	 *            The service ticket
+	 * @return The hash field
+	 */
+	public byte[] toField(String serviceTicket) {
+		return hashed ? hash(serviceTicket) : serviceTicket.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Gets the key a ticket is stored under when tickets are not packed into buckets, from the field of the ticket
+	 *
+	 * @param field
+	 *            The field of the ticket from {@link #toField(String)}
+	 * @return The Redis key
+	 */
+	public byte[] toKeyOfField(byte[] field) {
+		return concat(prefix, field);
+	}
+
+	/**
+	 * Gets the bucket a ticket is stored in, from the field of the ticket
+	 *
+	 * @param field
+	 *            The field of the ticket from {@link #toField(String)}
+	 * @return The bucket, between 0 and {@link #getBucketCount()}
+	 */
+	public int toBucketOfField(byte[] field) {
+		// A hashed field starts with the same bytes the bucket is taken from
+		return hashed ? toBucket(field) : toBucket(new String(field, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Gets the key of the index of the tickets of a principal. Hashed like tickets are when tickets are hashed.
+	 *
+	 * @param principal
+	 *            The name of the principal
+	 * @return The Redis key
+	 */
+	public byte[] toPrincipalKey(String principal) {
+		return concat(prefix, concat("principal:".getBytes(StandardCharsets.UTF_8), hashed ? hash(principal)
+			: principal.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * @return Whether tickets are packed into buckets
+	 */
+	public boolean isBucketed() {
+		return bucketCount > 0;
+	}
+
+	private int toBucket(byte[] hash) {
+		int value = (hash[0] & 0xFF) << 24 | (hash[1] & 0xFF) << 16 | (hash[2] & 0xFF) << 8 | hash[3] & 0xFF;
+		return (value & Integer.MAX_VALUE) % bucketCount;
+	}
+
+	private byte[] hash(String serviceTicket) {
+		return Arrays.copyOf(sha256(serviceTicket), hashLength);
+	}
+
+	private static byte[] sha256(String serviceTicket) {
+		return SHA_256.get().digest(serviceTicket.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] result = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		return result;
+	}
+
+	/**
+	 * Gets the prefix of every key
+	 *
+	 * @return The prefix of every key
+	 */
+	public String getPrefix() {
+		return new String(prefix, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Sets the prefix of every key, such as {@code "cas:st:"}. Defaults to no prefix.
+	 *
+	 * @param prefix
+	 *            The prefix of every key
+	 */
+	public void setPrefix(String prefix) {
+		if (prefix == null) {
+			throw new NullPointerException("Expected given prefix to be not null");
+		}
+		this.prefix = prefix.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Gets whether tickets are stored under a hash of the ticket instead of the ticket itself
+	 *
+	 * @return Whether tickets are stored under a hash of the ticket
+	 */
+	public boolean isHashed() {
+		return hashed;
+	}
+
+	/**
+	 * Sets whether tickets are stored under a hash of the ticket instead of the ticket itself
+	 *
+	 * @param hashed
+	 *            Whether tickets are stored under a hash of the ticket
+	 */
+	public void setHashed(boolean hashed) {
+		this.hashed = hashed;
+	}
+
+	/**
+	 * Gets the number of bytes of the SHA-256 hash of a ticket used as its key
+	 *
+	 * @return The number of bytes of the hash used as key
+	 */
+	public int getHashLength() {
+		return hashLength;
+	}
+
+	/**
+	 * Sets the number of bytes of the SHA-256 hash of a ticket used as its key. Defaults to 16, which makes a collision
+	 * among a billion cached tickets less likely than one in 10^20.
+	 *
+	 * @param hashLength
+	 *            The number of bytes of the hash used as key, from 8 to 32
+	 */
+	public void setHashLength(int hashLength) {
+		if (hashLength < 8 || hashLength > 32) {
+			throw new IllegalArgumentException("Expected given hashLength to be between 8 and 32");
+		}
+		this.hashLength = hashLength;
+	}
+
+	/**
+	 * Gets the number of buckets tickets are packed into
+	 *
+	 * @return The number of buckets tickets are packed into, or 0 if every ticket has its own key
+	 */
+	public int getBucketCount() {
+		return bucketCount;
+	}
+
+	/**
+	 * Sets the number of buckets tickets are packed into. Defaults to 0, which gives every ticket its own key. Buckets
+	 * require {@link RedisStatelessTicketCache#setExpirationSeconds(Integer) expirationSeconds} to be set.
+	 *
+	 * @param bucketCount
+	 *            The number of buckets tickets are packed into, or 0 to give every ticket its own key
+	 */
+	public void setBucketCount(int bucketCount) {
+		if (bucketCount < 0) {
+			throw new IllegalArgumentException("Expected given bucketCount to be not negative");
+		}
+		this.bucketCount = bucketCount;
+	}
+}
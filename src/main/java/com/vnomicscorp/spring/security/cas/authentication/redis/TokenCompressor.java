@@ -0,0 +1,55 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.io.IOException;
+
+/**
+ * A compression algorithm used by {@link CompressingCasAuthenticationTokenSerializer}
+ */
+public interface TokenCompressor {
+	/**
+	 * Gets the identifier written in front of data compressed by this compressor. Must be unique among the compressors
+	 * registered with a {@link CompressingCasAuthenticationTokenSerializer} and must never change once data was
+	 * written with it.
+	 *
+	 * @return The identifier of this compressor
+	 */
+	byte getId();
+
+	/**
+	 * Compresses the given data
+	 *
+	 * @param data
+	 *            The data to compress
+	 * @return The compressed data
+	 * @throws IOException
+	 */
+	byte[] compress(byte[] data) throws IOException;
+
+	/**
+	 * Decompresses data previously compressed by {@link #compress(byte[])}
+	 *
+	 * @param compressed
+	 *            The compressed data
+	 * @param maxLength
+	 *            The maximum number of bytes the data may decompress to
+	 * @return The decompressed data
+	 * @throws IOException
+	 *             If the data is corrupt or decompresses to more than maxLength bytes
+	 */
+	byte[] decompress(byte[] compressed, int maxLength) throws IOException;
+}
@@ -0,0 +1,247 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Restricts what Java serialization may read back as a token. Only classes on the allow-list are resolved, and the
+ * depth of the object graph, the number of objects and the length of arrays are limited, so a payload planted in Redis
+ * can neither instantiate arbitrary classes nor exhaust memory. Pre-populated for the object graph of a
+ * {@link org.springframework.security.cas.authentication.CasAuthenticationToken}: the token and its user details,
+ * authorities, CAS client assertion and principal, and common attribute values. Classes of other details or attribute
+ * values must be added with {@link #allowClass(String)} or {@link #allowPackage(String)}.
+ * <p>
+ * Allowed classes are cached by name once resolved, so repeat lookups skip the class loader. The limits are enforced
+ * through the serialization filter of the JVM, which requires Java 8u121 or later; on older JVMs only the allow-list
+ * applies. A process wide filter set with <code>jdk.serialFilter</code> is still consulted once the limits pass.
+ * <p>
+ * Used by {@link DefaultCasAuthenticationTokenSerializer}, {@link JavaBinaryCasAuthenticationTokenSerializer} and the
+ * Java serialization fallback of {@link CompactCasAuthenticationTokenSerializer}. Rejected payloads fail with a
+ * {@link CasAuthenticationTokenRejectedException}.
+ */
+public class TokenDeserializationFilter {
+
+	private static final int MAX_RESOLVED_CLASSES = 1000;
+
+	private static final List<String> DEFAULT_CLASSES = Arrays.asList(
+		"org.springframework.security.cas.authentication.CasAuthenticationToken",
+		"org.springframework.security.authentication.AbstractAuthenticationToken",
+		"org.springframework.security.core.userdetails.User",
+		"org.springframework.security.core.userdetails.User$AuthorityComparator",
+		"org.springframework.security.core.authority.SimpleGrantedAuthority",
+		"org.springframework.security.web.authentication.WebAuthenticationDetails",
+		"org.springframework.security.cas.web.authentication.DefaultServiceAuthenticationDetails",
+		"java.lang.String", "java.lang.Boolean", "java.lang.Byte", "java.lang.Character", "java.lang.Short",
+		"java.lang.Integer", "java.lang.Long", "java.lang.Float", "java.lang.Double", "java.lang.Number",
+		"java.lang.Enum", "java.math.BigInteger", "java.math.BigDecimal", "java.util.Date", "java.util.UUID",
+		"java.util.Locale", "java.util.ArrayList", "java.util.LinkedList", "java.util.HashMap",
+		"java.util.LinkedHashMap", "java.util.TreeMap", "java.util.HashSet", "java.util.LinkedHashSet",
+		"java.util.TreeSet", "java.util.Arrays$ArrayList", "java.util.Collections$UnmodifiableCollection",
+		"java.util.Collections$UnmodifiableList", "java.util.Collections$UnmodifiableRandomAccessList",
+		"java.util.Collections$UnmodifiableSet", "java.util.Collections$UnmodifiableSortedSet",
+		"java.util.Collections$UnmodifiableMap", "java.util.Collections$UnmodifiableSortedMap",
+		"java.util.Collections$EmptyList", "java.util.Collections$EmptySet", "java.util.Collections$EmptyMap",
+		"java.util.Collections$SingletonList", "java.util.Collections$SingletonSet",
+		"java.util.Collections$SingletonMap");
+
+	private static final List<String> DEFAULT_PACKAGES = Arrays.asList("org.jasig.cas.client.");
+
+	private final Set<String> allowedClasses = ConcurrentHashMap.newKeySet();
+	private final List<String> allowedPackages = new CopyOnWriteArrayList<String>();
+	private final ConcurrentMap<String, Class<?>> resolvedClasses = new ConcurrentHashMap<String, Class<?>>();
+	private int maxDepth = 20;
+	private int maxReferences = 100000;
+	private int maxArrayLength = 100000;
+
+	/**
+	 * Creates a new instance allowing the object graph of a token
+	 */
+	public TokenDeserializationFilter() {
+		allowedClasses.addAll(DEFAULT_CLASSES);
+		allowedPackages.addAll(DEFAULT_PACKAGES);
+	}
+
+	/**
+	 * Adds a class to the allow-list
+	 *
+	 * @param className
+	 *            The name of the class, as returned by {@link Class#getName()}
+	 */
+	public void allowClass(String className) {
+		if (className == null) {
+			throw new NullPointerException("Expected given className to be not null");
+		}
+		allowedClasses.add(className);
+	}
+
+	/**
+	 * Adds every class of a package and its sub packages to the allow-list
+	 *
+	 * @param packageName
+	 *            The name of the package
+	 */
+	public void allowPackage(String packageName) {
+		if (packageName == null) {
+			throw new NullPointerException("Expected given packageName to be not null");
+		}
+		allowedPackages.add(packageName.endsWith(".") ? packageName : packageName + ".");
+	}
+
+	/**
+	 * Gets whether a class may be read. Arrays may be read if their component type may be.
+	 *
+	 * @param className
+	 *            The name of the class, as returned by {@link Class#getName()}
+	 * @return Whether the class may be read
+	 */
+	public boolean isAllowed(String className) {
+		if (className.startsWith("[")) {
+			String component = className.substring(className.lastIndexOf('[') + 1);
+			// Arrays of primitives are coded by a single letter
+			return component.length() == 1 || component.startsWith("L") && component.endsWith(";")
+				&& isAllowed(component.substring(1, component.length() - 1));
+		}
+		if (allowedClasses.contains(className)) {
+			return true;
+		}
+		for (String packageName : allowedPackages) {
+			if (className.startsWith(packageName)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets an allowed class that was resolved before
+	 *
+	 * @param className
+	 *            The name of the class
+	 * @return The class, or null if it was not resolved yet
+	 */
+	Class<?> getResolvedClass(String className) {
+		return resolvedClasses.get(className);
+	}
+
+	/**
+	 * Remembers a resolved allowed class
+	 *
+	 * @param type
+	 *            The class
+	 */
+	void addResolvedClass(Class<?> type) {
+		// Bounds the cache should a package wide rule let many classes through
+		if (resolvedClasses.size() < MAX_RESOLVED_CLASSES) {
+			resolvedClasses.putIfAbsent(type.getName(), type);
+		}
+	}
+
+	/**
+	 * Checks a read against the limits
+	 *
+	 * @param arrayLength
+	 *            The length of the array being read, or a negative number if no array is being read
+	 * @param depth
+	 *            The depth of the object being read in the graph
+	 * @param references
+	 *            The number of objects and references read so far
+	 * @return Why the read is rejected, or null if it is within the limits
+	 */
+	String checkLimits(long arrayLength, long depth, long references) {
+		if (arrayLength > maxArrayLength) {
+			return "Array length " + arrayLength + " exceeds " + maxArrayLength;
+		}
+		if (depth > maxDepth) {
+			return "Depth " + depth + " exceeds " + maxDepth;
+		}
+		if (references > maxReferences) {
+			return "References " + references + " exceed " + maxReferences;
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the deepest nesting of objects allowed
+	 *
+	 * @return The deepest nesting of objects allowed
+	 */
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * Sets the deepest nesting of objects allowed. Defaults to 20.
+	 *
+	 * @param maxDepth
+	 *            The deepest nesting of objects allowed
+	 */
+	public void setMaxDepth(int maxDepth) {
+		if (maxDepth <= 0) {
+			throw new IllegalArgumentException("Expected given maxDepth to be positive");
+		}
+		this.maxDepth = maxDepth;
+	}
+
+	/**
+	 * Gets the largest number of objects and references to them allowed in one token
+	 *
+	 * @return The largest number of objects and references allowed in one token
+	 */
+	public int getMaxReferences() {
+		return maxReferences;
+	}
+
+	/**
+	 * Sets the largest number of objects and references to them allowed in one token. Defaults to 100000.
+	 *
+	 * @param maxReferences
+	 *            The largest number of objects and references allowed in one token
+	 */
+	public void setMaxReferences(int maxReferences) {
+		if (maxReferences <= 0) {
+			throw new IllegalArgumentException("Expected given maxReferences to be positive");
+		}
+		this.maxReferences = maxReferences;
+	}
+
+	/**
+	 * Gets the longest array allowed
+	 *
+	 * @return The longest array allowed
+	 */
+	public int getMaxArrayLength() {
+		return maxArrayLength;
+	}
+
+	/**
+	 * Sets the longest array allowed, which also bounds the capacity of collections. Defaults to 100000.
+	 *
+	 * @param maxArrayLength
+	 *            The longest array allowed
+	 */
+	public void setMaxArrayLength(int maxArrayLength) {
+		if (maxArrayLength < 0) {
+			throw new IllegalArgumentException("Expected given maxArrayLength to be not negative");
+		}
+		this.maxArrayLength = maxArrayLength;
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+
+/**
+ * A {@link BinaryCasAuthenticationTokenSerializer} that writes a versioned envelope around the output of the preferred
+ * serializer and reads entries of every registered format. Each entry starts with the {@link #HEADER} byte followed by
+ * the id of the format it was written in, so the serializer of an entry is chosen by the entry itself. Entries written
+ * before the envelope was introduced, which do not start with the header byte, are read by the
+ * {@link #setLegacySerializer(BinaryCasAuthenticationTokenSerializer) legacy serializer}.
+ * <p>
+ * This allows switching to a faster format without flushing the cache: register the old format, or set it as the
+ * legacy serializer, and make the new one preferred. Entries of the old format remain readable until they expire, or
+ * are rewritten on read with {@link RedisStatelessTicketCache#setRewritingOutdatedEntries(boolean)}.
+ * <p>
+ * The header byte never starts the output of the serializers in this project: Java serialization starts with 0xAC,
+ * Base64 with an ASCII character, the compact format with its version byte and compressed entries with
+ * {@link CompressingCasAuthenticationTokenSerializer#HEADER}. Compression belongs inside the envelope, by registering
+ * a {@link CompressingCasAuthenticationTokenSerializer} as a format.
+ */
+public class VersionedCasAuthenticationTokenSerializer implements BinaryCasAuthenticationTokenSerializer {
+
+	/**
+	 * The first byte of every entry in the envelope
+	 */
+	public static final byte HEADER = (byte) 0xFD;
+
+	private final Map<Byte, BinaryCasAuthenticationTokenSerializer> formats = new HashMap<Byte, BinaryCasAuthenticationTokenSerializer>();
+	private byte preferredFormat;
+	private BinaryCasAuthenticationTokenSerializer preferred;
+	private BinaryCasAuthenticationTokenSerializer legacySerializer;
+
+	/**
+	 * Creates a new instance
+	 *
+	 * @param preferredFormat
+	 *            The id of the format new entries are written in
+	 * @param preferred
+	 *            The serializer of the format new entries are written in
+	 */
+	public VersionedCasAuthenticationTokenSerializer(byte preferredFormat,
+		BinaryCasAuthenticationTokenSerializer preferred) {
+		addFormat(preferredFormat, preferred);
+		setPreferredFormat(preferredFormat);
+	}
+
+	@Override
+	public byte[] serialize(CasAuthenticationToken token) throws CasAuthenticationTokenSerializerException {
+		byte[] serialized = preferred.serialize(token);
+		byte[] result = new byte[serialized.length + 2];
+		result[0] = HEADER;
+		result[1] = preferredFormat;
+		System.arraycopy(serialized, 0, result, 2, serialized.length);
+		return result;
+	}
+
+	@Override
+	public CasAuthenticationToken deserialize(byte[] serialized) throws CasAuthenticationTokenSerializerException {
+		if (serialized == null) {
+			throw new NullPointerException("Expected given serialized to be non-null");
+		}
+		if (serialized.length == 0 || serialized[0] != HEADER) {
+			if (legacySerializer == null) {
+				throw new CasAuthenticationTokenSerializerException("Entry has no format header");
+			}
+			return legacySerializer.deserialize(serialized);
+		}
+		if (serialized.length < 2) {
+			throw new CasAuthenticationTokenSerializerException("Truncated entry");
+		}
+		BinaryCasAuthenticationTokenSerializer format = formats.get(serialized[1]);
+		if (format == null) {
+			throw new CasAuthenticationTokenSerializerException("Unknown format: " + serialized[1]);
+		}
+		return format.deserialize(Arrays.copyOfRange(serialized, 2, serialized.length));
+	}
+
+	/**
+	 * Gets whether the given entry is not in the preferred format, and so would be written differently now
+	 *
+	 * @param serialized
+	 *            The stored entry
+	 * @return Whether the entry is not in the preferred format
+	 */
+	public boolean isOutdated(byte[] serialized) {
+		return serialized.length < 2 || serialized[0] != HEADER || serialized[1] != preferredFormat;
+	}
+
+	/**
+	 * Registers the serializer of a format so entries of that format can be read
+	 *
+	 * @param id
+	 *            The id of the format, written after the header byte
+	 * @param serializer
+	 *            The serializer of the format
+	 */
+	public void addFormat(byte id, BinaryCasAuthenticationTokenSerializer serializer) {
+		if (serializer == null) {
+			throw new NullPointerException("Expected given serializer to be non-null");
+		}
+		BinaryCasAuthenticationTokenSerializer existing = formats.get(id);
+		if (existing != null && existing != serializer) {
+			throw new IllegalArgumentException("A format with id " + id + " is already registered");
+		}
+		formats.put(id, serializer);
+	}
+
+	/**
+	 * Gets the serializer of a registered format
+	 *
+	 * @param id
+	 *            The id of the format
+	 * @return The serializer of the format, or null if none is registered
+	 */
+	public BinaryCasAuthenticationTokenSerializer getFormat(byte id) {
+		return formats.get(id);
+	}
+
+	/**
+	 * Gets the id of the format new entries are written in
+	 *
+	 * @return The id of the format new entries are written in
+	 */
+	public byte getPreferredFormat() {
+		return preferredFormat;
+	}
+
+	/**
+	 * Sets the id of the format new entries are written in. The format must be registered.
+	 *
+	 * @param preferredFormat
+	 *            The id of the format new entries are written in
+	 */
+	public void setPreferredFormat(byte preferredFormat) {
+		BinaryCasAuthenticationTokenSerializer serializer = formats.get(preferredFormat);
+		if (serializer == null) {
+			throw new IllegalArgumentException("Expected given preferredFormat " + preferredFormat
+				+ " to be registered");
+		}
+		this.preferredFormat = preferredFormat;
+		this.preferred = serializer;
+	}
+
+	/**
+	 * Gets the serializer reading entries without the header byte
+	 *
+	 * @return The serializer reading entries without the header byte, or null if such entries are rejected
+	 */
+	public BinaryCasAuthenticationTokenSerializer getLegacySerializer() {
+		return legacySerializer;
+	}
+
+	/**
+	 * Sets the serializer reading entries without the header byte, typically the serializer the cache used before
+	 * the envelope was introduced. Defaults to none, rejecting such entries.
+	 *
+	 * @param legacySerializer
+	 *            The serializer reading entries without the header byte, or null to reject such entries
+	 */
+	public void setLegacySerializer(BinaryCasAuthenticationTokenSerializer legacySerializer) {
+		this.legacySerializer = legacySerializer;
+	}
+}
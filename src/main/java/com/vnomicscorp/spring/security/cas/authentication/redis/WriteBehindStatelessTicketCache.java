@@ -0,0 +1,393 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+import org.springframework.security.cas.authentication.StatelessTicketCache;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.exceptions.JedisMovedDataException;
+import redis.clients.jedis.params.SetParams;
+
+/**
+ * Buffers puts and removes in memory and writes them to Redis in batches. A batch is written as one pipeline per Redis
+ * node once {@link #setBatchSize(int) batchSize} writes are pending or {@link #setFlushIntervalMillis(long)
+ * flushIntervalMillis} has passed, whichever comes first.
+ * <p>
+ * Writes to the same ticket are coalesced: only the latest put or remove of a ticket is sent, so a ticket that is put
+ * and removed again before a flush never reaches Redis as a value. Lookups consult the pending writes before Redis so
+ * this node always sees its own writes. Other nodes only see them once they are flushed.
+ * <p>
+ * A batch that fails to write is logged and counted in {@link #getFailedCount()}; the writes are not retried. If the
+ * buffer reaches {@link #setMaxPendingWrites(int) maxPendingWrites} the writing thread flushes it itself. Call
+ * {@link #start()} before use and {@link #stop()} at shutdown; stopping flushes every pending write.
+ */
+public class WriteBehindStatelessTicketCache implements StatelessTicketCache {
+
+	private Logger logger = LoggerFactory.getLogger(WriteBehindStatelessTicketCache.class);
+
+	private final RedisStatelessTicketCache cache;
+	private final Object lock = new Object();
+	private final Object flushLock = new Object();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong coalescedCount = new AtomicLong();
+	private int batchSize = 100;
+	private int maxPendingWrites = 10000;
+	private long flushIntervalMillis = 100;
+
+	private Map<String, PendingWrite> pending = new LinkedHashMap<String, PendingWrite>();
+	private Map<String, PendingWrite> flushing = Collections.emptyMap();
+	private volatile boolean running;
+	private Thread flusherThread;
+
+	/**
+	 * Creates a new instance
+	 *
+	 * @param cache
+	 *            The cache providing the connection pool, serializer and expiration settings and used for lookups
+	 */
+	public WriteBehindStatelessTicketCache(RedisStatelessTicketCache cache) {
+		if (cache == null) {
+			throw new NullPointerException("Expected given cache to be not null");
+		}
+		this.cache = cache;
+	}
+
+	/**
+	 * Starts the background flusher. Does nothing if it is already running.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		flusherThread = new Thread(this::flushUntilStopped, "redis-ticket-write-behind");
+		flusherThread.setDaemon(true);
+		flusherThread.start();
+	}
+
+	/**
+	 * Stops the background flusher and writes every pending write to Redis
+	 *
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for the flusher to stop
+	 */
+	public synchronized void stop() throws InterruptedException {
+		if (!running) {
+			return;
+		}
+		running = false;
+		synchronized (lock) {
+			lock.notifyAll();
+		}
+		flusherThread.join();
+		flusherThread = null;
+		flush();
+	}
+
+	/**
+	 * @return Whether the background flusher is running
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	@Override
+	public CasAuthenticationToken getByTicketId(String serviceTicket) {
+		if (serviceTicket == null) {
+			throw new NullPointerException("Expected given serviceTicket to be not null");
+		}
+		PendingWrite write;
+		synchronized (lock) {
+			write = pending.get(serviceTicket);
+			if (write == null) {
+				write = flushing.get(serviceTicket);
+			}
+		}
+		if (write != null) {
+			return write.token;
+		}
+		return cache.getByTicketId(serviceTicket);
+	}
+
+	@Override
+	public void putTicketInCache(CasAuthenticationToken token) {
+		if (token == null) {
+			throw new NullPointerException("Expected given token to be not null");
+		}
+		SetParams params = cache.createSetParams(token);
+		if (params == null) {
+			logger.debug("Not caching expired ticket {}", token.getCredentials());
+			return;
+		}
+		byte[] serialized;
+		try {
+			serialized = cache.getBinaryCasAuthenticationTokenSerializer().serialize(token);
+		} catch (CasAuthenticationTokenSerializerException e) {
+			throw new RuntimeException("Exception encountered while serializing CasAuthenticationToken", e);
+		}
+		String serviceTicket = token.getCredentials().toString();
+		enqueue(serviceTicket, new PendingWrite(serviceTicket, cache.toKey(serviceTicket), token, serialized,
+			params));
+	}
+
+	@Override
+	public void removeTicketFromCache(CasAuthenticationToken token) {
+		removeTicketFromCache(token.getCredentials().toString());
+	}
+
+	@Override
+	public void removeTicketFromCache(String serviceTicket) {
+		if (serviceTicket == null) {
+			throw new NullPointerException("Expected given serviceTicket to be not null");
+		}
+		enqueue(serviceTicket, new PendingWrite(serviceTicket, cache.toKey(serviceTicket), null, null, null));
+	}
+
+	/**
+	 * Writes every pending write to Redis now
+	 */
+	public void flush() {
+		synchronized (flushLock) {
+			Map<String, PendingWrite> batch;
+			synchronized (lock) {
+				if (pending.isEmpty()) {
+					return;
+				}
+				batch = pending;
+				flushing = batch;
+				pending = new LinkedHashMap<String, PendingWrite>();
+			}
+			try {
+				write(batch);
+			} finally {
+				synchronized (lock) {
+					flushing = Collections.emptyMap();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The number of writes waiting to be flushed
+	 */
+	public int getPendingCount() {
+		synchronized (lock) {
+			return pending.size();
+		}
+	}
+
+	/**
+	 * @return The number of writes that failed to be flushed
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**
+	 * @return The number of writes that replaced a pending write of the same ticket and so never reached Redis
+	 */
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	private void enqueue(String serviceTicket, PendingWrite write) {
+		int size;
+		synchronized (lock) {
+			if (pending.remove(serviceTicket) != null) {
+				coalescedCount.incrementAndGet();
+			}
+			pending.put(serviceTicket, write);
+			size = pending.size();
+			if (size >= batchSize) {
+				lock.notifyAll();
+			}
+		}
+		if (size >= maxPendingWrites || !running) {
+			flush();
+		}
+	}
+
+	private void write(Map<String, PendingWrite> batch) {
+		// Keys of different nodes can not share a pipeline
+		Map<JedisPool, List<PendingWrite>> batchByPool = new LinkedHashMap<JedisPool, List<PendingWrite>>();
+		for (PendingWrite write : batch.values()) {
+			try {
+				batchByPool.computeIfAbsent(cache.getConnectionSource().getPool(write.key),
+					pool -> new ArrayList<PendingWrite>()).add(write);
+			} catch (JedisException e) {
+				failedCount.incrementAndGet();
+				logger.warn("Failed to flush ticket write", e);
+			}
+		}
+		for (Map.Entry<JedisPool, List<PendingWrite>> entry : batchByPool.entrySet()) {
+			write(entry.getKey(), entry.getValue());
+		}
+	}
+
+	private void write(JedisPool pool, List<PendingWrite> batch) {
+		Jedis jedis = null;
+		try {
+			jedis = pool.getResource();
+			Pipeline pipeline = jedis.pipelined();
+			for (PendingWrite write : batch) {
+				if (write.token == null) {
+					cache.delete(pipeline, write.serviceTicket, write.key);
+				} else {
+					cache.write(pipeline, write.serviceTicket, write.key, write.serialized, write.params);
+				}
+			}
+			int failed = 0;
+			for (Object reply : pipeline.syncAndReturnAll()) {
+				if (reply instanceof JedisMovedDataException) {
+					cache.getConnectionSource().refresh();
+				}
+				if (reply instanceof JedisDataException) {
+					failed++;
+				}
+			}
+			if (failed > 0) {
+				failedCount.addAndGet(failed);
+				logger.warn("Failed to flush {} of {} ticket writes", failed, batch.size());
+			} else {
+				logger.debug("Flushed {} ticket writes", batch.size());
+			}
+		} catch (JedisException e) {
+			failedCount.addAndGet(batch.size());
+			logger.warn("Failed to flush {} ticket writes", batch.size(), e);
+		} finally {
+			if (jedis != null) {
+				jedis.close();
+			}
+		}
+	}
+
+	private void flushUntilStopped() {
+		while (running) {
+			synchronized (lock) {
+				if (running && pending.size() < batchSize) {
+					try {
+						lock.wait(flushIntervalMillis);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+			}
+			flush();
+		}
+	}
+
+	/**
+	 * A put, or a remove when the token is null
+	 */
+	private static final class PendingWrite {
+		final String serviceTicket;
+		final byte[] key;
+		final CasAuthenticationToken token;
+		final byte[] serialized;
+		final SetParams params;
+
+		PendingWrite(String serviceTicket, byte[] key, CasAuthenticationToken token, byte[] serialized,
+			SetParams params) {
+			this.serviceTicket = serviceTicket;
+			this.key = key;
+			this.token = token;
+			this.serialized = serialized;
+			this.params = params;
+		}
+	}
+
+	public Logger getLogger() {
+		return logger;
+	}
+
+	public void setLogger(Logger logger) {
+		this.logger = logger;
+	}
+
+	/**
+	 * Gets the number of pending writes that triggers a flush
+	 *
+	 * @return The number of pending writes that triggers a flush
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Sets the number of pending writes that triggers a flush
+	 *
+	 * @param batchSize
+	 *            The number of pending writes that triggers a flush
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Gets the number of pending writes at which writers flush the buffer themselves instead of waiting for the
+	 * background flusher
+	 *
+	 * @return The number of pending writes at which writers flush the buffer themselves
+	 */
+	public int getMaxPendingWrites() {
+		return maxPendingWrites;
+	}
+
+	/**
+	 * Sets the number of pending writes at which writers flush the buffer themselves instead of waiting for the
+	 * background flusher
+	 *
+	 * @param maxPendingWrites
+	 *            The number of pending writes at which writers flush the buffer themselves
+	 */
+	public void setMaxPendingWrites(int maxPendingWrites) {
+		this.maxPendingWrites = maxPendingWrites;
+	}
+
+	/**
+	 * Gets the longest time in milliseconds a write waits in the buffer
+	 *
+	 * @return The longest time in milliseconds a write waits in the buffer
+	 */
+	public long getFlushIntervalMillis() {
+		return flushIntervalMillis;
+	}
+
+	/**
+	 * Sets the longest time in milliseconds a write waits in the buffer
+	 *
+	 * @param flushIntervalMillis
+	 *            The longest time in milliseconds a write waits in the buffer
+	 */
+	public void setFlushIntervalMillis(long flushIntervalMillis) {
+		this.flushIntervalMillis = flushIntervalMillis;
+	}
+}
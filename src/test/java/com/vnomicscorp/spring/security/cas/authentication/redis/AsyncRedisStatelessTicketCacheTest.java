@@ -0,0 +1,213 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.easymock.EasyMockSupport;
+import org.jasig.cas.client.validation.AssertionImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.params.SetParams;
+import redis.clients.jedis.util.SafeEncoder;
+
+public class AsyncRedisStatelessTicketCacheTest extends EasyMockSupport {
+	private static final String ST = "ST-dddddd";
+
+	private AsyncRedisStatelessTicketCache cache;
+	private JedisPool jedisPool;
+	private Jedis jedis;
+	private Pipeline pipeline;
+	private BinaryCasAuthenticationTokenSerializer serializer;
+	private CasAuthenticationToken token;
+
+	@Before
+	public void setup() {
+		jedisPool = createMock(JedisPool.class);
+		jedis = createMock(Jedis.class);
+		pipeline = createMock(Pipeline.class);
+		serializer = createMock(BinaryCasAuthenticationTokenSerializer.class);
+		token = createMock(CasAuthenticationToken.class);
+		RedisStatelessTicketCache redisCache = new RedisStatelessTicketCache(jedisPool);
+		redisCache.setBinaryCasAuthenticationTokenSerializer(serializer);
+		cache = new AsyncRedisStatelessTicketCache(redisCache);
+		resetAll();
+	}
+
+	@After
+	public void teardown() throws InterruptedException {
+		cache.stop();
+	}
+
+	@Test
+	public void getByTicketIdAsync() throws Exception {
+		byte[] val = new byte[] { 1, 2, 3 };
+		Response<byte[]> response = createMock(Response.class);
+		expectPipeline();
+		expect(pipeline.get(aryEq(SafeEncoder.encode(ST)))).andReturn(response);
+		pipeline.sync();
+		expectLastCall();
+		expect(response.get()).andReturn(val);
+		expect(serializer.deserialize(aryEq(val))).andReturn(token);
+		replayAll();
+		cache.start();
+		assertEquals(token, cache.getByTicketIdAsync(ST).get());
+		cache.stop();
+		verifyAll();
+	}
+
+	@Test
+	public void putTicketInCacheAsync() throws Exception {
+		byte[] val = new byte[] { 1, 2, 3 };
+		Response<String> response = createMock(Response.class);
+		expect(token.getCredentials()).andReturn(ST).anyTimes();
+		expect(token.getAssertion()).andReturn(new AssertionImpl("dave")).anyTimes();
+		expect(serializer.serialize(token)).andReturn(val);
+		expectPipeline();
+		expect(pipeline.set(aryEq(SafeEncoder.encode(ST)), aryEq(val), anyObject(SetParams.class))).andReturn(
+			response);
+		pipeline.sync();
+		expectLastCall();
+		expect(response.get()).andReturn("OK");
+		replayAll();
+		cache.start();
+		cache.putTicketInCacheAsync(token).get();
+		cache.stop();
+		verifyAll();
+	}
+
+	@Test
+	public void removeTicketFromCache() {
+		Response<Long> response = createMock(Response.class);
+		expectPipeline();
+		expect(pipeline.del(aryEq(SafeEncoder.encode(ST)))).andReturn(response);
+		pipeline.sync();
+		expectLastCall();
+		expect(response.get()).andReturn(1L);
+		replayAll();
+		cache.start();
+		cache.removeTicketFromCache(ST);
+		verifyAll();
+	}
+
+	@Test
+	public void redisFailureFailsFuture() throws InterruptedException {
+		expect(jedisPool.getResource()).andThrow(new JedisConnectionException("down"));
+		replayAll();
+		cache.start();
+		try {
+			cache.removeTicketFromCacheAsync(ST).get();
+			fail("Expected failure");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof JedisConnectionException);
+		}
+		assertEquals(1, cache.getFailedCount());
+		verifyAll();
+	}
+
+	@Test
+	public void rejectedWhenQueueFull() throws Exception {
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		expect(jedisPool.getResource()).andAnswer(() -> {
+			blocked.countDown();
+			release.await();
+			throw new JedisConnectionException("down");
+		}).anyTimes();
+		cache.setQueueCapacity(1);
+		replayAll();
+		cache.start();
+		CompletableFuture<Void> inFlight = cache.removeTicketFromCacheAsync(ST);
+		blocked.await();
+		CompletableFuture<Void> queued = cache.removeTicketFromCacheAsync(ST);
+		CompletableFuture<Void> rejected = cache.removeTicketFromCacheAsync(ST);
+		assertTrue(rejected.isCompletedExceptionally());
+		assertEquals(1, cache.getRejectedCount());
+		assertEquals(1, cache.getQueueSize());
+		release.countDown();
+		cache.stop();
+		assertTrue(inFlight.isCompletedExceptionally());
+		assertTrue(queued.isCompletedExceptionally());
+		assertEquals(2, cache.getFailedCount());
+	}
+
+	@Test
+	public void rejectedWhenNotRunning() throws InterruptedException {
+		replayAll();
+		try {
+			cache.removeTicketFromCacheAsync(ST).get();
+			fail("Expected rejection");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+		assertEquals(1, cache.getRejectedCount());
+		verifyAll();
+	}
+
+	@Test
+	public void interruptedWorkerStopsAccepting() throws Exception {
+		replayAll();
+		cache.start();
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals("redis-ticket-cache-0")) {
+				thread.interrupt();
+			}
+		}
+		for (int i = 0; i < 100 && cache.isRunning(); i++) {
+			Thread.sleep(10);
+		}
+		assertFalse(cache.isRunning());
+		try {
+			cache.removeTicketFromCacheAsync(ST).get();
+			fail("Expected rejection");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+		cache.stop();
+		verifyAll();
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void getByTicketIdNull() {
+		cache.getByTicketIdAsync(null);
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void putTicketInCacheNull() {
+		cache.putTicketInCacheAsync(null);
+	}
+
+	private void expectPipeline() {
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.pipelined()).andReturn(pipeline);
+		jedis.close();
+		expectLastCall();
+	}
+}
@@ -0,0 +1,277 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import org.easymock.EasyMockSupport;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+import org.springframework.security.cas.authentication.StatelessTicketCache;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+public class BloomFilterStatelessTicketCacheTest extends EasyMockSupport {
+	private static final String ST = "ST-dddddd";
+	private static final long LIFETIME = 1000;
+
+	private BloomFilterStatelessTicketCache cache;
+	private StatelessTicketCache delegate;
+	private RedisPubSubTicketInvalidator invalidator;
+	private JmxTicketCacheMetrics metrics;
+	private CasAuthenticationToken token;
+	private long now;
+
+	@Before
+	public void setup() {
+		delegate = createStrictMock(StatelessTicketCache.class);
+		invalidator = createMock(RedisPubSubTicketInvalidator.class);
+		token = createMock(CasAuthenticationToken.class);
+		cache = new BloomFilterStatelessTicketCache(delegate, LIFETIME) {
+			@Override
+			protected long currentTimeMillis() {
+				return now;
+			}
+		};
+		metrics = new JmxTicketCacheMetrics();
+		cache.setMetrics(metrics);
+		resetAll();
+		expect(token.getCredentials()).andReturn(ST).anyTimes();
+	}
+
+	@Test
+	public void lookupsPassedUntilTrusted() {
+		expect(delegate.getByTicketId(ST)).andReturn(token);
+		replayAll();
+		assertFalse(cache.isTrusted());
+		assertEquals(token, cache.getByTicketId(ST));
+		assertEquals(0, cache.getPassedCount());
+		verifyAll();
+	}
+
+	@Test
+	public void unknownTicketSkipped() {
+		replayAll();
+		now += LIFETIME;
+		assertTrue(cache.isTrusted());
+		assertNull(cache.getByTicketId(ST));
+		assertEquals(1, cache.getSkippedCount());
+		assertEquals(1, metrics.getFilterSkippedCount());
+		verifyAll();
+	}
+
+	@Test
+	public void putTicketLookedUp() {
+		delegate.putTicketInCache(token);
+		expectLastCall();
+		expect(delegate.getByTicketId(ST)).andReturn(token);
+		replayAll();
+		now += LIFETIME;
+		cache.putTicketInCache(token);
+		assertEquals(token, cache.getByTicketId(ST));
+		assertEquals(1, cache.getPassedCount());
+		assertEquals(1, metrics.getFilterPassedCount());
+		verifyAll();
+	}
+
+	@Test
+	public void putPublished() {
+		invalidator.addListener(cache);
+		expectLastCall();
+		delegate.putTicketInCache(token);
+		expectLastCall();
+		invalidator.publish(ST);
+		expectLastCall();
+		replayAll();
+		cache.setInvalidator(invalidator);
+		cache.putTicketInCache(token);
+		verifyAll();
+	}
+
+	@Test
+	public void putAfterHitPublished() {
+		invalidator.addListener(cache);
+		expectLastCall();
+		expect(invalidator.isRunning()).andReturn(true).anyTimes();
+		expect(delegate.getByTicketId(ST)).andReturn(token);
+		delegate.putTicketInCache(token);
+		expectLastCall();
+		invalidator.publish(ST);
+		expectLastCall();
+		replayAll();
+		cache.setInvalidator(invalidator);
+		cache.putTicketInCache(cache.getByTicketId(ST));
+		verifyAll();
+	}
+
+	@Test
+	public void rePutTicketRememberedByOtherNode() {
+		StatelessTicketCache otherDelegate = createMock(StatelessTicketCache.class);
+		BloomFilterStatelessTicketCache other = new BloomFilterStatelessTicketCache(otherDelegate, LIFETIME) {
+			@Override
+			protected long currentTimeMillis() {
+				return now;
+			}
+		};
+		// Publishes of this node reach the other one, as over a shared channel
+		invalidator.addListener(cache);
+		expectLastCall();
+		expect(invalidator.isRunning()).andReturn(true).anyTimes();
+		invalidator.publish(ST);
+		expectLastCall().andAnswer(() -> {
+			other.ticketInvalidated(ST);
+			return null;
+		}).times(4);
+		delegate.putTicketInCache(token);
+		expectLastCall().times(4);
+		expect(otherDelegate.getByTicketId(ST)).andReturn(token);
+		replayAll();
+		cache.setInvalidator(invalidator);
+		// The ticket is put back after each use and outlives two generations of the filter
+		for (int i = 0; i < 4; i++) {
+			cache.putTicketInCache(token);
+			now += LIFETIME;
+		}
+		assertTrue(other.isTrusted());
+		assertEquals(token, other.getByTicketId(ST));
+		assertEquals(0, other.getSkippedCount());
+		verifyAll();
+	}
+
+	@Test
+	public void publishFailureDoesNotFailPut() {
+		invalidator.addListener(cache);
+		expectLastCall();
+		delegate.putTicketInCache(token);
+		expectLastCall();
+		invalidator.publish(ST);
+		expectLastCall().andThrow(new JedisConnectionException("down"));
+		replayAll();
+		cache.setInvalidator(invalidator);
+		cache.putTicketInCache(token);
+		verifyAll();
+	}
+
+	@Test
+	public void filterBypassedWithoutInvalidatorTraffic() {
+		invalidator.addListener(cache);
+		expectLastCall();
+		expect(invalidator.isRunning()).andReturn(true).anyTimes();
+		expect(delegate.getByTicketId(ST)).andReturn(token);
+		replayAll();
+		cache.setInvalidator(invalidator);
+		now += LIFETIME;
+		assertFalse(cache.isTrusted());
+		assertEquals(token, cache.getByTicketId(ST));
+		cache.ticketInvalidated("ST-other");
+		assertTrue(cache.isTrusted());
+		assertNull(cache.getByTicketId("ST-unknown"));
+		verifyAll();
+	}
+
+	@Test
+	public void filterBypassedWhileInvalidatorStopped() {
+		invalidator.addListener(cache);
+		expectLastCall();
+		expect(invalidator.isRunning()).andReturn(false).anyTimes();
+		replayAll();
+		cache.setInvalidator(invalidator);
+		now += LIFETIME;
+		cache.ticketInvalidated("ST-other");
+		assertFalse(cache.isTrusted());
+		verifyAll();
+	}
+
+	@Test
+	public void ticketOfOtherNodeLookedUp() {
+		expect(delegate.getByTicketId(ST)).andReturn(null);
+		replayAll();
+		now += LIFETIME;
+		cache.ticketInvalidated(ST);
+		assertNull(cache.getByTicketId(ST));
+		assertEquals(1, cache.getFalsePositiveCount());
+		assertEquals(1, metrics.getFilterFalsePositiveCount());
+		verifyAll();
+	}
+
+	@Test
+	public void lostInvalidationsBypassFilter() {
+		expect(delegate.getByTicketId(ST)).andReturn(token);
+		replayAll();
+		now += LIFETIME;
+		cache.allTicketsInvalidated();
+		assertFalse(cache.isTrusted());
+		assertEquals(token, cache.getByTicketId(ST));
+		now += LIFETIME;
+		assertTrue(cache.isTrusted());
+		verifyAll();
+	}
+
+	@Test
+	public void ticketRememberedForOneLifetime() {
+		expect(delegate.getByTicketId(ST)).andReturn(token);
+		replayAll();
+		now += LIFETIME;
+		cache.add(ST);
+		now += LIFETIME;
+		assertEquals(token, cache.getByTicketId(ST));
+		now += LIFETIME;
+		assertNull(cache.getByTicketId(ST));
+		verifyAll();
+	}
+
+	@Test
+	public void falsePositiveRateWithinBudget() {
+		expect(delegate.getByTicketId(anyString())).andReturn(null).anyTimes();
+		replayAll();
+		cache.setMaxMemoryBytes(64 * 1024);
+		cache.setFalsePositiveRate(0.01);
+		assertEquals(64 * 1024, cache.getMemoryBytes());
+		long capacity = cache.getCapacity();
+		assertTrue(capacity > 20000);
+		for (int i = 0; i < capacity; i++) {
+			cache.add("ST-" + i + "-cas.example.com");
+		}
+		now += LIFETIME;
+		int skipped = 0;
+		int lookups = 10000;
+		for (int i = 0; i < lookups; i++) {
+			if (cache.getByTicketId("ST-absent-" + i) == null) {
+				skipped++;
+			}
+		}
+		double measured = 1 - (double) skipped / lookups;
+		assertTrue("Measured false positive rate " + measured, measured < 0.02);
+		assertEquals(0.01, cache.getEstimatedFalsePositiveRate(), 0.005);
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void getByTicketIdNull() {
+		cache.getByTicketId(null);
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void putTicketInCacheNull() {
+		cache.putTicketInCache(null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidFalsePositiveRate() {
+		cache.setFalsePositiveRate(1);
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.jasig.cas.client.validation.AssertionImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+import org.testcontainers.DockerClientFactory;
+import org.testcontainers.containers.GenericContainer;
+
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+/**
+ * Integration test that verifies {@link CircuitBreakerStatelessTicketCache} opens while Redis stops answering and
+ * closes again once it recovers. Redis is paused rather than stopped so connections hang instead of being refused.
+ * This test requires docker to be installed.
+ *
+ */
+public class CircuitBreakerStatelessTicketCacheIT {
+
+	private static final int REDIS_DEFAULT_PORT = 6379;
+	private static final long OPEN_MILLIS = 1000;
+
+	@Rule
+	public GenericContainer redis = new GenericContainer("redis:5").withExposedPorts(REDIS_DEFAULT_PORT);
+
+	private static final String USERNAME = "dave";
+	private static final String KEY = "key";
+	private static final String ROLE = "role";
+
+	private JedisPool pool;
+	private CircuitBreakerStatelessTicketCache cache;
+
+	@Before
+	public void setup() {
+		JedisPoolConfig config = new JedisPoolConfig();
+		config.setMaxWaitMillis(200);
+		pool = new JedisPool(config, redis.getContainerIpAddress(), redis.getMappedPort(REDIS_DEFAULT_PORT), 200);
+		RedisStatelessTicketCache redisCache = new RedisStatelessTicketCache(pool);
+		redisCache.setExpirationSeconds(60);
+		cache = new CircuitBreakerStatelessTicketCache(redisCache);
+		cache.setTimeoutMillis(100);
+		cache.setWindowSize(10);
+		cache.setMinimumCalls(5);
+		cache.setOpenMillis(OPEN_MILLIS);
+		cache.setHalfOpenProbes(1);
+	}
+
+	@After
+	public void teardown() {
+		cache.stop();
+		pool.close();
+	}
+
+	@Test
+	public void pausedRedisOpensCircuitAndRecovers() throws InterruptedException {
+		cache.putTicketInCache(makeToken("ST-1"));
+		assertEquals("ST-1", cache.getByTicketId("ST-1").getCredentials());
+
+		pause();
+		try {
+			for (int i = 0; i < 5 && cache.getState() == CircuitBreakerStatelessTicketCache.State.CLOSED; i++) {
+				long start = System.nanoTime();
+				assertNull(cache.getByTicketId("ST-1"));
+				assertTrue("Lookup was not cut off by the deadline", (System.nanoTime() - start) / 1000000 < 1000);
+			}
+			assertEquals(CircuitBreakerStatelessTicketCache.State.OPEN, cache.getState());
+			assertTrue(cache.getTimedOutCount() > 0);
+
+			long start = System.nanoTime();
+			assertNull(cache.getByTicketId("ST-1"));
+			assertTrue("Open circuit still waited on Redis", (System.nanoTime() - start) / 1000000 < 50);
+			assertTrue(cache.getShortCircuitedCount() > 0);
+
+			cache.removeTicketFromCache("ST-1");
+			assertEquals(1, cache.getQueuedRemoveCount());
+		} finally {
+			unpause();
+		}
+
+		Thread.sleep(OPEN_MILLIS + 100);
+		cache.getByTicketId("ST-2");
+		for (int i = 0; i < 100 && cache.getReplayedRemoveCount() == 0; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(CircuitBreakerStatelessTicketCache.State.CLOSED, cache.getState());
+		assertEquals(1, cache.getReplayedRemoveCount());
+		assertNull(cache.getByTicketId("ST-1"));
+	}
+
+	private void pause() {
+		DockerClientFactory.instance().client().pauseContainerCmd(redis.getContainerId()).exec();
+	}
+
+	private void unpause() {
+		DockerClientFactory.instance().client().unpauseContainerCmd(redis.getContainerId()).exec();
+	}
+
+	private CasAuthenticationToken makeToken(String serviceTicket) {
+		return new CasAuthenticationToken(KEY, USERNAME, serviceTicket, Arrays.asList(new SimpleGrantedAuthority(ROLE)),
+			new User(USERNAME, serviceTicket, Arrays.asList(new SimpleGrantedAuthority(ROLE))), new AssertionImpl(
+				USERNAME));
+	}
+}
@@ -0,0 +1,273 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.easymock.EasyMockSupport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+import org.springframework.security.cas.authentication.StatelessTicketCache;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import com.vnomicscorp.spring.security.cas.authentication.redis.CircuitBreakerStatelessTicketCache.State;
+
+public class CircuitBreakerStatelessTicketCacheTest extends EasyMockSupport {
+	private static final String ST = "ST-dddddd";
+
+	private CircuitBreakerStatelessTicketCache cache;
+	private StatelessTicketCache delegate;
+	private JmxTicketCacheMetrics metrics;
+	private CasAuthenticationToken token;
+	private long now;
+
+	@Before
+	public void setup() {
+		delegate = createMock(StatelessTicketCache.class);
+		token = createMock(CasAuthenticationToken.class);
+		cache = new CircuitBreakerStatelessTicketCache(delegate) {
+			@Override
+			protected long currentTimeMillis() {
+				return now;
+			}
+		};
+		cache.setWindowSize(4);
+		cache.setMinimumCalls(4);
+		cache.setHalfOpenProbes(2);
+		cache.setOpenMillis(1000);
+		metrics = new JmxTicketCacheMetrics();
+		cache.setMetrics(metrics);
+		resetAll();
+		expect(token.getCredentials()).andReturn(ST).anyTimes();
+	}
+
+	@After
+	public void teardown() {
+		cache.stop();
+	}
+
+	@Test
+	public void failuresOpenCircuit() {
+		expect(delegate.getByTicketId(ST)).andReturn(token).times(2);
+		expect(delegate.getByTicketId(ST)).andThrow(new JedisConnectionException("down")).times(2);
+		replayAll();
+		assertEquals(token, cache.getByTicketId(ST));
+		assertEquals(token, cache.getByTicketId(ST));
+		assertNull(cache.getByTicketId(ST));
+		assertEquals(State.CLOSED, cache.getState());
+		assertNull(cache.getByTicketId(ST));
+		assertEquals(State.OPEN, cache.getState());
+		// Answered without the delegate
+		assertNull(cache.getByTicketId(ST));
+		assertEquals(2, cache.getFailedCount());
+		assertEquals(1, cache.getShortCircuitedCount());
+		assertEquals(1, cache.getOpenedCount());
+		assertEquals(1, metrics.getShortCircuitedCount());
+		assertEquals("OPEN", metrics.getCircuitState());
+		verifyAll();
+	}
+
+	@Test
+	public void successfulProbesCloseCircuit() {
+		open();
+		expect(delegate.getByTicketId(ST)).andReturn(token).times(2);
+		replayAll();
+		openCircuit();
+		now += 1000;
+		assertEquals(token, cache.getByTicketId(ST));
+		assertEquals(State.HALF_OPEN, cache.getState());
+		assertEquals(token, cache.getByTicketId(ST));
+		assertEquals(State.CLOSED, cache.getState());
+		assertEquals("CLOSED", metrics.getCircuitState());
+		verifyAll();
+	}
+
+	@Test
+	public void failedProbeReopensCircuit() {
+		open();
+		expect(delegate.getByTicketId(ST)).andThrow(new JedisConnectionException("down"));
+		replayAll();
+		openCircuit();
+		now += 1000;
+		assertNull(cache.getByTicketId(ST));
+		assertEquals(State.OPEN, cache.getState());
+		assertEquals(2, cache.getOpenedCount());
+		assertNull(cache.getByTicketId(ST));
+		assertEquals(1, cache.getShortCircuitedCount());
+		verifyAll();
+	}
+
+	@Test
+	public void probesLimited() throws InterruptedException {
+		makeThreadSafe(delegate, false);
+		open();
+		CountDownLatch probing = new CountDownLatch(2);
+		CountDownLatch release = new CountDownLatch(1);
+		expect(delegate.getByTicketId(ST)).andAnswer(() -> {
+			probing.countDown();
+			release.await();
+			return token;
+		}).times(2);
+		replayAll();
+		openCircuit();
+		now += 1000;
+		Thread first = new Thread(() -> cache.getByTicketId(ST));
+		Thread second = new Thread(() -> cache.getByTicketId(ST));
+		first.start();
+		second.start();
+		probing.await();
+		// Both probes in flight, everything else is answered without the delegate
+		assertNull(cache.getByTicketId(ST));
+		assertEquals(1, cache.getShortCircuitedCount());
+		release.countDown();
+		first.join();
+		second.join();
+		assertEquals(State.CLOSED, cache.getState());
+		verifyAll();
+	}
+
+	@Test
+	public void slowCallsOpenCircuit() {
+		cache.setSlowCallMillis(10);
+		expect(delegate.getByTicketId(ST)).andAnswer(() -> {
+			Thread.sleep(20);
+			return token;
+		}).times(2);
+		expect(delegate.getByTicketId(ST)).andReturn(token).times(2);
+		replayAll();
+		for (int i = 0; i < 4; i++) {
+			assertEquals(token, cache.getByTicketId(ST));
+		}
+		assertEquals(State.OPEN, cache.getState());
+		assertEquals(2, cache.getSlowCount());
+		verifyAll();
+	}
+
+	@Test
+	public void timedOutLookupIsMiss() {
+		cache.setTimeoutMillis(50);
+		CountDownLatch release = new CountDownLatch(1);
+		expect(delegate.getByTicketId(ST)).andAnswer(() -> {
+			release.await();
+			return token;
+		});
+		replayAll();
+		long start = System.nanoTime();
+		assertNull(cache.getByTicketId(ST));
+		assertTrue(System.nanoTime() - start < 1000000000L);
+		release.countDown();
+		assertEquals(1, cache.getTimedOutCount());
+		assertEquals(1, cache.getFailedCount());
+	}
+
+	@Test
+	public void putDroppedWhileOpen() {
+		open();
+		replayAll();
+		openCircuit();
+		cache.putTicketInCache(token);
+		assertEquals(1, cache.getDroppedWriteCount());
+		verifyAll();
+	}
+
+	@Test
+	public void failedPutSwallowed() {
+		delegate.putTicketInCache(token);
+		expectLastCall().andThrow(new JedisConnectionException("down"));
+		replayAll();
+		cache.putTicketInCache(token);
+		assertEquals(1, cache.getDroppedWriteCount());
+		verifyAll();
+	}
+
+	@Test
+	public void removesReplayedOnceClosed() throws InterruptedException {
+		cache.setHalfOpenProbes(1);
+		// The failed remove counts towards opening the circuit
+		expect(delegate.getByTicketId("ST-failing")).andThrow(new JedisConnectionException("down")).times(3);
+		delegate.removeTicketFromCache("ST-1");
+		expectLastCall().andThrow(new JedisConnectionException("down"));
+		expect(delegate.getByTicketId(ST)).andReturn(token);
+		delegate.removeTicketFromCache("ST-1");
+		expectLastCall();
+		delegate.removeTicketFromCache("ST-2");
+		expectLastCall();
+		replayAll();
+		cache.removeTicketFromCache("ST-1");
+		openCircuit();
+		cache.removeTicketFromCache("ST-2");
+		cache.removeTicketFromCache("ST-1");
+		assertEquals(2, cache.getQueuedRemoveCount());
+		now += 1000;
+		assertEquals(token, cache.getByTicketId(ST));
+		for (int i = 0; i < 100 && cache.getReplayedRemoveCount() < 2; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(2, cache.getReplayedRemoveCount());
+		assertEquals(0, cache.getQueuedRemoveCount());
+		verifyAll();
+	}
+
+	@Test
+	public void removesDroppedWhenQueueFull() {
+		cache.setMaxQueuedRemoves(1);
+		open();
+		replayAll();
+		openCircuit();
+		cache.removeTicketFromCache("ST-1");
+		cache.removeTicketFromCache("ST-2");
+		assertEquals(1, cache.getQueuedRemoveCount());
+		assertEquals(1, cache.getDroppedWriteCount());
+		verifyAll();
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void getByTicketIdNull() {
+		cache.getByTicketId(null);
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void putTicketInCacheNull() {
+		cache.putTicketInCache(null);
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void removeTicketFromCacheNull() {
+		cache.removeTicketFromCache((String) null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void failureRateThresholdOutOfRange() {
+		cache.setFailureRateThreshold(0);
+	}
+
+	private void open() {
+		expect(delegate.getByTicketId("ST-failing")).andThrow(new JedisConnectionException("down")).times(4);
+	}
+
+	private void openCircuit() {
+		for (int i = 0; i < 4 && cache.getState() == State.CLOSED; i++) {
+			cache.getByTicketId("ST-failing");
+		}
+		assertEquals(State.OPEN, cache.getState());
+	}
+}
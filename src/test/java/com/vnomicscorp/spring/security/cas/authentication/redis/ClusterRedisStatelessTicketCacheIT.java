@@ -0,0 +1,150 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.jasig.cas.client.validation.AssertionImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+import org.testcontainers.containers.FixedHostPortGenericContainer;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.containers.wait.strategy.Wait;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.util.JedisClusterCRC16;
+import redis.clients.jedis.util.SafeEncoder;
+
+/**
+ * Integration test that verifies {@link RedisStatelessTicketCache} and its batching front ends work against a Redis
+ * Cluster of three primaries. This test requires docker to be installed and ports 7000 to 7005 to be free, as the
+ * cluster nodes announce their own ports.
+ *
+ */
+public class ClusterRedisStatelessTicketCacheIT {
+
+	private static final int FIRST_PORT = 7000;
+	private static final int NODES = 6;
+	private static final int TICKETS = 100;
+
+	@ClassRule
+	public static GenericContainer redis = createCluster();
+
+	private static final String USERNAME = "dave";
+	private static final String KEY = "key";
+	private static final String ROLE = "role";
+
+	private ClusterRedisConnectionSource connectionSource;
+	private RedisStatelessTicketCache cache;
+
+	@SuppressWarnings("resource")
+	private static GenericContainer createCluster() {
+		FixedHostPortGenericContainer container = new FixedHostPortGenericContainer("grokzen/redis-cluster:5.0.5");
+		for (int port = FIRST_PORT; port < FIRST_PORT + NODES; port++) {
+			container.withFixedExposedPort(port, port);
+		}
+		return container.withEnv("IP", "0.0.0.0")
+			.waitingFor(Wait.forLogMessage(".*Cluster state changed: ok.*\\n", 1));
+	}
+
+	@Before
+	public void setup() {
+		connectionSource = new ClusterRedisConnectionSource(Collections.singleton(new HostAndPort(redis
+			.getContainerIpAddress(), FIRST_PORT)));
+		cache = new RedisStatelessTicketCache(connectionSource);
+		cache.setExpirationSeconds(60);
+	}
+
+	@After
+	public void teardown() {
+		connectionSource.close();
+	}
+
+	@Test
+	public void doCrudAcrossNodes() {
+		assertEquals(3, primariesUsed());
+		for (int i = 0; i < TICKETS; i++) {
+			cache.putTicketInCache(makeToken("ST-" + i));
+		}
+		for (int i = 0; i < TICKETS; i++) {
+			assertEquals("ST-" + i, cache.getByTicketId("ST-" + i).getCredentials());
+			cache.removeTicketFromCache("ST-" + i);
+			assertNull(cache.getByTicketId("ST-" + i));
+		}
+	}
+
+	@Test
+	public void hashTagKeysShareSlot() {
+		assertEquals(JedisClusterCRC16.getSlot(cache.toKey("ST-1")),
+			JedisClusterCRC16.getSlot(SafeEncoder.encode("{ST-1}:refresh")));
+	}
+
+	@Test
+	public void asyncBatchesSplitByNode() throws Exception {
+		AsyncRedisStatelessTicketCache asyncCache = new AsyncRedisStatelessTicketCache(cache);
+		asyncCache.start();
+		try {
+			for (int i = 0; i < TICKETS; i++) {
+				asyncCache.putTicketInCacheAsync(makeToken("ST-async-" + i));
+			}
+			for (int i = 0; i < TICKETS; i++) {
+				assertNotNull(asyncCache.getByTicketIdAsync("ST-async-" + i).get());
+			}
+			assertEquals(0, asyncCache.getFailedCount());
+		} finally {
+			asyncCache.stop();
+		}
+	}
+
+	@Test
+	public void writeBehindBatchesSplitByNode() throws InterruptedException {
+		WriteBehindStatelessTicketCache writeBehind = new WriteBehindStatelessTicketCache(cache);
+		writeBehind.start();
+		for (int i = 0; i < TICKETS; i++) {
+			writeBehind.putTicketInCache(makeToken("ST-write-behind-" + i));
+		}
+		writeBehind.stop();
+		assertEquals(0, writeBehind.getFailedCount());
+		for (int i = 0; i < TICKETS; i++) {
+			assertNotNull(cache.getByTicketId("ST-write-behind-" + i));
+		}
+	}
+
+	private int primariesUsed() {
+		Set<JedisPool> pools = new HashSet<JedisPool>();
+		for (int i = 0; i < TICKETS; i++) {
+			pools.add(connectionSource.getPool(cache.toKey("ST-" + i)));
+		}
+		return pools.size();
+	}
+
+	private CasAuthenticationToken makeToken(String serviceTicket) {
+		return new CasAuthenticationToken(KEY, USERNAME, serviceTicket, Arrays.asList(new SimpleGrantedAuthority(ROLE)),
+			new User(USERNAME, serviceTicket, Arrays.asList(new SimpleGrantedAuthority(ROLE))), new AssertionImpl(
+				USERNAME));
+	}
+}
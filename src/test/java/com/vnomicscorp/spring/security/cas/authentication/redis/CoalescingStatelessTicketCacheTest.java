@@ -0,0 +1,167 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.easymock.EasyMockSupport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+import org.springframework.security.cas.authentication.StatelessTicketCache;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+public class CoalescingStatelessTicketCacheTest extends EasyMockSupport {
+	private static final String ST = "ST-dddddd";
+	private static final int THREADS = 8;
+
+	private CoalescingStatelessTicketCache cache;
+	private StatelessTicketCache delegate;
+	private CasAuthenticationToken token;
+	private ExecutorService executor;
+
+	@Before
+	public void setup() {
+		delegate = createMock(StatelessTicketCache.class);
+		token = createMock(CasAuthenticationToken.class);
+		cache = new CoalescingStatelessTicketCache(delegate);
+		executor = Executors.newFixedThreadPool(THREADS);
+		resetAll();
+		// A thread safe mock would hold its lock while a lookup is blocked in it
+		makeThreadSafe(delegate, false);
+		expect(token.getCredentials()).andReturn(ST).anyTimes();
+	}
+
+	@After
+	public void teardown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void concurrentLookupsShareOneRead() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		expect(delegate.getByTicketId(ST)).andAnswer(() -> {
+			release.await();
+			return token;
+		}).once();
+		replayAll();
+		List<Future<CasAuthenticationToken>> lookups = submitLookups();
+		awaitWaiters();
+		release.countDown();
+		for (Future<CasAuthenticationToken> lookup : lookups) {
+			assertSame(token, lookup.get());
+		}
+		assertEquals(THREADS - 1, cache.getCoalescedCount());
+		assertEquals(0, cache.getInFlightCount());
+		verifyAll();
+	}
+
+	@Test
+	public void failureHandedToEveryWaiter() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		expect(delegate.getByTicketId(ST)).andAnswer(() -> {
+			release.await();
+			throw new JedisConnectionException("down");
+		}).once();
+		replayAll();
+		List<Future<CasAuthenticationToken>> lookups = submitLookups();
+		awaitWaiters();
+		release.countDown();
+		for (Future<CasAuthenticationToken> lookup : lookups) {
+			try {
+				lookup.get();
+				fail("Expected failure");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof JedisConnectionException);
+			}
+		}
+		assertEquals(0, cache.getInFlightCount());
+		verifyAll();
+	}
+
+	@Test
+	public void sequentialLookupsNotCoalesced() {
+		expect(delegate.getByTicketId(ST)).andReturn(null).times(2);
+		replayAll();
+		assertNull(cache.getByTicketId(ST));
+		assertNull(cache.getByTicketId(ST));
+		assertEquals(0, cache.getCoalescedCount());
+		verifyAll();
+	}
+
+	@Test
+	public void writeDetachesLookupInFlight() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		expect(delegate.getByTicketId(ST)).andAnswer(() -> {
+			started.countDown();
+			release.await();
+			return null;
+		});
+		delegate.putTicketInCache(token);
+		expectLastCall();
+		expect(delegate.getByTicketId(ST)).andReturn(token);
+		replayAll();
+		Future<CasAuthenticationToken> stale = executor.submit(() -> cache.getByTicketId(ST));
+		started.await();
+		cache.putTicketInCache(token);
+		assertSame(token, cache.getByTicketId(ST));
+		release.countDown();
+		assertNull(stale.get());
+		assertEquals(0, cache.getCoalescedCount());
+		verifyAll();
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void getByTicketIdNull() {
+		cache.getByTicketId(null);
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void putTicketInCacheNull() {
+		cache.putTicketInCache(null);
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void removeTicketFromCacheNull() {
+		cache.removeTicketFromCache((String) null);
+	}
+
+	private List<Future<CasAuthenticationToken>> submitLookups() {
+		List<Future<CasAuthenticationToken>> lookups = new ArrayList<Future<CasAuthenticationToken>>();
+		for (int i = 0; i < THREADS; i++) {
+			lookups.add(executor.submit(() -> cache.getByTicketId(ST)));
+		}
+		return lookups;
+	}
+
+	private void awaitWaiters() throws InterruptedException {
+		for (int i = 0; i < 500 && cache.getCoalescedCount() < THREADS - 1; i++) {
+			Thread.sleep(10);
+		}
+	}
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.jasig.cas.client.authentication.AttributePrincipalImpl;
+import org.jasig.cas.client.validation.AssertionImpl;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+
+public class CompactCasAuthenticationTokenSerializerTest {
+	private static final String USERNAME = "dave";
+	private static final String CREDENTIALS = "ST-whatever";
+	private static final String KEY = "key";
+	private static final String ROLE = "role";
+
+	private CompactCasAuthenticationTokenSerializer serializer;
+
+	@Before
+	public void setup() {
+		serializer = new CompactCasAuthenticationTokenSerializer();
+	}
+
+	/**
+	 * Tests that when we deserialize a serialized object you get an object equal to the object that was serialized
+	 *
+	 * @throws CasAuthenticationTokenSerializerException
+	 */
+	@Test
+	public void identity() throws CasAuthenticationTokenSerializerException {
+		CasAuthenticationToken expected = makeToken();
+		CasAuthenticationToken got = serializer.deserialize(serializer.serialize(expected));
+		assertTokenEquals(expected, got);
+	}
+
+	@Test
+	public void identityLargeToken() throws CasAuthenticationTokenSerializerException {
+		CasAuthenticationToken expected = makeLargeToken();
+		expected.setAuthenticated(false);
+		CasAuthenticationToken got = serializer.deserialize(serializer.serialize(expected));
+		assertTokenEquals(expected, got);
+		assertFalse(got.isAuthenticated());
+		assertEquals(expected.getAssertion().getValidUntilDate(), got.getAssertion().getValidUntilDate());
+		assertEquals(expected.getAssertion().getPrincipal().getAttributes(), got.getAssertion().getPrincipal()
+			.getAttributes());
+	}
+
+	@Test
+	public void erasedPassword() throws CasAuthenticationTokenSerializerException {
+		User user = new User(USERNAME, CREDENTIALS, Arrays.asList(new SimpleGrantedAuthority(ROLE)));
+		user.eraseCredentials();
+		CasAuthenticationToken expected = new CasAuthenticationToken(KEY, USERNAME, CREDENTIALS,
+			user.getAuthorities(), user, new AssertionImpl(USERNAME));
+		CasAuthenticationToken got = serializer.deserialize(serializer.serialize(expected));
+		assertNull(got.getUserDetails().getPassword());
+		assertTokenEquals(expected, got);
+	}
+
+	/**
+	 * Details are not part of the known shape so this covers the Java serialization fallback
+	 *
+	 * @throws CasAuthenticationTokenSerializerException
+	 */
+	@Test
+	public void unknownTypeFallsBackToJavaSerialization() throws CasAuthenticationTokenSerializerException {
+		CasAuthenticationToken expected = makeToken();
+		expected.setDetails(UUID.randomUUID());
+		CasAuthenticationToken got = serializer.deserialize(serializer.serialize(expected));
+		assertTokenEquals(expected, got);
+	}
+
+	@Test
+	public void smallerThanJavaSerialization() throws CasAuthenticationTokenSerializerException {
+		JavaBinaryCasAuthenticationTokenSerializer java = new JavaBinaryCasAuthenticationTokenSerializer();
+		CasAuthenticationToken small = makeToken();
+		CasAuthenticationToken large = makeLargeToken();
+		assertTrue(serializer.serialize(small).length * 5 < java.serialize(small).length);
+		assertTrue(serializer.serialize(large).length * 10 < java.serialize(large).length * 6);
+	}
+
+	@Test
+	public void lazyIdentity() throws CasAuthenticationTokenSerializerException {
+		serializer.setLazy(true);
+		CasAuthenticationToken expected = makeLargeToken();
+		CasAuthenticationToken got = serializer.deserialize(serializer.serialize(expected));
+		assertTrue(got instanceof LazyCasAuthenticationToken);
+		assertTokenEquals(expected, got);
+		assertEquals(expected.getAssertion().getPrincipal().getAttributes(), got.getAssertion().getPrincipal()
+			.getAttributes());
+	}
+
+	@Test
+	public void lazyLayoutReadEagerly() throws CasAuthenticationTokenSerializerException {
+		CompactCasAuthenticationTokenSerializer lazy = new CompactCasAuthenticationTokenSerializer();
+		lazy.setLazy(true);
+		CasAuthenticationToken expected = makeLargeToken();
+		byte[] serialized = lazy.serialize(expected);
+		assertEquals(CompactCasAuthenticationTokenSerializer.LAZY_VERSION, serialized[0]);
+		CasAuthenticationToken got = serializer.deserialize(serialized);
+		assertEquals(CasAuthenticationToken.class, got.getClass());
+		assertTokenEquals(expected, got);
+	}
+
+	@Test
+	public void eagerLayoutReadWhenLazy() throws CasAuthenticationTokenSerializerException {
+		CasAuthenticationToken expected = makeLargeToken();
+		byte[] serialized = serializer.serialize(expected);
+		serializer.setLazy(true);
+		CasAuthenticationToken got = serializer.deserialize(serialized);
+		assertEquals(CasAuthenticationToken.class, got.getClass());
+		assertTokenEquals(expected, got);
+	}
+
+	@Test(expected = CasAuthenticationTokenSerializerException.class)
+	public void deserializeMalformedSectionOffsets() throws CasAuthenticationTokenSerializerException {
+		serializer.setLazy(true);
+		byte[] serialized = serializer.serialize(makeToken());
+		serialized[1] = 127;
+		serializer.deserialize(serialized);
+	}
+
+	@Test(expected = CasAuthenticationTokenSerializerException.class)
+	public void deserializeUnknownVersion() throws CasAuthenticationTokenSerializerException {
+		byte[] serialized = serializer.serialize(makeToken());
+		serialized[0] = 127;
+		serializer.deserialize(serialized);
+	}
+
+	@Test(expected = CasAuthenticationTokenSerializerException.class)
+	public void deserializeTruncated() throws CasAuthenticationTokenSerializerException {
+		byte[] serialized = serializer.serialize(makeToken());
+		serializer.deserialize(Arrays.copyOf(serialized, serialized.length / 2));
+	}
+
+	@Test(expected = CasAuthenticationTokenSerializerException.class)
+	public void deserializeOversizedAuthorities() throws CasAuthenticationTokenSerializerException {
+		byte[] serialized = serializer.serialize(makeToken());
+		// A token without principal and credentials that claims Integer.MAX_VALUE authorities
+		serializer.deserialize(new byte[] { serialized[0], 14, 0, 0, 0, 0, 1, 0, 0, (byte) 0xFF, (byte) 0xFF,
+			(byte) 0xFF, (byte) 0xFF, 7 });
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void serializeNull() throws CasAuthenticationTokenSerializerException {
+		serializer.serialize(null);
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void deserializeNull() throws CasAuthenticationTokenSerializerException {
+		serializer.deserialize((byte[]) null);
+	}
+
+	private CasAuthenticationToken makeToken() {
+		return new CasAuthenticationToken(KEY, USERNAME, CREDENTIALS, Arrays.asList(new SimpleGrantedAuthority(ROLE)),
+			new User(USERNAME, CREDENTIALS, Arrays.asList(new SimpleGrantedAuthority(ROLE))), new AssertionImpl(
+				USERNAME));
+	}
+
+	private CasAuthenticationToken makeLargeToken() {
+		List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>();
+		for (int i = 0; i < 50; i++) {
+			authorities.add(new SimpleGrantedAuthority("ROLE_APPLICATION_PERMISSION_" + i));
+		}
+		Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+		for (int i = 0; i < 20; i++) {
+			attributes.put("attribute" + i, "value" + i);
+		}
+		attributes.put("memberOf", Arrays.asList("cn=admins,ou=groups,dc=example,dc=com",
+			"cn=users,ou=groups,dc=example,dc=com"));
+		attributes.put("loginCount", 42);
+		attributes.put("lastLogin", 1234567890123L);
+		attributes.put("isFromNewLogin", Boolean.TRUE);
+		Date now = new Date();
+		AssertionImpl assertion = new AssertionImpl(new AttributePrincipalImpl(USERNAME, attributes), now, new Date(
+			now.getTime() + 3600000), now, attributes);
+		return new CasAuthenticationToken(KEY, USERNAME, CREDENTIALS, authorities, new User(USERNAME, CREDENTIALS,
+			authorities), assertion);
+	}
+
+	private void assertTokenEquals(CasAuthenticationToken expected, CasAuthenticationToken got) {
+		assertEquals(expected.getName(), got.getName());
+		assertEquals(expected.isAuthenticated(), got.isAuthenticated());
+		assertEquals(expected.getAuthorities(), got.getAuthorities());
+		assertEquals(expected.getCredentials(), got.getCredentials());
+		assertEquals(expected.getDetails(), got.getDetails());
+		assertEquals(expected.getKeyHash(), got.getKeyHash());
+		assertEquals(expected.getPrincipal(), got.getPrincipal());
+		assertEquals(expected.getUserDetails(), got.getUserDetails());
+		assertEquals(expected.getAssertion().getPrincipal(), got.getAssertion().getPrincipal());
+		assertEquals(expected.getAssertion().getAttributes(), got.getAssertion().getAttributes());
+		assertEquals(expected.getAssertion().getValidFromDate(), got.getAssertion().getValidFromDate());
+	}
+}
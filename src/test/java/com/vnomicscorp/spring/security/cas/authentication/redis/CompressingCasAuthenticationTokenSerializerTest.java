@@ -0,0 +1,124 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jasig.cas.client.validation.AssertionImpl;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+
+public class CompressingCasAuthenticationTokenSerializerTest {
+	private static final String USERNAME = "dave";
+	private static final String CREDENTIALS = "ST-whatever";
+	private static final String KEY = "key";
+
+	private JavaBinaryCasAuthenticationTokenSerializer delegate;
+	private CompressingCasAuthenticationTokenSerializer serializer;
+
+	@Before
+	public void setup() {
+		delegate = new JavaBinaryCasAuthenticationTokenSerializer();
+		serializer = new CompressingCasAuthenticationTokenSerializer(delegate);
+	}
+
+	@Test
+	public void belowThresholdStoredAsIs() throws CasAuthenticationTokenSerializerException {
+		serializer.setCompressionThreshold(100000);
+		CasAuthenticationToken token = makeToken(1);
+		byte[] serialized = serializer.serialize(token);
+		assertArrayEquals(delegate.serialize(token), serialized);
+		assertTokenEquals(token, serializer.deserialize(serialized));
+	}
+
+	@Test
+	public void aboveThresholdCompressed() throws CasAuthenticationTokenSerializerException {
+		CasAuthenticationToken token = makeToken(50);
+		byte[] serialized = serializer.serialize(token);
+		assertEquals(CompressingCasAuthenticationTokenSerializer.HEADER, serialized[0]);
+		assertEquals(DeflateTokenCompressor.ID, serialized[1]);
+		assertTrue(serialized.length < delegate.serialize(token).length / 2);
+		assertTokenEquals(token, serializer.deserialize(serialized));
+	}
+
+	@Test
+	public void readsEntriesWrittenBeforeCompression() throws CasAuthenticationTokenSerializerException {
+		CasAuthenticationToken token = makeToken(50);
+		assertTokenEquals(token, serializer.deserialize(delegate.serialize(token)));
+	}
+
+	@Test
+	public void dictionaryImprovesCompression() throws CasAuthenticationTokenSerializerException {
+		CasAuthenticationToken token = makeToken(50);
+		int withoutDictionary = serializer.serialize(token).length;
+		DeflateTokenCompressor compressor = new DeflateTokenCompressor();
+		compressor.setDictionary(DeflateTokenCompressor.createDictionary(
+			Arrays.asList(delegate.serialize(makeToken(40))), 32 * 1024));
+		serializer.setCompressor(compressor);
+		byte[] serialized = serializer.serialize(token);
+		assertTrue(serialized.length < withoutDictionary / 2);
+		assertTokenEquals(token, serializer.deserialize(serialized));
+	}
+
+	@Test(expected = CasAuthenticationTokenSerializerException.class)
+	public void wrongDictionary() throws CasAuthenticationTokenSerializerException {
+		DeflateTokenCompressor compressor = new DeflateTokenCompressor();
+		compressor.setDictionary(new byte[] { 1, 2, 3, 4 });
+		serializer.setCompressor(compressor);
+		byte[] serialized = serializer.serialize(makeToken(50));
+		compressor.setDictionary(new byte[] { 4, 3, 2, 1 });
+		serializer.deserialize(serialized);
+	}
+
+	@Test(expected = CasAuthenticationTokenSerializerException.class)
+	public void unknownCompressor() throws CasAuthenticationTokenSerializerException {
+		byte[] serialized = serializer.serialize(makeToken(50));
+		serialized[1] = 99;
+		serializer.deserialize(serialized);
+	}
+
+	@Test(expected = CasAuthenticationTokenSerializerException.class)
+	public void decompressedTooLarge() throws CasAuthenticationTokenSerializerException {
+		byte[] serialized = serializer.serialize(makeToken(50));
+		serializer.setMaxDecompressedLength(1000);
+		serializer.deserialize(serialized);
+	}
+
+	private CasAuthenticationToken makeToken(int authorityCount) {
+		List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>();
+		for (int i = 0; i < authorityCount; i++) {
+			authorities.add(new SimpleGrantedAuthority("ROLE_APPLICATION_PERMISSION_" + i));
+		}
+		return new CasAuthenticationToken(KEY, USERNAME, CREDENTIALS, authorities, new User(USERNAME, CREDENTIALS,
+			authorities), new AssertionImpl(USERNAME));
+	}
+
+	private void assertTokenEquals(CasAuthenticationToken expected, CasAuthenticationToken got) {
+		assertEquals(expected.getName(), got.getName());
+		assertEquals(expected.getAuthorities(), got.getAuthorities());
+		assertEquals(expected.getCredentials(), got.getCredentials());
+		assertEquals(expected.getKeyHash(), got.getKeyHash());
+		assertEquals(expected.getUserDetails(), got.getUserDetails());
+	}
+}
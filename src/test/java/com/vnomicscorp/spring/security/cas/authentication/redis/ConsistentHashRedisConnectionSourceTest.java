@@ -0,0 +1,113 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.easymock.EasyMockSupport;
+import org.junit.Before;
+import org.junit.Test;
+
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.util.SafeEncoder;
+
+public class ConsistentHashRedisConnectionSourceTest extends EasyMockSupport {
+	private static final int KEYS = 10000;
+
+	private Map<String, JedisPool> pools;
+
+	@Before
+	public void setup() {
+		pools = new LinkedHashMap<String, JedisPool>();
+		for (int i = 0; i < 4; i++) {
+			pools.put("redis" + i + ":6379", createMock(JedisPool.class));
+		}
+	}
+
+	@Test
+	public void keysSpreadOverAllServers() {
+		ConsistentHashRedisConnectionSource source = new ConsistentHashRedisConnectionSource(pools);
+		Map<JedisPool, Integer> counts = new HashMap<JedisPool, Integer>();
+		for (int i = 0; i < KEYS; i++) {
+			counts.merge(source.getPool(key(i)), 1, Integer::sum);
+		}
+		assertEquals(pools.size(), counts.size());
+		for (int count : counts.values()) {
+			assertTrue("Uneven spread: " + counts.values(), count > KEYS / pools.size() / 2);
+		}
+	}
+
+	@Test
+	public void addingServerMovesFewKeys() {
+		ConsistentHashRedisConnectionSource before = new ConsistentHashRedisConnectionSource(pools);
+		pools.put("redis4:6379", createMock(JedisPool.class));
+		ConsistentHashRedisConnectionSource after = new ConsistentHashRedisConnectionSource(pools);
+		int moved = 0;
+		for (int i = 0; i < KEYS; i++) {
+			JedisPool pool = after.getPool(key(i));
+			if (pool != before.getPool(key(i))) {
+				assertSame(pools.get("redis4:6379"), pool);
+				moved++;
+			}
+		}
+		assertTrue("Moved " + moved, moved < KEYS * 2 / pools.size());
+	}
+
+	@Test
+	public void placementIndependentOfOrder() {
+		Map<String, JedisPool> reversed = new LinkedHashMap<String, JedisPool>();
+		String[] names = pools.keySet().toArray(new String[0]);
+		for (int i = names.length - 1; i >= 0; i--) {
+			reversed.put(names[i], pools.get(names[i]));
+		}
+		ConsistentHashRedisConnectionSource source = new ConsistentHashRedisConnectionSource(pools);
+		ConsistentHashRedisConnectionSource reversedSource = new ConsistentHashRedisConnectionSource(reversed);
+		for (int i = 0; i < 1000; i++) {
+			assertSame(source.getPool(key(i)), reversedSource.getPool(key(i)));
+		}
+	}
+
+	@Test
+	public void hashTagKeysShareServer() {
+		ConsistentHashRedisConnectionSource source = new ConsistentHashRedisConnectionSource(pools);
+		for (int i = 0; i < 1000; i++) {
+			JedisPool pool = source.getPool(SafeEncoder.encode("ST-" + i));
+			assertSame(pool, source.getPool(SafeEncoder.encode("{ST-" + i + "}:refresh")));
+			assertSame(pool, source.getPool(SafeEncoder.encode("prefix:{ST-" + i + "}")));
+		}
+	}
+
+	@Test
+	public void hashTag() {
+		assertEquals("a", SafeEncoder.encode(ConsistentHashRedisConnectionSource.hashTag(SafeEncoder.encode("{a}b"))));
+		assertEquals("{}a", SafeEncoder.encode(ConsistentHashRedisConnectionSource.hashTag(SafeEncoder.encode("{}a"))));
+		assertEquals("a{b", SafeEncoder.encode(ConsistentHashRedisConnectionSource.hashTag(SafeEncoder.encode("a{b"))));
+		assertEquals("b", SafeEncoder.encode(ConsistentHashRedisConnectionSource.hashTag(SafeEncoder.encode("a{b}{c}"))));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void noServers() {
+		new ConsistentHashRedisConnectionSource(new HashMap<String, JedisPool>());
+	}
+
+	private byte[] key(int i) {
+		return SafeEncoder.encode("ST-" + i + "-cas.example.com");
+	}
+}
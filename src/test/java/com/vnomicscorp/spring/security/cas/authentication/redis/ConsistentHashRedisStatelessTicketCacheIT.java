@@ -0,0 +1,98 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jasig.cas.client.validation.AssertionImpl;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+import org.testcontainers.containers.GenericContainer;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+/**
+ * Integration test that verifies {@link RedisStatelessTicketCache} spreads tickets over several independent Redis
+ * servers with a {@link ConsistentHashRedisConnectionSource}. This test requires docker to be installed.
+ *
+ */
+public class ConsistentHashRedisStatelessTicketCacheIT {
+
+	private static final int REDIS_DEFAULT_PORT = 6379;
+	private static final int TICKETS = 300;
+
+	public GenericContainer redis0 = new GenericContainer("redis:5").withExposedPorts(REDIS_DEFAULT_PORT);
+	public GenericContainer redis1 = new GenericContainer("redis:5").withExposedPorts(REDIS_DEFAULT_PORT);
+	public GenericContainer redis2 = new GenericContainer("redis:5").withExposedPorts(REDIS_DEFAULT_PORT);
+
+	@Rule
+	public RuleChain containers = RuleChain.outerRule(redis0).around(redis1).around(redis2);
+
+	private static final String USERNAME = "dave";
+	private static final String KEY = "key";
+	private static final String ROLE = "role";
+
+	private Map<String, JedisPool> pools;
+	private RedisStatelessTicketCache cache;
+
+	@Before
+	public void setup() {
+		pools = new LinkedHashMap<String, JedisPool>();
+		for (GenericContainer redis : Arrays.asList(redis0, redis1, redis2)) {
+			pools.put(redis.getContainerIpAddress() + ":" + redis.getMappedPort(REDIS_DEFAULT_PORT), new JedisPool(
+				redis.getContainerIpAddress(), redis.getMappedPort(REDIS_DEFAULT_PORT)));
+		}
+		cache = new RedisStatelessTicketCache(new ConsistentHashRedisConnectionSource(pools));
+		cache.setExpirationSeconds(60);
+	}
+
+	@Test
+	public void ticketsSpreadOverServers() {
+		for (int i = 0; i < TICKETS; i++) {
+			cache.putTicketInCache(makeToken("ST-" + i));
+		}
+		long total = 0;
+		for (JedisPool pool : pools.values()) {
+			try (Jedis jedis = pool.getResource()) {
+				long size = jedis.dbSize();
+				assertTrue("Server holds no tickets", size > 0);
+				total += size;
+			}
+		}
+		assertEquals(TICKETS, total);
+		for (int i = 0; i < TICKETS; i++) {
+			assertEquals("ST-" + i, cache.getByTicketId("ST-" + i).getCredentials());
+			cache.removeTicketFromCache("ST-" + i);
+			assertNull(cache.getByTicketId("ST-" + i));
+		}
+	}
+
+	private CasAuthenticationToken makeToken(String serviceTicket) {
+		return new CasAuthenticationToken(KEY, USERNAME, serviceTicket, Arrays.asList(new SimpleGrantedAuthority(ROLE)),
+			new User(USERNAME, serviceTicket, Arrays.asList(new SimpleGrantedAuthority(ROLE))), new AssertionImpl(
+				USERNAME));
+	}
+}
@@ -17,6 +17,9 @@ package com.vnomicscorp.spring.security.cas.authentication.redis;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 import org.jasig.cas.client.validation.AssertionImpl;
@@ -25,6 +28,7 @@ import org.junit.Test;
 import org.springframework.security.cas.authentication.CasAuthenticationToken;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.userdetails.User;
+import org.springframework.security.crypto.codec.Base64;
 
 public class DefaultCasAuthenticationTokenSerializerTest {
 	private static final String USERNAME = "dave";
@@ -51,6 +55,41 @@ public class DefaultCasAuthenticationTokenSerializerTest {
 		assertTokenEquals(expected, got);
 	}
 
+	/**
+	 * Tests that the serialized form is unchanged from plain Java serialization and Spring's Base64
+	 */
+	@Test
+	public void matchesJavaSerializationAndBase64() throws Exception {
+		CasAuthenticationToken token = makeToken();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(baos);
+		oos.writeObject(token);
+		oos.flush();
+		String expected = new String(Base64.encode(baos.toByteArray()), StandardCharsets.UTF_8);
+		for (int i = 0; i < 3; i++) {
+			assertEquals(expected, serializer.serialize(token));
+			assertTokenEquals(token, serializer.deserialize(expected));
+		}
+	}
+
+	@Test(expected = CasAuthenticationTokenSerializerException.class)
+	public void deserializeInvalidBase64() throws CasAuthenticationTokenSerializerException {
+		serializer.deserialize("not*base64");
+	}
+
+	@Test
+	public void recoversAfterInvalidBase64() throws CasAuthenticationTokenSerializerException {
+		CasAuthenticationToken expected = makeToken();
+		String serialized = serializer.serialize(expected);
+		try {
+			serializer.deserialize(serialized.substring(0, serialized.length() / 2));
+			fail("Expected failure");
+		} catch (CasAuthenticationTokenSerializerException e) {
+			// Expected
+		}
+		assertTokenEquals(expected, serializer.deserialize(serialized));
+	}
+
 	@Test(expected = NullPointerException.class)
 	public void serializeNull() throws CasAuthenticationTokenSerializerException {
 		serializer.serialize(null);
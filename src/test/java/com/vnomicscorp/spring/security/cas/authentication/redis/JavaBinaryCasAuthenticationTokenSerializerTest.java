@@ -0,0 +1,242 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jasig.cas.client.authentication.AttributePrincipalImpl;
+import org.jasig.cas.client.validation.AssertionImpl;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+
+public class JavaBinaryCasAuthenticationTokenSerializerTest {
+	private static final String USERNAME = "dave";
+	private static final String CREDENTIALS = "ST-whatever";
+	private static final String KEY = "key";
+	private static final String ROLE = "role";
+
+	private JavaBinaryCasAuthenticationTokenSerializer serializer;
+
+	@Before
+	public void setup() {
+		serializer = new JavaBinaryCasAuthenticationTokenSerializer();
+	}
+
+	/**
+	 * Tests that when we deserialize a serialized object you get an object equal to the object that was serialized
+	 * 
+	 * @throws CasAuthenticationTokenSerializerException
+	 */
+	@Test
+	public void identity() throws CasAuthenticationTokenSerializerException {
+		CasAuthenticationToken expected = makeToken();
+		CasAuthenticationToken got = serializer.deserialize(serializer.serialize(expected));
+		assertTokenEquals(expected, got);
+	}
+
+	/**
+	 * Tests that reused streams write the same bytes as a fresh stream, token after token
+	 */
+	@Test
+	public void matchesFreshStream() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			for (CasAuthenticationToken token : Arrays.asList(makeToken(), makeToken("ST-" + i, 10), makeToken())) {
+				assertArrayEquals(serializeFresh(token), serializer.serialize(token));
+			}
+		}
+	}
+
+	/**
+	 * Tests that reused streams read tokens written by fresh streams, token after token
+	 */
+	@Test
+	public void readsFreshStream() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			CasAuthenticationToken expected = makeToken("ST-" + i, i);
+			assertTokenEquals(expected, serializer.deserialize(serializeFresh(expected)));
+			assertTokenEquals(expected, serializer.deserialize(serializer.serialize(expected)));
+		}
+	}
+
+	@Test
+	public void recoversAfterGarbage() throws Exception {
+		CasAuthenticationToken expected = makeToken();
+		byte[] serialized = serializer.serialize(expected);
+		assertTokenEquals(expected, serializer.deserialize(serialized));
+		try {
+			serializer.deserialize(Arrays.copyOf(serialized, serialized.length / 2));
+			fail("Expected failure");
+		} catch (CasAuthenticationTokenSerializerException e) {
+			// Expected
+		}
+		assertTokenEquals(expected, serializer.deserialize(serialized));
+		assertArrayEquals(serialized, serializer.serialize(expected));
+	}
+
+	@Test
+	public void largeToken() throws Exception {
+		CasAuthenticationToken large = makeToken(CREDENTIALS, 10000);
+		byte[] serialized = serializer.serialize(large);
+		assertTrue(serialized.length > JavaSerializationStreams.MAX_RETAINED_BUFFER);
+		assertTokenEquals(large, serializer.deserialize(serialized));
+		CasAuthenticationToken small = makeToken();
+		assertArrayEquals(serializeFresh(small), serializer.serialize(small));
+	}
+
+	@Test
+	public void rejectsClassNotAllowed() throws Exception {
+		CasAuthenticationToken expected = makeToken();
+		expected.setDetails(new AtomicInteger(1));
+		byte[] serialized = serializer.serialize(expected);
+		try {
+			serializer.deserialize(serialized);
+			fail("Expected rejection");
+		} catch (CasAuthenticationTokenRejectedException e) {
+			// Expected
+		}
+		serializer.getDeserializationFilter().allowClass(AtomicInteger.class.getName());
+		assertEquals(1, ((AtomicInteger) serializer.deserialize(serialized).getDetails()).get());
+	}
+
+	@Test(expected = CasAuthenticationTokenRejectedException.class)
+	public void rejectsTooManyReferences() throws Exception {
+		serializer.getDeserializationFilter().setMaxReferences(100);
+		serializer.deserialize(serializer.serialize(makeToken(CREDENTIALS, 100)));
+	}
+
+	@Test(expected = CasAuthenticationTokenRejectedException.class)
+	public void rejectsTooDeep() throws Exception {
+		List<Object> nested = new ArrayList<Object>();
+		List<Object> current = nested;
+		for (int i = 0; i < 30; i++) {
+			List<Object> child = new ArrayList<Object>();
+			current.add(child);
+			current = child;
+		}
+		CasAuthenticationToken token = makeToken();
+		token.setDetails(nested);
+		serializer.deserialize(serializer.serialize(token));
+	}
+
+	@Test(expected = CasAuthenticationTokenRejectedException.class)
+	public void rejectsLongArray() throws Exception {
+		serializer.getDeserializationFilter().setMaxArrayLength(10);
+		CasAuthenticationToken token = makeToken();
+		token.setDetails(new ArrayList<Object>(Collections.nCopies(100, "x")));
+		serializer.deserialize(serializer.serialize(token));
+	}
+
+	/**
+	 * Tests that references are counted per token although the stream is reused
+	 */
+	@Test
+	public void limitsApplyPerToken() throws Exception {
+		serializer.getDeserializationFilter().setMaxReferences(100);
+		CasAuthenticationToken expected = makeToken();
+		byte[] serialized = serializer.serialize(expected);
+		for (int i = 0; i < 100; i++) {
+			assertTokenEquals(expected, serializer.deserialize(serialized));
+		}
+	}
+
+	@Test
+	public void recoversAfterRejection() throws Exception {
+		CasAuthenticationToken expected = makeToken();
+		byte[] serialized = serializer.serialize(expected);
+		CasAuthenticationToken rejected = makeToken();
+		rejected.setDetails(new AtomicInteger(1));
+		try {
+			serializer.deserialize(serializer.serialize(rejected));
+			fail("Expected rejection");
+		} catch (CasAuthenticationTokenRejectedException e) {
+			// Expected
+		}
+		assertTokenEquals(expected, serializer.deserialize(serialized));
+	}
+
+	@Test
+	public void noFilter() throws Exception {
+		serializer.setDeserializationFilter(null);
+		CasAuthenticationToken expected = makeToken();
+		expected.setDetails(new AtomicInteger(1));
+		assertEquals(1, ((AtomicInteger) serializer.deserialize(serializer.serialize(expected)).getDetails()).get());
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void serializeNull() throws CasAuthenticationTokenSerializerException {
+		serializer.serialize(null);
+	}
+
+	@Test(expected = CasAuthenticationTokenSerializerException.class)
+	public void deserializeGarbage() throws CasAuthenticationTokenSerializerException {
+		serializer.deserialize(new byte[] { 1, 2, 3 });
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void deserializeNull() throws CasAuthenticationTokenSerializerException {
+		serializer.deserialize((byte[]) null);
+	}
+
+	private CasAuthenticationToken makeToken() {
+		return new CasAuthenticationToken(KEY, USERNAME, CREDENTIALS, Arrays.asList(new SimpleGrantedAuthority(ROLE)),
+			new User(USERNAME, CREDENTIALS, Arrays.asList(new SimpleGrantedAuthority(ROLE))), new AssertionImpl(
+				USERNAME));
+	}
+
+	private CasAuthenticationToken makeToken(String credentials, int attributeCount) {
+		Map<String, Object> attributes = new HashMap<String, Object>();
+		for (int i = 0; i < attributeCount; i++) {
+			attributes.put("attribute" + i, "value" + i);
+		}
+		return new CasAuthenticationToken(KEY, USERNAME, credentials, Arrays.asList(new SimpleGrantedAuthority(ROLE)),
+			new User(USERNAME, credentials, Arrays.asList(new SimpleGrantedAuthority(ROLE))), new AssertionImpl(
+				new AttributePrincipalImpl(USERNAME), attributes));
+	}
+
+	private byte[] serializeFresh(CasAuthenticationToken token) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(baos);
+		oos.writeObject(token);
+		oos.flush();
+		return baos.toByteArray();
+	}
+
+	private void assertTokenEquals(CasAuthenticationToken expected, CasAuthenticationToken got) {
+		assertEquals(expected.getName(), got.getName());
+		assertEquals(expected.isAuthenticated(), got.isAuthenticated());
+		assertEquals(expected.getAuthorities(), got.getAuthorities());
+		assertEquals(expected.getCredentials(), got.getCredentials());
+		assertEquals(expected.getDetails(), got.getDetails());
+		assertEquals(expected.getKeyHash(), got.getKeyHash());
+		assertEquals(expected.getPrincipal(), got.getPrincipal());
+		assertEquals(expected.getUserDetails(), got.getUserDetails());
+		assertEquals(expected.getAssertion().getAttributes(), got.getAssertion().getAttributes());
+	}
+}
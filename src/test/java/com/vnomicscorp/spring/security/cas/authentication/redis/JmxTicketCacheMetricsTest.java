@@ -0,0 +1,73 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class JmxTicketCacheMetricsTest {
+	private JmxTicketCacheMetrics metrics;
+
+	@Before
+	public void setup() {
+		metrics = new JmxTicketCacheMetrics();
+	}
+
+	@Test
+	public void countsMeansAndMaxima() {
+		metrics.recordCommand(TicketCacheMetrics.Operation.GET, 1000);
+		metrics.recordCommand(TicketCacheMetrics.Operation.GET, 3000);
+		metrics.recordLookup(true);
+		metrics.recordLookup(false);
+		metrics.recordError(TicketCacheMetrics.Operation.PUT);
+		metrics.recordSerialize(5000, 100);
+		metrics.recordDeserialize(7000, 300);
+		metrics.recordRejection();
+		assertEquals(2, metrics.getGetCount());
+		assertEquals(2, metrics.getGetMeanMicros(), 0.001);
+		assertEquals(3, metrics.getGetMaxMicros());
+		assertEquals(1, metrics.getHitCount());
+		assertEquals(1, metrics.getMissCount());
+		assertEquals(1, metrics.getErrorCount());
+		assertEquals(0, metrics.getPutCount());
+		assertEquals(200, metrics.getPayloadMeanBytes(), 0.001);
+		assertEquals(300, metrics.getPayloadMaxBytes());
+		assertEquals(1, metrics.getRejectionCount());
+		metrics.reset();
+		assertEquals(0, metrics.getGetCount());
+		assertEquals(0, metrics.getGetMeanMicros(), 0);
+	}
+
+	@Test
+	public void registeredWithPlatformServer() throws JMException {
+		ObjectName name = new ObjectName(JmxTicketCacheMetrics.DEFAULT_OBJECT_NAME);
+		metrics.register();
+		try {
+			metrics.recordLookup(true);
+			assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "HitCount"));
+		} finally {
+			metrics.unregister();
+		}
+		assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+	}
+}
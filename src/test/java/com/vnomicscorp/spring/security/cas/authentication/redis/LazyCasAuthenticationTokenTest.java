@@ -0,0 +1,208 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jasig.cas.client.authentication.AttributePrincipalImpl;
+import org.jasig.cas.client.validation.AssertionImpl;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+
+public class LazyCasAuthenticationTokenTest {
+	private static final String USERNAME = "dave";
+	private static final String CREDENTIALS = "ST-whatever";
+	private static final String KEY = "key";
+
+	private CompactCasAuthenticationTokenSerializer serializer;
+	private CasAuthenticationToken expected;
+	private byte[] serialized;
+
+	@Before
+	public void setup() throws CasAuthenticationTokenSerializerException {
+		serializer = new CompactCasAuthenticationTokenSerializer();
+		serializer.setLazy(true);
+		expected = makeToken();
+		serialized = serializer.serialize(expected);
+	}
+
+	@Test
+	public void decodesOnFirstAccess() throws CasAuthenticationTokenSerializerException {
+		LazyCasAuthenticationToken got = (LazyCasAuthenticationToken) serializer.deserialize(serialized);
+		assertEquals(expected.getKeyHash(), got.getKeyHash());
+		assertEquals(expected.getCredentials(), got.getCredentials());
+		assertEquals(expected.getAuthorities(), got.getAuthorities());
+		assertTrue(got.isAuthenticated());
+		assertFalse(got.isUserDetailsDecoded());
+		assertFalse(got.isAssertionDecoded());
+		assertEquals(expected.getAssertion().getAttributes(), got.getAssertion().getAttributes());
+		assertFalse(got.isUserDetailsDecoded());
+		assertTrue(got.isAssertionDecoded());
+		assertEquals(USERNAME, got.getName());
+		assertTrue(got.isUserDetailsDecoded());
+		assertSame(got.getUserDetails(), got.getPrincipal());
+		assertEquals(expected.getUserDetails(), got.getUserDetails());
+	}
+
+	@Test
+	public void unchangedTokenWrittenAsOriginalBytes() throws CasAuthenticationTokenSerializerException {
+		CasAuthenticationToken got = serializer.deserialize(serialized);
+		assertArrayEquals(serialized, serializer.serialize(got));
+		assertFalse(((LazyCasAuthenticationToken) got).isAssertionDecoded());
+	}
+
+	@Test
+	public void changedTokenWrittenAgain() throws CasAuthenticationTokenSerializerException {
+		LazyCasAuthenticationToken got = (LazyCasAuthenticationToken) serializer.deserialize(serialized);
+		got.setDetails("details");
+		assertNull(got.getSerialized());
+		CasAuthenticationToken again = serializer.deserialize(serializer.serialize(got));
+		assertEquals("details", again.getDetails());
+		assertEquals(expected.getAssertion().getAttributes(), again.getAssertion().getAttributes());
+	}
+
+	@Test
+	public void decodedTokenWrittenAgain() throws CasAuthenticationTokenSerializerException {
+		LazyCasAuthenticationToken got = (LazyCasAuthenticationToken) serializer.deserialize(serialized);
+		got.getAssertion();
+		assertNull(got.getSerialized());
+		CasAuthenticationToken again = serializer.deserialize(serializer.serialize(got));
+		assertEquals(expected.getUserDetails(), again.getUserDetails());
+		assertEquals(expected.getAssertion().getAttributes(), again.getAssertion().getAttributes());
+	}
+
+	@Test
+	public void javaSerializedAsPlainToken() throws CasAuthenticationTokenSerializerException {
+		JavaBinaryCasAuthenticationTokenSerializer java = new JavaBinaryCasAuthenticationTokenSerializer();
+		CasAuthenticationToken got = java.deserialize(java.serialize(serializer.deserialize(serialized)));
+		assertEquals(CasAuthenticationToken.class, got.getClass());
+		assertEquals(expected.getKeyHash(), got.getKeyHash());
+		assertEquals(expected.getUserDetails(), got.getUserDetails());
+		assertEquals(expected.getAssertion().getAttributes(), got.getAssertion().getAttributes());
+	}
+
+	@Test
+	public void equalsMaterializedToken() throws CasAuthenticationTokenSerializerException {
+		LazyCasAuthenticationToken got = (LazyCasAuthenticationToken) serializer.deserialize(serialized);
+		CasAuthenticationToken materialized = got.materialize();
+		assertEquals(materialized, got);
+		assertEquals(got, materialized);
+		assertEquals(materialized.hashCode(), got.hashCode());
+	}
+
+	@Test
+	public void equalsWithoutDecoding() throws CasAuthenticationTokenSerializerException {
+		LazyCasAuthenticationToken got = (LazyCasAuthenticationToken) serializer.deserialize(serialized);
+		LazyCasAuthenticationToken again = (LazyCasAuthenticationToken) serializer.deserialize(serialized);
+		assertEquals(got, got);
+		// Separately read tokens hold separately decoded assertions, which are compared by identity
+		assertNotEquals(got, again);
+		assertNotEquals(got, expected);
+		assertFalse(got.isUserDetailsDecoded());
+		assertFalse(got.isAssertionDecoded());
+	}
+
+	@Test
+	public void hashCodeStable() throws CasAuthenticationTokenSerializerException {
+		LazyCasAuthenticationToken got = (LazyCasAuthenticationToken) serializer.deserialize(serialized);
+		int hashCode = got.hashCode();
+		assertEquals(hashCode, got.hashCode());
+		assertEquals(got.materialize().hashCode(), hashCode);
+	}
+
+	@Test
+	public void toStringWithoutDecoding() throws CasAuthenticationTokenSerializerException {
+		LazyCasAuthenticationToken got = (LazyCasAuthenticationToken) serializer.deserialize(serialized);
+		String string = got.toString();
+		assertTrue(string.contains("Credentials: [PROTECTED]"));
+		assertTrue(string.contains("ROLE_0"));
+		assertFalse(string.contains(CREDENTIALS));
+		assertFalse(got.isUserDetailsDecoded());
+		assertFalse(got.isAssertionDecoded());
+		got.getAssertion();
+		assertTrue(got.toString().contains(got.getAssertion().toString()));
+	}
+
+	@Test(expected = CasAuthenticationTokenSerializerException.class)
+	public void corruptSectionFailsOnRead() throws CasAuthenticationTokenSerializerException {
+		int assertionOffset = ByteBuffer.wrap(serialized, 5, 4).getInt();
+		serialized[assertionOffset] = 127;
+		serializer.deserialize(serialized);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void corruptSectionFailsOnAccess() throws CasAuthenticationTokenSerializerException {
+		// A well formed user with an empty username, which only decoding the section rejects
+		byte[] user = new byte[] { 11, 0, 0, 16, 0 };
+		int userDetailsOffset = ByteBuffer.wrap(serialized, 1, 4).getInt();
+		int assertionOffset = ByteBuffer.wrap(serialized, 5, 4).getInt();
+		byte[] corrupted = new byte[serialized.length - (assertionOffset - userDetailsOffset) + user.length];
+		System.arraycopy(serialized, 0, corrupted, 0, userDetailsOffset);
+		System.arraycopy(user, 0, corrupted, userDetailsOffset, user.length);
+		System.arraycopy(serialized, assertionOffset, corrupted, userDetailsOffset + user.length, serialized.length
+			- assertionOffset);
+		ByteBuffer.wrap(corrupted, 5, 4).putInt(userDetailsOffset + user.length);
+		CasAuthenticationToken got = serializer.deserialize(corrupted);
+		assertEquals(expected.getCredentials(), got.getCredentials());
+		got.getUserDetails();
+	}
+
+	@Test(expected = CasAuthenticationTokenRejectedException.class)
+	public void rejectedSectionRejectedOnRead() throws CasAuthenticationTokenSerializerException {
+		expected.getAssertion().getAttributes().put("counter", new AtomicInteger(1));
+		serializer.deserialize(serializer.serialize(expected));
+	}
+
+	@Test
+	public void javaSerializedSectionDecodedOnRead() throws CasAuthenticationTokenSerializerException {
+		serializer.getDeserializationFilter().allowClass(AtomicInteger.class.getName());
+		expected.getAssertion().getAttributes().put("counter", new AtomicInteger(1));
+		LazyCasAuthenticationToken got = (LazyCasAuthenticationToken) serializer.deserialize(serializer.serialize(
+			expected));
+		assertTrue(got.isAssertionDecoded());
+		assertFalse(got.isUserDetailsDecoded());
+		assertEquals(1, ((AtomicInteger) got.getAssertion().getAttributes().get("counter")).get());
+	}
+
+	private CasAuthenticationToken makeToken() {
+		List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>();
+		for (int i = 0; i < 10; i++) {
+			authorities.add(new SimpleGrantedAuthority("ROLE_" + i));
+		}
+		Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+		for (int i = 0; i < 10; i++) {
+			attributes.put("attribute" + i, "value" + i);
+		}
+		Date now = new Date();
+		AssertionImpl assertion = new AssertionImpl(new AttributePrincipalImpl(USERNAME, attributes), now, new Date(
+			now.getTime() + 3600000), now, attributes);
+		User user = new User(USERNAME, CREDENTIALS, authorities);
+		return new CasAuthenticationToken(KEY, user, CREDENTIALS, authorities, user, assertion);
+	}
+}
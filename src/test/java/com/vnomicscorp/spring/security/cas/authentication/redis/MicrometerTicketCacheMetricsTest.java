@@ -0,0 +1,173 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.easymock.EasyMockSupport;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.util.SafeEncoder;
+
+public class MicrometerTicketCacheMetricsTest extends EasyMockSupport {
+	private static final String ST = "ST-dddddd";
+	private static final byte[] VAL = new byte[] { 1, 2, 3 };
+
+	private SimpleMeterRegistry registry;
+	private RedisStatelessTicketCache cache;
+	private JedisPool jedisPool;
+	private Jedis jedis;
+	private BinaryCasAuthenticationTokenSerializer serializer;
+	private CasAuthenticationToken token;
+
+	@Before
+	public void setup() {
+		jedisPool = createMock(JedisPool.class);
+		jedis = createMock(Jedis.class);
+		serializer = createMock(BinaryCasAuthenticationTokenSerializer.class);
+		token = createMock(CasAuthenticationToken.class);
+		cache = new RedisStatelessTicketCache(jedisPool);
+		cache.setBinaryCasAuthenticationTokenSerializer(serializer);
+		MicrometerTicketCacheMetrics metrics = new MicrometerTicketCacheMetrics(cache.getConnectionSource(),
+			Collections.emptyList());
+		registry = new SimpleMeterRegistry();
+		metrics.bindTo(registry);
+		cache.setMetrics(metrics);
+		resetAll();
+	}
+
+	@Test
+	public void hitAndMiss() throws CasAuthenticationTokenSerializerException {
+		expect(jedisPool.getResource()).andReturn(jedis).times(2);
+		expect(jedis.get(aryEq(SafeEncoder.encode(ST)))).andReturn(VAL).andReturn(null);
+		jedis.close();
+		expectLastCall().times(2);
+		expect(serializer.deserialize(aryEq(VAL))).andReturn(token);
+		replayAll();
+		cache.getByTicketId(ST);
+		cache.getByTicketId(ST);
+		assertEquals(1, registry.get("cas.ticket.cache.lookups").tag("result", "hit").counter().count(), 0);
+		assertEquals(1, registry.get("cas.ticket.cache.lookups").tag("result", "miss").counter().count(), 0);
+		assertEquals(2, registry.get("cas.ticket.cache.command").tag("operation", "get").timer().count());
+		assertEquals(2, registry.get("cas.ticket.cache.pool.wait").timer().count());
+		assertEquals(1, registry.get("cas.ticket.cache.deserialize").timer().count());
+		assertEquals(VAL.length, registry.get("cas.ticket.cache.payload").summary().totalAmount(), 0);
+		verifyAll();
+	}
+
+	@Test
+	public void serializeMeasuredApartFromRedis() throws CasAuthenticationTokenSerializerException {
+		expect(token.getCredentials()).andReturn(ST).anyTimes();
+		expect(serializer.serialize(token)).andAnswer(() -> {
+			Thread.sleep(20);
+			return VAL;
+		});
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.set(aryEq(SafeEncoder.encode(ST)), aryEq(VAL), anyObject())).andReturn("OK");
+		jedis.close();
+		expectLastCall();
+		replayAll();
+		cache.putTicketInCache(token);
+		assertTrue(registry.get("cas.ticket.cache.serialize").timer().totalTime(TimeUnit.MILLISECONDS) >= 20);
+		assertTrue(registry.get("cas.ticket.cache.command").tag("operation", "put").timer()
+			.totalTime(TimeUnit.MILLISECONDS) < 20);
+		verifyAll();
+	}
+
+	@Test
+	public void errorCounted() {
+		expect(jedisPool.getResource()).andThrow(new JedisConnectionException("down"));
+		replayAll();
+		try {
+			cache.removeTicketFromCache(ST);
+			fail("Expected failure");
+		} catch (JedisConnectionException e) {
+			// expected
+		}
+		assertEquals(1, registry.get("cas.ticket.cache.errors").tag("operation", "remove").counter().count(), 0);
+		verifyAll();
+	}
+
+	@Test
+	public void poolGauges() {
+		expect(jedisPool.getNumActive()).andReturn(3);
+		replayAll();
+		assertEquals(3, registry.get("cas.ticket.cache.pool.active").gauge().value(), 0);
+		verifyAll();
+	}
+
+	@Test
+	public void filterMeters() {
+		replayAll();
+		BloomFilterStatelessTicketCache filter = new BloomFilterStatelessTicketCache(cache, 1000);
+		filter.setMaxMemoryBytes(1024);
+		MicrometerTicketCacheMetrics metrics = new MicrometerTicketCacheMetrics();
+		metrics.setFilter(filter);
+		SimpleMeterRegistry filterRegistry = new SimpleMeterRegistry();
+		metrics.bindTo(filterRegistry);
+		filter.setMetrics(metrics);
+		metrics.recordFilterLookup(true);
+		metrics.recordFilterLookup(false);
+		metrics.recordFilterFalsePositive();
+		filter.add(ST);
+		assertEquals(1, filterRegistry.get("cas.ticket.cache.filter.lookups").tag("result", "skipped").counter()
+			.count(), 0);
+		assertEquals(1, filterRegistry.get("cas.ticket.cache.filter.false.positives").counter().count(), 0);
+		assertEquals(0.01, filterRegistry.get("cas.ticket.cache.filter.fpp.target").gauge().value(), 0);
+		assertEquals(1024, filterRegistry.get("cas.ticket.cache.filter.memory").gauge().value(), 0);
+		assertEquals(1, filterRegistry.get("cas.ticket.cache.filter.insertions").gauge().value(), 0);
+		assertTrue(filterRegistry.get("cas.ticket.cache.filter.fpp.estimated").gauge().value() > 0);
+		verifyAll();
+	}
+
+	@Test
+	public void circuitMeters() {
+		replayAll();
+		CircuitBreakerStatelessTicketCache breaker = new CircuitBreakerStatelessTicketCache(cache);
+		MicrometerTicketCacheMetrics metrics = new MicrometerTicketCacheMetrics();
+		metrics.setCircuitBreaker(breaker);
+		SimpleMeterRegistry circuitRegistry = new SimpleMeterRegistry();
+		metrics.bindTo(circuitRegistry);
+		metrics.recordShortCircuit(TicketCacheMetrics.Operation.GET);
+		metrics.recordCircuitTransition(CircuitBreakerStatelessTicketCache.State.OPEN);
+		assertEquals(1, circuitRegistry.get("cas.ticket.cache.circuit.short.circuited").tag("operation", "get")
+			.counter().count(), 0);
+		assertEquals(1, circuitRegistry.get("cas.ticket.cache.circuit.transitions").tag("state", "open").counter()
+			.count(), 0);
+		assertEquals(0, circuitRegistry.get("cas.ticket.cache.circuit.state").gauge().value(), 0);
+		assertEquals(0, circuitRegistry.get("cas.ticket.cache.circuit.queued.removes").gauge().value(), 0);
+		breaker.stop();
+		verifyAll();
+	}
+
+	@Test
+	public void unboundDiscardsMeasurements() {
+		MicrometerTicketCacheMetrics metrics = new MicrometerTicketCacheMetrics();
+		metrics.recordLookup(true);
+		metrics.recordCommand(TicketCacheMetrics.Operation.GET, 1000);
+	}
+}
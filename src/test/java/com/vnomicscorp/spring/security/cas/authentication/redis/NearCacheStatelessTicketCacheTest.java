@@ -0,0 +1,202 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import org.easymock.EasyMockSupport;
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+import org.springframework.security.cas.authentication.StatelessTicketCache;
+
+public class NearCacheStatelessTicketCacheTest extends EasyMockSupport {
+	private static final String ST = "ST-dddddd";
+
+	private NearCacheStatelessTicketCache cache;
+	private StatelessTicketCache delegate;
+	private RedisPubSubTicketInvalidator invalidator;
+	private CasAuthenticationToken token;
+	private long now;
+
+	@Before
+	public void setup() {
+		delegate = createStrictMock(StatelessTicketCache.class);
+		invalidator = createStrictMock(RedisPubSubTicketInvalidator.class);
+		token = createMock(CasAuthenticationToken.class);
+		cache = new NearCacheStatelessTicketCache(delegate) {
+			@Override
+			protected long currentTimeMillis() {
+				return now;
+			}
+		};
+		cache.setTimeToLiveMillis(1000);
+		resetAll();
+	}
+
+	@Test
+	public void repeatHitServedFromMemory() {
+		expect(delegate.getByTicketId(ST)).andReturn(token);
+		replayAll();
+		assertEquals(token, cache.getByTicketId(ST));
+		assertEquals(token, cache.getByTicketId(ST));
+		verifyAll();
+	}
+
+	@Test
+	public void missNotCached() {
+		expect(delegate.getByTicketId(ST)).andReturn(null).times(2);
+		replayAll();
+		assertNull(cache.getByTicketId(ST));
+		assertNull(cache.getByTicketId(ST));
+		verifyAll();
+	}
+
+	@Test
+	public void expiredEntryReadAgain() {
+		expect(delegate.getByTicketId(ST)).andReturn(token).times(2);
+		replayAll();
+		cache.getByTicketId(ST);
+		now += 1000;
+		assertEquals(token, cache.getByTicketId(ST));
+		verifyAll();
+	}
+
+	@Test
+	public void leastRecentlyUsedEvicted() {
+		cache.setMaxSize(2);
+		expect(delegate.getByTicketId("ST-1")).andReturn(token);
+		expect(delegate.getByTicketId("ST-2")).andReturn(token);
+		expect(delegate.getByTicketId("ST-3")).andReturn(token);
+		expect(delegate.getByTicketId("ST-2")).andReturn(token);
+		replayAll();
+		cache.getByTicketId("ST-1");
+		cache.getByTicketId("ST-2");
+		cache.getByTicketId("ST-1");
+		cache.getByTicketId("ST-3");
+		assertEquals(2, cache.size());
+		cache.getByTicketId("ST-1");
+		cache.getByTicketId("ST-2");
+		verifyAll();
+	}
+
+	@Test
+	public void putServedFromMemoryAndPublished() {
+		invalidator.addListener(cache);
+		expectLastCall();
+		expect(token.getCredentials()).andReturn(ST).anyTimes();
+		delegate.putTicketInCache(token);
+		expectLastCall();
+		invalidator.publish(ST);
+		expectLastCall();
+		replayAll();
+		cache.setInvalidator(invalidator);
+		cache.putTicketInCache(token);
+		assertEquals(token, cache.getByTicketId(ST));
+		verifyAll();
+	}
+
+	@Test
+	public void putAfterGetWrittenNotPublished() {
+		invalidator.addListener(cache);
+		expectLastCall();
+		expect(token.getCredentials()).andReturn(ST).anyTimes();
+		expect(delegate.getByTicketId(ST)).andReturn(token);
+		delegate.putTicketInCache(token);
+		expectLastCall();
+		replayAll();
+		cache.setInvalidator(invalidator);
+		cache.putTicketInCache(cache.getByTicketId(ST));
+		verifyAll();
+	}
+
+	@Test
+	public void changedTokenWritten() {
+		CasAuthenticationToken changed = createMock(CasAuthenticationToken.class);
+		expect(token.getCredentials()).andReturn(ST).anyTimes();
+		expect(changed.getCredentials()).andReturn(ST).anyTimes();
+		expect(delegate.getByTicketId(ST)).andReturn(token);
+		delegate.putTicketInCache(changed);
+		expectLastCall();
+		replayAll();
+		cache.getByTicketId(ST);
+		cache.putTicketInCache(changed);
+		assertEquals(changed, cache.getByTicketId(ST));
+		verifyAll();
+	}
+
+	@Test
+	public void removeEvictsAndPublishes() {
+		invalidator.addListener(cache);
+		expectLastCall();
+		expect(delegate.getByTicketId(ST)).andReturn(token);
+		delegate.removeTicketFromCache(ST);
+		expectLastCall();
+		invalidator.publish(ST);
+		expectLastCall();
+		expect(delegate.getByTicketId(ST)).andReturn(null);
+		replayAll();
+		cache.setInvalidator(invalidator);
+		cache.getByTicketId(ST);
+		cache.removeTicketFromCache(ST);
+		assertNull(cache.getByTicketId(ST));
+		verifyAll();
+	}
+
+	@Test
+	public void remoteInvalidationEvicts() {
+		expect(delegate.getByTicketId(ST)).andReturn(token).times(2);
+		replayAll();
+		cache.getByTicketId(ST);
+		cache.ticketInvalidated(ST);
+		cache.getByTicketId(ST);
+		cache.allTicketsInvalidated();
+		assertEquals(0, cache.size());
+		verifyAll();
+	}
+
+	@Test
+	public void invalidationDuringReadNotCached() {
+		expect(delegate.getByTicketId(ST)).andAnswer(new IAnswer<CasAuthenticationToken>() {
+			@Override
+			public CasAuthenticationToken answer() {
+				cache.ticketInvalidated(ST);
+				return token;
+			}
+		});
+		replayAll();
+		assertEquals(token, cache.getByTicketId(ST));
+		assertEquals(0, cache.size());
+		verifyAll();
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void getByTicketIdNull() {
+		cache.getByTicketId(null);
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void putTicketInCacheNull() {
+		cache.putTicketInCache(null);
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void removeTicketFromCacheNull() {
+		cache.removeTicketFromCache((String) null);
+	}
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import org.junit.Test;
+
+import redis.clients.jedis.JedisPool;
+
+public class RedisPubSubTicketInvalidatorTest {
+
+	@Test(expected = NullPointerException.class)
+	public void nullJedisPool() {
+		new RedisPubSubTicketInvalidator(null);
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void nullPublisherJedisPool() {
+		new RedisPubSubTicketInvalidator(null, new JedisPool());
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void nullSubscriberJedisPool() {
+		new RedisPubSubTicketInvalidator(new JedisPool(), null);
+	}
+}
@@ -27,9 +27,18 @@ import org.springframework.security.core.userdetails.User;
 import org.testcontainers.containers.Container;
 import org.testcontainers.containers.GenericContainer;
 import org.testcontainers.containers.output.Slf4jLogConsumer;
+import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.util.SafeEncoder;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static org.junit.Assert.*;
 
@@ -50,12 +59,14 @@ public class RedisStatelessTicketCacheIT {
 	private static final String CREDENTIALS = "ST-whatever";
 	private static final String KEY = "key";
 	private static final String ROLE = "role";
+	private static final int TICKETS = 20000;
 
+	private JedisPool jedisPool;
 	private RedisStatelessTicketCache cache;
 
 	@Before
 	public void setup() {
-		JedisPool jedisPool = new JedisPool(redis.getContainerIpAddress(), redis.getMappedPort(REDIS_DEFAULT_PORT));
+		jedisPool = new JedisPool(redis.getContainerIpAddress(), redis.getMappedPort(REDIS_DEFAULT_PORT));
 		cache = new RedisStatelessTicketCache(jedisPool);
 		cache.setExpirationSeconds(60);
 	}
@@ -94,8 +105,187 @@ public class RedisStatelessTicketCacheIT {
 		assertEquals(null, cache.getByTicketId(CREDENTIALS));
 	}
 
+	@Test
+	public void slidingExpiration() throws InterruptedException {
+		cache.setExpirationSeconds(3);
+		cache.setSlidingExpiration(true);
+		cache.setRefreshIntervalSeconds(1);
+		CasAuthenticationToken token = makeToken();
+		cache.removeTicketFromCache(CREDENTIALS);
+		cache.putTicketInCache(token);
+		Thread.sleep(2000l);
+		// Refreshes the expiration time
+		assertTokenEquals(token, cache.getByTicketId(CREDENTIALS));
+		Thread.sleep(2000l);
+		assertTokenEquals(token, cache.getByTicketId(CREDENTIALS));
+		Thread.sleep(4000l);
+		assertNull(cache.getByTicketId(CREDENTIALS));
+	}
+
+	/**
+	 * Verifies a put is a single SET command instead of MULTI, SET, EXPIRE and EXEC
+	 */
+	@Test
+	public void putIsSingleCommand() {
+		cache.setOnlyPutIfAbsent(true);
+		CasAuthenticationToken token = makeToken();
+		cache.removeTicketFromCache(CREDENTIALS);
+		try (Jedis jedis = jedisPool.getResource()) {
+			jedis.configResetStat();
+			cache.putTicketInCache(token);
+			Map<String, Long> calls = commandCalls(jedis.info("commandstats"));
+			calls.remove("config");
+			calls.remove("info");
+			assertEquals(Collections.singletonMap("set", 1L), calls);
+			assertTrue(jedis.ttl(CREDENTIALS) > 0);
+			// NX keeps the first put
+			token.setAuthenticated(false);
+			cache.putTicketInCache(token);
+			assertTrue(cache.getByTicketId(CREDENTIALS).isAuthenticated());
+		}
+	}
+
+	@Test
+	public void bucketedCrud() {
+		TicketKeyStrategy keyStrategy = new TicketKeyStrategy();
+		keyStrategy.setPrefix("cas:");
+		keyStrategy.setHashed(true);
+		keyStrategy.setBucketCount(16);
+		cache.setKeyStrategy(keyStrategy);
+		CasAuthenticationToken token = makeToken();
+		cache.putTicketInCache(token);
+		assertTokenEquals(token, cache.getByTicketId(CREDENTIALS));
+		token.setAuthenticated(false);
+		cache.putTicketInCache(token);
+		assertTokenEquals(token, cache.getByTicketId(CREDENTIALS));
+		try (Jedis jedis = jedisPool.getResource()) {
+			assertEquals("hash", jedis.type(jedis.keys("cas:*").iterator().next()));
+			assertTrue(jedis.pttl(cache.toKey(CREDENTIALS)) > 60000);
+		}
+		cache.removeTicketFromCache(token);
+		assertNull(cache.getByTicketId(CREDENTIALS));
+	}
+
+	@Test
+	public void bulkOperations() {
+		cache.setBulkBatchSize(7);
+		List<String> tickets = new ArrayList<String>();
+		for (int i = 0; i < 50; i++) {
+			tickets.add("ST-bulk-" + i);
+			cache.putTicketInCache(makeToken("ST-bulk-" + i));
+		}
+		tickets.add("ST-missing");
+		Map<String, CasAuthenticationToken> found = cache.getByTicketIds(tickets);
+		assertEquals(50, found.size());
+		assertEquals("ST-bulk-3", found.get("ST-bulk-3").getCredentials());
+		cache.removeTicketsFromCache(tickets.subList(0, 25));
+		assertEquals(25, cache.getByTicketIds(tickets).size());
+		assertNull(cache.getByTicketId("ST-bulk-0"));
+	}
+
+	@Test
+	public void removeTicketsByPrincipal() {
+		TicketKeyStrategy keyStrategy = new TicketKeyStrategy();
+		keyStrategy.setHashed(true);
+		keyStrategy.setBucketCount(16);
+		cache.setKeyStrategy(keyStrategy);
+		cache.setIndexedByPrincipal(true);
+		cache.setBulkBatchSize(10);
+		for (int i = 0; i < 35; i++) {
+			cache.putTicketInCache(makeToken("PT-" + i));
+		}
+		cache.putTicketInCache(new CasAuthenticationToken(KEY, "eve", "PT-eve", Arrays.asList(
+			new SimpleGrantedAuthority(ROLE)), new User("eve", "PT-eve", Arrays.asList(new SimpleGrantedAuthority(
+			ROLE))), new AssertionImpl("eve")));
+		assertEquals(35, cache.removeTicketsByPrincipal(USERNAME));
+		for (int i = 0; i < 35; i++) {
+			assertNull(cache.getByTicketId("PT-" + i));
+		}
+		assertNotNull(cache.getByTicketId("PT-eve"));
+		try (Jedis jedis = jedisPool.getResource()) {
+			assertFalse(jedis.exists(keyStrategy.toPrincipalKey(USERNAME)));
+		}
+		assertEquals(0, cache.removeTicketsByPrincipal(USERNAME));
+	}
+
+	@Test
+	public void rewritesOutdatedEntries() {
+		cache.setExpirationSeconds(600);
+		cache.putTicketInCache(makeToken());
+		VersionedCasAuthenticationTokenSerializer versioned = new VersionedCasAuthenticationTokenSerializer((byte) 1,
+			new CompactCasAuthenticationTokenSerializer());
+		versioned.setLegacySerializer(cache.getBinaryCasAuthenticationTokenSerializer());
+		cache.setBinaryCasAuthenticationTokenSerializer(versioned);
+		cache.setRewritingOutdatedEntries(true);
+		assertTokenEquals(makeToken(), cache.getByTicketId(CREDENTIALS));
+		try (Jedis jedis = jedisPool.getResource()) {
+			byte[] stored = jedis.get(SafeEncoder.encode(CREDENTIALS));
+			assertFalse(versioned.isOutdated(stored));
+			assertTrue(jedis.ttl(CREDENTIALS) > 590);
+		}
+		assertTokenEquals(makeToken(), cache.getByTicketId(CREDENTIALS));
+	}
+
+	/**
+	 * Compares the memory a million tickets take with every key strategy
+	 */
+	@Test
+	public void keyStrategyMemoryUsage() {
+		cache.setBinaryCasAuthenticationTokenSerializer(new CompactCasAuthenticationTokenSerializer());
+		TicketKeyStrategy plain = new TicketKeyStrategy();
+		TicketKeyStrategy hashed = new TicketKeyStrategy();
+		hashed.setPrefix("cas:");
+		hashed.setHashed(true);
+		TicketKeyStrategy bucketed = new TicketKeyStrategy();
+		bucketed.setPrefix("cas:");
+		bucketed.setHashed(true);
+		bucketed.setBucketCount(TICKETS / 100);
+		try (Jedis jedis = jedisPool.getResource()) {
+			// Lets the buckets use the compact encoding despite the size of the tokens
+			jedis.configSet("hash-max-ziplist-entries", "256");
+			jedis.configSet("hash-max-ziplist-value", "1024");
+			long plainBytes = memoryPerMillion(jedis, plain);
+			long hashedBytes = memoryPerMillion(jedis, hashed);
+			long bucketedBytes = memoryPerMillion(jedis, bucketed);
+			LoggerFactory.getLogger(RedisStatelessTicketCacheIT.class).info(
+				"Memory per million tickets: plain {} MB, hashed {} MB, bucketed {} MB", plainBytes >> 20,
+				hashedBytes >> 20, bucketedBytes >> 20);
+			assertTrue(hashedBytes < plainBytes);
+			assertTrue(bucketedBytes < hashedBytes);
+		}
+	}
+
+	private long memoryPerMillion(Jedis jedis, TicketKeyStrategy keyStrategy) {
+		jedis.flushAll();
+		cache.setKeyStrategy(keyStrategy);
+		long before = usedMemory(jedis);
+		for (int i = 0; i < TICKETS; i++) {
+			cache.putTicketInCache(makeToken("ST-" + i + "-cVmDq4PbDAusoH2Wfr7oR4YqkAkJnTzWq1xH-cas.example.com"));
+		}
+		return (usedMemory(jedis) - before) * (1000000 / TICKETS);
+	}
+
+	private long usedMemory(Jedis jedis) {
+		Matcher matcher = Pattern.compile("used_memory:(\\d+)").matcher(jedis.info("memory"));
+		assertTrue(matcher.find());
+		return Long.parseLong(matcher.group(1));
+	}
+
+	private Map<String, Long> commandCalls(String commandStats) {
+		Map<String, Long> calls = new HashMap<>();
+		Matcher matcher = Pattern.compile("cmdstat_(\\w+):calls=(\\d+)").matcher(commandStats);
+		while (matcher.find()) {
+			calls.put(matcher.group(1), Long.valueOf(matcher.group(2)));
+		}
+		return calls;
+	}
+
 	private CasAuthenticationToken makeToken() {
-		return new CasAuthenticationToken(KEY, USERNAME, CREDENTIALS, Arrays.asList(new SimpleGrantedAuthority(ROLE)),
+		return makeToken(CREDENTIALS);
+	}
+
+	private CasAuthenticationToken makeToken(String credentials) {
+		return new CasAuthenticationToken(KEY, USERNAME, credentials, Arrays.asList(new SimpleGrantedAuthority(ROLE)),
 			new User(USERNAME, CREDENTIALS, Arrays.asList(new SimpleGrantedAuthority(ROLE))), new AssertionImpl(
 				USERNAME));
 	}
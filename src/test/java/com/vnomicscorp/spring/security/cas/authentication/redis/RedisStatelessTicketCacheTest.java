@@ -18,18 +18,41 @@ package com.vnomicscorp.spring.security.cas.authentication.redis;
 import static org.easymock.EasyMock.*;
 import static org.junit.Assert.*;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.easymock.Capture;
 import org.easymock.EasyMockSupport;
+import org.jasig.cas.client.authentication.AttributePrincipalImpl;
+import org.jasig.cas.client.validation.Assertion;
+import org.jasig.cas.client.validation.AssertionImpl;
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.security.cas.authentication.CasAuthenticationToken;
 
+import redis.clients.jedis.HostAndPort;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.Transaction;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisMovedDataException;
+import redis.clients.jedis.params.SetParams;
+import redis.clients.jedis.util.SafeEncoder;
 
 public class RedisStatelessTicketCacheTest extends EasyMockSupport {
+	private static final long NOW = 1000000000L;
+
+	private long now = NOW;
 	private RedisStatelessTicketCache cache;
 	private JedisPool jedisPool;
 	private Jedis jedis;
@@ -52,7 +75,33 @@ public class RedisStatelessTicketCacheTest extends EasyMockSupport {
 		String st = "ST-dddddd";
 		String val = "someval";
 		expect(jedisPool.getResource()).andReturn(jedis);
-		expect(jedis.get(st)).andReturn(val);
+		expect(jedis.get(aryEq(SafeEncoder.encode(st)))).andReturn(SafeEncoder.encode(val));
+		jedis.close();
+		expectLastCall();
+		expect(serializer.deserialize(val)).andReturn(token);
+		replayAll();
+		assertEquals(token, cache.getByTicketId(st));
+		verifyAll();
+	}
+
+	@Test
+	public void getByTicketIdFollowsMovedKey() throws CasAuthenticationTokenSerializerException {
+		RedisConnectionSource connectionSource = createStrictMock(RedisConnectionSource.class);
+		cache = new RedisStatelessTicketCache(connectionSource);
+		cache.setCasAuthenticationTokenSerializer(serializer);
+		String st = "ST-dddddd";
+		String val = "someval";
+		expect(connectionSource.getPool(aryEq(SafeEncoder.encode(st)))).andReturn(jedisPool);
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.get(aryEq(SafeEncoder.encode(st)))).andThrow(
+			new JedisMovedDataException("MOVED 1234 other:6379", new HostAndPort("other", 6379), 1234));
+		jedis.close();
+		expectLastCall();
+		connectionSource.refresh();
+		expectLastCall();
+		expect(connectionSource.getPool(aryEq(SafeEncoder.encode(st)))).andReturn(jedisPool);
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.get(aryEq(SafeEncoder.encode(st)))).andReturn(SafeEncoder.encode(val));
 		jedis.close();
 		expectLastCall();
 		expect(serializer.deserialize(val)).andReturn(token);
@@ -61,6 +110,161 @@ public class RedisStatelessTicketCacheTest extends EasyMockSupport {
 		verifyAll();
 	}
 
+	@Test
+	public void getByTicketIdBinarySerializer() throws CasAuthenticationTokenSerializerException {
+		BinaryCasAuthenticationTokenSerializer binarySerializer = createStrictMock(BinaryCasAuthenticationTokenSerializer.class);
+		cache.setBinaryCasAuthenticationTokenSerializer(binarySerializer);
+		String st = "ST-dddddd";
+		byte[] val = new byte[] { 1, 2, 3 };
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.get(aryEq(SafeEncoder.encode(st)))).andReturn(val);
+		jedis.close();
+		expectLastCall();
+		expect(binarySerializer.deserialize(val)).andReturn(token);
+		replayAll();
+		assertEquals(token, cache.getByTicketId(st));
+		assertNull(cache.getCasAuthenticationTokenSerializer());
+		verifyAll();
+	}
+
+	@Test
+	public void getByTicketIdRewritesOutdatedEntry() throws CasAuthenticationTokenSerializerException {
+		BinaryCasAuthenticationTokenSerializer preferred = createStrictMock(BinaryCasAuthenticationTokenSerializer.class);
+		BinaryCasAuthenticationTokenSerializer legacy = createStrictMock(BinaryCasAuthenticationTokenSerializer.class);
+		VersionedCasAuthenticationTokenSerializer versioned = new VersionedCasAuthenticationTokenSerializer((byte) 2,
+			preferred);
+		versioned.setLegacySerializer(legacy);
+		cache.setBinaryCasAuthenticationTokenSerializer(versioned);
+		cache.setRewritingOutdatedEntries(true);
+		String st = "ST-dddddd";
+		byte[] val = new byte[] { 1, 2, 3 };
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.get(aryEq(SafeEncoder.encode(st)))).andReturn(val);
+		jedis.close();
+		expectLastCall();
+		expect(legacy.deserialize(aryEq(val))).andReturn(token);
+		expect(preferred.serialize(token)).andReturn(new byte[] { 4 });
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.eval(anyObject(byte[].class), eq(1), aryEq(SafeEncoder.encode(st)), aryEq(val),
+			aryEq(new byte[] { VersionedCasAuthenticationTokenSerializer.HEADER, 2, 4 }))).andReturn(1L);
+		jedis.close();
+		expectLastCall();
+		expect(token.getCredentials()).andReturn(st);
+		replayAll();
+		assertEquals(token, cache.getByTicketId(st));
+		verifyAll();
+	}
+
+	@Test
+	public void getByTicketIdPreferredFormatNotRewritten() throws CasAuthenticationTokenSerializerException {
+		BinaryCasAuthenticationTokenSerializer preferred = createStrictMock(BinaryCasAuthenticationTokenSerializer.class);
+		cache.setBinaryCasAuthenticationTokenSerializer(new VersionedCasAuthenticationTokenSerializer((byte) 2,
+			preferred));
+		cache.setRewritingOutdatedEntries(true);
+		String st = "ST-dddddd";
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.get(aryEq(SafeEncoder.encode(st)))).andReturn(
+			new byte[] { VersionedCasAuthenticationTokenSerializer.HEADER, 2, 4 });
+		jedis.close();
+		expectLastCall();
+		expect(preferred.deserialize(aryEq(new byte[] { 4 }))).andReturn(token);
+		replayAll();
+		assertEquals(token, cache.getByTicketId(st));
+		verifyAll();
+	}
+
+	@Test
+	public void getByTicketIdRewriteFailureIgnored() throws CasAuthenticationTokenSerializerException {
+		BinaryCasAuthenticationTokenSerializer preferred = createStrictMock(BinaryCasAuthenticationTokenSerializer.class);
+		VersionedCasAuthenticationTokenSerializer versioned = new VersionedCasAuthenticationTokenSerializer((byte) 2,
+			preferred);
+		versioned.addFormat((byte) 1, preferred);
+		cache.setBinaryCasAuthenticationTokenSerializer(versioned);
+		cache.setRewritingOutdatedEntries(true);
+		String st = "ST-dddddd";
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.get(aryEq(SafeEncoder.encode(st)))).andReturn(
+			new byte[] { VersionedCasAuthenticationTokenSerializer.HEADER, 1, 4 });
+		jedis.close();
+		expectLastCall();
+		expect(preferred.deserialize(aryEq(new byte[] { 4 }))).andReturn(token);
+		expect(preferred.serialize(token)).andReturn(new byte[] { 4 });
+		expect(jedisPool.getResource()).andThrow(new JedisConnectionException("down"));
+		expect(token.getCredentials()).andReturn(st);
+		replayAll();
+		assertEquals(token, cache.getByTicketId(st));
+		verifyAll();
+	}
+
+	@Test
+	public void getByTicketIdRewriteSerializeFailureIgnored() throws CasAuthenticationTokenSerializerException {
+		BinaryCasAuthenticationTokenSerializer preferred = createStrictMock(BinaryCasAuthenticationTokenSerializer.class);
+		BinaryCasAuthenticationTokenSerializer legacy = createStrictMock(BinaryCasAuthenticationTokenSerializer.class);
+		VersionedCasAuthenticationTokenSerializer versioned = new VersionedCasAuthenticationTokenSerializer((byte) 2,
+			preferred);
+		versioned.setLegacySerializer(legacy);
+		cache.setBinaryCasAuthenticationTokenSerializer(versioned);
+		cache.setRewritingOutdatedEntries(true);
+		String st = "ST-dddddd";
+		byte[] val = new byte[] { 1, 2, 3 };
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.get(aryEq(SafeEncoder.encode(st)))).andReturn(val);
+		jedis.close();
+		expectLastCall();
+		expect(legacy.deserialize(aryEq(val))).andReturn(token);
+		expect(preferred.serialize(token)).andThrow(new CasAuthenticationTokenSerializerException("Can not write"));
+		expect(token.getCredentials()).andReturn(st);
+		replayAll();
+		assertEquals(token, cache.getByTicketId(st));
+		verifyAll();
+	}
+
+	@Test
+	public void getByTicketIdRejectedIsMiss() throws CasAuthenticationTokenSerializerException {
+		BinaryCasAuthenticationTokenSerializer binarySerializer = createStrictMock(BinaryCasAuthenticationTokenSerializer.class);
+		TicketCacheMetrics metrics = createMock(TicketCacheMetrics.class);
+		cache.setBinaryCasAuthenticationTokenSerializer(binarySerializer);
+		cache.setMetrics(metrics);
+		String st = "ST-dddddd";
+		byte[] val = new byte[] { 1, 2, 3 };
+		metrics.recordPoolWait(anyLong());
+		expectLastCall();
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.get(aryEq(SafeEncoder.encode(st)))).andReturn(val);
+		metrics.recordCommand(eq(TicketCacheMetrics.Operation.GET), anyLong());
+		expectLastCall();
+		jedis.close();
+		expectLastCall();
+		metrics.recordLookup(true);
+		expectLastCall();
+		expect(binarySerializer.deserialize(val)).andThrow(new CasAuthenticationTokenRejectedException("Rejected", null));
+		metrics.recordRejection();
+		expectLastCall();
+		replayAll();
+		assertNull(cache.getByTicketId(st));
+		verifyAll();
+	}
+
+	@Test
+	public void putTicketInCacheBinarySerializer() throws CasAuthenticationTokenSerializerException {
+		BinaryCasAuthenticationTokenSerializer binarySerializer = createStrictMock(BinaryCasAuthenticationTokenSerializer.class);
+		cache.setBinaryCasAuthenticationTokenSerializer(binarySerializer);
+		cache.setExpirationSeconds(-1);
+		String st = "ST-dddddd";
+		byte[] val = new byte[] { 1, 2, 3 };
+		expect(token.getCredentials()).andReturn(st);
+		expect(binarySerializer.serialize(token)).andReturn(val);
+		expect(jedisPool.getResource()).andReturn(jedis);
+		Capture<SetParams> params = newCapture();
+		expect(jedis.set(aryEq(SafeEncoder.encode(st)), aryEq(val), capture(params))).andReturn("OK");
+		jedis.close();
+		expectLastCall();
+		replayAll();
+		cache.putTicketInCache(token);
+		verifyAll();
+		assertParams(params.getValue());
+	}
+
 	@Test(expected = NullPointerException.class)
 	public void getByTicketIdNull() throws CasAuthenticationTokenSerializerException {
 		cache.getByTicketId(null);
@@ -71,7 +275,7 @@ public class RedisStatelessTicketCacheTest extends EasyMockSupport {
 		String st = "ST-dddddd";
 		String val = "someval";
 		expect(jedisPool.getResource()).andReturn(jedis);
-		expect(jedis.get(st)).andReturn(val);
+		expect(jedis.get(aryEq(SafeEncoder.encode(st)))).andReturn(SafeEncoder.encode(val));
 		jedis.close();
 		expectLastCall();
 		expect(serializer.deserialize(val)).andThrow(new CasAuthenticationTokenSerializerException("blah"));
@@ -85,17 +289,17 @@ public class RedisStatelessTicketCacheTest extends EasyMockSupport {
 		String st = "ST-dddddd";
 		String val = "someval";
 		expect(token.getCredentials()).andReturn(st);
-		expect(jedisPool.getResource()).andReturn(jedis);
 		expect(serializer.serialize(token)).andReturn(val);
-		Transaction transaction = createStrictMock(Transaction.class);
-		expect(jedis.multi()).andReturn(transaction);
-		expect(transaction.set(st, val)).andReturn(null);
-		expect(transaction.exec()).andReturn(new ArrayList<Object>());
+		expect(jedisPool.getResource()).andReturn(jedis);
+		Capture<SetParams> params = newCapture();
+		expect(jedis.set(aryEq(SafeEncoder.encode(st)), aryEq(SafeEncoder.encode(val)), capture(params))).andReturn(
+			"OK");
 		jedis.close();
 		expectLastCall();
 		replayAll();
 		cache.putTicketInCache(token);
 		verifyAll();
+		assertParams(params.getValue());
 	}
 
 	@Test
@@ -105,18 +309,74 @@ public class RedisStatelessTicketCacheTest extends EasyMockSupport {
 		String st = "ST-dddddd";
 		String val = "someval";
 		expect(token.getCredentials()).andReturn(st);
+		expect(serializer.serialize(token)).andReturn(val);
 		expect(jedisPool.getResource()).andReturn(jedis);
+		Capture<SetParams> params = newCapture();
+		expect(jedis.set(aryEq(SafeEncoder.encode(st)), aryEq(SafeEncoder.encode(val)), capture(params))).andReturn(
+			"OK");
+		jedis.close();
+		expectLastCall();
+		replayAll();
+		cache.putTicketInCache(token);
+		verifyAll();
+		assertParams(params.getValue(), "ex", expirationSecs.toString());
+	}
+
+	@Test
+	public void putTicketInCacheOnlyIfAbsent() throws CasAuthenticationTokenSerializerException {
+		cache.setOnlyPutIfAbsent(true);
+		cache.setExpirationSeconds(5);
+		String st = "ST-dddddd";
+		String val = "someval";
+		expect(token.getCredentials()).andReturn(st);
 		expect(serializer.serialize(token)).andReturn(val);
-		Transaction transaction = createStrictMock(Transaction.class);
-		expect(jedis.multi()).andReturn(transaction);
-		expect(transaction.set(st, val)).andReturn(null);
-		expect(transaction.expire(st, expirationSecs)).andReturn(null);
-		expect(transaction.exec()).andReturn(new ArrayList<Object>());
+		expect(jedisPool.getResource()).andReturn(jedis);
+		Capture<SetParams> params = newCapture();
+		expect(jedis.set(aryEq(SafeEncoder.encode(st)), aryEq(SafeEncoder.encode(val)), capture(params))).andReturn(
+			null);
 		jedis.close();
 		expectLastCall();
 		replayAll();
 		cache.putTicketInCache(token);
 		verifyAll();
+		assertParams(params.getValue(), "nx", "ex", "5");
+	}
+
+	@Test
+	public void putTicketInCacheExpireAtAssertionValidUntil() throws CasAuthenticationTokenSerializerException {
+		cache.setExpireAtAssertionValidUntil(true);
+		cache.setExpirationSeconds(3600);
+		String st = "ST-dddddd";
+		String val = "someval";
+		Assertion assertion = new AssertionImpl(new AttributePrincipalImpl("dave"), new Date(), new Date(
+			System.currentTimeMillis() + 60000), new Date(), new HashMap<String, Object>());
+		expect(token.getCredentials()).andReturn(st);
+		expect(token.getAssertion()).andReturn(assertion);
+		expect(serializer.serialize(token)).andReturn(val);
+		expect(jedisPool.getResource()).andReturn(jedis);
+		Capture<SetParams> params = newCapture();
+		expect(jedis.set(aryEq(SafeEncoder.encode(st)), aryEq(SafeEncoder.encode(val)), capture(params))).andReturn(
+			"OK");
+		jedis.close();
+		expectLastCall();
+		replayAll();
+		cache.putTicketInCache(token);
+		verifyAll();
+		Long px = params.getValue().getParam("px");
+		assertTrue(px > 50000 && px <= 60000);
+		assertNull(params.getValue().getParam("ex"));
+	}
+
+	@Test
+	public void putTicketInCacheAssertionExpired() throws CasAuthenticationTokenSerializerException {
+		cache.setExpireAtAssertionValidUntil(true);
+		Assertion assertion = new AssertionImpl(new AttributePrincipalImpl("dave"), new Date(0), new Date(1000),
+			new Date(0), new HashMap<String, Object>());
+		expect(token.getCredentials()).andReturn("ST-dddddd");
+		expect(token.getAssertion()).andReturn(assertion);
+		replayAll();
+		cache.putTicketInCache(token);
+		verifyAll();
 	}
 
 	@Test(expected = NullPointerException.class)
@@ -128,10 +388,7 @@ public class RedisStatelessTicketCacheTest extends EasyMockSupport {
 	public void putTicketInCacheSerializationException() throws CasAuthenticationTokenSerializerException {
 		String st = "ST-dddddd";
 		expect(token.getCredentials()).andReturn(st);
-		expect(jedisPool.getResource()).andReturn(jedis);
 		expect(serializer.serialize(token)).andThrow(new CasAuthenticationTokenSerializerException("blah"));
-		jedis.close();
-		expectLastCall();
 		replayAll();
 		cache.putTicketInCache(token);
 	}
@@ -141,7 +398,7 @@ public class RedisStatelessTicketCacheTest extends EasyMockSupport {
 		String st = "ST-dddddd";
 		expect(token.getCredentials()).andReturn(st);
 		expect(jedisPool.getResource()).andReturn(jedis);
-		expect(jedis.del(st)).andReturn(0l);
+		expect(jedis.del(aryEq(SafeEncoder.encode(st)))).andReturn(0l);
 		jedis.close();
 		expectLastCall();
 		replayAll();
@@ -153,7 +410,7 @@ public class RedisStatelessTicketCacheTest extends EasyMockSupport {
 	public void removeTicketFromCache2() {
 		String st = "ST-dddddd";
 		expect(jedisPool.getResource()).andReturn(jedis);
-		expect(jedis.del(st)).andReturn(0l);
+		expect(jedis.del(aryEq(SafeEncoder.encode(st)))).andReturn(0l);
 		jedis.close();
 		expectLastCall();
 		replayAll();
@@ -161,6 +418,418 @@ public class RedisStatelessTicketCacheTest extends EasyMockSupport {
 		verifyAll();
 	}
 
+	@Test
+	public void putTicketInCacheBucketed() throws CasAuthenticationTokenSerializerException {
+		TicketKeyStrategy keyStrategy = useBuckets();
+		BinaryCasAuthenticationTokenSerializer binarySerializer = createStrictMock(BinaryCasAuthenticationTokenSerializer.class);
+		cache.setBinaryCasAuthenticationTokenSerializer(binarySerializer);
+		Pipeline pipeline = createStrictMock(Pipeline.class);
+		Response<Long> response = createMock(Response.class);
+		String st = "ST-dddddd";
+		byte[] val = new byte[] { 1, 2, 3 };
+		byte[] bucketKey = keyStrategy.toBucketKey(keyStrategy.toBucket(st), NOW / 60000);
+		expect(token.getCredentials()).andReturn(st);
+		expect(binarySerializer.serialize(token)).andReturn(val);
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.pipelined()).andReturn(pipeline);
+		Capture<byte[]> stored = newCapture();
+		expect(pipeline.hset(aryEq(bucketKey), aryEq(keyStrategy.toField(st)), capture(stored))).andReturn(response);
+		expect(pipeline.pexpireAt(aryEq(bucketKey), eq((NOW / 60000 + 2) * 60000))).andReturn(null);
+		pipeline.sync();
+		expectLastCall();
+		expect(response.get()).andReturn(1L);
+		jedis.close();
+		expectLastCall();
+		replayAll();
+		cache.putTicketInCache(token);
+		verifyAll();
+		ByteBuffer buffer = ByteBuffer.wrap(stored.getValue());
+		assertEquals(NOW + 60000, buffer.getLong());
+		assertEquals(ByteBuffer.wrap(val), buffer);
+	}
+
+	@Test
+	public void getByTicketIdBucketedPreviousGeneration() throws CasAuthenticationTokenSerializerException {
+		TicketKeyStrategy keyStrategy = useBuckets();
+		BinaryCasAuthenticationTokenSerializer binarySerializer = createStrictMock(BinaryCasAuthenticationTokenSerializer.class);
+		cache.setBinaryCasAuthenticationTokenSerializer(binarySerializer);
+		Pipeline pipeline = createStrictMock(Pipeline.class);
+		Response<byte[]> current = createMock(Response.class);
+		Response<byte[]> previous = createMock(Response.class);
+		String st = "ST-dddddd";
+		byte[] val = new byte[] { 1, 2, 3 };
+		int bucket = keyStrategy.toBucket(st);
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.pipelined()).andReturn(pipeline);
+		expect(pipeline.hget(aryEq(keyStrategy.toBucketKey(bucket, NOW / 60000)), aryEq(keyStrategy.toField(st))))
+			.andReturn(current);
+		expect(
+			pipeline.hget(aryEq(keyStrategy.toBucketKey(bucket, NOW / 60000 - 1)), aryEq(keyStrategy.toField(st))))
+			.andReturn(previous);
+		pipeline.sync();
+		expectLastCall();
+		expect(current.get()).andReturn(null);
+		expect(previous.get()).andReturn(ByteBuffer.allocate(11).putLong(NOW + 1).put(val).array());
+		jedis.close();
+		expectLastCall();
+		expect(binarySerializer.deserialize(aryEq(val))).andReturn(token);
+		replayAll();
+		assertEquals(token, cache.getByTicketId(st));
+		verifyAll();
+	}
+
+	@Test
+	public void getByTicketIdBucketedExpired() {
+		useBuckets();
+		Pipeline pipeline = createMock(Pipeline.class);
+		Response<byte[]> response = createMock(Response.class);
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.pipelined()).andReturn(pipeline);
+		expect(pipeline.hget(anyObject(byte[].class), anyObject(byte[].class))).andReturn(response).times(2);
+		pipeline.sync();
+		expectLastCall();
+		expect(response.get()).andReturn(ByteBuffer.allocate(11).putLong(NOW).array()).times(2);
+		jedis.close();
+		expectLastCall();
+		replayAll();
+		assertNull(cache.getByTicketId("ST-dddddd"));
+		verifyAll();
+	}
+
+	@Test
+	public void removeTicketFromCacheBucketed() {
+		TicketKeyStrategy keyStrategy = useBuckets();
+		Pipeline pipeline = createStrictMock(Pipeline.class);
+		String st = "ST-dddddd";
+		int bucket = keyStrategy.toBucket(st);
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.pipelined()).andReturn(pipeline);
+		expect(pipeline.hdel(aryEq(keyStrategy.toBucketKey(bucket, NOW / 60000)), aryEq(keyStrategy.toField(st))))
+			.andReturn(null);
+		expect(
+			pipeline.hdel(aryEq(keyStrategy.toBucketKey(bucket, NOW / 60000 - 1)), aryEq(keyStrategy.toField(st))))
+			.andReturn(null);
+		pipeline.sync();
+		expectLastCall();
+		jedis.close();
+		expectLastCall();
+		replayAll();
+		cache.removeTicketFromCache(st);
+		verifyAll();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void bucketsRequireExpiration() {
+		useBuckets();
+		cache.setExpirationSeconds(-1);
+		cache.getByTicketId("ST-dddddd");
+	}
+
+	@Test
+	public void getByTicketIdSlidingRefreshesOncePerInterval() throws CasAuthenticationTokenSerializerException {
+		useClock();
+		cache.setSlidingExpiration(true);
+		cache.setExpirationSeconds(600);
+		cache.setRefreshIntervalSeconds(60);
+		String st = "ST-dddddd";
+		String val = "someval";
+		Assertion assertion = new AssertionImpl("dave");
+		expectSlidingGet(st, val, true);
+		expect(token.getAssertion()).andReturn(assertion);
+		expectSlidingGet(st, val, false);
+		expect(token.getAssertion()).andReturn(assertion);
+		expectSlidingGet(st, val, true);
+		expect(token.getAssertion()).andReturn(assertion);
+		replayAll();
+		assertEquals(token, cache.getByTicketId(st));
+		now += 59000;
+		assertEquals(token, cache.getByTicketId(st));
+		now += 1000;
+		assertEquals(token, cache.getByTicketId(st));
+		verifyAll();
+	}
+
+	@Test
+	public void getByTicketIdSlidingCappedAtValidUntil() throws CasAuthenticationTokenSerializerException {
+		useClock();
+		cache.setSlidingExpiration(true);
+		cache.setExpirationSeconds(600);
+		String st = "ST-dddddd";
+		String val = "someval";
+		Assertion assertion = new AssertionImpl(new AttributePrincipalImpl("dave"), new Date(0), new Date(NOW + 1000),
+			new Date(0), new HashMap<String, Object>());
+		expectSlidingGet(st, val, true);
+		expect(token.getAssertion()).andReturn(assertion);
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.pexpireAt(aryEq(SafeEncoder.encode(st)), eq(NOW + 1000))).andReturn(1L);
+		jedis.close();
+		expectLastCall();
+		replayAll();
+		assertEquals(token, cache.getByTicketId(st));
+		verifyAll();
+	}
+
+	@Test
+	public void getByTicketIdSlidingAssertionExpired() throws CasAuthenticationTokenSerializerException {
+		useClock();
+		cache.setSlidingExpiration(true);
+		cache.setExpirationSeconds(600);
+		String st = "ST-dddddd";
+		String val = "someval";
+		Assertion assertion = new AssertionImpl(new AttributePrincipalImpl("dave"), new Date(0), new Date(NOW),
+			new Date(0), new HashMap<String, Object>());
+		expectSlidingGet(st, val, true);
+		expect(token.getAssertion()).andReturn(assertion);
+		expect(token.getCredentials()).andReturn(st);
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.del(aryEq(SafeEncoder.encode(st)))).andReturn(1L);
+		jedis.close();
+		expectLastCall();
+		replayAll();
+		assertNull(cache.getByTicketId(st));
+		verifyAll();
+	}
+
+	@Test
+	public void putTicketInCacheSlidingSkipsNextRefresh() throws CasAuthenticationTokenSerializerException {
+		useClock();
+		cache.setSlidingExpiration(true);
+		cache.setExpirationSeconds(600);
+		String st = "ST-dddddd";
+		String val = "someval";
+		expect(token.getCredentials()).andReturn(st);
+		expect(serializer.serialize(token)).andReturn(val);
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.set(aryEq(SafeEncoder.encode(st)), aryEq(SafeEncoder.encode(val)), anyObject(SetParams.class)))
+			.andReturn("OK");
+		jedis.close();
+		expectLastCall();
+		expectSlidingGet(st, val, false);
+		expect(token.getAssertion()).andReturn(null);
+		replayAll();
+		cache.putTicketInCache(token);
+		assertEquals(token, cache.getByTicketId(st));
+		verifyAll();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void slidingExpirationRequiresExpiration() {
+		cache.setSlidingExpiration(true);
+		cache.getByTicketId("ST-dddddd");
+	}
+
+	@Test
+	public void getByTicketIdPrefixedHashedKey() throws CasAuthenticationTokenSerializerException {
+		TicketKeyStrategy keyStrategy = new TicketKeyStrategy();
+		keyStrategy.setPrefix("cas:");
+		keyStrategy.setHashed(true);
+		cache.setKeyStrategy(keyStrategy);
+		String st = "ST-dddddd";
+		String val = "someval";
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.get(aryEq(keyStrategy.toKey(st)))).andReturn(SafeEncoder.encode(val));
+		jedis.close();
+		expectLastCall();
+		expect(serializer.deserialize(val)).andReturn(token);
+		replayAll();
+		assertEquals(token, cache.getByTicketId(st));
+		verifyAll();
+		assertEquals(20, keyStrategy.toKey(st).length);
+	}
+
+	@Test
+	public void getByTicketIdsPipelined() throws CasAuthenticationTokenSerializerException {
+		Pipeline pipeline = createStrictMock(Pipeline.class);
+		Response<byte[]> hit = createMock(Response.class);
+		Response<byte[]> miss = createMock(Response.class);
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.pipelined()).andReturn(pipeline);
+		expect(pipeline.get(aryEq(SafeEncoder.encode("ST-1")))).andReturn(hit);
+		expect(pipeline.get(aryEq(SafeEncoder.encode("ST-2")))).andReturn(miss);
+		pipeline.sync();
+		expectLastCall();
+		expect(hit.get()).andReturn(SafeEncoder.encode("someval"));
+		expect(miss.get()).andReturn(null);
+		jedis.close();
+		expectLastCall();
+		expect(serializer.deserialize("someval")).andReturn(token);
+		replayAll();
+		Map<String, CasAuthenticationToken> tokens = cache.getByTicketIds(Arrays.asList("ST-1", "ST-2", "ST-1"));
+		assertEquals(Collections.singletonMap("ST-1", token), tokens);
+		verifyAll();
+	}
+
+	@Test
+	public void getByTicketIdsFollowsMovedKeys() throws CasAuthenticationTokenSerializerException {
+		RedisConnectionSource connectionSource = createStrictMock(RedisConnectionSource.class);
+		cache = new RedisStatelessTicketCache(connectionSource);
+		cache.setCasAuthenticationTokenSerializer(serializer);
+		Pipeline pipeline = createStrictMock(Pipeline.class);
+		Response<byte[]> moved = createMock(Response.class);
+		Response<byte[]> hit = createMock(Response.class);
+		expect(connectionSource.getPool(aryEq(SafeEncoder.encode("ST-1")))).andReturn(jedisPool);
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.pipelined()).andReturn(pipeline);
+		expect(pipeline.get(aryEq(SafeEncoder.encode("ST-1")))).andReturn(moved);
+		pipeline.sync();
+		expectLastCall();
+		expect(moved.get()).andThrow(
+			new JedisMovedDataException("MOVED 1234 other:6379", new HostAndPort("other", 6379), 1234));
+		jedis.close();
+		expectLastCall();
+		connectionSource.refresh();
+		expectLastCall();
+		expect(connectionSource.getPool(aryEq(SafeEncoder.encode("ST-1")))).andReturn(jedisPool);
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.pipelined()).andReturn(pipeline);
+		expect(pipeline.get(aryEq(SafeEncoder.encode("ST-1")))).andReturn(hit);
+		pipeline.sync();
+		expectLastCall();
+		expect(hit.get()).andReturn(SafeEncoder.encode("someval"));
+		jedis.close();
+		expectLastCall();
+		expect(serializer.deserialize("someval")).andReturn(token);
+		replayAll();
+		assertEquals(token, cache.getByTicketIds(Arrays.asList("ST-1")).get("ST-1"));
+		verifyAll();
+	}
+
+	@Test
+	public void removeTicketsFromCacheUnlinksInBatches() {
+		cache.setBulkBatchSize(2);
+		Pipeline pipeline = createStrictMock(Pipeline.class);
+		Response<Long> reply = createMock(Response.class);
+		expect(reply.get()).andReturn(1L).anyTimes();
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.pipelined()).andReturn(pipeline);
+		expect(pipeline.unlink(aryEq(SafeEncoder.encode("ST-1")))).andReturn(reply);
+		expect(pipeline.unlink(aryEq(SafeEncoder.encode("ST-2")))).andReturn(reply);
+		pipeline.sync();
+		expectLastCall();
+		expect(jedis.pipelined()).andReturn(pipeline);
+		expect(pipeline.unlink(aryEq(SafeEncoder.encode("ST-3")))).andReturn(reply);
+		pipeline.sync();
+		expectLastCall();
+		jedis.close();
+		expectLastCall();
+		replayAll();
+		cache.removeTicketsFromCache(Arrays.asList("ST-1", "ST-2", "ST-3"));
+		verifyAll();
+	}
+
+	@Test
+	public void removeTicketsFromCacheBucketed() {
+		TicketKeyStrategy keyStrategy = useBuckets();
+		keyStrategy.setHashed(true);
+		Pipeline pipeline = createStrictMock(Pipeline.class);
+		Response<Long> reply = createMock(Response.class);
+		expect(reply.get()).andReturn(1L).anyTimes();
+		String st = "ST-dddddd";
+		int bucket = keyStrategy.toBucket(st);
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.pipelined()).andReturn(pipeline);
+		expect(pipeline.hdel(aryEq(keyStrategy.toBucketKey(bucket, NOW / 60000)), aryEq(keyStrategy.toField(st))))
+			.andReturn(reply);
+		expect(
+			pipeline.hdel(aryEq(keyStrategy.toBucketKey(bucket, NOW / 60000 - 1)), aryEq(keyStrategy.toField(st))))
+			.andReturn(null);
+		pipeline.sync();
+		expectLastCall();
+		jedis.close();
+		expectLastCall();
+		replayAll();
+		cache.removeTicketsFromCache(Arrays.asList(st));
+		verifyAll();
+	}
+
+	@Test
+	public void putTicketInCacheIndexedByPrincipal() throws CasAuthenticationTokenSerializerException {
+		useClock();
+		cache.setExpirationSeconds(60);
+		cache.setIndexedByPrincipal(true);
+		Pipeline pipeline = createStrictMock(Pipeline.class);
+		Response<Long> reply = createMock(Response.class);
+		expect(reply.get()).andReturn(1L).anyTimes();
+		String st = "ST-dddddd";
+		byte[] indexKey = SafeEncoder.encode("principal:dave");
+		expect(token.getCredentials()).andReturn(st);
+		expect(serializer.serialize(token)).andReturn("someval");
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.set(aryEq(SafeEncoder.encode(st)), aryEq(SafeEncoder.encode("someval")), anyObject(
+			SetParams.class))).andReturn("OK");
+		jedis.close();
+		expectLastCall();
+		expect(token.getName()).andReturn("dave");
+		expect(token.getCredentials()).andReturn(st);
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.pipelined()).andReturn(pipeline);
+		expect(pipeline.zremrangeByScore(aryEq(indexKey), eq(0.0), eq((double) NOW))).andReturn(null);
+		expect(pipeline.zadd(aryEq(indexKey), eq((double) NOW + 60000), aryEq(SafeEncoder.encode(st)))).andReturn(
+			null);
+		expect(pipeline.pexpire(aryEq(indexKey), eq(60000L))).andReturn(null);
+		pipeline.sync();
+		expectLastCall();
+		jedis.close();
+		expectLastCall();
+		replayAll();
+		cache.putTicketInCache(token);
+		verifyAll();
+	}
+
+	@Test
+	public void removeTicketsByPrincipal() {
+		cache.setExpirationSeconds(60);
+		cache.setIndexedByPrincipal(true);
+		Pipeline pipeline = createStrictMock(Pipeline.class);
+		Response<Long> reply = createMock(Response.class);
+		expect(reply.get()).andReturn(1L).anyTimes();
+		byte[] indexKey = SafeEncoder.encode("principal:dave");
+		Set<byte[]> indexed = new LinkedHashSet<byte[]>(Arrays.asList(SafeEncoder.encode("ST-1"), SafeEncoder
+			.encode("ST-2")));
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.zrange(aryEq(indexKey), eq(0L), eq(99L))).andReturn(indexed);
+		jedis.close();
+		expectLastCall();
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.pipelined()).andReturn(pipeline);
+		expect(pipeline.unlink(aryEq(SafeEncoder.encode("ST-1")))).andReturn(reply);
+		expect(pipeline.unlink(aryEq(SafeEncoder.encode("ST-2")))).andReturn(reply);
+		pipeline.sync();
+		expectLastCall();
+		jedis.close();
+		expectLastCall();
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.zrem(aryEq(indexKey), aryEq(SafeEncoder.encode("ST-1")), aryEq(SafeEncoder.encode("ST-2"))))
+			.andReturn(2L);
+		jedis.close();
+		expectLastCall();
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.zrange(aryEq(indexKey), eq(0L), eq(99L))).andReturn(Collections.<byte[]> emptySet());
+		jedis.close();
+		expectLastCall();
+		replayAll();
+		assertEquals(2, cache.removeTicketsByPrincipal("dave"));
+		verifyAll();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void removeTicketsByPrincipalRequiresIndex() {
+		cache.removeTicketsByPrincipal("dave");
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void principalIndexRequiresExpiration() {
+		cache.setIndexedByPrincipal(true);
+		expect(token.getCredentials()).andReturn("ST-dddddd");
+		replayAll();
+		cache.putTicketInCache(token);
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void getByTicketIdsNullTicket() {
+		cache.getByTicketIds(Arrays.asList("ST-1", null));
+	}
+
 	@Test(expected = NullPointerException.class)
 	public void removeTicketFromCacheNull() {
 		cache.removeTicketFromCache((CasAuthenticationToken) null);
@@ -170,4 +839,51 @@ public class RedisStatelessTicketCacheTest extends EasyMockSupport {
 	public void removeTicketFromCacheNull2() {
 		cache.removeTicketFromCache((String) null);
 	}
+
+	private TicketKeyStrategy useBuckets() {
+		useClock();
+		cache.setExpirationSeconds(60);
+		TicketKeyStrategy keyStrategy = new TicketKeyStrategy();
+		keyStrategy.setBucketCount(16);
+		cache.setKeyStrategy(keyStrategy);
+		return keyStrategy;
+	}
+
+	private void useClock() {
+		cache = new RedisStatelessTicketCache(jedisPool) {
+			@Override
+			protected long currentTimeMillis() {
+				return now;
+			}
+		};
+		cache.setCasAuthenticationTokenSerializer(serializer);
+	}
+
+	private void expectSlidingGet(String st, String val, boolean refresh)
+		throws CasAuthenticationTokenSerializerException {
+		expect(jedisPool.getResource()).andReturn(jedis);
+		if (refresh) {
+			Pipeline pipeline = createStrictMock(Pipeline.class);
+			Response<byte[]> response = createMock(Response.class);
+			expect(jedis.pipelined()).andReturn(pipeline);
+			expect(pipeline.get(aryEq(SafeEncoder.encode(st)))).andReturn(response);
+			expect(pipeline.expire(aryEq(SafeEncoder.encode(st)), eq(600))).andReturn(null);
+			pipeline.sync();
+			expectLastCall();
+			expect(response.get()).andReturn(SafeEncoder.encode(val));
+		} else {
+			expect(jedis.get(aryEq(SafeEncoder.encode(st)))).andReturn(SafeEncoder.encode(val));
+		}
+		jedis.close();
+		expectLastCall();
+		expect(serializer.deserialize(val)).andReturn(token);
+	}
+
+	private void assertParams(SetParams params, String... expected) {
+		List<String> got = new ArrayList<String>();
+		for (byte[] param : params.getByteParams()) {
+			got.add(SafeEncoder.encode(param));
+		}
+		assertEquals(new HashSet<String>(Arrays.asList(expected)), new HashSet<String>(got));
+	}
 }
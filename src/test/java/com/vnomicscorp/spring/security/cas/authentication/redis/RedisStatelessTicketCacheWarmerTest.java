@@ -0,0 +1,146 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import org.easymock.EasyMockSupport;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisExhaustedPoolException;
+
+public class RedisStatelessTicketCacheWarmerTest extends EasyMockSupport {
+	private static final byte[] VAL = new byte[] { 1, 2, 3 };
+
+	private RedisStatelessTicketCacheWarmer warmer;
+	private JedisPool jedisPool;
+	private Jedis jedis1;
+	private Jedis jedis2;
+	private BinaryCasAuthenticationTokenSerializer serializer;
+	private CasAuthenticationToken token;
+
+	@Before
+	public void setup() {
+		jedisPool = createStrictMock(JedisPool.class);
+		jedis1 = createMock(Jedis.class);
+		jedis2 = createMock(Jedis.class);
+		serializer = createMock(BinaryCasAuthenticationTokenSerializer.class);
+		token = createMock(CasAuthenticationToken.class);
+		RedisStatelessTicketCache cache = new RedisStatelessTicketCache(jedisPool);
+		cache.setBinaryCasAuthenticationTokenSerializer(serializer);
+		warmer = new RedisStatelessTicketCacheWarmer(cache);
+		warmer.setConnectionsPerPool(2);
+		warmer.setSerializationIterations(0);
+		resetAll();
+	}
+
+	@Test
+	public void connectionsBorrowedTogetherAndValidated() {
+		expect(jedisPool.getResource()).andReturn(jedis1);
+		expect(jedis1.ping()).andReturn("PONG");
+		expect(jedisPool.getResource()).andReturn(jedis2);
+		expect(jedis2.ping()).andReturn("PONG");
+		jedis1.close();
+		expectLastCall();
+		jedis2.close();
+		expectLastCall();
+		replayAll();
+		warmer.warmUp();
+		assertEquals(2, warmer.getValidatedConnectionCount());
+		assertEquals(0, warmer.getFailedConnectionCount());
+		verifyAll();
+	}
+
+	@Test
+	public void failedValidationCounted() {
+		expect(jedisPool.getResource()).andReturn(jedis1);
+		expect(jedis1.ping()).andThrow(new JedisConnectionException("down"));
+		expect(jedisPool.getResource()).andReturn(jedis2);
+		expect(jedis2.ping()).andReturn("PONG");
+		jedis1.close();
+		expectLastCall();
+		jedis2.close();
+		expectLastCall();
+		replayAll();
+		warmer.warmUp();
+		assertEquals(1, warmer.getValidatedConnectionCount());
+		assertEquals(1, warmer.getFailedConnectionCount());
+		verifyAll();
+	}
+
+	@Test
+	public void exhaustedPoolStopsBorrowing() {
+		expect(jedisPool.getResource()).andReturn(jedis1);
+		expect(jedis1.ping()).andReturn("PONG");
+		expect(jedisPool.getResource()).andThrow(new JedisExhaustedPoolException("exhausted"));
+		jedis1.close();
+		expectLastCall();
+		replayAll();
+		warmer.warmUp();
+		assertEquals(1, warmer.getValidatedConnectionCount());
+		assertEquals(1, warmer.getFailedConnectionCount());
+		verifyAll();
+	}
+
+	@Test
+	public void unreachableRedisDoesNotFail() {
+		expect(jedisPool.getResource()).andThrow(new JedisConnectionException("down"));
+		replayAll();
+		warmer.warmUp();
+		assertEquals(0, warmer.getValidatedConnectionCount());
+		assertEquals(2, warmer.getFailedConnectionCount());
+		verifyAll();
+	}
+
+	@Test
+	public void serializerExercised() throws CasAuthenticationTokenSerializerException {
+		warmer.setConnectionsPerPool(0);
+		warmer.setSerializationIterations(3);
+		warmer.setSampleToken(token);
+		expect(serializer.serialize(token)).andReturn(VAL).times(3);
+		expect(serializer.deserialize(aryEq(VAL))).andReturn(token).times(3);
+		expect(token.getAssertion()).andReturn(null).times(3);
+		replayAll();
+		warmer.warmUp();
+		verifyAll();
+	}
+
+	@Test
+	public void defaultSampleTokenRoundTrips() throws CasAuthenticationTokenSerializerException {
+		CompactCasAuthenticationTokenSerializer compact = new CompactCasAuthenticationTokenSerializer();
+		CasAuthenticationToken sample = warmer.getSampleToken();
+		CasAuthenticationToken copy = compact.deserialize(compact.serialize(sample));
+		assertEquals(sample.getCredentials(), copy.getCredentials());
+		assertEquals(sample.getAssertion().getPrincipal().getAttributes(), copy.getAssertion().getPrincipal()
+			.getAttributes());
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void nullCache() {
+		new RedisStatelessTicketCacheWarmer(null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeConnections() {
+		warmer.setConnectionsPerPool(-1);
+	}
+}
@@ -0,0 +1,281 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jasig.cas.client.validation.AssertionImpl;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.beans.factory.BeanCreationException;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+import org.springframework.security.cas.authentication.StatelessTicketCache;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+public class RedisTicketCacheAutoConfigurationTest {
+
+	private AnnotationConfigApplicationContext context;
+
+	@After
+	public void teardown() {
+		if (context != null) {
+			context.close();
+		}
+	}
+
+	@Test
+	public void defaults() {
+		load();
+		RedisStatelessTicketCache cache = context.getBean(RedisStatelessTicketCache.class);
+		assertSame(cache, context.getBean(StatelessTicketCache.class));
+		assertTrue(context.getBeansOfType(RedisPubSubTicketInvalidator.class).isEmpty());
+		assertFalse(context.getDefaultListableBeanFactory().containsSingleton("redisTicketCacheSubscriberJedisPool"));
+		assertEquals(Integer.valueOf(3600), cache.getExpirationSeconds());
+		assertTrue(cache.isExpireAtAssertionValidUntil());
+		assertTrue(preferredFormat(cache) instanceof CompressingCasAuthenticationTokenSerializer);
+		assertTrue(cache.getMetrics() instanceof MicrometerTicketCacheMetrics);
+		assertSame(context.getBean(JedisPool.class), cache.getConnectionSource().getPools().iterator().next());
+		assertTrue(context.containsBean("redisTicketCacheHealthIndicator"));
+		assertTrue(context.getBeansOfType(AsyncRedisStatelessTicketCache.class).isEmpty());
+	}
+
+	@Test
+	public void switchesOff() {
+		load("cas.ticket-cache.redis.codec.binary", "false", "cas.ticket-cache.redis.compression.enabled", "false",
+			"cas.ticket-cache.redis.metrics.enabled", "false", "management.health.redis-ticket-cache.enabled", "false");
+		RedisStatelessTicketCache cache = context.getBean(RedisStatelessTicketCache.class);
+		assertTrue(preferredFormat(cache) instanceof StringCasAuthenticationTokenSerializerAdapter);
+		assertSame(TicketCacheMetrics.NONE, cache.getMetrics());
+		assertFalse(context.containsBean("redisTicketCacheHealthIndicator"));
+	}
+
+	@Test
+	public void nearCache() {
+		load("cas.ticket-cache.redis.near-cache.enabled", "true");
+		StatelessTicketCache statelessTicketCache = context.getBean(StatelessTicketCache.class);
+		assertTrue(statelessTicketCache instanceof NearCacheStatelessTicketCache);
+		NearCacheStatelessTicketCache nearCache = (NearCacheStatelessTicketCache) statelessTicketCache;
+		assertSame(context.getBean(RedisStatelessTicketCache.class), nearCache.getDelegate());
+		RedisPubSubTicketInvalidator invalidator = context.getBean(RedisPubSubTicketInvalidator.class);
+		assertSame(invalidator, nearCache.getInvalidator());
+		assertSame(context.getBean("redisTicketCacheSubscriberJedisPool"), invalidator.getSubscriberJedisPool());
+	}
+
+	@Test
+	public void nearCacheWithApplicationConnectionSource() {
+		load(ConnectionSourceConfiguration.class, "cas.ticket-cache.redis.near-cache.enabled", "true");
+		assertSame(context.getBean(RedisConnectionSource.class).getPools().iterator().next(), context.getBean(
+			RedisPubSubTicketInvalidator.class).getSubscriberJedisPool());
+	}
+
+	@Test(expected = BeanCreationException.class)
+	public void nearCacheInvalidationRequiresSinglePool() {
+		load(ShardedConnectionSourceConfiguration.class, "cas.ticket-cache.redis.near-cache.enabled", "true");
+	}
+
+	@Test
+	public void nearCacheWithApplicationInvalidator() {
+		load(InvalidatorConfiguration.class, "cas.ticket-cache.redis.near-cache.enabled", "true");
+		assertSame(context.getBean(RedisPubSubTicketInvalidator.class), ((NearCacheStatelessTicketCache) context
+			.getBean(StatelessTicketCache.class)).getInvalidator());
+	}
+
+	@Test
+	public void nearCacheWithoutInvalidation() {
+		load("cas.ticket-cache.redis.near-cache.enabled", "true", "cas.ticket-cache.redis.near-cache.invalidation",
+			"false");
+		assertNull(((NearCacheStatelessTicketCache) context.getBean(StatelessTicketCache.class)).getInvalidator());
+		assertTrue(context.getBeansOfType(RedisPubSubTicketInvalidator.class).isEmpty());
+	}
+
+	@Test
+	public void binaryCodecWithoutCompression() {
+		load("cas.ticket-cache.redis.compression.enabled", "false", "cas.ticket-cache.redis.codec.lazy", "true");
+		BinaryCasAuthenticationTokenSerializer serializer = preferredFormat(context.getBean(
+			RedisStatelessTicketCache.class));
+		assertTrue(serializer instanceof CompactCasAuthenticationTokenSerializer);
+		assertTrue(((CompactCasAuthenticationTokenSerializer) serializer).isLazy());
+	}
+
+	@Test
+	public void legacyEntriesReadable() throws CasAuthenticationTokenSerializerException {
+		CasAuthenticationToken token = makeToken();
+		byte[] legacy = new StringCasAuthenticationTokenSerializerAdapter(new DefaultCasAuthenticationTokenSerializer())
+			.serialize(token);
+		VersionedCasAuthenticationTokenSerializer serializer = RedisTicketCacheAutoConfiguration.createSerializer(
+			new RedisTicketCacheProperties());
+		assertTokenEquals(token, serializer.deserialize(legacy));
+		assertTrue(serializer.isOutdated(legacy));
+	}
+
+	@Test
+	public void formatChangeKeepsEntriesReadable() throws CasAuthenticationTokenSerializerException {
+		CasAuthenticationToken token = makeToken();
+		byte[] compressed = RedisTicketCacheAutoConfiguration.createSerializer(new RedisTicketCacheProperties())
+			.serialize(token);
+		RedisTicketCacheProperties properties = new RedisTicketCacheProperties();
+		properties.getCodec().setBinary(false);
+		properties.getCompression().setEnabled(false);
+		VersionedCasAuthenticationTokenSerializer serializer = RedisTicketCacheAutoConfiguration.createSerializer(
+			properties);
+		assertTokenEquals(token, serializer.deserialize(compressed));
+		assertTokenEquals(token, RedisTicketCacheAutoConfiguration.createSerializer(new RedisTicketCacheProperties())
+			.deserialize(serializer.serialize(token)));
+	}
+
+	@Test(expected = BeanCreationException.class)
+	public void compressionRequiresBinaryCodec() {
+		load("cas.ticket-cache.redis.codec.binary", "false");
+	}
+
+	@Test
+	public void pipelining() {
+		load("cas.ticket-cache.redis.pipelining.enabled", "true", "cas.ticket-cache.redis.concurrency", "16");
+		AsyncRedisStatelessTicketCache asyncCache = context.getBean(AsyncRedisStatelessTicketCache.class);
+		assertTrue(asyncCache.isRunning());
+		assertEquals(800, asyncCache.getQueueCapacity());
+		assertSame(asyncCache, context.getBean(StatelessTicketCache.class));
+		context.close();
+		assertFalse(asyncCache.isRunning());
+	}
+
+	@Test
+	public void disabled() {
+		load("cas.ticket-cache.redis.enabled", "false");
+		assertTrue(context.getBeansOfType(StatelessTicketCache.class).isEmpty());
+		assertTrue(context.getBeansOfType(JedisPool.class).isEmpty());
+	}
+
+	@Test
+	public void applicationConnectionSource() {
+		context = new AnnotationConfigApplicationContext();
+		context.register(ConnectionSourceConfiguration.class, RedisTicketCacheAutoConfiguration.class);
+		context.refresh();
+		assertSame(context.getBean(RedisConnectionSource.class), context.getBean(RedisStatelessTicketCache.class)
+			.getConnectionSource());
+		assertFalse(context.containsBean("redisTicketCacheJedisPool"));
+	}
+
+	@Test
+	public void poolDerivedFromConcurrency() {
+		RedisTicketCacheProperties properties = new RedisTicketCacheProperties();
+		properties.setConcurrency(64);
+		JedisPoolConfig poolConfig = RedisTicketCacheAutoConfiguration.createPoolConfig(properties);
+		assertEquals(64, poolConfig.getMaxTotal());
+		assertEquals(64, poolConfig.getMaxIdle());
+		assertEquals(16, poolConfig.getMinIdle());
+		assertEquals(1000, poolConfig.getMaxWaitMillis());
+	}
+
+	@Test
+	public void poolSetExplicitly() {
+		RedisTicketCacheProperties properties = new RedisTicketCacheProperties();
+		properties.setConcurrency(64);
+		properties.getPool().setMaxTotal(10);
+		properties.getPool().setMinIdle(2);
+		properties.getPool().setMaxWaitMillis(50);
+		JedisPoolConfig poolConfig = RedisTicketCacheAutoConfiguration.createPoolConfig(properties);
+		assertEquals(10, poolConfig.getMaxTotal());
+		assertEquals(10, poolConfig.getMaxIdle());
+		assertEquals(2, poolConfig.getMinIdle());
+		assertEquals(50, poolConfig.getMaxWaitMillis());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void concurrencyNotPositive() {
+		new RedisTicketCacheProperties().setConcurrency(0);
+	}
+
+	private BinaryCasAuthenticationTokenSerializer preferredFormat(RedisStatelessTicketCache cache) {
+		VersionedCasAuthenticationTokenSerializer serializer = (VersionedCasAuthenticationTokenSerializer) cache
+			.getBinaryCasAuthenticationTokenSerializer();
+		return serializer.getFormat(serializer.getPreferredFormat());
+	}
+
+	private CasAuthenticationToken makeToken() {
+		List<GrantedAuthority> authorities = Arrays.<GrantedAuthority> asList(new SimpleGrantedAuthority("ROLE_USER"));
+		return new CasAuthenticationToken("key", "dave", "ST-whatever", authorities, new User("dave", "ST-whatever",
+			authorities), new AssertionImpl("dave"));
+	}
+
+	private void assertTokenEquals(CasAuthenticationToken expected, CasAuthenticationToken got) {
+		assertEquals(expected.getName(), got.getName());
+		assertEquals(expected.getCredentials(), got.getCredentials());
+		assertEquals(expected.getAuthorities(), got.getAuthorities());
+	}
+
+	private void load(String... properties) {
+		load(null, properties);
+	}
+
+	private void load(Class<?> configuration, String... properties) {
+		Map<String, Object> source = new HashMap<String, Object>();
+		for (int i = 0; i < properties.length; i += 2) {
+			source.put(properties[i], properties[i + 1]);
+		}
+		context = new AnnotationConfigApplicationContext();
+		context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("test", source));
+		if (configuration != null) {
+			context.register(configuration);
+		}
+		context.register(RedisTicketCacheAutoConfiguration.class);
+		context.refresh();
+	}
+
+	@Configuration
+	static class ConnectionSourceConfiguration {
+
+		@Bean
+		public RedisConnectionSource connectionSource() {
+			return new SingleRedisConnectionSource(new JedisPool());
+		}
+	}
+
+	@Configuration
+	static class ShardedConnectionSourceConfiguration {
+
+		@Bean
+		public RedisConnectionSource connectionSource() {
+			Map<String, JedisPool> pools = new HashMap<String, JedisPool>();
+			pools.put("redis-1", new JedisPool());
+			pools.put("redis-2", new JedisPool());
+			return new ConsistentHashRedisConnectionSource(pools);
+		}
+	}
+
+	@Configuration
+	static class InvalidatorConfiguration {
+
+		@Bean
+		public RedisPubSubTicketInvalidator invalidator() {
+			return new RedisPubSubTicketInvalidator(new JedisPool());
+		}
+	}
+}
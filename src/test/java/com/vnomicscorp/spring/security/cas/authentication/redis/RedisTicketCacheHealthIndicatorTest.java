@@ -0,0 +1,78 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.easymock.EasyMockSupport;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.Status;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+public class RedisTicketCacheHealthIndicatorTest extends EasyMockSupport {
+
+	private JedisPool jedisPool;
+	private Jedis jedis;
+	private RedisTicketCacheHealthIndicator healthIndicator;
+
+	@Before
+	public void setup() {
+		jedisPool = createMock(JedisPool.class);
+		jedis = createMock(Jedis.class);
+		RedisConnectionSource connectionSource = createMock(RedisConnectionSource.class);
+		expect(connectionSource.getPools()).andReturn(Arrays.asList(jedisPool)).anyTimes();
+		healthIndicator = new RedisTicketCacheHealthIndicator(connectionSource);
+	}
+
+	@Test
+	public void up() {
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.ping()).andReturn("PONG");
+		jedis.close();
+		expectLastCall();
+		expect(jedisPool.getNumActive()).andReturn(2);
+		expect(jedisPool.getNumIdle()).andReturn(6);
+		expect(jedisPool.getNumWaiters()).andReturn(0);
+		replayAll();
+		Health health = healthIndicator.health();
+		assertEquals(Status.UP, health.getStatus());
+		assertEquals(1, health.getDetails().get("pools"));
+		assertEquals(2, health.getDetails().get("active"));
+		assertEquals(6, health.getDetails().get("idle"));
+		verifyAll();
+	}
+
+	@Test
+	public void downWhenPingFails() {
+		expect(jedisPool.getResource()).andThrow(new JedisConnectionException("down"));
+		replayAll();
+		assertEquals(Status.DOWN, healthIndicator.health().getStatus());
+		verifyAll();
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void nullConnectionSource() {
+		new RedisTicketCacheHealthIndicator(null);
+	}
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.jasig.cas.client.validation.AssertionImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+import org.testcontainers.containers.GenericContainer;
+
+import redis.clients.jedis.JedisPool;
+
+/**
+ * Integration test that verifies a {@link NearCacheStatelessTicketCache} invalidated by a
+ * {@link RedisTrackingTicketInvalidator} drops tickets changed by another node. This test requires docker to be
+ * installed.
+ *
+ */
+public class RedisTrackingTicketInvalidatorIT {
+
+	private static final int REDIS_DEFAULT_PORT = 6379;
+
+	@Rule
+	public GenericContainer redis = new GenericContainer("redis:6").withExposedPorts(REDIS_DEFAULT_PORT);
+
+	private static final String USERNAME = "dave";
+	private static final String CREDENTIALS = "ST-whatever";
+	private static final String KEY = "key";
+	private static final String ROLE = "role";
+
+	private JedisPool jedisPool;
+	private RedisStatelessTicketCache otherNode;
+	private NearCacheStatelessTicketCache nearCache;
+	private RedisTrackingTicketInvalidator invalidator;
+
+	@Before
+	public void setup() throws InterruptedException {
+		jedisPool = new JedisPool(redis.getContainerIpAddress(), redis.getMappedPort(REDIS_DEFAULT_PORT));
+		TicketKeyStrategy keyStrategy = new TicketKeyStrategy();
+		keyStrategy.setPrefix("cas:");
+		RedisStatelessTicketCache cache = new RedisStatelessTicketCache(jedisPool);
+		cache.setExpirationSeconds(60);
+		cache.setKeyStrategy(keyStrategy);
+		otherNode = new RedisStatelessTicketCache(jedisPool);
+		otherNode.setExpirationSeconds(60);
+		otherNode.setKeyStrategy(keyStrategy);
+		nearCache = new NearCacheStatelessTicketCache(cache);
+		nearCache.setTimeToLiveMillis(600000);
+		invalidator = new RedisTrackingTicketInvalidator(cache);
+		invalidator.addListener(nearCache);
+		invalidator.start();
+		// Tracking is established asynchronously
+		Thread.sleep(500);
+	}
+
+	@After
+	public void teardown() throws InterruptedException {
+		invalidator.stop();
+		jedisPool.close();
+	}
+
+	@Test
+	public void removeOnOtherNodeInvalidates() throws InterruptedException {
+		otherNode.putTicketInCache(makeToken());
+		CasAuthenticationToken cached = nearCache.getByTicketId(CREDENTIALS);
+		assertNotNull(cached);
+		assertSame(cached, nearCache.getByTicketId(CREDENTIALS));
+		otherNode.removeTicketFromCache(CREDENTIALS);
+		awaitInvalidated();
+		assertNull(nearCache.getByTicketId(CREDENTIALS));
+	}
+
+	@Test
+	public void putOnOtherNodeInvalidates() throws InterruptedException {
+		otherNode.putTicketInCache(makeToken());
+		CasAuthenticationToken cached = nearCache.getByTicketId(CREDENTIALS);
+		assertTrue(cached.isAuthenticated());
+		CasAuthenticationToken changed = makeToken();
+		changed.setAuthenticated(false);
+		otherNode.putTicketInCache(changed);
+		awaitInvalidated();
+		assertFalse(nearCache.getByTicketId(CREDENTIALS).isAuthenticated());
+	}
+
+	@Test
+	public void expiryInvalidates() throws InterruptedException {
+		otherNode.setExpirationSeconds(1);
+		otherNode.putTicketInCache(makeToken());
+		assertNotNull(nearCache.getByTicketId(CREDENTIALS));
+		for (int i = 0; i < 100 && nearCache.size() > 0; i++) {
+			Thread.sleep(50);
+		}
+		assertEquals(0, nearCache.size());
+	}
+
+	private void awaitInvalidated() throws InterruptedException {
+		for (int i = 0; i < 100 && nearCache.size() > 0; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(0, nearCache.size());
+	}
+
+	private CasAuthenticationToken makeToken() {
+		return new CasAuthenticationToken(KEY, USERNAME, CREDENTIALS, Arrays.asList(new SimpleGrantedAuthority(ROLE)),
+			new User(USERNAME, CREDENTIALS, Arrays.asList(new SimpleGrantedAuthority(ROLE))), new AssertionImpl(
+				USERNAME));
+	}
+}
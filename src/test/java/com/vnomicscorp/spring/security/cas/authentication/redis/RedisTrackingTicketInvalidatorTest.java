@@ -0,0 +1,166 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.easymock.EasyMockSupport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.util.SafeEncoder;
+
+public class RedisTrackingTicketInvalidatorTest extends EasyMockSupport {
+
+	private RedisTrackingTicketInvalidator invalidator;
+	private RedisStatelessTicketCache cache;
+	private TicketKeyStrategy keyStrategy;
+	private JedisPool jedisPool;
+	private TicketInvalidationListener listener;
+
+	@Before
+	public void setup() {
+		jedisPool = createMock(JedisPool.class);
+		listener = createMock(TicketInvalidationListener.class);
+		cache = new RedisStatelessTicketCache(jedisPool);
+		keyStrategy = new TicketKeyStrategy();
+		keyStrategy.setPrefix("cas:");
+		cache.setKeyStrategy(keyStrategy);
+		invalidator = new RedisTrackingTicketInvalidator(cache);
+		invalidator.addListener(listener);
+		resetAll();
+	}
+
+	@After
+	public void teardown() throws InterruptedException {
+		invalidator.stop();
+	}
+
+	@Test
+	public void invalidatedKeysDispatchedAsTickets() {
+		listener.ticketInvalidated("ST-1");
+		expectLastCall();
+		listener.ticketInvalidated("ST-2");
+		expectLastCall();
+		replayAll();
+		invalidator.dispatch(Arrays.<Object> asList(b("message"), b(RedisTrackingTicketInvalidator.INVALIDATE_CHANNEL),
+			Arrays.<Object> asList(b("cas:ST-1"), b("cas:ST-2"), b("other"))));
+		assertEquals(2, invalidator.getInvalidationCount());
+		verifyAll();
+	}
+
+	@Test
+	public void flushInvalidatesEverything() {
+		listener.allTicketsInvalidated();
+		expectLastCall();
+		replayAll();
+		invalidator.dispatch(Arrays.<Object> asList(b("message"), b(RedisTrackingTicketInvalidator.INVALIDATE_CHANNEL),
+			null));
+		verifyAll();
+	}
+
+	@Test
+	public void otherRepliesIgnored() {
+		replayAll();
+		invalidator.dispatch(Arrays.<Object> asList(b("subscribe"), b(RedisTrackingTicketInvalidator.INVALIDATE_CHANNEL),
+			1L));
+		verifyAll();
+	}
+
+	@Test
+	public void tracksUntilStopped() throws InterruptedException {
+		Jedis subscriber = createMock(Jedis.class);
+		Client subscriberClient = createMock(Client.class);
+		Jedis tracker = createMock(Jedis.class);
+		Client trackerClient = createMock(Client.class);
+		makeThreadSafe(subscriberClient, false);
+		final CountDownLatch tracking = new CountDownLatch(1);
+		final CountDownLatch disconnected = new CountDownLatch(1);
+		expect(jedisPool.getResource()).andReturn(subscriber);
+		expect(jedisPool.getResource()).andReturn(tracker);
+		expect(subscriber.getClient()).andReturn(subscriberClient).anyTimes();
+		expect(tracker.getClient()).andReturn(trackerClient).anyTimes();
+		subscriberClient.sendCommand(Protocol.Command.CLIENT, "ID");
+		subscriberClient.sendCommand(Protocol.Command.SUBSCRIBE, RedisTrackingTicketInvalidator.INVALIDATE_CHANNEL);
+		expect(subscriberClient.getIntegerReply()).andReturn(7L);
+		subscriberClient.setTimeoutInfinite();
+		expect(subscriberClient.getRawObjectMultiBulkReply()).andReturn(
+			Arrays.<Object> asList(b("subscribe"), b(RedisTrackingTicketInvalidator.INVALIDATE_CHANNEL), 1L));
+		trackerClient.sendCommand(eq(Protocol.Command.CLIENT), aryEq(b("TRACKING")), aryEq(b("on")), aryEq(
+			b("REDIRECT")), aryEq(b("7")), aryEq(b("BCAST")), aryEq(b("PREFIX")), aryEq(b("cas:")));
+		expect(trackerClient.getStatusCodeReply()).andReturn("OK");
+		listener.allTicketsInvalidated();
+		expectLastCall();
+		expect(subscriberClient.getRawObjectMultiBulkReply()).andReturn(
+			Arrays.<Object> asList(b("message"), b(RedisTrackingTicketInvalidator.INVALIDATE_CHANNEL), Arrays
+				.<Object> asList(b("cas:ST-1"))));
+		listener.ticketInvalidated("ST-1");
+		expectLastCall().andAnswer(() -> {
+			tracking.countDown();
+			return null;
+		});
+		expect(subscriberClient.getRawObjectMultiBulkReply()).andAnswer(() -> {
+			// stop() interrupts the thread right after disconnecting
+			while (disconnected.getCount() > 0) {
+				Thread.yield();
+			}
+			throw new JedisConnectionException("Socket closed");
+		});
+		subscriberClient.disconnect();
+		expectLastCall().andAnswer(() -> {
+			disconnected.countDown();
+			return null;
+		});
+		trackerClient.sendCommand(Protocol.Command.CLIENT, "TRACKING", "off");
+		expect(trackerClient.getStatusCodeReply()).andReturn("OK");
+		tracker.close();
+		expectLastCall();
+		expect(subscriberClient.isBroken()).andReturn(true);
+		subscriber.close();
+		expectLastCall();
+		replayAll();
+		invalidator.start();
+		assertTrue(tracking.await(5, TimeUnit.SECONDS));
+		invalidator.stop();
+		verifyAll();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void hashedKeysRejected() {
+		keyStrategy.setHashed(true);
+		invalidator.start();
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void nullCache() {
+		new RedisTrackingTicketInvalidator(null);
+	}
+
+	private static byte[] b(String value) {
+		return SafeEncoder.encode(value);
+	}
+}
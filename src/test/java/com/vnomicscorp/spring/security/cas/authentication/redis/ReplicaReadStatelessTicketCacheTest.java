@@ -0,0 +1,200 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.easymock.EasyMockSupport;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.util.SafeEncoder;
+
+public class ReplicaReadStatelessTicketCacheTest extends EasyMockSupport {
+	private static final String ST = "ST-dddddd";
+	private static final byte[] VAL = new byte[] { 1, 2, 3 };
+
+	private ReplicaReadStatelessTicketCache cache;
+	private RedisStatelessTicketCache primary;
+	private JedisPool primaryPool;
+	private JedisPool replicaPool1;
+	private JedisPool replicaPool2;
+	private Jedis primaryJedis;
+	private Jedis replicaJedis1;
+	private Jedis replicaJedis2;
+	private BinaryCasAuthenticationTokenSerializer serializer;
+	private CasAuthenticationToken token;
+
+	@Before
+	public void setup() {
+		primaryPool = createMock(JedisPool.class);
+		replicaPool1 = createMock(JedisPool.class);
+		replicaPool2 = createMock(JedisPool.class);
+		primaryJedis = createMock(Jedis.class);
+		replicaJedis1 = createMock(Jedis.class);
+		replicaJedis2 = createMock(Jedis.class);
+		serializer = createMock(BinaryCasAuthenticationTokenSerializer.class);
+		token = createMock(CasAuthenticationToken.class);
+		primary = new RedisStatelessTicketCache(primaryPool);
+		primary.setBinaryCasAuthenticationTokenSerializer(serializer);
+		cache = new ReplicaReadStatelessTicketCache(primary, Arrays.asList(replicaPool1, replicaPool2));
+		resetAll();
+	}
+
+	@Test
+	public void roundRobinOverReplicas() throws CasAuthenticationTokenSerializerException {
+		expectGet(replicaPool1, replicaJedis1, VAL);
+		expectGet(replicaPool2, replicaJedis2, VAL);
+		expectGet(replicaPool1, replicaJedis1, VAL);
+		expect(serializer.deserialize(aryEq(VAL))).andReturn(token).times(3);
+		replayAll();
+		for (int i = 0; i < 3; i++) {
+			assertEquals(token, cache.getByTicketId(ST));
+		}
+		assertEquals(3, cache.getReplicaHitCount());
+		verifyAll();
+	}
+
+	@Test
+	public void missFallsBackToPrimary() throws CasAuthenticationTokenSerializerException {
+		expectGet(replicaPool1, replicaJedis1, null);
+		expectGet(primaryPool, primaryJedis, VAL);
+		expect(serializer.deserialize(aryEq(VAL))).andReturn(token);
+		replayAll();
+		assertEquals(token, cache.getByTicketId(ST));
+		assertEquals(1, cache.getPrimaryFallbackCount());
+		verifyAll();
+	}
+
+	@Test
+	public void missWithoutFallback() {
+		cache.setFallbackOnMiss(false);
+		expectGet(replicaPool1, replicaJedis1, null);
+		replayAll();
+		assertNull(cache.getByTicketId(ST));
+		assertEquals(0, cache.getPrimaryFallbackCount());
+		verifyAll();
+	}
+
+	@Test
+	public void errorFallsBackToPrimary() throws CasAuthenticationTokenSerializerException {
+		expect(replicaPool1.getResource()).andThrow(new JedisConnectionException("down"));
+		expectGet(primaryPool, primaryJedis, VAL);
+		expect(serializer.deserialize(aryEq(VAL))).andReturn(token);
+		replayAll();
+		assertEquals(token, cache.getByTicketId(ST));
+		assertEquals(1, cache.getReplicaErrorCount());
+		assertEquals(1, cache.getPrimaryFallbackCount());
+		verifyAll();
+	}
+
+	@Test
+	public void leastLatencyAvoidsFailingReplica() throws CasAuthenticationTokenSerializerException {
+		cache.setReadRouting(ReplicaReadStatelessTicketCache.ReadRouting.LEAST_LATENCY);
+		cache.setProbeInterval(1000);
+		// The first lookup is a probe and goes round robin to the first replica, which fails
+		expect(replicaPool1.getResource()).andThrow(new JedisConnectionException("down"));
+		expectGet(primaryPool, primaryJedis, VAL);
+		expectGet(replicaPool2, replicaJedis2, VAL);
+		expectGet(replicaPool2, replicaJedis2, VAL);
+		expect(serializer.deserialize(aryEq(VAL))).andReturn(token).times(3);
+		replayAll();
+		cache.getByTicketId(ST);
+		// Unmeasured replicas count as fastest, so the second replica is measured next
+		cache.getByTicketId(ST);
+		cache.getByTicketId(ST);
+		assertTrue(cache.getReplicaLatencyNanos().get(0) > cache.getReplicaLatencyNanos().get(1));
+		verifyAll();
+	}
+
+	@Test
+	public void replicaHitRecordedOnPrimary() throws CasAuthenticationTokenSerializerException {
+		TicketCacheMetrics metrics = createNiceMock(TicketCacheMetrics.class);
+		primary.setMetrics(metrics);
+		expectGet(replicaPool1, replicaJedis1, VAL);
+		expect(serializer.deserialize(aryEq(VAL))).andReturn(token);
+		metrics.recordLookup(true);
+		expectLastCall();
+		replayAll();
+		assertEquals(token, cache.getByTicketId(ST));
+		verifyAll();
+	}
+
+	@Test
+	public void replicaHitRefreshedOnPrimary() throws CasAuthenticationTokenSerializerException {
+		primary.setExpirationSeconds(600);
+		primary.setSlidingExpiration(true);
+		expectGet(replicaPool1, replicaJedis1, VAL);
+		expect(primaryPool.getResource()).andReturn(primaryJedis);
+		expect(primaryJedis.expire(aryEq(SafeEncoder.encode(ST)), eq(600))).andReturn(1L);
+		primaryJedis.close();
+		expectLastCall();
+		expect(serializer.deserialize(aryEq(VAL))).andReturn(token);
+		expect(token.getAssertion()).andReturn(null);
+		// Refreshed at most once per interval
+		expectGet(replicaPool2, replicaJedis2, VAL);
+		expect(serializer.deserialize(aryEq(VAL))).andReturn(token);
+		expect(token.getAssertion()).andReturn(null);
+		replayAll();
+		assertEquals(token, cache.getByTicketId(ST));
+		assertEquals(token, cache.getByTicketId(ST));
+		verifyAll();
+	}
+
+	@Test
+	public void replicaHitRejected() throws CasAuthenticationTokenSerializerException {
+		expectGet(replicaPool1, replicaJedis1, VAL);
+		expect(serializer.deserialize(aryEq(VAL))).andThrow(new CasAuthenticationTokenRejectedException("Rejected", null));
+		replayAll();
+		assertNull(cache.getByTicketId(ST));
+		verifyAll();
+	}
+
+	@Test
+	public void writesGoToPrimary() {
+		expect(primaryPool.getResource()).andReturn(primaryJedis);
+		expect(primaryJedis.del(aryEq(SafeEncoder.encode(ST)))).andReturn(1L);
+		primaryJedis.close();
+		expectLastCall();
+		replayAll();
+		cache.removeTicketFromCache(ST);
+		verifyAll();
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void getByTicketIdNull() {
+		cache.getByTicketId(null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void noReplicas() {
+		new ReplicaReadStatelessTicketCache(new RedisStatelessTicketCache(primaryPool), Arrays.<JedisPool> asList());
+	}
+
+	private void expectGet(JedisPool pool, Jedis jedis, byte[] value) {
+		expect(pool.getResource()).andReturn(jedis);
+		expect(jedis.get(aryEq(SafeEncoder.encode(ST)))).andReturn(value);
+		jedis.close();
+		expectLastCall();
+	}
+}
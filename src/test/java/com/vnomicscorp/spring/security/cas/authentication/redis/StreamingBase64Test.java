@@ -0,0 +1,76 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import org.springframework.security.crypto.codec.Base64;
+
+public class StreamingBase64Test {
+
+	/**
+	 * Tests that every length encodes and decodes the same as Spring's Base64
+	 */
+	@Test
+	public void matchesSpring() {
+		Random random = new Random(42);
+		for (int length = 0; length < 100; length++) {
+			byte[] bytes = new byte[length];
+			random.nextBytes(bytes);
+			byte[] encoded = new byte[StreamingBase64.encodedLength(length) + 2];
+			int encodedLength = StreamingBase64.encode(concat(bytes), 1, length, encoded);
+			String expected = new String(Base64.encode(bytes), StandardCharsets.US_ASCII);
+			assertEquals(expected, new String(encoded, 0, encodedLength, StandardCharsets.US_ASCII));
+			byte[] decoded = new byte[StreamingBase64.maxDecodedLength(expected)];
+			int decodedLength = StreamingBase64.decode(expected, decoded);
+			assertArrayEquals(bytes, Arrays.copyOf(decoded, decodedLength));
+		}
+	}
+
+	@Test
+	public void skipsWhitespace() {
+		byte[] decoded = new byte[StreamingBase64.maxDecodedLength("AQID\r\nBA==")];
+		assertEquals(4, StreamingBase64.decode("AQID\r\nBA==", decoded));
+		assertArrayEquals(new byte[] { 1, 2, 3, 4 }, Arrays.copyOf(decoded, 4));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidCharacter() {
+		StreamingBase64.decode("AQ*D", new byte[6]);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void truncated() {
+		StreamingBase64.decode("AQI", new byte[6]);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void dataAfterPadding() {
+		StreamingBase64.decode("AQ==AQID", new byte[9]);
+	}
+
+	private static byte[] concat(byte[] bytes) {
+		// Surrounds the bytes so the offset and length are honored
+		byte[] surrounded = new byte[bytes.length + 2];
+		System.arraycopy(bytes, 0, surrounded, 1, bytes.length);
+		return surrounded;
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import redis.clients.jedis.util.JedisClusterCRC16;
+
+public class TicketKeyStrategyTest {
+	private static final String ST = "ST-12345-abcdefghijklmnopqrstuvwxyz0123456789-cas.example.com";
+
+	private TicketKeyStrategy keyStrategy;
+
+	@Before
+	public void setup() {
+		keyStrategy = new TicketKeyStrategy();
+	}
+
+	@Test
+	public void defaultKeyIsTicket() {
+		assertArrayEquals(ST.getBytes(StandardCharsets.UTF_8), keyStrategy.toKey(ST));
+		assertFalse(keyStrategy.isBucketed());
+	}
+
+	@Test
+	public void prefixedKey() {
+		keyStrategy.setPrefix("cas:st:");
+		assertArrayEquals(("cas:st:" + ST).getBytes(StandardCharsets.UTF_8), keyStrategy.toKey(ST));
+		assertEquals("cas:st:", keyStrategy.getPrefix());
+	}
+
+	@Test
+	public void hashedKeyHasFixedLength() {
+		keyStrategy.setPrefix("cas:");
+		keyStrategy.setHashed(true);
+		byte[] key = keyStrategy.toKey(ST);
+		assertEquals(4 + 16, key.length);
+		assertArrayEquals("cas:".getBytes(StandardCharsets.UTF_8), Arrays.copyOf(key, 4));
+		assertArrayEquals(key, keyStrategy.toKey(ST));
+		assertFalse(Arrays.equals(key, keyStrategy.toKey(ST + "x")));
+		assertEquals(16, keyStrategy.toField(ST).length);
+		keyStrategy.setHashLength(8);
+		assertEquals(4 + 8, keyStrategy.toKey(ST).length);
+	}
+
+	@Test
+	public void bucketsSpreadTickets() {
+		keyStrategy.setBucketCount(8);
+		assertTrue(keyStrategy.isBucketed());
+		Set<Integer> buckets = new HashSet<Integer>();
+		for (int i = 0; i < 1000; i++) {
+			int bucket = keyStrategy.toBucket(ST + i);
+			assertTrue(bucket >= 0 && bucket < 8);
+			buckets.add(bucket);
+		}
+		assertEquals(8, buckets.size());
+		assertEquals(keyStrategy.toBucket(ST), keyStrategy.toBucket(ST));
+		assertArrayEquals(ST.getBytes(StandardCharsets.UTF_8), keyStrategy.toField(ST));
+	}
+
+	@Test
+	public void generationsOfBucketShareSlot() {
+		keyStrategy.setPrefix("cas:");
+		keyStrategy.setBucketCount(1024);
+		assertEquals("cas:{7}:42", new String(keyStrategy.toBucketKey(7, 42), StandardCharsets.UTF_8));
+		assertEquals(JedisClusterCRC16.getSlot(keyStrategy.toBucketKey(7, 42)), JedisClusterCRC16.getSlot(keyStrategy
+			.toBucketKey(7, 43)));
+	}
+
+	@Test
+	public void keyAndBucketFromField() {
+		keyStrategy.setPrefix("cas:");
+		keyStrategy.setBucketCount(64);
+		assertArrayEquals(keyStrategy.toKey(ST), keyStrategy.toKeyOfField(keyStrategy.toField(ST)));
+		assertEquals(keyStrategy.toBucket(ST), keyStrategy.toBucketOfField(keyStrategy.toField(ST)));
+		keyStrategy.setHashed(true);
+		keyStrategy.setHashLength(8);
+		assertArrayEquals(keyStrategy.toKey(ST), keyStrategy.toKeyOfField(keyStrategy.toField(ST)));
+		for (int i = 0; i < 100; i++) {
+			assertEquals(keyStrategy.toBucket(ST + i), keyStrategy.toBucketOfField(keyStrategy.toField(ST + i)));
+		}
+	}
+
+	@Test
+	public void principalKey() {
+		keyStrategy.setPrefix("cas:");
+		assertEquals("cas:principal:dave", new String(keyStrategy.toPrincipalKey("dave"), StandardCharsets.UTF_8));
+		keyStrategy.setHashed(true);
+		assertEquals("cas:principal:".length() + 16, keyStrategy.toPrincipalKey("dave").length);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void hashLengthTooShort() {
+		keyStrategy.setHashLength(4);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void bucketCountNegative() {
+		keyStrategy.setBucketCount(-1);
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void prefixNull() {
+		keyStrategy.setPrefix(null);
+	}
+}
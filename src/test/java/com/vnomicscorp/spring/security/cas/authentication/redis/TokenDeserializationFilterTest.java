@@ -0,0 +1,100 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TokenDeserializationFilterTest {
+
+	private TokenDeserializationFilter filter;
+
+	@Before
+	public void setup() {
+		filter = new TokenDeserializationFilter();
+	}
+
+	@Test
+	public void defaultsAllowTokenGraph() {
+		assertTrue(filter.isAllowed("org.springframework.security.cas.authentication.CasAuthenticationToken"));
+		assertTrue(filter.isAllowed("org.springframework.security.core.userdetails.User"));
+		assertTrue(filter.isAllowed("org.jasig.cas.client.validation.AssertionImpl"));
+		assertTrue(filter.isAllowed("java.util.Collections$UnmodifiableRandomAccessList"));
+		assertFalse(filter.isAllowed("org.apache.commons.collections.functors.InvokerTransformer"));
+		assertFalse(filter.isAllowed("java.util.PriorityQueue"));
+	}
+
+	@Test
+	public void arrays() {
+		assertTrue(filter.isAllowed("[B"));
+		assertTrue(filter.isAllowed("[[J"));
+		assertTrue(filter.isAllowed("[Ljava.lang.String;"));
+		assertTrue(filter.isAllowed("[[Ljava.lang.String;"));
+		assertFalse(filter.isAllowed("[Ljava.util.PriorityQueue;"));
+	}
+
+	@Test
+	public void allowClassAndPackage() {
+		filter.allowClass("com.example.Details");
+		filter.allowPackage("com.example.attributes");
+		assertTrue(filter.isAllowed("com.example.Details"));
+		assertTrue(filter.isAllowed("com.example.attributes.Department"));
+		assertTrue(filter.isAllowed("com.example.attributes.sub.Team"));
+		assertFalse(filter.isAllowed("com.example.Other"));
+		assertFalse(filter.isAllowed("com.example.attributesevil.Gadget"));
+	}
+
+	@Test
+	public void limits() {
+		filter.setMaxDepth(5);
+		filter.setMaxReferences(10);
+		filter.setMaxArrayLength(100);
+		assertNull(filter.checkLimits(-1, 5, 10));
+		assertNull(filter.checkLimits(100, 1, 1));
+		assertNotNull(filter.checkLimits(101, 1, 1));
+		assertNotNull(filter.checkLimits(-1, 6, 1));
+		assertNotNull(filter.checkLimits(-1, 1, 11));
+	}
+
+	@Test
+	public void resolvedClassesCached() {
+		assertNull(filter.getResolvedClass(String.class.getName()));
+		filter.addResolvedClass(String.class);
+		assertSame(String.class, filter.getResolvedClass(String.class.getName()));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void maxDepthNotPositive() {
+		filter.setMaxDepth(0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void maxReferencesNotPositive() {
+		filter.setMaxReferences(0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void maxArrayLengthNegative() {
+		filter.setMaxArrayLength(-1);
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void allowClassNull() {
+		filter.allowClass(null);
+	}
+}
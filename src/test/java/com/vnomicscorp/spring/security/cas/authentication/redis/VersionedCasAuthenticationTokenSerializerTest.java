@@ -0,0 +1,140 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.jasig.cas.client.validation.AssertionImpl;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+
+public class VersionedCasAuthenticationTokenSerializerTest {
+	private static final String USERNAME = "dave";
+	private static final String CREDENTIALS = "ST-whatever";
+	private static final String KEY = "key";
+	private static final byte JAVA = 1;
+	private static final byte COMPACT = 2;
+
+	private JavaBinaryCasAuthenticationTokenSerializer java;
+	private CompactCasAuthenticationTokenSerializer compact;
+	private VersionedCasAuthenticationTokenSerializer serializer;
+
+	@Before
+	public void setup() {
+		java = new JavaBinaryCasAuthenticationTokenSerializer();
+		compact = new CompactCasAuthenticationTokenSerializer();
+		serializer = new VersionedCasAuthenticationTokenSerializer(COMPACT, compact);
+		serializer.addFormat(JAVA, java);
+	}
+
+	@Test
+	public void writesPreferredFormat() throws CasAuthenticationTokenSerializerException {
+		CasAuthenticationToken token = makeToken();
+		byte[] serialized = serializer.serialize(token);
+		assertEquals(VersionedCasAuthenticationTokenSerializer.HEADER, serialized[0]);
+		assertEquals(COMPACT, serialized[1]);
+		assertArrayEquals(compact.serialize(token), Arrays.copyOfRange(serialized, 2, serialized.length));
+		assertFalse(serializer.isOutdated(serialized));
+		assertTokenEquals(token, serializer.deserialize(serialized));
+	}
+
+	@Test
+	public void readsOtherFormats() throws CasAuthenticationTokenSerializerException {
+		CasAuthenticationToken token = makeToken();
+		serializer.setPreferredFormat(JAVA);
+		byte[] serialized = serializer.serialize(token);
+		serializer.setPreferredFormat(COMPACT);
+		assertTrue(serializer.isOutdated(serialized));
+		assertTokenEquals(token, serializer.deserialize(serialized));
+	}
+
+	@Test
+	public void readsLegacyEntries() throws CasAuthenticationTokenSerializerException {
+		CasAuthenticationToken token = makeToken();
+		StringCasAuthenticationTokenSerializerAdapter legacy = new StringCasAuthenticationTokenSerializerAdapter(
+			new DefaultCasAuthenticationTokenSerializer());
+		serializer.setLegacySerializer(legacy);
+		byte[] serialized = legacy.serialize(token);
+		assertTrue(serializer.isOutdated(serialized));
+		assertTokenEquals(token, serializer.deserialize(serialized));
+		// Java serialization and compact entries without the envelope
+		serializer.setLegacySerializer(java);
+		assertTokenEquals(token, serializer.deserialize(java.serialize(token)));
+		serializer.setLegacySerializer(compact);
+		assertTokenEquals(token, serializer.deserialize(compact.serialize(token)));
+	}
+
+	@Test
+	public void compressionInsideEnvelope() throws CasAuthenticationTokenSerializerException {
+		CompressingCasAuthenticationTokenSerializer compressing = new CompressingCasAuthenticationTokenSerializer(
+			java);
+		compressing.setCompressionThreshold(0);
+		serializer.addFormat((byte) 3, compressing);
+		serializer.setPreferredFormat((byte) 3);
+		CasAuthenticationToken token = makeToken();
+		byte[] serialized = serializer.serialize(token);
+		assertEquals(CompressingCasAuthenticationTokenSerializer.HEADER, serialized[2]);
+		assertTokenEquals(token, serializer.deserialize(serialized));
+	}
+
+	@Test(expected = CasAuthenticationTokenSerializerException.class)
+	public void legacyEntryWithoutLegacySerializer() throws CasAuthenticationTokenSerializerException {
+		serializer.deserialize(java.serialize(makeToken()));
+	}
+
+	@Test(expected = CasAuthenticationTokenSerializerException.class)
+	public void unknownFormat() throws CasAuthenticationTokenSerializerException {
+		byte[] serialized = serializer.serialize(makeToken());
+		serialized[1] = 99;
+		serializer.deserialize(serialized);
+	}
+
+	@Test(expected = CasAuthenticationTokenSerializerException.class)
+	public void truncatedEntry() throws CasAuthenticationTokenSerializerException {
+		serializer.deserialize(new byte[] { VersionedCasAuthenticationTokenSerializer.HEADER });
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void formatIdTaken() {
+		serializer.addFormat(JAVA, new JavaBinaryCasAuthenticationTokenSerializer());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unregisteredPreferredFormat() {
+		serializer.setPreferredFormat((byte) 99);
+	}
+
+	private CasAuthenticationToken makeToken() {
+		List<GrantedAuthority> authorities = Arrays.<GrantedAuthority> asList(new SimpleGrantedAuthority("ROLE_USER"));
+		return new CasAuthenticationToken(KEY, USERNAME, CREDENTIALS, authorities, new User(USERNAME, CREDENTIALS,
+			authorities), new AssertionImpl(USERNAME));
+	}
+
+	private void assertTokenEquals(CasAuthenticationToken expected, CasAuthenticationToken got) {
+		assertEquals(expected.getName(), got.getName());
+		assertEquals(expected.getAuthorities(), got.getAuthorities());
+		assertEquals(expected.getCredentials(), got.getCredentials());
+		assertEquals(expected.getKeyHash(), got.getKeyHash());
+		assertEquals(expected.getUserDetails(), got.getUserDetails());
+	}
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright 2015 Vnomics Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vnomicscorp.spring.security.cas.authentication.redis;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.easymock.EasyMockSupport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.cas.authentication.CasAuthenticationToken;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.params.SetParams;
+import redis.clients.jedis.util.SafeEncoder;
+
+public class WriteBehindStatelessTicketCacheTest extends EasyMockSupport {
+	private static final String ST = "ST-dddddd";
+	private static final byte[] VAL = new byte[] { 1, 2, 3 };
+
+	private WriteBehindStatelessTicketCache cache;
+	private JedisPool jedisPool;
+	private Jedis jedis;
+	private Pipeline pipeline;
+	private BinaryCasAuthenticationTokenSerializer serializer;
+	private CasAuthenticationToken token;
+
+	@Before
+	public void setup() throws CasAuthenticationTokenSerializerException {
+		jedisPool = createStrictMock(JedisPool.class);
+		jedis = createStrictMock(Jedis.class);
+		pipeline = createStrictMock(Pipeline.class);
+		serializer = createMock(BinaryCasAuthenticationTokenSerializer.class);
+		token = createMock(CasAuthenticationToken.class);
+		RedisStatelessTicketCache redisCache = new RedisStatelessTicketCache(jedisPool);
+		redisCache.setBinaryCasAuthenticationTokenSerializer(serializer);
+		cache = new WriteBehindStatelessTicketCache(redisCache);
+		cache.setFlushIntervalMillis(60000);
+		resetAll();
+		expect(token.getCredentials()).andReturn(ST).anyTimes();
+		expect(serializer.serialize(token)).andReturn(VAL).anyTimes();
+	}
+
+	@After
+	public void teardown() throws InterruptedException {
+		cache.stop();
+	}
+
+	@Test
+	public void pendingPutVisibleToReads() throws InterruptedException {
+		expectPipeline();
+		expect(pipeline.set(aryEq(SafeEncoder.encode(ST)), aryEq(VAL), anyObject(SetParams.class))).andReturn(null);
+		expect(pipeline.syncAndReturnAll()).andReturn(Collections.emptyList());
+		jedis.close();
+		expectLastCall();
+		replayAll();
+		cache.start();
+		cache.putTicketInCache(token);
+		assertEquals(token, cache.getByTicketId(ST));
+		assertEquals(1, cache.getPendingCount());
+		cache.stop();
+		verifyAll();
+	}
+
+	@Test
+	public void pendingRemoveVisibleToReads() throws InterruptedException {
+		expectPipeline();
+		expect(pipeline.del(aryEq(SafeEncoder.encode(ST)))).andReturn(null);
+		expect(pipeline.syncAndReturnAll()).andReturn(Collections.emptyList());
+		jedis.close();
+		expectLastCall();
+		replayAll();
+		cache.start();
+		cache.putTicketInCache(token);
+		cache.removeTicketFromCache(ST);
+		assertNull(cache.getByTicketId(ST));
+		cache.stop();
+		verifyAll();
+	}
+
+	@Test
+	public void flushPipelinesWrites() {
+		expectPipeline();
+		expect(pipeline.set(aryEq(SafeEncoder.encode(ST)), aryEq(VAL), anyObject(SetParams.class))).andReturn(null);
+		expect(pipeline.del(aryEq(SafeEncoder.encode("ST-other")))).andReturn(null);
+		expect(pipeline.syncAndReturnAll()).andReturn(Collections.emptyList());
+		jedis.close();
+		expectLastCall();
+		replayAll();
+		cache.start();
+		cache.putTicketInCache(token);
+		cache.removeTicketFromCache("ST-other");
+		cache.flush();
+		assertEquals(0, cache.getPendingCount());
+		verifyAll();
+	}
+
+	@Test
+	public void putThenRemoveCollapses() {
+		expectPipeline();
+		expect(pipeline.del(aryEq(SafeEncoder.encode(ST)))).andReturn(null);
+		expect(pipeline.syncAndReturnAll()).andReturn(Collections.emptyList());
+		jedis.close();
+		expectLastCall();
+		replayAll();
+		cache.start();
+		cache.putTicketInCache(token);
+		cache.removeTicketFromCache(ST);
+		cache.flush();
+		assertEquals(1, cache.getCoalescedCount());
+		verifyAll();
+	}
+
+	@Test
+	public void stopDrainsBuffer() throws InterruptedException {
+		expectPipeline();
+		expect(pipeline.set(aryEq(SafeEncoder.encode(ST)), aryEq(VAL), anyObject(SetParams.class))).andReturn(null);
+		expect(pipeline.syncAndReturnAll()).andReturn(Collections.emptyList());
+		jedis.close();
+		expectLastCall();
+		replayAll();
+		cache.start();
+		cache.putTicketInCache(token);
+		cache.stop();
+		assertEquals(0, cache.getPendingCount());
+		verifyAll();
+	}
+
+	@Test
+	public void batchSizeTriggersFlush() throws InterruptedException {
+		cache.setBatchSize(2);
+		expectPipeline();
+		expect(pipeline.set(aryEq(SafeEncoder.encode(ST)), aryEq(VAL), anyObject(SetParams.class))).andReturn(null);
+		expect(pipeline.del(aryEq(SafeEncoder.encode("ST-other")))).andReturn(null);
+		expect(pipeline.syncAndReturnAll()).andReturn(Collections.emptyList());
+		jedis.close();
+		expectLastCall();
+		replayAll();
+		cache.start();
+		cache.putTicketInCache(token);
+		cache.removeTicketFromCache("ST-other");
+		for (int i = 0; i < 100 && cache.getPendingCount() > 0; i++) {
+			Thread.sleep(10);
+		}
+		cache.stop();
+		verifyAll();
+	}
+
+	@Test
+	public void failedFlushCounted() {
+		expect(jedisPool.getResource()).andThrow(new JedisConnectionException("down"));
+		replayAll();
+		cache.start();
+		cache.putTicketInCache(token);
+		cache.removeTicketFromCache("ST-other");
+		cache.flush();
+		assertEquals(2, cache.getFailedCount());
+		assertEquals(0, cache.getPendingCount());
+		verifyAll();
+	}
+
+	@Test
+	public void errorRepliesCounted() {
+		expectPipeline();
+		expect(pipeline.set(aryEq(SafeEncoder.encode(ST)), aryEq(VAL), anyObject(SetParams.class))).andReturn(null);
+		expect(pipeline.syncAndReturnAll()).andReturn(
+			Arrays.<Object> asList(new JedisDataException("OOM command not allowed")));
+		jedis.close();
+		expectLastCall();
+		replayAll();
+		cache.start();
+		cache.putTicketInCache(token);
+		cache.flush();
+		assertEquals(1, cache.getFailedCount());
+		verifyAll();
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void getByTicketIdNull() {
+		cache.getByTicketId(null);
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void putTicketInCacheNull() {
+		cache.putTicketInCache(null);
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void removeTicketFromCacheNull() {
+		cache.removeTicketFromCache((String) null);
+	}
+
+	private void expectPipeline() {
+		expect(jedisPool.getResource()).andReturn(jedis);
+		expect(jedis.pipelined()).andReturn(pipeline);
+	}
+}